@@ -0,0 +1,41 @@
+--
+-- Copyright 2015 The University of Vermont and State Agricultural
+-- College, Vermont Oxford Network.  All rights reserved.
+--
+-- Written by Matthew B. Storer <matthewbstorer@gmail.com>
+--
+-- This file is part of GenBank Loader.
+--
+-- GenBank Loader is free software: you can redistribute it and/or modify
+-- it under the terms of the GNU General Public License as published by
+-- the Free Software Foundation, either version 3 of the License, or
+-- (at your option) any later version.
+--
+-- GenBank Loader is distributed in the hope that it will be useful,
+-- but WITHOUT ANY WARRANTY; without even the implied warranty of
+-- MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+-- GNU General Public License for more details.
+--
+-- You should have received a copy of the GNU General Public License
+-- along with GenBank Loader.  If not, see <http://www.gnu.org/licenses/>.
+--
+
+-- Run after createdb.sql when genbank.annotations.dedupe = true.  Annotation values are then kept once each in
+-- annotation_values, keyed by the MD5 of the value, and annotations rows refer to them by that key.  To look up an
+-- annotation by its exact value, match on valueId = md5('...').
+
+create table if not exists genbank.annotation_values (
+  valueId char(32) character set ascii not null,
+  indexedValue varchar(100),
+  value longtext not null,
+  primary key (valueId),
+  index indexedValue(indexedValue)
+) engine InnoDB,
+  character set latin1;
+
+alter table genbank.annotations
+  drop index indexedValue,
+  drop column indexedValue,
+  drop column value,
+  add column valueId char(32) character set ascii not null,
+  add index valueId(valueId);
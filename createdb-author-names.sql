@@ -0,0 +1,39 @@
+--
+-- Copyright 2015 The University of Vermont and State Agricultural
+-- College, Vermont Oxford Network.  All rights reserved.
+--
+-- Written by Matthew B. Storer <matthewbstorer@gmail.com>
+--
+-- This file is part of GenBank Loader.
+--
+-- GenBank Loader is free software: you can redistribute it and/or modify
+-- it under the terms of the GNU General Public License as published by
+-- the Free Software Foundation, either version 3 of the License, or
+-- (at your option) any later version.
+--
+-- GenBank Loader is distributed in the hope that it will be useful,
+-- but WITHOUT ANY WARRANTY; without even the implied warranty of
+-- MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+-- GNU General Public License for more details.
+--
+-- You should have received a copy of the GNU General Public License
+-- along with GenBank Loader.  If not, see <http://www.gnu.org/licenses/>.
+--
+
+-- Run after createdb.sql when genbank.authors.normalize = true.  Author names are then kept once each in
+-- author_names, and authors becomes a narrow link table referring to them by authorId, which is taken from the first
+-- 64 bits of the name's MD5 (i.e. cast(conv(left(md5('...'), 16), 16, 10) as signed)).
+
+create table if not exists genbank.author_names (
+  authorId bigint not null,
+  author varchar(100) not null,
+  primary key (authorId),
+  index author(author)
+) engine InnoDB,
+  character set latin1;
+
+alter table genbank.authors
+  drop index author,
+  drop column author,
+  add column authorId bigint not null,
+  add index authorId(authorId);
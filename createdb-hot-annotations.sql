@@ -0,0 +1,99 @@
+--
+-- Copyright 2015 The University of Vermont and State Agricultural
+-- College, Vermont Oxford Network.  All rights reserved.
+--
+-- Written by Matthew B. Storer <matthewbstorer@gmail.com>
+--
+-- This file is part of GenBank Loader.
+--
+-- GenBank Loader is free software: you can redistribute it and/or modify
+-- it under the terms of the GNU General Public License as published by
+-- the Free Software Foundation, either version 3 of the License, or
+-- (at your option) any later version.
+--
+-- GenBank Loader is distributed in the hope that it will be useful,
+-- but WITHOUT ANY WARRANTY; without even the implied warranty of
+-- MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+-- GNU General Public License for more details.
+--
+-- You should have received a copy of the GNU General Public License
+-- along with GenBank Loader.  If not, see <http://www.gnu.org/licenses/>.
+--
+
+-- Run after createdb.sql when genbank.annotations.hot lists the qualifiers below (the suggested setting).  Each hot
+-- qualifier's annotations are kept in a narrow table of their own, named annotations_<qualifier>, rather than in the
+-- generic annotations table, with the same column types: values are not truncated, so no qualifier's value can be
+-- assumed to be short.  If genbank.annotations.dedupe is also enabled, replace each table's indexedValue and value
+-- columns with valueId char(32) character set ascii not null, as for annotations.
+
+create table if not exists genbank.annotations_gene (
+  partitionKey tinyint unsigned not null,
+  locus varchar(20) not null,
+  indexedValue varchar(100),
+  value longtext not null,
+  index locus(locus),
+  index indexedValue(indexedValue)
+) engine InnoDB,
+  character set latin1
+  partition by hash(partitionKey)
+  partitions 10;
+
+create table if not exists genbank.annotations_product (
+  partitionKey tinyint unsigned not null,
+  locus varchar(20) not null,
+  indexedValue varchar(100),
+  value longtext not null,
+  index locus(locus),
+  index indexedValue(indexedValue)
+) engine InnoDB,
+  character set latin1
+  partition by hash(partitionKey)
+  partitions 10;
+
+create table if not exists genbank.annotations_protein_id (
+  partitionKey tinyint unsigned not null,
+  locus varchar(20) not null,
+  indexedValue varchar(100),
+  value longtext not null,
+  index locus(locus),
+  index indexedValue(indexedValue)
+) engine InnoDB,
+  character set latin1
+  partition by hash(partitionKey)
+  partitions 10;
+
+create table if not exists genbank.annotations_organism (
+  partitionKey tinyint unsigned not null,
+  locus varchar(20) not null,
+  indexedValue varchar(100),
+  value longtext not null,
+  index locus(locus),
+  index indexedValue(indexedValue)
+) engine InnoDB,
+  character set latin1
+  partition by hash(partitionKey)
+  partitions 10;
+
+create table if not exists genbank.annotations_strain (
+  partitionKey tinyint unsigned not null,
+  locus varchar(20) not null,
+  indexedValue varchar(100),
+  value longtext not null,
+  index locus(locus),
+  index indexedValue(indexedValue)
+) engine InnoDB,
+  character set latin1
+  partition by hash(partitionKey)
+  partitions 10;
+
+create table if not exists genbank.annotations_country (
+  partitionKey tinyint unsigned not null,
+  locus varchar(20) not null,
+  indexedValue varchar(100),
+  value longtext not null,
+  index locus(locus),
+  index indexedValue(indexedValue)
+) engine InnoDB,
+  character set latin1
+  partition by hash(partitionKey)
+  partitions 10;
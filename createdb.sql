@@ -104,3 +104,11 @@ create table if not exists genbank.annotations (
   character set latin1
   partition by hash(partitionKey)
   partitions 50;
+
+create table if not exists genbank.summary_counts (
+  dimension varchar(50) not null,
+  name varchar(255) not null,
+  count bigint not null,
+  index dimensionName(dimension, name)
+) engine InnoDB,
+  character set latin1;
@@ -23,17 +23,28 @@
 package edu.uvm.ccts.genbank;
 
 import edu.uvm.ccts.common.db.parser.AbstractCustomFileParser;
+import edu.uvm.ccts.common.db.parser.Checkpoint;
+import edu.uvm.ccts.common.db.parser.RecordFilter;
 import edu.uvm.ccts.common.db.parser.TableData;
 import edu.uvm.ccts.common.util.FileUtil;
+import edu.uvm.ccts.genbank.filter.LocusVersionMap;
+import edu.uvm.ccts.genbank.filter.OffHeapHashSet;
 import edu.uvm.ccts.genbank.model.DbXRef;
 import edu.uvm.ccts.genbank.model.Journal;
 import edu.uvm.ccts.genbank.model.Record;
+import edu.uvm.ccts.genbank.summary.SummaryCounts;
+import org.apache.commons.io.input.CountingInputStream;
 
 import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -51,9 +62,23 @@ public class FeatureTableParser extends AbstractCustomFileParser {
     public static final String TABLE_FILE_JOURNALS = "journals.txt";
     public static final String TABLE_FILE_AUTHORS = "authors.txt";
     public static final String TABLE_FILE_ANNOTATIONS = "annotations.txt";
+    public static final String TABLE_FILE_MANIFEST = "manifest.txt";
+    public static final String TABLE_FILE_ANNOTATION_VALUES = "annotation_values.txt";
+    public static final String TABLE_FILE_AUTHOR_NAMES = "author_names.txt";
+    public static final String TABLE_FILE_SUMMARY_PARTIALS = "summary_partials.txt";
+    public static final String HOT_ANNOTATIONS_PREFIX = "annotations_";
     // update this if you are changing file names for batch loading authors/annotations
 
+    /**
+     * Rows of records that supersede an earlier version of a locus are written to side tables named after the main
+     * tables with this suffix, each row prefixed with the record's rank (see {@link LocusVersionMap#rank}), until
+     * compaction merges them in
+     */
+    public static final String SUPERSEDING_SUFFIX = ".superseding";
+
     private static final int ANNOTATION_VALUE_INDEX_LEN = 100;
+    private static final long PENDING_DICTIONARY_BYTES = 16 * 1024 * 1024;
+    static final String CHECKPOINT_DIR = ".checkpoints";
 
     private TableData tBasic;
     private TableData tKeywords;
@@ -62,11 +87,63 @@ public class FeatureTableParser extends AbstractCustomFileParser {
     private TableData tAuthors;
     private TableData tAnnotations;
     private List<TableData> tableDataList;
+    private Map<String, TableData> hotAnnotationTables = new HashMap<String, TableData>();
+
+    private String checkpointDir;
+    private int checkpointInterval;
+    private CountingInputStream countingInput = null;
+    private LineFilter lineFilter = null;
+    private RecordFilter recordFilter = null;
+
+    private String tempDir;
+    private String outputDir;
+    private LocusVersionMap locusMap = null;
+    private final List<LocusClaim> pendingClaims = new ArrayList<LocusClaim>();
+    private Map<TableData, TableData> supersedingTables = null;
+    private int fileSequence = 0;
+    private int supersedingRank = -1;
+    private TableData tManifest = null;
+    private MessageDigest digest = null;
+    private OffHeapHashSet valueDictionary = null;
+    private OffHeapHashSet pendingValues = null;
+    private TableData tAnnotationValues = null;
+    private OffHeapHashSet authorDictionary = null;
+    private OffHeapHashSet pendingAuthors = null;
+    private TableData tAuthorNames = null;
+    private MessageDigest dictionaryDigest = null;
+    private SummaryCounts summary = null;
+    private TableData tSummary = null;
+    private Map<TableData, TableStats> tableStats = new IdentityHashMap<TableData, TableStats>();
 
 
     public FeatureTableParser(int threadId, String tempDir, String outputDir) throws IOException {
+        this(threadId, tempDir, outputDir, 0);
+    }
+
+    /**
+     * @param checkpointInterval the number of records to process between checkpoints, or {@code 0} to disable
+     *                           checkpointing.  Checkpoints are kept in the output directory, so that they survive
+     *                           the loss of the temporary directory.
+     */
+    public FeatureTableParser(int threadId, String tempDir, String outputDir, int checkpointInterval) throws IOException {
+        this(threadId, tempDir, outputDir, outputDir + "/" + CHECKPOINT_DIR, checkpointInterval);
+    }
+
+    /**
+     * @param checkpointDir the directory in which checkpoints are kept, for when finalized output is written somewhere
+     *                      (e.g. a node-local staging directory) that may not survive an interruption
+     * @param checkpointInterval the number of records to process between checkpoints, or {@code 0} to disable
+     *                           checkpointing
+     */
+    public FeatureTableParser(int threadId, String tempDir, String outputDir, String checkpointDir,
+                              int checkpointInterval) throws IOException {
         super(threadId);
 
+        this.checkpointDir = checkpointDir;
+        this.tempDir = tempDir;
+        this.outputDir = outputDir;
+        this.checkpointInterval = checkpointInterval;
+
         tBasic =        new TableData(tempDir, outputDir, TABLE_FILE_BASIC);
         tKeywords =     new TableData(tempDir, outputDir, TABLE_FILE_KEYWORDS);
         tDbXRef =       new TableData(tempDir, outputDir, TABLE_FILE_DBXREFS);
@@ -81,7 +158,180 @@ public class FeatureTableParser extends AbstractCustomFileParser {
     @Override
     public void parse(String filename) throws Exception {
         extractFeatureTableData(filename);
-        super.parse(filename);
+
+        try {
+            super.parse(filename);
+
+        } catch (Exception e) {
+            discardPendingDictionaryEntries();
+            withdrawClaims();
+            throw e;
+        }
+    }
+
+    /**
+     * Parses a feature table file as it is being downloaded.  Sequence data is stripped out on the fly, exactly as it
+     * would be by {@code extractTableInfo}, so that the raw file never needs to be written to disk.
+     * @param name the name of the file whose contents are being read
+     * @param input the raw, gzip-compressed contents of the file
+     * @throws Exception
+     */
+    @Override
+    public void parse(String name, InputStream input) throws Exception {
+        lineFilter = new LineFilter();
+
+        try {
+            super.parse(name, input);
+
+        } catch (Exception e) {
+            discardPendingDictionaryEntries();
+            withdrawClaims();
+            throw e;
+
+        } finally {
+            lineFilter = null;
+        }
+    }
+
+    /**
+     * @param recordFilter a {@link RecordFilter} used to discard unwanted records as they are framed, or {@code null}
+     *                     to process every record
+     */
+    public void setRecordFilter(RecordFilter recordFilter) {
+        this.recordFilter = recordFilter;
+    }
+
+    /**
+     * Routes the annotations of the specified qualifiers to tables of their own, named {@code annotations_<qualifier>},
+     * whose rows omit the qualifier name.  Annotations of all other qualifiers are written to the generic annotations
+     * table as before.  Must be called before {@code setLocusVersionMap}.
+     * @param qualifiers the names of the qualifiers to be routed to their own tables (e.g. {@code gene})
+     * @throws IOException
+     */
+    public void setHotQualifiers(List<String> qualifiers) throws IOException {
+        List<TableData> list = new ArrayList<TableData>(tableDataList);
+        for (String qualifier : qualifiers) {
+            TableData t = new TableData(tempDir, outputDir, getHotAnnotationFilename(qualifier));
+            hotAnnotationTables.put(qualifier, t);
+            list.add(t);
+        }
+        tableDataList = list;
+    }
+
+    /**
+     * @param qualifier the name of a qualifier, e.g. {@code gene}
+     * @return the name of the file holding that qualifier's annotations, e.g. {@code annotations_gene.txt}
+     */
+    public static String getHotAnnotationFilename(String qualifier) {
+        return HOT_ANNOTATIONS_PREFIX + qualifier + ".txt";
+    }
+
+    /**
+     * Enables the locus manifest, in which each record's locus is written along with a hash of every row emitted for
+     * it, so that consecutive releases may be compared record by record.  Must be called before
+     * {@code setLocusVersionMap}.
+     * @throws IOException
+     */
+    public void enableManifest() throws IOException {
+        try {
+            digest = MessageDigest.getInstance("MD5");
+
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("MD5 is not available", e);
+        }
+
+        tManifest = new TableData(tempDir, outputDir, TABLE_FILE_MANIFEST);
+
+        List<TableData> list = new ArrayList<TableData>(tableDataList);
+        list.add(tManifest);
+        tableDataList = list;
+    }
+
+    /**
+     * Enables de-duplication of loci across source files.  A record is dropped if its locus has already been emitted
+     * at a newer version, or at the same version from the same or a later file (in the order set on the map, if any);
+     * a record that supersedes an earlier claim is written to the side tables, to be merged in by
+     * {@link SupersededCompactor}.
+     * @param locusMap the {@link LocusVersionMap} shared by all parsers
+     * @throws IOException
+     */
+    public void setLocusVersionMap(LocusVersionMap locusMap) throws IOException {
+        this.locusMap = locusMap;
+
+        supersedingTables = new IdentityHashMap<TableData, TableData>();
+        List<TableData> list = new ArrayList<TableData>(tableDataList);
+        for (TableData t : tableDataList) {
+            TableData side = new TableData(tempDir, outputDir, getSupersedingFilename(t.getName()));
+            supersedingTables.put(t, side);
+            list.add(side);
+        }
+        tableDataList = list;
+    }
+
+    /**
+     * Enables the annotation value dictionary.  Each distinct annotation value is written once, to
+     * {@code annotation_values.txt}, keyed by the hex MD5 of its UTF-8 bytes; annotation rows then carry only that
+     * key in place of the value.  The shared set remembers which values have already been written, but may forget
+     * some once it fills, so a value may occasionally be written more than once - these repeats are discarded when
+     * the table is loaded.  Values this parser writes are only added to the shared set once its output is committed
+     * or checkpointed, so that no other parser skips a value whose row may yet be discarded.  Must be called after
+     * {@code setLocusVersionMap}, as dictionary rows are not tied to any one locus.
+     * @param valueDictionary the {@link OffHeapHashSet} shared by all parsers
+     * @throws IOException
+     */
+    public void setValueDictionary(OffHeapHashSet valueDictionary) throws IOException {
+        this.valueDictionary = valueDictionary;
+        pendingValues = new OffHeapHashSet(PENDING_DICTIONARY_BYTES, 1);
+        tAnnotationValues = addDictionaryTable(TABLE_FILE_ANNOTATION_VALUES);
+    }
+
+    /**
+     * Enables the author dimension.  Each distinct author name is written once, to {@code author_names.txt}, with an
+     * id taken from the first 64 bits of the MD5 of its UTF-8 bytes; author rows then carry only that id in place of
+     * the name.  Ids depend on nothing but the name, so they agree between runs, resumed runs, retained segments and
+     * daily updates without any registry having to be persisted.  As with annotation values, names this parser writes
+     * are only added to the shared set once its output is committed or checkpointed.  Must be called after
+     * {@code setLocusVersionMap}.
+     * @param authorDictionary the {@link OffHeapHashSet} shared by all parsers
+     * @throws IOException
+     */
+    public void setAuthorDictionary(OffHeapHashSet authorDictionary) throws IOException {
+        this.authorDictionary = authorDictionary;
+        pendingAuthors = new OffHeapHashSet(PENDING_DICTIONARY_BYTES, 1);
+        tAuthorNames = addDictionaryTable(TABLE_FILE_AUTHOR_NAMES);
+    }
+
+    /**
+     * Enables summary statistics: counts of records per year, month, division, keyword, journal, dbxref database and
+     * qualifier, and estimates of the number of distinct authors and annotation values.  Statistics are accumulated
+     * as records are processed and written to {@code summary_partials.txt} whenever output is committed, to be merged
+     * by {@link SummaryCounts#read}.  A locus whose record supersedes an earlier version is counted only once, with
+     * the attributes of the version first emitted.  The number of rows and bytes written to each table, and the
+     * widest value written to each of its columns, are recorded too, for sizing the database schema.  Must be called
+     * after {@code setLocusVersionMap}.
+     * @throws IOException
+     */
+    public void enableSummary() throws IOException {
+        summary = new SummaryCounts();
+        tSummary = new TableData(tempDir, outputDir, TABLE_FILE_SUMMARY_PARTIALS);
+
+        List<TableData> list = new ArrayList<TableData>(tableDataList);
+        list.add(tSummary);
+        tableDataList = list;
+    }
+
+    /**
+     * @param tableFilename the name of a main table file, e.g. {@code basic.txt}
+     * @return the name of the corresponding side table file, e.g. {@code basic.superseding.txt}
+     */
+    public static String getSupersedingFilename(String tableFilename) {
+        int idx = tableFilename.lastIndexOf('.');
+        return tableFilename.substring(0, idx) + SUPERSEDING_SUFFIX + tableFilename.substring(idx);
+    }
+
+    @Override
+    protected RecordFilter getRecordFilter() {
+        return recordFilter;
     }
 
     @Override
@@ -91,7 +341,66 @@ public class FeatureTableParser extends AbstractCustomFileParser {
 
     @Override
     protected InputStream getInputStream(String filename) throws IOException {
-        return new GZIPInputStream(new FileInputStream(filename));
+        return getInputStream(new FileInputStream(filename));
+    }
+
+    @Override
+    protected InputStream getInputStream(InputStream input) throws IOException {
+        countingInput = new CountingInputStream(input);
+        return new GZIPInputStream(countingInput);
+    }
+
+    @Override
+    protected Checkpoint resume(String filename) throws IOException {
+        withdrawClaims();                               // claims for records whose output is being discarded
+        if (locusMap != null) fileSequence = locusMap.getSequence(filename);
+        discardPendingDictionaryEntries();
+        if (summary != null) summary.clear();           // statistics of records whose output is being discarded
+        tableStats.clear();
+        return super.resume(filename);
+    }
+
+    @Override
+    protected void checkpoint(String filename, long recordCount) throws IOException {
+        emitSummary();
+        super.checkpoint(filename, recordCount);
+        if (checkpointDir != null && checkpointInterval > 0) {
+            pendingClaims.clear();
+            publishPendingDictionaryEntries();
+        }
+    }
+
+    @Override
+    protected void finalizeUpdates() throws IOException {
+        super.finalizeUpdates();
+        pendingClaims.clear();
+        publishPendingDictionaryEntries();
+    }
+
+    @Override
+    protected void flushBuffers() throws IOException {
+        emitSummary();
+        super.flushBuffers();
+    }
+
+    @Override
+    protected boolean acceptLine(String line) {
+        return lineFilter == null || lineFilter.accept(line);
+    }
+
+    @Override
+    protected String getCheckpointDir() {
+        return checkpointDir;
+    }
+
+    @Override
+    protected int getCheckpointInterval() {
+        return checkpointInterval;
+    }
+
+    @Override
+    protected long getInputOffset() {
+        return countingInput != null ? countingInput.getByteCount() : -1;
     }
 
     @Override
@@ -101,7 +410,21 @@ public class FeatureTableParser extends AbstractCustomFileParser {
 
     @Override
     protected void processRecord(String s) throws Exception {
-        updateTables(new Record(s));
+        Record r = new Record(s);
+        supersedingRank = -1;
+
+        if (locusMap != null) {
+            int rank = LocusVersionMap.rank(LocusVersionMap.parseVersion(r.getVersion()), fileSequence);
+            int previous = locusMap.claim(r.getLocus(), rank);
+
+            if (previous >= rank) return;                       // already emitted at the same or a higher rank
+            pendingClaims.add(new LocusClaim(r.getLocus(), rank, previous));
+            if (previous >= 0) supersedingRank = rank;          // replaces a lower rank that was already emitted
+        }
+
+        updateTables(r);
+
+        if (summary != null && supersedingRank < 0) summarize(r);
     }
 
 
@@ -140,36 +463,12 @@ public class FeatureTableParser extends AbstractCustomFileParser {
             output = new GZIPOutputStream(new FileOutputStream(destFilename));
             writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(output)));
 
-            boolean inUsefulDataBlock = false;
-            boolean isTranslateLine = false;
-            boolean isVariation = false;
+            LineFilter filter = new LineFilter();
 
             String line;
             while ((line = reader.readLine()) != null) {
-                if (line.startsWith("LOCUS")) {
-                    inUsefulDataBlock = true;
-                    isTranslateLine = false;
-
-                } else if (line.startsWith("ORIGIN") || line.startsWith("CONTIG")) {
-                    inUsefulDataBlock = false;
-                }
-
-                if (inUsefulDataBlock) {
-                    if (line.matches("\\s+variation\\s+.+")) {
-                        isVariation = true;
-                    } else if (isVariation && line.contains("/db_xref=\"")) {
-                        isVariation = false;
-                    }
-
-                    if (line.contains("/translation=\"")) {     // a large, frequent, un-useful sub-block of data
-                        isTranslateLine = true;
-                    } else if (isTranslateLine && line.endsWith("\"")) {
-                        isTranslateLine = false;
-                    }
-
-                    if ( ! isVariation && ! isTranslateLine ) {
-                        writer.println(line);
-                    }
+                if (filter.accept(line)) {
+                    writer.println(line);
                 }
             }
 
@@ -188,37 +487,328 @@ public class FeatureTableParser extends AbstractCustomFileParser {
      * @throws IOException
      */
     private void updateTables(Record r) throws IOException {
+        if (digest != null) digest.reset();
         
-        tBasic.addRecord(r.getPartitionKey(), r.getLocus(), r.getYear(), r.getMonth(), r.getVersion(),
+        add(tBasic, r.getPartitionKey(), r.getLocus(), r.getYear(), r.getMonth(), r.getVersion(),
                 r.getGiNumber(), r.getDefinition());
 
         for (String keyword : r.getKeywords()) {
-            tKeywords.addRecord(r.getPartitionKey(), r.getLocus(), keyword);
+            add(tKeywords, r.getPartitionKey(), r.getLocus(), keyword);
         }
         
 
         for (String author : r.getAuthors()) {
-            tAuthors.addRecord(r.getPartitionKey(), r.getLocus(), author);
+            if (authorDictionary == null) {
+                add(tAuthors, r.getPartitionKey(), r.getLocus(), author);
+
+            } else {
+                add(tAuthors, r.getPartitionKey(), r.getLocus(), addAuthor(author));
+            }
         }
 
         
         for (Journal j : r.getJournals()) {
-            tJournals.addRecord(r.getPartitionKey(), r.getLocus(), j.getName(), j.getCitation(), j.getPmid());
+            add(tJournals, r.getPartitionKey(), r.getLocus(), j.getName(), j.getCitation(), j.getPmid());
         }
 
         for (DbXRef ref : r.getDbxrefs()) {
-            tDbXRef.addRecord(r.getPartitionKey(), r.getLocus(), ref.getDatabaseName(), ref.getDatabaseId());
+            add(tDbXRef, r.getPartitionKey(), r.getLocus(), ref.getDatabaseName(), ref.getDatabaseId());
         }
         
 
         for (Map.Entry<String, Set<String>> entry : r.getFeatures().entrySet()) {
+            TableData hot = hotAnnotationTables.get(entry.getKey());
+
             for (String value : entry.getValue()) {
                 String indexedValue = (value != null && value.length() > ANNOTATION_VALUE_INDEX_LEN) ?
                         value.substring(0, ANNOTATION_VALUE_INDEX_LEN) :
                         value;
 
-                tAnnotations.addRecord(r.getPartitionKey(), r.getLocus(), entry.getKey(), indexedValue, value);
+                if (valueDictionary != null) {
+                    String valueId = addValue(indexedValue, value);
+
+                    if (hot != null) add(hot, r.getPartitionKey(), r.getLocus(), valueId);
+                    else             add(tAnnotations, r.getPartitionKey(), r.getLocus(), entry.getKey(), valueId);
+
+                } else if (hot != null) {
+                    add(hot, r.getPartitionKey(), r.getLocus(), indexedValue, value);
+
+                } else {
+                    add(tAnnotations, r.getPartitionKey(), r.getLocus(), entry.getKey(), indexedValue, value);
+                }
+            }
+        }
+
+        if (tManifest != null) {
+            add(tManifest, r.getPartitionKey(), r.getLocus(), toHex(digest.digest()));
+        }
+    }
+
+    private void summarize(Record r) {
+        summary.count("records", "");
+        summary.count("year", r.getYear());
+        summary.count("year_month", String.format("%04d-%02d", r.getYear(), r.getMonth()));
+        summary.count("division", r.getDivision());
+
+        for (String keyword : r.getKeywords()) {
+            summary.count("keyword", keyword);
+        }
+
+        for (Journal j : r.getJournals()) {
+            summary.count("journal", j.getName());
+        }
+
+        for (DbXRef ref : r.getDbxrefs()) {
+            summary.count("dbxref_database", ref.getDatabaseName());
+        }
+
+        for (Map.Entry<String, Set<String>> entry : r.getFeatures().entrySet()) {
+            summary.count("qualifier", entry.getKey(), entry.getValue().size());
+            for (String value : entry.getValue()) {
+                summary.offer("distinct_annotation_values", value);
+            }
+        }
+
+        for (String author : r.getAuthors()) {
+            summary.offer("distinct_authors", author);
+        }
+    }
+
+    /**
+     * Adds a row to a table, or to its side table (prefixed with the record's rank) if the current record supersedes
+     * an earlier claim on its locus
+     */
+    private void add(TableData t, Object ... parts) throws IOException {
+        if (summary != null && t != tManifest) measure(t, supersedingRank < 0, parts);
+
+        if (digest != null && t != tManifest) {
+            digest.update(t.getName().getBytes("UTF-8"));
+            for (Object part : parts) {
+                digest.update((byte) '\t');
+                digest.update(String.valueOf(part).getBytes("UTF-8"));
+            }
+            digest.update((byte) '\n');
+        }
+
+        if (supersedingRank < 0) {
+            t.addRecord(parts);
+
+        } else {
+            Object[] prefixed = new Object[parts.length + 1];
+            prefixed[0] = supersedingRank;
+            System.arraycopy(parts, 0, prefixed, 1, parts.length);
+            supersedingTables.get(t).addRecord(prefixed);
+        }
+    }
+
+    /**
+     * Writes an annotation value to the dictionary, unless it has (probably) been written already, either in committed
+     * output or by this parser since its last commit
+     * @return the value's key
+     */
+    private String addValue(String indexedValue, String value) throws IOException {
+        byte[] hash = dictionaryDigest.digest(String.valueOf(value).getBytes("UTF-8"));
+
+        String valueId = toHex(hash);
+        long hi = toLong(hash, 0);
+        long lo = toLong(hash, 8);
+        if ( ! valueDictionary.contains(hi, lo) && pendingValues.add(hi, lo) ) {
+            if (summary != null) measure(tAnnotationValues, true, valueId, indexedValue, value);
+            tAnnotationValues.addRecord(valueId, indexedValue, value);
+        }
+
+        return valueId;
+    }
+
+    /**
+     * Writes an author name to the dimension, unless it has (probably) been written already, either in committed
+     * output or by this parser since its last commit
+     * @return the name's id
+     */
+    private long addAuthor(String author) throws IOException {
+        byte[] hash = dictionaryDigest.digest(author.getBytes("UTF-8"));
+
+        long authorId = toLong(hash, 0);
+        long lo = toLong(hash, 8);
+        if ( ! authorDictionary.contains(authorId, lo) && pendingAuthors.add(authorId, lo) ) {
+            if (summary != null) measure(tAuthorNames, true, authorId, author);
+            tAuthorNames.addRecord(authorId, author);
+        }
+
+        return authorId;
+    }
+
+    /**
+     * Records the widths of a row's values and, if the row is to be counted, the row and its bytes.  A row of a
+     * superseding record replaces a row already counted once compaction has run, so only its widths are recorded:
+     * the schema must still be sized for it.
+     */
+    private void measure(TableData t, boolean counted, Object ... parts) {
+        TableStats stats = tableStats.get(t);
+        if (stats == null) {
+            stats = new TableStats();
+            tableStats.put(t, stats);
+        }
+
+        if (stats.widths.length < parts.length) stats.widths = Arrays.copyOf(stats.widths, parts.length);
+
+        for (int i = 0; i < parts.length; i ++) {
+            int width = parts[i] != null ? String.valueOf(parts[i]).length() : 0;
+            if (width > stats.widths[i]) stats.widths[i] = width;
+            if (counted) stats.bytes += width + 1;
+        }
+        if (counted) stats.rows ++;
+    }
+
+    /**
+     * Writes the summary statistics and table statistics accumulated since they were last written
+     */
+    private void emitSummary() throws IOException {
+        if (summary == null) return;
+
+        for (Map.Entry<TableData, TableStats> entry : tableStats.entrySet()) {
+            String name = entry.getKey().getName();
+            String table = name.substring(0, name.lastIndexOf('.'));
+            TableStats stats = entry.getValue();
+
+            summary.count("table_rows", table, stats.rows);
+            summary.count("table_bytes", table, stats.bytes);
+            for (int i = 0; i < stats.widths.length; i ++) {
+                summary.max("column_width", table + "." + i, stats.widths[i]);
+            }
+        }
+        tableStats.clear();
+
+        summary.emit(tSummary);
+    }
+
+    private TableData addDictionaryTable(String filename) throws IOException {
+        if (dictionaryDigest == null) {
+            try {
+                dictionaryDigest = MessageDigest.getInstance("MD5");
+
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException("MD5 is not available", e);
+            }
+        }
+
+        TableData t = new TableData(tempDir, outputDir, filename);
+
+        List<TableData> list = new ArrayList<TableData>(tableDataList);
+        list.add(t);
+        tableDataList = list;
+
+        return t;
+    }
+
+    /**
+     * Adds the dictionary entries written since the last commit or checkpoint, whose rows are now committed, to the
+     * shared sets
+     */
+    private void publishPendingDictionaryEntries() {
+        if (valueDictionary != null) {
+            valueDictionary.addAll(pendingValues);
+            pendingValues.clear();
+        }
+        if (authorDictionary != null) {
+            authorDictionary.addAll(pendingAuthors);
+            pendingAuthors.clear();
+        }
+    }
+
+    /**
+     * Forgets the dictionary entries written since the last commit or checkpoint, whose rows are being discarded, so
+     * that they are written again when next seen
+     */
+    private void discardPendingDictionaryEntries() {
+        if (pendingValues != null) pendingValues.clear();
+        if (pendingAuthors != null) pendingAuthors.clear();
+    }
+
+    /**
+     * Withdraws the loci claimed since the last commit or checkpoint, whose rows are being discarded, so that they may
+     * be emitted again when the file is retried or resumed, or by another file
+     */
+    private void withdrawClaims() {
+        if (locusMap != null) {
+            for (int i = pendingClaims.size() - 1; i >= 0; i --) {
+                LocusClaim claim = pendingClaims.get(i);
+                locusMap.withdraw(claim.locus, claim.rank, claim.previous);
             }
         }
+        pendingClaims.clear();
+    }
+
+    private static long toLong(byte[] bytes, int offset) {
+        long l = 0;
+        for (int i = offset; i < offset + 8; i ++) {
+            l = (l << 8) | (bytes[i] & 0xff);
+        }
+        return l;
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+
+    private static final class TableStats {
+        private long rows = 0;
+        private long bytes = 0;
+        private int[] widths = new int[0];
+    }
+
+    private static final class LocusClaim {
+        private final String locus;
+        private final int rank;
+        private final int previous;
+
+        private LocusClaim(String locus, int rank, int previous) {
+            this.locus = locus;
+            this.rank = rank;
+            this.previous = previous;
+        }
+    }
+
+    /**
+     * Identifies the lines of a raw source file that carry relevant metadata, discarding genome sequence data, and
+     * large un-useful sub-blocks such as translations and variations.  Lines must be presented in file order.
+     */
+    private static final class LineFilter {
+        private boolean inUsefulDataBlock = false;
+        private boolean isTranslateLine = false;
+        private boolean isVariation = false;
+
+        public boolean accept(String line) {
+            if (line.startsWith("LOCUS")) {
+                inUsefulDataBlock = true;
+                isTranslateLine = false;
+
+            } else if (line.startsWith("ORIGIN") || line.startsWith("CONTIG")) {
+                inUsefulDataBlock = false;
+            }
+
+            if (inUsefulDataBlock) {
+                if (line.matches("\\s+variation\\s+.+")) {
+                    isVariation = true;
+                } else if (isVariation && line.contains("/db_xref=\"")) {
+                    isVariation = false;
+                }
+
+                if (line.contains("/translation=\"")) {     // a large, frequent, un-useful sub-block of data
+                    isTranslateLine = true;
+                } else if (isTranslateLine && line.endsWith("\"")) {
+                    isTranslateLine = false;
+                }
+
+                return ! isVariation && ! isTranslateLine;
+            }
+
+            return false;
+        }
     }
 }
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2015 The University of Vermont and State Agricultural
+ * College, Vermont Oxford Network.  All rights reserved.
+ *
+ * Written by Matthew B. Storer <matthewbstorer@gmail.com>
+ *
+ * This file is part of GenBank Loader.
+ *
+ * GenBank Loader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenBank Loader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenBank Loader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.uvm.ccts.genbank;
+
+import edu.uvm.ccts.common.db.parser.AbstractFileParser;
+import edu.uvm.ccts.genbank.db.loader.AbstractHTTPLoader;
+import edu.uvm.ccts.genbank.filter.LocusVersionMap;
+import edu.uvm.ccts.genbank.filter.OffHeapHashSet;
+import edu.uvm.ccts.genbank.filter.RecordSelection;
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Prepares GenBank files downloaded from NCBI's HTTPS mirror of its FTP site, rather than over FTP.  Produces the same
+ * output (in the same output directory) as {@link MetaGenbankLoader}.
+ */
+public class HTTPGenbankLoader extends AbstractHTTPLoader {
+    private SystemProperties properties;
+    private List<String> filenameFilters;
+    private RecordSelection selection;
+    private LocusVersionMap locusMap = null;
+    private OffHeapHashSet valueDictionary = null;
+    private OffHeapHashSet authorDictionary = null;
+
+    public HTTPGenbankLoader() throws IOException {
+        super(MetaGenbankLoader.getConfiguredOutputDir());
+
+        properties = new SystemProperties();
+        filenameFilters = MetaGenbankLoader.buildFilenameFilters(properties);
+        selection = MetaGenbankLoader.buildRecordSelection(properties);
+        configureSource(MetaGenbankLoader.buildSourceConfig(properties));
+    }
+
+    @Override
+    protected String getName() {
+        return "genbank";
+    }
+
+    @Override
+    protected int getRequiredMemPerThreadMB() {
+        return 400;
+    }
+
+    @Override
+    protected AbstractFileParser buildParser(int threadId, String tempDir) throws IOException {
+        return MetaGenbankLoader.buildFeatureTableParser(threadId, tempDir, getWorkerOutputDir(threadId), getOutputDir(),
+                properties, selection, locusMap, valueDictionary, authorDictionary);
+    }
+
+    @Override
+    protected Map<String, String> getTableFileMap() {
+        return MetaGenbankLoader.buildTableFileMap(properties);
+    }
+
+    @Override
+    protected Map<String, String> getDictionaryTableFileMap() {
+        return MetaGenbankLoader.getDictionaryTableFileMap(properties);
+    }
+
+    @Override
+    protected String getBaseURL() {
+        return properties.get("nih.http.url");
+    }
+
+    @Override
+    protected List<String> getFilenameFilters() {
+        return filenameFilters;
+    }
+
+    @Override
+    protected int getDownloadSegments() {
+        return properties.getInt("genbank.http.segments", super.getDownloadSegments());
+    }
+
+    @Override
+    protected int getMinSegmentSizeMB() {
+        return properties.getInt("genbank.http.segment.min.mb", super.getMinSegmentSizeMB());
+    }
+
+    @Override
+    protected int getConnectTimeoutSeconds() {
+        return properties.getInt("genbank.http.timeout.connect.seconds", super.getConnectTimeoutSeconds());
+    }
+
+    @Override
+    protected int getReadTimeoutSeconds() {
+        return properties.getInt("genbank.http.timeout.read.seconds", super.getReadTimeoutSeconds());
+    }
+
+    @Override
+    protected int getMaxRetries() {
+        return properties.getInt("genbank.http.retries", super.getMaxRetries());
+    }
+
+    @Override
+    protected long getRetryBackoffMs() {
+        return properties.getLong("genbank.http.retry.backoff.ms", super.getRetryBackoffMs());
+    }
+
+    @Override
+    protected void beforeProcessing() throws IOException {
+        locusMap = MetaGenbankLoader.buildLocusVersionMap(getOutputDir(), getSegmentDirs(), properties);
+        valueDictionary = MetaGenbankLoader.buildValueDictionary(properties);
+        authorDictionary = MetaGenbankLoader.buildAuthorDictionary(properties);
+    }
+
+    @Override
+    public void prepare() throws Exception {
+        InputStream input = getSource().retrieve("/genbank/GB_Release_Number");
+        try {
+            MetaGenbankLoader.updateRelease(getOutputDir(), IOUtils.toString(input, "UTF-8").trim());
+
+        } finally {
+            try { input.close(); } catch (Exception e) {}
+        }
+
+        super.prepare();
+
+        MetaGenbankLoader.finishPrepare(getOutputDir(), getTableFileMap().values(), locusMap);
+    }
+}
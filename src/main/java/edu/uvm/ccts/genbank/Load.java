@@ -23,11 +23,14 @@
 package edu.uvm.ccts.genbank;
 
 import edu.uvm.ccts.common.db.DataSource;
+import edu.uvm.ccts.common.exceptions.ConfigurationException;
 import edu.uvm.ccts.common.util.TimeUtil;
+import edu.uvm.ccts.genbank.db.loader.LoadTarget;
 import org.apache.commons.cli.*;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import java.io.IOException;
 import java.util.Date;
 import java.util.Properties;
 
@@ -39,9 +42,6 @@ import java.util.Properties;
 public class Load {
     private static final Log log = LogFactory.getLog(Load.class);
 
-    //private static final String JDBC_DRIVER = "com.mysql.jdbc.Driver";
-    private static final String JDBC_DRIVER = "com.mysql.cj.jdbc.Driver";
-
     public static void main(String[] args) {
         System.out.println("GenBank Loader");
         System.out.println("--------------");
@@ -62,30 +62,54 @@ public class Load {
             log.info("process started at " + new Date());
 
             if (line.hasOption("prepare")) {
-                loader.prepare();
+                if ("https".equalsIgnoreCase(new SystemProperties().get("genbank.source", "ftp"))) {
+                    new HTTPGenbankLoader().prepare();
+
+                } else {
+                    loader.prepare();
+                }
+
                 log.info("preparing GenBank files finished at " + new Date() + " (took " +
                         TimeUtil.formatMsToHMS(System.currentTimeMillis() - start) + ").");
 
-            } else if (line.hasOption("load")) {
-                String host = line.hasOption("host") ? line.getOptionValue("host") : "localhost";
-                String db = line.hasOption("db") ? line.getOptionValue("db") : "genbank";
-                String user = line.hasOption("user") ? line.getOptionValue("user") : "genbank";
-                String pass = line.hasOption("pass") ? line.getOptionValue("pass") : "genbank";
-
-                String url = "jdbc:mysql://" + host + "/" + db + "?serverTimezone=UTC&useSSL=false&allowLoadLocalInfile=true";
+            } else if (line.hasOption("prepare-from")) {
+                String path = line.getOptionValue("prepare-from");
+                new LocalGenbankLoader().prepare(path);
+                log.info("preparing GenBank files from '" + path + "' finished at " + new Date() + " (took " +
+                        TimeUtil.formatMsToHMS(System.currentTimeMillis() - start) + ").");
 
-                pass = "genbank";
-                Properties properties = new Properties();
-                properties.put("user", user);
-                properties.put("password", pass);
-                
-                DataSource dataSource = new DataSource("genbank", JDBC_DRIVER, url, properties);
+            } else if (line.hasOption("load")) {
+                DataSource dataSource = buildDataSource(line);
 
                 String releaseNo = line.getOptionValue("load");
                 loader.populateDatabase(dataSource);
 
                 log.info("populating database with release '" + releaseNo + "' finished at " + new Date() + " (took " +
                         TimeUtil.formatMsToHMS(System.currentTimeMillis() - start) + ").");
+
+            } else if (line.hasOption("load-delta")) {
+                loader.populateDatabaseDelta(buildDataSource(line));
+
+                log.info("applying release changes finished at " + new Date() + " (took " +
+                        TimeUtil.formatMsToHMS(System.currentTimeMillis() - start) + ").");
+
+            } else if (line.hasOption("plan-refseq")) {
+                loader.planRefSeqRelease();
+
+                log.info("planning RefSeq release changes finished at " + new Date() + " (took " +
+                        TimeUtil.formatMsToHMS(System.currentTimeMillis() - start) + ").");
+
+            } else if (line.hasOption("generate-schema")) {
+                loader.generateSchema(line.getOptionValue("generate-schema"));
+
+            } else if (line.hasOption("watch")) {
+                new WatchDaemon(buildDataSource(line)).run();
+
+            } else if (line.hasOption("update")) {
+                new UpdateGenbankLoader().update(buildDataSource(line));
+
+                log.info("applying daily updates finished at " + new Date() + " (took " +
+                        TimeUtil.formatMsToHMS(System.currentTimeMillis() - start) + ").");
             }
 
         } catch (Exception e) {
@@ -94,6 +118,31 @@ public class Load {
         }
     }
 
+    private static DataSource buildDataSource(CommandLine line) throws ConfigurationException, IOException {
+        String host = line.hasOption("host") ? line.getOptionValue("host") : "localhost";
+        String db = line.hasOption("db") ? line.getOptionValue("db") : "genbank";
+        String user = line.hasOption("user") ? line.getOptionValue("user") : "genbank";
+        String pass = line.hasOption("pass") ? line.getOptionValue("pass") : "genbank";
+
+        SystemProperties systemProperties = new SystemProperties();
+        LoadTarget target = MetaGenbankLoader.buildLoadTarget(systemProperties);
+
+        pass = "genbank";
+        Properties properties = new Properties();
+        properties.put("user", user);
+        properties.put("password", pass);
+        
+        DataSource dataSource = new DataSource("genbank", target.getDriverClassName(), target.buildURL(host, db),
+                properties);
+
+        dataSource.configurePool(systemProperties.getInt("genbank.db.pool.size", 32),
+                systemProperties.getLong("genbank.db.pool.wait.seconds", 600) * 1000,
+                systemProperties.getLong("genbank.db.pool.idle.seconds", 300) * 1000,
+                systemProperties.getLong("genbank.db.pool.leak.seconds", 0) * 1000);
+
+        return dataSource;
+    }
+
     /**
      * Display primary system help - not much to it, really
      */
@@ -131,9 +180,37 @@ public class Load {
         group.addOption(OptionBuilder.withLongOpt("prepare")
                 .withDescription("only prepare database files for import")
                 .create());
+        group.addOption(OptionBuilder.hasArg()
+                .withLongOpt("prepare-from")
+                .withArgName("dir")
+                .withDescription("only prepare database files for import, reading source files from a local mirror " +
+                        "of the NCBI FTP site instead of downloading them")
+                .create());
         group.addOption(OptionBuilder.withLongOpt("load")
                 .withDescription("only load prepared files into the target database")
                 .create());
+        group.addOption(OptionBuilder.withLongOpt("load-delta")
+                .withDescription("apply only the differences between the prepared release and the release last " +
+                        "loaded into the target database")
+                .create());
+        group.addOption(OptionBuilder.withLongOpt("plan-refseq")
+                .withDescription("compare the current RefSeq release catalog with the last one planned, and list " +
+                        "the accessions added, removed and re-versioned")
+                .create());
+        group.addOption(OptionBuilder.withLongOpt("update")
+                .withDescription("prepare NCBI's daily incremental files and apply them to an already-populated " +
+                        "target database")
+                .create());
+        group.addOption(OptionBuilder.hasArg()
+                .withLongOpt("generate-schema")
+                .withArgName("file")
+                .withDescription("write the DDL for the target database, with partitions and column widths sized " +
+                        "from the statistics gathered by the last prepare")
+                .create());
+        group.addOption(OptionBuilder.withLongOpt("watch")
+                .withDescription("run continuously, loading new releases and applying daily updates as NCBI " +
+                        "publishes them")
+                .create());
         group.setRequired(true);
         options.addOptionGroup(group);
 
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2015 The University of Vermont and State Agricultural
+ * College, Vermont Oxford Network.  All rights reserved.
+ *
+ * Written by Matthew B. Storer <matthewbstorer@gmail.com>
+ *
+ * This file is part of GenBank Loader.
+ *
+ * GenBank Loader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenBank Loader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenBank Loader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.uvm.ccts.genbank;
+
+import edu.uvm.ccts.common.db.parser.AbstractFileParser;
+import edu.uvm.ccts.common.util.FileUtil;
+import edu.uvm.ccts.genbank.db.loader.AbstractFileLoader;
+import edu.uvm.ccts.genbank.filter.LocusVersionMap;
+import edu.uvm.ccts.genbank.filter.OffHeapHashSet;
+import edu.uvm.ccts.genbank.filter.RecordSelection;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Prepares GenBank files from a local (e.g. rsync'd or pre-staged) mirror of the NCBI FTP site rather than
+ * downloading them.  Produces the same output (in the same output directory) as {@link MetaGenbankLoader}.
+ */
+public class LocalGenbankLoader extends AbstractFileLoader {
+    private SystemProperties properties;
+    private List<String> filenameFilters;
+    private RecordSelection selection;
+    private LocusVersionMap locusMap = null;
+    private OffHeapHashSet valueDictionary = null;
+    private OffHeapHashSet authorDictionary = null;
+
+    public LocalGenbankLoader() throws IOException {
+        super(MetaGenbankLoader.getConfiguredOutputDir());
+
+        properties = new SystemProperties();
+        filenameFilters = MetaGenbankLoader.buildFilenameFilters(properties);
+        selection = MetaGenbankLoader.buildRecordSelection(properties);
+        configureSource(MetaGenbankLoader.buildSourceConfig(properties));
+    }
+
+    @Override
+    protected String getName() {
+        return "genbank";
+    }
+
+    @Override
+    protected int getRequiredMemPerThreadMB() {
+        return 400;
+    }
+
+    @Override
+    protected AbstractFileParser buildParser(int threadId, String tempDir) throws IOException {
+        return MetaGenbankLoader.buildFeatureTableParser(threadId, tempDir, getWorkerOutputDir(threadId), getOutputDir(),
+                properties, selection, locusMap, valueDictionary, authorDictionary);
+    }
+
+    @Override
+    protected Map<String, String> getTableFileMap() {
+        return MetaGenbankLoader.buildTableFileMap(properties);
+    }
+
+    @Override
+    protected Map<String, String> getDictionaryTableFileMap() {
+        return MetaGenbankLoader.getDictionaryTableFileMap(properties);
+    }
+
+    @Override
+    protected List<String> getFilenameFilters() {
+        return filenameFilters;
+    }
+
+    @Override
+    protected int getMaxReadersPerDevice() {
+        return properties.getInt("genbank.local.readers.per.device", super.getMaxReadersPerDevice());
+    }
+
+    @Override
+    protected int getReadAheadMB() {
+        return properties.getInt("genbank.local.readahead.mb", super.getReadAheadMB());
+    }
+
+    @Override
+    protected void beforeProcessing() throws IOException {
+        locusMap = MetaGenbankLoader.buildLocusVersionMap(getOutputDir(), getSegmentDirs(), properties);
+        valueDictionary = MetaGenbankLoader.buildValueDictionary(properties);
+        authorDictionary = MetaGenbankLoader.buildAuthorDictionary(properties);
+    }
+
+    /**
+     * Prepares the files in a local mirror.  If the mirror includes GenBank's release number file, it is used to
+     * detect a new release in the same way as when preparing from NCBI.
+     * @param path the root directory of the mirror
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    @Override
+    public void prepare(String path) throws InterruptedException, IOException {
+        String relNoFile = path + "/genbank/GB_Release_Number";
+        if (FileUtil.exists(relNoFile)) {
+            MetaGenbankLoader.updateRelease(getOutputDir(), FileUtil.read(relNoFile).trim());
+        }
+
+        super.prepare(path);
+
+        MetaGenbankLoader.finishPrepare(getOutputDir(), getTableFileMap().values(), locusMap);
+    }
+}
@@ -23,15 +23,42 @@
 package edu.uvm.ccts.genbank;
 
 import edu.uvm.ccts.genbank.db.loader.AbstractFTPLoader;
+import edu.uvm.ccts.genbank.db.loader.H2Target;
+import edu.uvm.ccts.genbank.db.loader.LoadTarget;
+import edu.uvm.ccts.genbank.db.loader.MySQLTarget;
+import edu.uvm.ccts.genbank.db.loader.PostgreSQLTarget;
 import edu.uvm.ccts.common.db.parser.AbstractFileParser;
+import edu.uvm.ccts.common.db.DataSource;
 import edu.uvm.ccts.common.ftp.FTPClient;
+import edu.uvm.ccts.common.model.FileMetadata;
 import edu.uvm.ccts.common.util.FileUtil;
+import edu.uvm.ccts.genbank.delta.CatalogPlanner;
+import edu.uvm.ccts.genbank.delta.ExternalSorter;
+import edu.uvm.ccts.genbank.delta.ManifestDiff;
+import edu.uvm.ccts.genbank.filter.AccessionList;
+import edu.uvm.ccts.genbank.filter.LocusVersionMap;
+import edu.uvm.ccts.genbank.filter.OffHeapHashSet;
+import edu.uvm.ccts.genbank.filter.RecordSelection;
+import edu.uvm.ccts.genbank.schema.GenbankSchema;
+import edu.uvm.ccts.genbank.schema.SchemaGenerator;
+import edu.uvm.ccts.genbank.summary.SummaryCounts;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
-import java.util.*;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 
 /**
  * Handles main-process execution of determining what to download, where to put generated data,
@@ -40,12 +67,36 @@ import java.util.*;
 public class MetaGenbankLoader extends AbstractFTPLoader {
     private static final Log log = LogFactory.getLog(MetaGenbankLoader.class);
 
-    private static final String outputDir = "./out";
+    private static final String DEFAULT_OUTPUT_DIR = "./out";
+    private static final String MANIFEST_DIR = ".manifests";
+    private static final String LOADED_RELEASE_FILE = "loaded-release";
+    private static final int MANIFEST_SORT_RUN_LINES = 1000000;
+    private static final String CATALOG_PREFIX = "refseq-catalog-";
+    private static final int CATALOG_SORT_RUN_LINES = 2000000;
+    private static final int BASIC_LOCUS_COLUMN = 1;
+    private static final int BASIC_VERSION_COLUMN = 4;
+    private static final int DICTIONARY_STRIPES = 64;
+    private static final String SUMMARY_FILE = "summary_counts.txt";
+    private static final String[] SOURCE_PROPERTIES = {
+            "scratch.dir", "scratch.budget.mb", "scratch.parse.ratio", "scratch.unknown.size.mb", "segments",
+            "download.cache.dir", "download.cache.max.mb"
+    };
+    private static final String[] OUTPUT_PROPERTIES = {
+            "genbank.annotations.hot", "genbank.annotations.dedupe", "genbank.authors.normalize",
+            "genbank.delta", "genbank.summary", "genbank.dedupe", "genbank.filter.accessions.file",
+            "genbank.filter.date.from", "genbank.filter.date.to", "genbank.filter.molecule.types",
+            "genbank.filter.organisms"
+    };
 
-    private Properties properties;
+    private SystemProperties properties;
+    private List<String> filenameFilters;
+    private RecordSelection selection;
+    private LocusVersionMap locusMap = null;
+    private OffHeapHashSet valueDictionary = null;
+    private OffHeapHashSet authorDictionary = null;
 
 
-    private static final Map<String, String> tableFileMap = new LinkedHashMap<String, String>();
+    static final Map<String, String> tableFileMap = new LinkedHashMap<String, String>();
     static {
         tableFileMap.put("basic", FeatureTableParser.TABLE_FILE_BASIC);
         tableFileMap.put("keywords", FeatureTableParser.TABLE_FILE_KEYWORDS);
@@ -57,10 +108,16 @@ public class MetaGenbankLoader extends AbstractFTPLoader {
 
 
     public MetaGenbankLoader() throws IOException {
+        this(getConfiguredOutputDir(), buildFilenameFilters(new SystemProperties()));
+    }
+
+    protected MetaGenbankLoader(String outputDir, List<String> filenameFilters) throws IOException {
         super(outputDir);
 
-        properties = new Properties();
-        properties.load(this.getClass().getResourceAsStream("/system.properties"));
+        properties = new SystemProperties();
+        this.filenameFilters = filenameFilters;
+        selection = buildRecordSelection(properties);
+        configureSource(buildSourceConfig(properties));
     }
 
     @Override
@@ -75,77 +132,739 @@ public class MetaGenbankLoader extends AbstractFTPLoader {
 
     @Override
     protected AbstractFileParser buildParser(int threadId, String tempDir) throws IOException {
-        return new FeatureTableParser(threadId, tempDir, outputDir);
+        return buildFeatureTableParser(threadId, tempDir, getWorkerOutputDir(threadId), getOutputDir(), properties,
+                selection, locusMap, valueDictionary, authorDictionary);
     }
 
     @Override
     protected Map<String, String> getTableFileMap() {
-        return tableFileMap;
+        return buildTableFileMap(properties);
+    }
+
+    @Override
+    protected Map<String, String> getDictionaryTableFileMap() {
+        return getDictionaryTableFileMap(properties);
+    }
+
+    @Override
+    protected Map<String, String> getSummaryTableFileMap() {
+        return Collections.singletonMap("summary_counts", SUMMARY_FILE);
+    }
+
+    @Override
+    protected int getLoadThreadCount() {
+        return properties.getInt("genbank.load.threads", 4);
+    }
+
+    @Override
+    protected LoadTarget getLoadTarget() {
+        return buildLoadTarget(properties);
     }
 
     @Override
     protected String getFTPHost() {
-        return properties.getProperty("nih.ftp.host");
+        return properties.get("nih.ftp.host");
     }
 
     @Override
     protected String getFTPUser() {
-        return properties.getProperty("nih.ftp.user");
+        return properties.get("nih.ftp.user");
     }
 
     @Override
     protected String getFTPPass() {
-        return properties.getProperty("nih.ftp.pass");
+        return properties.get("nih.ftp.pass", "");
+    }
+
+    @Override
+    protected int getFTPPort() {
+        return properties.getInt("nih.ftp.port", super.getFTPPort());
+    }
+
+    @Override
+    protected int getMaxFTPSessions() {
+        return properties.getInt("genbank.ftp.sessions.max", super.getMaxFTPSessions());
+    }
+
+    @Override
+    protected int getFTPKeepAliveSeconds() {
+        return properties.getInt("genbank.ftp.sessions.keepalive.seconds", super.getFTPKeepAliveSeconds());
+    }
+
+    @Override
+    protected int getFTPMaxIdleSeconds() {
+        return properties.getInt("genbank.ftp.sessions.idle.seconds", super.getFTPMaxIdleSeconds());
+    }
+
+    @Override
+    protected int getMaxRetries() {
+        return properties.getInt("genbank.ftp.retries", super.getMaxRetries());
+    }
+
+    @Override
+    protected long getRetryBackoffMs() {
+        return properties.getLong("genbank.ftp.retry.backoff.ms", super.getRetryBackoffMs());
+    }
+
+    @Override
+    protected boolean isStreamingEnabled() {
+        return properties.getBoolean("genbank.ftp.streaming", false);
+    }
+
+    @Override
+    protected String[] getUpdateKeyColumns() {
+        return new String[] { "partitionKey", "locus" };
+    }
+
+    @Override
+    protected int getUpdateBatchSize() {
+        return properties.getInt("genbank.update.batch.size", super.getUpdateBatchSize());
     }
 
     @Override
     protected List<String> getFilenameFilters() {
-        return Arrays.asList(
-                "/genbank/gb*.seq.gz",
-                "/refseq/release/complete/complete*.*.gbff.gz");
+        return filenameFilters;
     }
 
+    /**
+     * Loads the prepared release in full, and records it as the release the database holds
+     * @param dataSource the target database
+     * @throws IOException
+     * @throws SQLException
+     */
     @Override
-    public void prepare() throws Exception {
-        FTPClient ftp = null;
+    public void populateDatabase(DataSource dataSource) throws IOException, SQLException {
+        super.populateDatabase(dataSource);
 
+        String relNo = getPreparedRelease(getOutputDir());
+        if (relNo != null) {
+            FileUtil.createDirectory(getOutputDir() + "/" + MANIFEST_DIR);
+            FileUtil.write(getOutputDir() + "/" + MANIFEST_DIR + "/" + LOADED_RELEASE_FILE, relNo + "\n", false);
+        }
+    }
+
+    /**
+     * @param ftp a connected {@link FTPClient}
+     * @return the number of the current GenBank release on the FTP server
+     * @throws Exception
+     */
+    public String getRemoteRelease(FTPClient ftp) throws Exception {
+        String tmpFilename = Files.createTempFile(null, null).toString();
         try {
-            String relNoFile = outputDir + "/.current-release";
+            ftp.download("/genbank/GB_Release_Number", tmpFilename);
+            return FileUtil.read(tmpFilename).trim();
+
+        } finally {
+            FileUtil.delete(tmpFilename);
+        }
+    }
+
+    /**
+     * @return the number of the release last loaded into the database with {@code populateDatabase} or
+     * {@code populateDatabaseDelta}, or {@code null} if none has been
+     * @throws IOException
+     */
+    public String getLoadedRelease() throws IOException {
+        String loadedRelFile = getOutputDir() + "/" + MANIFEST_DIR + "/" + LOADED_RELEASE_FILE;
+        return FileUtil.exists(loadedRelFile) ?
+                FileUtil.read(loadedRelFile).trim() :
+                null;
+    }
+
+    /**
+     * @return {@code true} if the prepared release can be applied with {@code populateDatabaseDelta}, i.e. manifests
+     * exist for both it and the release in the database
+     * @throws IOException
+     */
+    public boolean isDeltaAvailable() throws IOException {
+        String relNo = getPreparedRelease(getOutputDir());
+        String loadedRelNo = getLoadedRelease();
+        String manifestDir = getOutputDir() + "/" + MANIFEST_DIR;
+
+        return relNo != null && loadedRelNo != null &&
+                FileUtil.exists(manifestDir + "/release-" + relNo + ".txt") &&
+                FileUtil.exists(manifestDir + "/release-" + loadedRelNo + ".txt");
+    }
+
+    /**
+     * Brings a database holding an earlier release up to the prepared release by applying only the differences
+     * between them.  The two releases' locus manifests are merge-joined to find the loci added, removed and changed;
+     * the rows of added and changed loci are extracted from the prepared tables, and applied along with the removed
+     * loci as per-locus deletes and inserts.
+     * @param dataSource the target database, previously loaded with {@code populateDatabase} or this method
+     * @throws IOException if either release's manifest is missing
+     * @throws SQLException
+     */
+    public void populateDatabaseDelta(DataSource dataSource) throws IOException, SQLException {
+        String manifestDir = getOutputDir() + "/" + MANIFEST_DIR;
+        String loadedRelFile = manifestDir + "/" + LOADED_RELEASE_FILE;
 
-            String currentRelNo = null;
-            if (FileUtil.exists(relNoFile)) {
-                currentRelNo = FileUtil.read(relNoFile).trim();
+        String relNo = getPreparedRelease(getOutputDir());
+        String loadedRelNo = getLoadedRelease();
+
+        if (relNo == null) {
+            throw new IOException("no release has been prepared in '" + getOutputDir() + "'");
+
+        } else if (loadedRelNo == null) {
+            throw new IOException("no release is recorded as loaded - run --load first");
+
+        } else if (relNo.equals(loadedRelNo)) {
+            log.info("database already holds release " + relNo + " - nothing to do");
+            return;
+        }
+
+        String previous = manifestDir + "/release-" + loadedRelNo + ".txt";
+        String current = manifestDir + "/release-" + relNo + ".txt";
+        for (String manifest : Arrays.asList(previous, current)) {
+            if ( ! FileUtil.exists(manifest) ) {
+                throw new IOException("manifest '" + manifest + "' does not exist - prepare with genbank.delta = true");
+            }
+        }
+
+        log.info("applying changes from release " + loadedRelNo + " to " + relNo);
+
+        String deltaDir = getOutputDir() + "/.delta";
+        String removedKeys = deltaDir + "/removed-keys.txt";
+        FileUtil.createDirectory(deltaDir);
+
+        ManifestDiff diff = new ManifestDiff(previous, current,
+                properties.getLong("genbank.delta.expected.changes", 10000000));
+        diff.diff(removedKeys);
+        diff.extract(getOutputDir(), getTableFileMap().values(), deltaDir);
+        for (String filename : getDictionaryTableFileMap().values()) {
+            linkOrCopy(getOutputDir() + "/" + filename, deltaDir + "/" + filename);
+        }
+
+        applyUpdates(dataSource, deltaDir, removedKeys);
+        loadSummaryTables(dataSource, getOutputDir());
+
+        FileUtil.write(loadedRelFile, relNo + "\n", false);
+        FileUtil.delete(previous);
+        FileUtil.removeDirectory(deltaDir);
+    }
+
+    @Override
+    protected void beforeProcessing() throws IOException {
+        locusMap = isDedupeEnabled() ?
+                buildLocusVersionMap(getOutputDir(), getSegmentDirs(),
+                        properties.getLong("genbank.dedupe.expected.loci", 10000000)) :
+                null;
+
+        if (locusMap != null && isLaterFilePreferred()) {
+            List<String> filenames = new ArrayList<String>();
+            for (FileMetadata fileMetadata : getSourceFiles()) {
+                filenames.add(fileMetadata.getFilename());
             }
+            locusMap.setFileOrder(filenames);
+        }
+        valueDictionary = buildValueDictionary(properties);
+        authorDictionary = buildAuthorDictionary(properties);
+    }
+
+    /**
+     * Writes the DDL for the tables populated under the current configuration, sized from the statistics gathered
+     * during the last prepare (which must have been run with {@code genbank.summary = true})
+     * @param filename the file to which the DDL is written
+     * @throws IOException if the prepared summary does not exist
+     */
+    public void generateSchema(String filename) throws IOException {
+        String summaryFile = getOutputDir() + "/" + SUMMARY_FILE;
+        if ( ! FileUtil.exists(summaryFile) ) {
+            throw new IOException("'" + summaryFile + "' does not exist - prepare with genbank.summary = true");
+        }
+
+        SchemaGenerator generator = new SchemaGenerator(properties.get("genbank.schema.database", "genbank"),
+                properties.get("genbank.schema.charset", "latin1"),
+                properties.getLong("genbank.schema.partition.mb", 2048) * 1024 * 1024,
+                properties.getLong("genbank.schema.compress.row.bytes", 512),
+                SchemaGenerator.Dialect.valueOf(buildLoadTarget(properties).getName().toUpperCase()));
+
+        generator.readStatistics(summaryFile);
+
+        String ddl = generator.generate(GenbankSchema.build(
+                properties.getBoolean("genbank.annotations.dedupe", false),
+                properties.getBoolean("genbank.authors.normalize", false),
+                getHotQualifiers(properties),
+                true));
+
+        FileUtil.write(filename, "-- generated by GenBank Loader from the statistics of release " +
+                getPreparedRelease(getOutputDir()) + "\n" + ddl, false);
+
+        log.info("wrote schema to '" + filename + "'");
+    }
+
+    /**
+     * Determines which RefSeq accessions were added, removed or re-versioned since the last release planned, from the
+     * releases' catalogs alone.  The current catalog is downloaded and reduced to a sorted list of accessions, which is
+     * kept with the release manifests and merge-joined with the previous release's list.  The accessions in each
+     * category are written to {@code .manifests/refseq-plan-<previous>-<current>}, and the number of changes in each
+     * RefSeq release directory is logged.
+     * @throws Exception
+     */
+    public void planRefSeqRelease() throws Exception {
+        String manifestDir = getOutputDir() + "/" + MANIFEST_DIR;
+        FileUtil.createDirectory(manifestDir);
 
+        FTPClient ftp = null;
+        String relNoFilename = Files.createTempFile(null, null).toString();
+        String catalogFilename = Files.createTempFile(null, ".gz").toString();
+        String relNo;
+
+        try {
             ftp = new FTPClient(getFTPHost(), getFTPUser(), getFTPPass());
             ftp.connect();
 
-            String tmpFilename = Files.createTempFile(null, null).toString();
+            ftp.download("/refseq/release/RELEASE_NUMBER", relNoFilename);
+            relNo = FileUtil.read(relNoFilename).trim();
 
-            ftp.download("/genbank/GB_Release_Number", tmpFilename);
-            
-            String relNo = FileUtil.read(tmpFilename).trim();
+            log.info("downloading catalog for RefSeq release " + relNo);
+            ftp.download("/refseq/release/release-catalog/RefSeq-release" + relNo + ".catalog.gz", catalogFilename);
+
+        } finally {
+            try { if (ftp != null) ftp.disconnect(); } catch (Exception e) {}
+            FileUtil.delete(relNoFilename);
+        }
 
-            if (currentRelNo == null) {
-                FileUtil.createDirectory(outputDir);
-                FileUtil.moveFile(tmpFilename, relNoFile);
+        CatalogPlanner planner = new CatalogPlanner(new ExternalSorter(manifestDir + "/tmp", CATALOG_SORT_RUN_LINES));
+        String current = manifestDir + "/" + CATALOG_PREFIX + relNo + ".txt";
 
-            } else if ( ! currentRelNo.equals(relNo) ) {
-                log.info("remote release has been updated from " + currentRelNo + " to " + relNo +
-                        " - clearing output directory " + outputDir);
+        try {
+            planner.reduce(catalogFilename, current);
 
-                FileUtil.removeDirectory(outputDir);
-                FileUtil.createDirectory(outputDir);
-                FileUtil.moveFile(tmpFilename, relNoFile);
+        } finally {
+            FileUtil.delete(catalogFilename);
+        }
 
-            } else {
-                FileUtil.delete(tmpFilename);
+        String previousRelNo = null;
+        String[] names = new File(manifestDir).list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(CATALOG_PREFIX) && name.endsWith(".txt")) {
+                    String n = name.substring(CATALOG_PREFIX.length(), name.length() - 4);
+                    if ( ! n.equals(relNo) ) previousRelNo = n;
+                }
             }
+        }
+
+        if (previousRelNo == null) {
+            log.info("no previous RefSeq catalog to compare with - kept catalog for release " + relNo);
+            return;
+        }
+
+        String previous = manifestDir + "/" + CATALOG_PREFIX + previousRelNo + ".txt";
+        planner.plan(previous, current, manifestDir + "/refseq-plan-" + previousRelNo + "-" + relNo);
+
+        for (Map.Entry<String, Long> entry : planner.getChangesByDirectory().entrySet()) {
+            log.info(" " + entry.getKey() + " : " + entry.getValue() + " changed accessions");
+        }
+
+        FileUtil.delete(previous);
+    }
+
+    /**
+     * @return {@code true} if records of the same locus are to be de-duplicated across source files
+     */
+    protected boolean isDedupeEnabled() {
+        return properties.getBoolean("genbank.dedupe", false);
+    }
+
+    /**
+     * @return {@code true} if, of two records of a locus at the same version, the one from the source file listed
+     * later is to be kept, or {@code false} to keep the one claimed first (the default).  Only applies if records
+     * are de-duplicated.
+     */
+    protected boolean isLaterFilePreferred() {
+        return false;
+    }
+
+    @Override
+    public void prepare() throws Exception {
+        FTPClient ftp = null;
+        String tmpFilename = Files.createTempFile(null, null).toString();
+
+        try {
+            ftp = new FTPClient(getFTPHost(), getFTPUser(), getFTPPass());
+            ftp.connect();
+
+            ftp.download("/genbank/GB_Release_Number", tmpFilename);
+
+            updateRelease(getOutputDir(), FileUtil.read(tmpFilename).trim());
 
         } finally {
             try { if (ftp != null) ftp.disconnect(); } catch (Exception e) {}
+            FileUtil.delete(tmpFilename);
         }
 
         super.prepare();
+
+        finishPrepare(getOutputDir(), getTableFileMap().values(), locusMap);
+    }
+
+    /**
+     * @return the output directory configured in {@code system.properties}, which holds the prepared files and the
+     * metadata used to resume an interrupted prepare
+     * @throws IOException
+     */
+    static String getConfiguredOutputDir() throws IOException {
+        return new SystemProperties().get("genbank.output.dir", DEFAULT_OUTPUT_DIR);
+    }
+
+    /**
+     * Builds the filename filters selecting the GenBank divisions and RefSeq subsets configured in
+     * {@code system.properties}.  A blank setting selects everything; {@code none} selects nothing.
+     */
+    static List<String> buildFilenameFilters(SystemProperties properties) {
+        List<String> list = new ArrayList<String>();
+
+        String divisions = properties.get("genbank.divisions");
+        if (divisions == null) {
+            list.add("/genbank/gb*.seq.gz");
+
+        } else if ( ! divisions.equalsIgnoreCase("none") ) {
+            for (String division : divisions.split("\\s*,\\s*")) {
+                list.add("/genbank/gb" + division.toLowerCase() + "*.seq.gz");
+            }
+        }
+
+        String subsets = properties.get("genbank.refseq.subsets");
+        if (subsets == null) {
+            list.add("/refseq/release/complete/complete*.*.gbff.gz");
+
+        } else if ( ! subsets.equalsIgnoreCase("none") ) {
+            for (String subset : subsets.split("\\s*,\\s*")) {
+                list.add("/refseq/release/complete/complete*." + subset + ".gbff.gz");
+            }
+        }
+
+        return list;
+    }
+
+    /**
+     * @return the settings in {@code system.properties} that affect the output written for a source file, including
+     * the size and modification time of the accession filter file, so that segments are only reused when their
+     * output would be written the same way again
+     */
+    static String getOutputSettings(SystemProperties properties) {
+        StringBuilder sb = new StringBuilder();
+        for (String name : OUTPUT_PROPERTIES) {
+            sb.append(name).append('=').append(properties.get(name, "")).append('\n');
+        }
+
+        String accessionsFile = properties.get("genbank.filter.accessions.file");
+        if (accessionsFile != null) {
+            File f = new File(accessionsFile);
+            sb.append("accessions=").append(f.length()).append(',').append(f.lastModified()).append('\n');
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * @return the source settings in {@code system.properties}, as passed to {@code configureSource}: the
+     * {@code genbank.scratch.*}, {@code genbank.segments} and {@code genbank.download.cache.*} properties, and the
+     * output settings
+     */
+    static Properties buildSourceConfig(SystemProperties properties) {
+        Properties config = new Properties();
+        for (String name : SOURCE_PROPERTIES) {
+            String value = properties.get("genbank." + name);
+            if (value != null) config.setProperty(name, value);
+        }
+
+        config.setProperty("output.settings", getOutputSettings(properties));
+
+        return config;
+    }
+
+    /**
+     * @return the record-level selection configured in {@code system.properties}, or {@code null} if every record
+     * is to be processed
+     * @throws IOException
+     */
+    static RecordSelection buildRecordSelection(SystemProperties properties) throws IOException {
+        String accessionsFile = properties.get("genbank.filter.accessions.file");
+        AccessionList accessions = accessionsFile != null ?
+                new AccessionList(accessionsFile, properties.getInt("genbank.filter.accessions.exact.max", 5000000),
+                        properties.getDouble("genbank.filter.accessions.bloom.fpp", 0.001)) :
+                null;
+
+        RecordSelection selection = new RecordSelection(accessions,
+                properties.get("genbank.filter.date.from"),
+                properties.get("genbank.filter.date.to"),
+                splitList(properties.get("genbank.filter.molecule.types")),
+                splitList(properties.get("genbank.filter.organisms")));
+
+        return selection.isEmpty() ? null : selection;
+    }
+
+    static FeatureTableParser buildFeatureTableParser(int threadId, String tempDir, String workerOutputDir,
+                                                      String outputDir, SystemProperties properties,
+                                                      RecordSelection selection, LocusVersionMap locusMap,
+                                                      OffHeapHashSet valueDictionary,
+                                                      OffHeapHashSet authorDictionary) throws IOException {
+
+        FeatureTableParser parser = new FeatureTableParser(threadId, tempDir, workerOutputDir,
+                getCheckpointDir(outputDir), properties.getInt("genbank.checkpoint.interval", 0));
+
+        if (selection != null) parser.setRecordFilter(selection.newFilter());
+        parser.setHotQualifiers(getHotQualifiers(properties));
+        if (properties.getBoolean("genbank.delta", false)) parser.enableManifest();
+        if (locusMap != null) parser.setLocusVersionMap(locusMap);
+        if (valueDictionary != null) parser.setValueDictionary(valueDictionary);
+        if (authorDictionary != null) parser.setAuthorDictionary(authorDictionary);
+        if (properties.getBoolean("genbank.summary", false)) parser.enableSummary();
+
+        return parser;
+    }
+
+    /**
+     * Builds the map through which records of the same locus are de-duplicated across source files, if enabled in
+     * {@code system.properties}
+     * @return the {@link LocusVersionMap}, or {@code null} if de-duplication is disabled
+     * @throws IOException
+     */
+    static LocusVersionMap buildLocusVersionMap(String outputDir, List<String> segmentDirs,
+                                                SystemProperties properties) throws IOException {
+        return properties.getBoolean("genbank.dedupe", false) ?
+                buildLocusVersionMap(outputDir, segmentDirs,
+                        properties.getLong("genbank.dedupe.expected.loci", 10000000)) :
+                null;
+    }
+
+    /**
+     * Builds the set through which annotation values are written once each, if enabled in {@code system.properties}.
+     * The set isn't seeded from earlier output; values it doesn't know of are simply written again, and discarded
+     * when the dictionary table is loaded.
+     * @return the {@link OffHeapHashSet}, or {@code null} if the annotation value dictionary is disabled
+     */
+    static OffHeapHashSet buildValueDictionary(SystemProperties properties) {
+        return properties.getBoolean("genbank.annotations.dedupe", false) ?
+                new OffHeapHashSet(properties.getLong("genbank.annotations.dedupe.mb", 512) * 1024 * 1024,
+                        DICTIONARY_STRIPES) :
+                null;
+    }
+
+    /**
+     * Builds the set through which author names are written to the author dimension once each, if enabled in
+     * {@code system.properties}
+     * @return the {@link OffHeapHashSet}, or {@code null} if the author dimension is disabled
+     */
+    static OffHeapHashSet buildAuthorDictionary(SystemProperties properties) {
+        return properties.getBoolean("genbank.authors.normalize", false) ?
+                new OffHeapHashSet(properties.getLong("genbank.authors.normalize.mb", 128) * 1024 * 1024,
+                        DICTIONARY_STRIPES) :
+                null;
+    }
+
+    /**
+     * @return the tables populated by the prepared files: the standard tables, plus a table for each hot qualifier
+     * configured in {@code system.properties}
+     */
+    static Map<String, String> buildTableFileMap(SystemProperties properties) {
+        Map<String, String> map = new LinkedHashMap<String, String>(tableFileMap);
+        for (String qualifier : getHotQualifiers(properties)) {
+            map.put(FeatureTableParser.HOT_ANNOTATIONS_PREFIX + qualifier,
+                    FeatureTableParser.getHotAnnotationFilename(qualifier));
+        }
+        return map;
+    }
+
+    /**
+     * @return the qualifiers whose annotations are routed to tables of their own
+     */
+    static List<String> getHotQualifiers(SystemProperties properties) {
+        return splitList(properties.get("genbank.annotations.hot"));
+    }
+
+    /**
+     * @return the database into which prepared files are loaded, per {@code system.properties}
+     * @throws IllegalArgumentException if {@code genbank.target} names an unknown database
+     */
+    static LoadTarget buildLoadTarget(SystemProperties properties) {
+        String name = properties.get("genbank.target", MySQLTarget.NAME);
+
+        if (name.equalsIgnoreCase(MySQLTarget.NAME)) {
+            return new MySQLTarget("insert".equalsIgnoreCase(properties.get("genbank.load.method", "infile")),
+                    properties.getInt("genbank.insert.batch.size", 1000),
+                    properties.getInt("genbank.insert.connections", 4),
+                    properties.getLong("genbank.load.progress.seconds", 60) * 1000,
+                    properties.getLong("genbank.load.innodb.seconds", 60) * 1000);
+
+        } else if (name.equalsIgnoreCase(PostgreSQLTarget.NAME)) {
+            return new PostgreSQLTarget(properties.getInt("genbank.copy.connections", 4),
+                    properties.getLong("genbank.load.progress.seconds", 60) * 1000);
+
+        } else if (name.equalsIgnoreCase(H2Target.NAME)) {
+            return new H2Target(properties.get("genbank.h2.dir", "."),
+                    properties.getInt("genbank.insert.batch.size", 1000),
+                    properties.getInt("genbank.insert.connections", 4));
+
+        } else {
+            throw new IllegalArgumentException("unknown target database '" + name + "'");
+        }
+    }
+
+    /**
+     * @return the dictionary tables populated by the prepared files, per {@code system.properties}
+     */
+    static Map<String, String> getDictionaryTableFileMap(SystemProperties properties) {
+        Map<String, String> map = new LinkedHashMap<String, String>();
+
+        if (properties.getBoolean("genbank.annotations.dedupe", false)) {
+            map.put("annotation_values", FeatureTableParser.TABLE_FILE_ANNOTATION_VALUES);
+        }
+
+        if (properties.getBoolean("genbank.authors.normalize", false)) {
+            map.put("author_names", FeatureTableParser.TABLE_FILE_AUTHOR_NAMES);
+        }
+
+        return map;
+    }
+
+    /**
+     * Builds a {@link LocusVersionMap} seeded with the loci already prepared in the output directory (or, if segments
+     * are retained, in the segments being reused) and in any checkpoint segments, so that a resumed prepare resolves
+     * duplicates against them too
+     * @param segmentDirs the directories of the retained segments being reused, or {@code null}
+     * @throws IOException
+     */
+    static LocusVersionMap buildLocusVersionMap(String outputDir, List<String> segmentDirs, long expectedLoci)
+            throws IOException {
+
+        LocusVersionMap locusMap = new LocusVersionMap(expectedLoci);
+
+        List<String> dirs = new ArrayList<String>();
+        if (segmentDirs != null)    dirs.addAll(segmentDirs);
+        else                        dirs.add(outputDir);
+
+        File[] checkpointDirs = new File(getCheckpointDir(outputDir)).listFiles();
+        if (checkpointDirs != null) {
+            for (File f : checkpointDirs) {
+                if (f.isDirectory()) dirs.add(f.getPath());
+            }
+        }
+
+        String basicSide = FeatureTableParser.getSupersedingFilename(FeatureTableParser.TABLE_FILE_BASIC);
+        for (String dir : dirs) {
+            locusMap.seed(dir + "/" + FeatureTableParser.TABLE_FILE_BASIC, BASIC_LOCUS_COLUMN, BASIC_VERSION_COLUMN);
+            locusMap.seedRanks(dir + "/" + basicSide, BASIC_LOCUS_COLUMN + 1, 0);      // prefixed with their rank
+        }
+
+        return locusMap;
+    }
+
+    /**
+     * Completes a prepare.  The rows of records that superseded earlier versions of their loci are merged into the
+     * main tables (if de-duplication is enabled), the locus manifest (if enabled) is sorted and kept as the manifest
+     * of the prepared release, and the partial summary statistics (if enabled) are merged into the summary table.
+     * @param tableFilenames the files of the tables populated by the prepared files
+     * @param locusMap the map built by {@code buildLocusVersionMap}, or {@code null}
+     * @throws IOException
+     */
+    static void finishPrepare(String outputDir, Collection<String> tableFilenames, LocusVersionMap locusMap)
+            throws IOException {
+
+        if (locusMap != null) {
+            log.info("locus map: " + locusMap.getStatus());
+
+            List<String> filenames = new ArrayList<String>(tableFilenames);
+            filenames.add(FeatureTableParser.TABLE_FILE_MANIFEST);
+            new SupersededCompactor(outputDir, filenames).compact();
+        }
+
+        String partials = outputDir + "/" + FeatureTableParser.TABLE_FILE_SUMMARY_PARTIALS;
+        if (FileUtil.exists(partials)) {
+            SummaryCounts.read(partials).write(outputDir + "/" + SUMMARY_FILE);
+        }
+
+        String manifest = outputDir + "/" + FeatureTableParser.TABLE_FILE_MANIFEST;
+        String relNo = getPreparedRelease(outputDir);
+        if (FileUtil.exists(manifest) && relNo != null) {
+            String manifestDir = outputDir + "/" + MANIFEST_DIR;
+            new ExternalSorter(manifestDir + "/tmp", MANIFEST_SORT_RUN_LINES).sort(manifest,
+                    manifestDir + "/release-" + relNo + ".txt");
+        }
+    }
+
+    /**
+     * @return the directory in which intra-file checkpoints are kept.  This is always under the output directory, even
+     * when finalized output is staged elsewhere, so that checkpoints survive the loss of node-local storage.
+     */
+    static String getCheckpointDir(String outputDir) {
+        return outputDir + "/" + FeatureTableParser.CHECKPOINT_DIR;
+    }
+
+    /**
+     * Records the current remote release number.  If it differs from the release whose files are currently prepared in
+     * the output directory, that directory is cleared so the new release is prepared from scratch.  Release manifests
+     * are kept, so that the new release can be compared with the one in the database, as are retained segments, so
+     * that source files which haven't changed needn't be processed again.
+     * @param outputDir the output directory
+     * @param relNo the current remote release number
+     * @throws IOException
+     */
+    static void updateRelease(String outputDir, String relNo) throws IOException {
+        String relNoFile = outputDir + "/.current-release";
+
+        String currentRelNo = null;
+        if (FileUtil.exists(relNoFile)) {
+            currentRelNo = FileUtil.read(relNoFile).trim();
+        }
+
+        if (currentRelNo == null) {
+            FileUtil.createDirectory(outputDir);
+            FileUtil.write(relNoFile, relNo + "\n", false);
+
+        } else if ( ! currentRelNo.equals(relNo) ) {
+            log.info("remote release has been updated from " + currentRelNo + " to " + relNo +
+                    " - clearing output directory " + outputDir);
+
+            clearOutputDir(outputDir);
+            FileUtil.write(relNoFile, relNo + "\n", false);
+        }
+    }
+
+
+//////////////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    private static void linkOrCopy(String source, String target) throws IOException {
+        if ( ! FileUtil.exists(source) ) return;
+
+        try {
+            Files.createLink(Paths.get(target), Paths.get(source));
+
+        } catch (IOException e) {
+            Files.copy(Paths.get(source), Paths.get(target), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void clearOutputDir(String outputDir) throws IOException {
+        File[] files = new File(outputDir).listFiles();
+        if (files == null) return;
+
+        for (File f : files) {
+            if (f.getName().equals(MANIFEST_DIR) || f.getName().equals(SEGMENT_DIR)) continue;
+            else if (f.isDirectory())               FileUtil.removeDirectory(f.getPath());
+            else                                    FileUtil.delete(f.getPath());
+        }
+    }
+
+    private static String getPreparedRelease(String outputDir) throws IOException {
+        String relNoFile = outputDir + "/.current-release";
+        return FileUtil.exists(relNoFile) ?
+                FileUtil.read(relNoFile).trim() :
+                null;
+    }
+
+    private static List<String> splitList(String s) {
+        List<String> list = new ArrayList<String>();
+        if (s != null) {
+            for (String item : s.split(",")) {
+                if ( ! item.trim().isEmpty() ) list.add(item.trim());
+            }
+        }
+        return list;
     }
 }
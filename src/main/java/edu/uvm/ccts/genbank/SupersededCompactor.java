@@ -0,0 +1,168 @@
+/*
+ * Copyright 2015 The University of Vermont and State Agricultural
+ * College, Vermont Oxford Network.  All rights reserved.
+ *
+ * Written by Matthew B. Storer <matthewbstorer@gmail.com>
+ *
+ * This file is part of GenBank Loader.
+ *
+ * GenBank Loader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenBank Loader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenBank Loader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package edu.uvm.ccts.genbank;
+
+import edu.uvm.ccts.common.util.FileUtil;
+import edu.uvm.ccts.genbank.filter.LocusVersionMap;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+
+/**
+ * Merges the side tables written by {@link FeatureTableParser} for records that supersede an earlier version of a
+ * locus into the main tables.  Every row of a superseded locus is dropped from the main tables, and only the rows of
+ * the locus' latest record are appended in their place.  Each table is rewritten to a working file that then replaces
+ * it, and the side tables are removed only once every table has been rewritten, so that an interrupted compaction may
+ * simply be run again.
+ */
+public class SupersededCompactor {
+    private static final Log log = LogFactory.getLog(SupersededCompactor.class);
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final int MAIN_LOCUS_COLUMN = 1;
+    private static final int SIDE_RANK_COLUMN = 0;
+    private static final int SIDE_LOCUS_COLUMN = 2;
+
+    private String outputDir;
+    private Collection<String> tableFilenames;
+
+    /**
+     * @param outputDir the directory holding the main and side tables
+     * @param tableFilenames the names of the main table files, the first of which must be the basic table
+     */
+    public SupersededCompactor(String outputDir, Collection<String> tableFilenames) {
+        this.outputDir = outputDir;
+        this.tableFilenames = tableFilenames;
+    }
+
+    public void compact() throws IOException {
+        String basicSideFilename = outputDir + "/" +
+                FeatureTableParser.getSupersedingFilename(tableFilenames.iterator().next());
+
+        if ( ! FileUtil.exists(basicSideFilename) ) {
+            deleteSideTables();                // leftovers from a compaction interrupted while cleaning up
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+
+        LocusVersionMap latest = new LocusVersionMap(Math.max(1024, new File(basicSideFilename).length() / 64));
+        latest.seedRanks(basicSideFilename, SIDE_LOCUS_COLUMN, SIDE_RANK_COLUMN);
+
+        for (String tableFilename : tableFilenames) {
+            compactTable(outputDir + "/" + tableFilename,
+                    outputDir + "/" + FeatureTableParser.getSupersedingFilename(tableFilename), latest);
+        }
+
+        deleteSideTables();
+
+        log.info("merged superseding records into " + tableFilenames.size() + " tables in " +
+                (System.currentTimeMillis() - start) + " ms");
+    }
+
+
+//////////////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    private void compactTable(String filename, String sideFilename, LocusVersionMap latest) throws IOException {
+        String workingFilename = filename + ".compacting";
+        long dropped = 0;
+        long added = 0;
+
+        BufferedWriter writer = new BufferedWriter(new FileWriter(workingFilename), BUFFER_SIZE);
+        try {
+            if (FileUtil.exists(filename)) {
+                BufferedReader reader = new BufferedReader(new FileReader(filename), BUFFER_SIZE);
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        if (latest.getRank(column(line, MAIN_LOCUS_COLUMN)) >= 0) {
+                            dropped ++;
+
+                        } else {
+                            writer.write(line);
+                            writer.newLine();
+                        }
+                    }
+
+                } finally {
+                    try { reader.close(); } catch (Exception e) {}
+                }
+            }
+
+            if (FileUtil.exists(sideFilename)) {
+                BufferedReader reader = new BufferedReader(new FileReader(sideFilename), BUFFER_SIZE);
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        int rank = LocusVersionMap.parseVersion(column(line, SIDE_RANK_COLUMN));
+                        if (latest.getRank(column(line, SIDE_LOCUS_COLUMN)) == rank) {
+                            writer.write(line, line.indexOf('\t') + 1, line.length() - line.indexOf('\t') - 1);
+                            writer.newLine();
+                            added ++;
+                        }
+                    }
+
+                } finally {
+                    try { reader.close(); } catch (Exception e) {}
+                }
+            }
+
+        } finally {
+            try { writer.close(); } catch (Exception e) {}
+        }
+
+        Files.move(Paths.get(workingFilename), Paths.get(filename), StandardCopyOption.REPLACE_EXISTING);
+
+        log.info("compacted '" + filename + "' - dropped " + dropped + " superseded rows, added " + added + " rows");
+    }
+
+    /**
+     * Removes the side tables.  The superseding basic table goes first, since its presence is what marks a compaction
+     * as outstanding; any other side tables left behind by an interruption are removed by the next compaction.
+     */
+    private void deleteSideTables() throws IOException {
+        for (String tableFilename : tableFilenames) {
+            String sideFilename = outputDir + "/" + FeatureTableParser.getSupersedingFilename(tableFilename);
+            if (FileUtil.exists(sideFilename)) FileUtil.delete(sideFilename);
+        }
+    }
+
+    private static String column(String line, int index) {
+        int start = 0;
+        for (int i = 0; i < index; i ++) {
+            start = line.indexOf('\t', start) + 1;
+            if (start == 0) return "";
+        }
+
+        int end = line.indexOf('\t', start);
+        return end >= 0 ? line.substring(start, end) : line.substring(start);
+    }
+}
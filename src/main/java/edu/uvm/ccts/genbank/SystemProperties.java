@@ -0,0 +1,100 @@
+/*
+ * Copyright 2015 The University of Vermont and State Agricultural
+ * College, Vermont Oxford Network.  All rights reserved.
+ *
+ * Written by Matthew B. Storer <matthewbstorer@gmail.com>
+ *
+ * This file is part of GenBank Loader.
+ *
+ * GenBank Loader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenBank Loader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenBank Loader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.uvm.ccts.genbank;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Provides typed access to the settings in {@code system.properties}.  Blank values are treated as unset, and
+ * references to environment variables of the form {@code ${NAME}} (e.g. {@code ${TMPDIR}}) are expanded.
+ */
+public class SystemProperties {
+    private static final Pattern ENV_PATTERN = Pattern.compile("\\$\\{(\\w+)\\}");
+
+    private Properties properties;
+
+    public SystemProperties() throws IOException {
+        properties = new Properties();
+
+        InputStream input = this.getClass().getResourceAsStream("/system.properties");
+        try {
+            properties.load(input);
+
+        } finally {
+            try { input.close(); } catch (Exception e) {}
+        }
+    }
+
+    public String get(String name) {
+        return get(name, null);
+    }
+
+    public String get(String name, String defaultValue) {
+        String s = properties.getProperty(name);
+        if (s != null) s = expand(s).trim();
+
+        return s != null && ! s.isEmpty() ?
+                s :
+                defaultValue;
+    }
+
+    public int getInt(String name, int defaultValue) {
+        String s = get(name);
+        return s != null ? Integer.parseInt(s) : defaultValue;
+    }
+
+    public long getLong(String name, long defaultValue) {
+        String s = get(name);
+        return s != null ? Long.parseLong(s) : defaultValue;
+    }
+
+    public double getDouble(String name, double defaultValue) {
+        String s = get(name);
+        return s != null ? Double.parseDouble(s) : defaultValue;
+    }
+
+    public boolean getBoolean(String name, boolean defaultValue) {
+        String s = get(name);
+        return s != null ? Boolean.parseBoolean(s) : defaultValue;
+    }
+
+
+//////////////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    private String expand(String s) {
+        Matcher m = ENV_PATTERN.matcher(s);
+        StringBuffer sb = new StringBuffer();
+        while (m.find()) {
+            String value = System.getenv(m.group(1));
+            m.appendReplacement(sb, Matcher.quoteReplacement(value != null ? value : ""));
+        }
+        m.appendTail(sb);
+        return sb.toString();
+    }
+}
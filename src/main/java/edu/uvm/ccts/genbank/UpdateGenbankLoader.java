@@ -0,0 +1,164 @@
+/*
+ * Copyright 2015 The University of Vermont and State Agricultural
+ * College, Vermont Oxford Network.  All rights reserved.
+ *
+ * Written by Matthew B. Storer <matthewbstorer@gmail.com>
+ *
+ * This file is part of GenBank Loader.
+ *
+ * GenBank Loader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenBank Loader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenBank Loader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package edu.uvm.ccts.genbank;
+
+import edu.uvm.ccts.common.db.DataSource;
+import edu.uvm.ccts.common.ftp.FTPClient;
+import edu.uvm.ccts.common.model.FileMetadata;
+import edu.uvm.ccts.common.util.FileUtil;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps a populated database current between releases by applying NCBI's daily incremental files.  New daily files
+ * are prepared into their own output directory exactly as release files are, with loci de-duplicated so that only the
+ * latest version of each is kept, and the prepared rows then replace those of the same loci in the database.  Once
+ * applied, the prepared files are removed; the metadata of the daily files is kept so they aren't applied again.
+ */
+public class UpdateGenbankLoader {
+    private static final Log log = LogFactory.getLog(UpdateGenbankLoader.class);
+
+    private static final String DEFAULT_OUTPUT_DIR = "./out-updates";
+
+    private final DailyFileLoader loader;
+
+    public UpdateGenbankLoader() throws IOException {
+        loader = new DailyFileLoader();
+    }
+
+    /**
+     * Prepares any daily files not yet applied, and applies them to the database.  If any file fails to prepare,
+     * nothing is applied, so that daily files are never applied out of order; the prepared files are kept and applied
+     * together with the failed ones once they have been prepared again.
+     * @param dataSource the populated database to update
+     * @throws Exception
+     */
+    public void update(DataSource dataSource) throws Exception {
+        loader.prepare();
+
+        if (loader.getFailedFileCount() > 0) {
+            throw new IOException(loader.getFailedFileCount() + " daily files failed to prepare; not applying updates");
+        }
+
+        loader.applyPreparedFiles(dataSource);
+        loader.removePreparedFiles();
+    }
+
+    /**
+     * Lists the daily files on the FTP server, without downloading any of them
+     * @param ftp a connected {@link FTPClient}
+     * @return the number of daily files that have not yet been applied
+     * @throws IOException
+     */
+    public int countPendingFiles(FTPClient ftp) throws IOException {
+        return loader.countPendingFiles(ftp);
+    }
+
+
+//////////////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    private static String getConfiguredUpdateDir() throws IOException {
+        return new SystemProperties().get("genbank.update.output.dir", DEFAULT_OUTPUT_DIR);
+    }
+
+    private static List<String> buildUpdateFilenameFilters(SystemProperties properties) {
+        List<String> list = new ArrayList<String>();
+        list.add("/genbank/daily-nc/nc*.flat.gz");
+
+        if (properties.getBoolean("genbank.update.refseq", true)) {
+            list.add("/refseq/daily/rsnc.*.gbff.gz");
+        }
+
+        return list;
+    }
+
+    /**
+     * Prepares daily files exactly as {@link MetaGenbankLoader} prepares release files, into their own output
+     * directory.  Kept private, so that none of the release-loading operations it inherits can be applied to daily
+     * files.
+     */
+    private static final class DailyFileLoader extends MetaGenbankLoader {
+        private DailyFileLoader() throws IOException {
+            super(getConfiguredUpdateDir(), buildUpdateFilenameFilters(new SystemProperties()));
+        }
+
+        @Override
+        protected String getName() {
+            return "genbank-update";
+        }
+
+        @Override
+        protected boolean isDedupeEnabled() {
+            return true;
+        }
+
+        /**
+         * A locus may be reissued at the same version in a later daily file (e.g. with revised annotations), so the
+         * record from the later file is kept
+         */
+        @Override
+        protected boolean isLaterFilePreferred() {
+            return true;
+        }
+
+        private void applyPreparedFiles(DataSource dataSource) throws IOException, SQLException {
+            applyUpdates(dataSource, getOutputDir());
+        }
+
+        private void removePreparedFiles() throws IOException {
+            List<String> filenames = new ArrayList<String>(getTableFileMap().values());
+            filenames.add(FeatureTableParser.TABLE_FILE_MANIFEST);
+            filenames.addAll(getDictionaryTableFileMap().values());
+            filenames.addAll(getSummaryTableFileMap().values());
+            filenames.add(FeatureTableParser.TABLE_FILE_SUMMARY_PARTIALS);
+
+            for (String filename : filenames) {
+                String f = getOutputDir() + "/" + filename;
+                if (FileUtil.exists(f)) FileUtil.delete(f);
+            }
+
+            log.info("removed applied update files from '" + getOutputDir() + "'");
+        }
+
+        private int countPendingFiles(FTPClient ftp) throws IOException {
+            Metadata metadata = new Metadata(getOutputDir() + "/.metadata");
+
+            int count = 0;
+            for (String filenameFilter : getFilenameFilters()) {
+                for (FileMetadata remote : ftp.listFilesWithMetadata(filenameFilter)) {
+                    if ( ! isUnchanged(metadata.get(remote), remote) ) count ++;
+                }
+            }
+
+            return count;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2015 The University of Vermont and State Agricultural
+ * College, Vermont Oxford Network.  All rights reserved.
+ *
+ * Written by Matthew B. Storer <matthewbstorer@gmail.com>
+ *
+ * This file is part of GenBank Loader.
+ *
+ * GenBank Loader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenBank Loader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenBank Loader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package edu.uvm.ccts.genbank;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import edu.uvm.ccts.common.db.DataSource;
+import edu.uvm.ccts.common.ftp.FTPClient;
+import edu.uvm.ccts.common.util.TimeUtil;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the database current without operator involvement.  At a fixed interval, the FTP server's release number and
+ * daily-update directory are checked using only small downloads and listings over a single, long-lived control
+ * connection.  When a new release is published, it is prepared and loaded (applying only what changed, if release
+ * manifests are available); otherwise, any new daily files are applied.  The daemon's state is served as plain text
+ * over HTTP if a status port is configured.
+ */
+public class WatchDaemon {
+    private static final Log log = LogFactory.getLog(WatchDaemon.class);
+
+    private static final String STATE_IDLE = "idle";
+    private static final String STATE_CHECKING = "checking";
+    private static final String STATE_PREPARING = "preparing release";
+    private static final String STATE_LOADING = "loading release";
+    private static final String STATE_UPDATING = "applying daily updates";
+
+    private DataSource dataSource;
+    private SystemProperties properties;
+    private long intervalMs;
+
+    private FTPClient ftp = null;
+    private HttpServer server = null;
+
+    private final Map<String, String> status = new LinkedHashMap<String, String>();
+
+    public WatchDaemon(DataSource dataSource) throws IOException {
+        this.dataSource = dataSource;
+        properties = new SystemProperties();
+        intervalMs = properties.getLong("genbank.watch.interval.minutes", 60) * 60 * 1000;
+
+        setStatus("state", STATE_IDLE);
+        setStatus("started", new Date().toString());
+    }
+
+    /**
+     * Runs until the process is stopped
+     * @throws Exception
+     */
+    public void run() throws Exception {
+        int port = properties.getInt("genbank.watch.status.port", 0);
+        if (port > 0) startStatusServer(port);
+
+        try {
+            while (true) {
+                long start = System.currentTimeMillis();
+
+                try {
+                    check();
+
+                } catch (Exception e) {
+                    log.error("caught " + e.getClass().getName() + " - " + e.getMessage(), e);
+                    setStatus("lastError", new Date() + " - " + e.getMessage());
+                    disconnect();
+                }
+
+                setStatus("state", STATE_IDLE);
+
+                long sleepMs = intervalMs - (System.currentTimeMillis() - start);
+                setStatus("nextCheck", new Date(System.currentTimeMillis() + Math.max(0, sleepMs)).toString());
+                if (sleepMs > 0) Thread.sleep(sleepMs);
+            }
+
+        } finally {
+            disconnect();
+            if (server != null) server.stop(0);
+        }
+    }
+
+
+//////////////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    private void check() throws Exception {
+        setStatus("state", STATE_CHECKING);
+        setStatus("lastCheck", new Date().toString());
+
+        MetaGenbankLoader loader = new MetaGenbankLoader();
+        String remoteRelNo = loader.getRemoteRelease(getFTP());
+        String loadedRelNo = loader.getLoadedRelease();
+
+        setStatus("remoteRelease", remoteRelNo);
+        setStatus("loadedRelease", loadedRelNo != null ? loadedRelNo : "none");
+
+        if ( ! remoteRelNo.equals(loadedRelNo) ) {
+            log.info("release " + remoteRelNo + " is available (database holds " +
+                    (loadedRelNo != null ? loadedRelNo : "none") + ")");
+
+            long start = System.currentTimeMillis();
+            setStatus("state", STATE_PREPARING);
+
+            int failed;
+            if ("https".equalsIgnoreCase(properties.get("genbank.source", "ftp"))) {
+                HTTPGenbankLoader httpLoader = new HTTPGenbankLoader();
+                httpLoader.prepare();
+                failed = httpLoader.getFailedFileCount();
+
+            } else {
+                loader.prepare();
+                failed = loader.getFailedFileCount();
+            }
+
+            if (failed > 0) {                       // load nothing until the whole release has been prepared
+                log.warn(failed + " files of release " + remoteRelNo + " failed to prepare.  retrying at next check");
+                setStatus("lastError", new Date() + " - " + failed + " files of release " + remoteRelNo +
+                        " failed to prepare");
+                return;
+            }
+
+            setStatus("state", STATE_LOADING);
+            if (loader.isDeltaAvailable())  loader.populateDatabaseDelta(dataSource);
+            else                            loader.populateDatabase(dataSource);
+
+            setStatus("lastRelease", remoteRelNo + " at " + new Date() + " (took " +
+                    TimeUtil.formatMsToHMS(System.currentTimeMillis() - start) + ")");
+            setStatus("loadedRelease", remoteRelNo);
+
+        } else {
+            UpdateGenbankLoader updater = new UpdateGenbankLoader();
+            int pending = updater.countPendingFiles(getFTP());
+            setStatus("pendingDailyFiles", String.valueOf(pending));
+
+            if (pending > 0) {
+                log.info(pending + " new daily files are available");
+
+                long start = System.currentTimeMillis();
+                setStatus("state", STATE_UPDATING);
+                updater.update(dataSource);
+
+                setStatus("lastUpdate", pending + " files at " + new Date() + " (took " +
+                        TimeUtil.formatMsToHMS(System.currentTimeMillis() - start) + ")");
+                setStatus("pendingDailyFiles", "0");
+            }
+        }
+    }
+
+    /**
+     * @return the long-lived FTP connection used for checks, connecting it if necessary
+     */
+    private FTPClient getFTP() throws Exception {
+        if (ftp == null) {
+            ftp = new FTPClient(properties.get("nih.ftp.host"), properties.get("nih.ftp.user"),
+                    properties.get("nih.ftp.pass", ""));
+            ftp.connect();
+        }
+        return ftp;
+    }
+
+    private void disconnect() {
+        try { if (ftp != null) ftp.disconnect(); } catch (Exception e) {}
+        ftp = null;
+    }
+
+    private void setStatus(String name, String value) {
+        synchronized(status) {
+            status.put(name, value);
+        }
+    }
+
+    private void startStatusServer(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/status", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                StringBuilder sb = new StringBuilder();
+                synchronized(status) {
+                    for (Map.Entry<String, String> entry : status.entrySet()) {
+                        sb.append(entry.getKey()).append(": ").append(entry.getValue()).append("\n");
+                    }
+                }
+
+                byte[] bytes = sb.toString().getBytes("UTF-8");
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+                exchange.sendResponseHeaders(200, bytes.length);
+
+                OutputStream output = exchange.getResponseBody();
+                try {
+                    output.write(bytes);
+
+                } finally {
+                    try { output.close(); } catch (Exception e) {}
+                }
+            }
+        });
+        server.start();
+
+        log.info("serving status on http://localhost:" + port + "/status");
+    }
+}
@@ -0,0 +1,447 @@
+/*
+ * Copyright 2015 The University of Vermont and State
+ * Agricultural College.  All rights reserved.
+ *
+ * Written by Matthew B. Storer <matthewbstorer@gmail.com>
+ *
+ * This file is part of CCTS Common.
+ *
+ * CCTS Common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CCTS Common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CCTS Common.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.uvm.ccts.common.db;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of JDBC connections.  A thread leases a connection on its first call to {@code getConnection}, and
+ * keeps getting that same connection until it releases the lease (by calling {@code release}, or {@code close} on the
+ * connection), at which point the connection is returned to the pool rather than closed.  Leases are tracked per
+ * thread and connections are checked out and in without any pool-wide lock.
+ * <p>
+ * Idle connections are handed out most-recently-used first.  They are validated before reuse if they have been idle
+ * for a while, and closed once they have been idle for too long.  A maintenance thread reclaims the leases of threads
+ * that have terminated without releasing them, and reports leases held for longer than a threshold, along with where
+ * they were taken.  Counts of connections created, leases granted, waits, timeouts and the like are kept for
+ * reporting.
+ */
+public class ConnectionPool {
+    private static final Log log = LogFactory.getLog(ConnectionPool.class);
+
+    private static final long VALIDATE_AFTER_IDLE_MS = 10000;
+    private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+
+    /**
+     * Opens new physical connections for the pool
+     */
+    public interface ConnectionFactory {
+        Connection create() throws SQLException;
+    }
+
+    private final String name;
+    private final ConnectionFactory factory;
+    private final int maxSize;
+    private final long maxWaitMs;
+    private final long maxIdleMs;
+    private final long leakThresholdMs;
+
+    private final Semaphore permits;
+    private final ConcurrentLinkedDeque<IdleConnection> idle = new ConcurrentLinkedDeque<IdleConnection>();
+    private final Set<Lease> leases = Collections.newSetFromMap(new ConcurrentHashMap<Lease, Boolean>());
+    private final ThreadLocal<Lease> current = new ThreadLocal<Lease>();
+    private volatile boolean closed = false;
+    private Thread maint = null;
+
+    private final AtomicLong created = new AtomicLong(0);
+    private final AtomicLong destroyed = new AtomicLong(0);
+    private final AtomicLong granted = new AtomicLong(0);
+    private final AtomicLong waits = new AtomicLong(0);
+    private final AtomicLong waitMs = new AtomicLong(0);
+    private final AtomicLong timeouts = new AtomicLong(0);
+    private final AtomicLong invalid = new AtomicLong(0);
+    private final AtomicLong reclaimed = new AtomicLong(0);
+    private final AtomicLong leaks = new AtomicLong(0);
+
+    /**
+     * @param name the name of the data source, for logging
+     * @param factory opens the connections managed by this pool
+     * @param maxSize the maximum number of connections that may be open at once
+     * @param maxWaitMs how long to wait for a connection when the pool is at capacity
+     * @param maxIdleMs how long a connection may sit idle before it is closed, or {@code 0} to keep idle connections
+     * @param leakThresholdMs how long a lease may be held before it is reported as a possible leak, or {@code 0} to
+     *                        not report leases
+     * @param maintenancePeriodMs how often the maintenance thread runs, or {@code 0} to not start one
+     */
+    public ConnectionPool(String name, ConnectionFactory factory, int maxSize, long maxWaitMs, long maxIdleMs,
+                          long leakThresholdMs, final long maintenancePeriodMs) {
+
+        if (maxSize <= 0) throw new IllegalArgumentException("maxSize must be > 0");
+
+        this.name = name;
+        this.factory = factory;
+        this.maxSize = maxSize;
+        this.maxWaitMs = maxWaitMs;
+        this.maxIdleMs = maxIdleMs;
+        this.leakThresholdMs = leakThresholdMs;
+        this.permits = new Semaphore(maxSize);
+
+        if (maintenancePeriodMs > 0) {
+            maint = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while ( ! closed ) {
+                            Thread.sleep(maintenancePeriodMs);
+                            maintain();
+                        }
+
+                    } catch (InterruptedException e) {
+                        // handle silently
+                    }
+                }
+            }, name + "-pool-maintenance");
+            maint.setDaemon(true);
+            maint.start();
+        }
+    }
+
+    /**
+     * @return the connection leased to the calling thread, leasing one if the thread doesn't already hold one.  The
+     * pool is waited on for up to {@code maxWaitMs} if it is at capacity.
+     * @throws SQLException if no connection became available in time, or a new connection could not be opened
+     */
+    public Connection getConnection() throws SQLException {
+        Lease lease = current.get();
+        if (lease == null || lease.released.get()) {
+            lease = borrow();
+            current.set(lease);
+        }
+        return lease.proxy;
+    }
+
+    /**
+     * Returns the connection leased to the calling thread, if any, to the pool
+     */
+    public void release() {
+        Lease lease = current.get();
+        if (lease != null) release(lease);
+    }
+
+    /**
+     * Leases a connection for the caller's exclusive use.  Unlike {@code getConnection}, the lease isn't tied to the
+     * calling thread: every call leases a separate connection, which must be returned with {@code release(Connection)}
+     * (or by closing it).  The pool is waited on for up to {@code maxWaitMs} if it is at capacity.
+     * @return a leased connection
+     * @throws SQLException if no connection became available in time, or a new connection could not be opened
+     */
+    public Connection checkout() throws SQLException {
+        return borrow().proxy;
+    }
+
+    /**
+     * Returns a connection leased with {@code checkout} (or {@code getConnection}) to the pool.  Releasing a connection
+     * that has already been returned has no effect.
+     * @param conn a connection leased from this pool
+     * @throws IllegalArgumentException if the connection wasn't leased from this pool
+     */
+    public void release(Connection conn) {
+        if (conn == null) return;
+
+        InvocationHandler handler = Proxy.isProxyClass(conn.getClass()) ?
+                Proxy.getInvocationHandler(conn) :
+                null;
+
+        if ( ! (handler instanceof Lease) || ((Lease) handler).getPool() != this ) {
+            throw new IllegalArgumentException("connection was not leased from pool '" + name + "'");
+        }
+
+        release((Lease) handler);
+    }
+
+    /**
+     * Reclaims the leases of terminated threads, reports leases held for longer than the leak threshold, and closes
+     * connections idle for longer than {@code maxIdleMs}.  Called periodically by the maintenance thread.
+     */
+    public void maintain() {
+        long now = System.currentTimeMillis();
+
+        for (Lease lease : leases) {
+            if ( ! lease.owner.isAlive() ) {
+                log.warn("reclaiming connection to '" + name + "' leased by terminated thread '" +
+                        lease.owner.getName() + "'");
+                reclaimed.incrementAndGet();
+                release(lease);
+
+            } else if (leakThresholdMs > 0 && now - lease.since >= leakThresholdMs && ! lease.reported) {
+                lease.reported = true;
+                leaks.incrementAndGet();
+                log.warn("connection to '" + name + "' has been leased by thread '" + lease.owner.getName() +
+                        "' for " + ((now - lease.since) / 1000) + " seconds - possible leak", lease.trace);
+            }
+        }
+
+        if (maxIdleMs > 0) {
+            Iterator<IdleConnection> iter = idle.iterator();
+            while (iter.hasNext()) {
+                IdleConnection ic = iter.next();
+                if (now - ic.idleSince >= maxIdleMs && idle.remove(ic)) {
+                    log.debug("closing connection to '" + name + "' idle for " + ((now - ic.idleSince) / 1000) +
+                            " seconds");
+                    destroy(ic.conn);
+                }
+            }
+        }
+
+        if (log.isDebugEnabled()) log.debug("connection pool '" + name + "' - " + getStatistics());
+    }
+
+    /**
+     * Closes all idle connections and stops the maintenance thread.  Leased connections are closed as they are
+     * released.
+     */
+    public void close() {
+        closed = true;
+        if (maint != null) maint.interrupt();
+
+        IdleConnection ic;
+        while ((ic = idle.pollFirst()) != null) {
+            destroy(ic.conn);
+        }
+
+        log.info("closed connection pool '" + name + "' - " + getStatistics());
+    }
+
+    /**
+     * @return the number of connections currently leased
+     */
+    public int getActiveCount() {
+        return leases.size();
+    }
+
+    /**
+     * @return the number of open connections not currently leased
+     */
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * @return a one-line summary of this pool's state and activity
+     */
+    public String getStatistics() {
+        long w = waits.get();
+        return "active=" + getActiveCount() + "/" + maxSize + ", idle=" + getIdleCount() +
+                ", created=" + created.get() + ", closed=" + destroyed.get() + ", leases=" + granted.get() +
+                ", waits=" + w + " (avg " + (w > 0 ? waitMs.get() / w : 0) + " ms), timeouts=" + timeouts.get() +
+                ", invalid=" + invalid.get() + ", reclaimed=" + reclaimed.get() + ", leaks=" + leaks.get();
+    }
+
+
+//////////////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    private Lease borrow() throws SQLException {
+        if (closed) throw new SQLException("connection pool '" + name + "' has been closed");
+
+        if ( ! permits.tryAcquire() ) {
+            waits.incrementAndGet();
+            long start = System.currentTimeMillis();
+
+            try {
+                if ( ! permits.tryAcquire(maxWaitMs, TimeUnit.MILLISECONDS) ) {
+                    timeouts.incrementAndGet();
+                    throw new SQLException("timed out after " + maxWaitMs + " ms waiting for a connection to '" +
+                            name + "' (" + getStatistics() + ")");
+                }
+
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("interrupted while waiting for a connection to '" + name + "'", e);
+
+            } finally {
+                waitMs.addAndGet(System.currentTimeMillis() - start);
+            }
+        }
+
+        try {
+            Connection conn = null;
+
+            IdleConnection ic;
+            while (conn == null && (ic = idle.pollFirst()) != null) {
+                if (isHealthy(ic)) {
+                    conn = ic.conn;
+
+                } else {
+                    log.info("discarding stale connection to '" + name + "'");
+                    invalid.incrementAndGet();
+                    destroy(ic.conn);
+                }
+            }
+
+            if (conn == null) {
+                log.info("establishing connection to '" + name + "' for thread '" +
+                        Thread.currentThread().getName() + "'");
+                conn = factory.create();
+                created.incrementAndGet();
+            }
+
+            Lease lease = new Lease(conn);
+            leases.add(lease);
+            granted.incrementAndGet();
+
+            return lease;
+
+        } catch (SQLException e) {
+            permits.release();
+            throw e;
+
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a leased connection to the pool, rolling back any transaction left open, or closes it if it can't be
+     * reused
+     */
+    private void release(Lease lease) {
+        if ( ! lease.released.compareAndSet(false, true) ) return;
+
+        leases.remove(lease);
+        if (current.get() == lease) current.remove();
+
+        Connection conn = lease.conn;
+        boolean reusable = ! closed;
+
+        try {
+            if (conn.isClosed()) {
+                reusable = false;
+
+            } else if ( ! conn.getAutoCommit() ) {
+                conn.rollback();
+                conn.setAutoCommit(true);
+            }
+
+        } catch (SQLException e) {
+            reusable = false;
+        }
+
+        if (reusable)   idle.offerFirst(new IdleConnection(conn));
+        else            destroy(conn);
+
+        permits.release();
+    }
+
+    private boolean isHealthy(IdleConnection ic) {
+        try {
+            if (System.currentTimeMillis() - ic.idleSince < VALIDATE_AFTER_IDLE_MS) return ! ic.conn.isClosed();
+            return ic.conn.isValid(VALIDATION_TIMEOUT_SECONDS);
+
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void destroy(Connection conn) {
+        try { conn.close(); } catch (Exception e) {}
+        destroyed.incrementAndGet();
+    }
+
+    /**
+     * A connection leased to a thread.  The thread is handed a proxy whose {@code close} releases the lease, and
+     * which refuses to be used once the lease has been released.
+     */
+    private final class Lease implements InvocationHandler {
+        private final Connection conn;
+        private final Connection proxy;
+        private final Thread owner;
+        private final long since;
+        private final Exception trace;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+        private volatile boolean reported = false;
+
+        private Lease(Connection conn) {
+            this.conn = conn;
+            this.proxy = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class<?>[] { Connection.class }, this);
+            this.owner = Thread.currentThread();
+            this.since = System.currentTimeMillis();
+            this.trace = leakThresholdMs > 0 ? new Exception("connection leased here") : null;
+        }
+
+        private ConnectionPool getPool() {
+            return ConnectionPool.this;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String methodName = method.getName();
+
+            if (methodName.equals("close") && method.getParameterTypes().length == 0) {
+                release(this);
+                return null;
+
+            } else if (methodName.equals("isClosed") && method.getParameterTypes().length == 0) {
+                return released.get() || conn.isClosed();
+
+            } else if (methodName.equals("equals") && method.getParameterTypes().length == 1) {
+                return proxy == args[0];
+
+            } else if (methodName.equals("hashCode") && method.getParameterTypes().length == 0) {
+                return System.identityHashCode(proxy);
+
+            } else if (methodName.equals("toString") && method.getParameterTypes().length == 0) {
+                return "pooled " + conn;
+            }
+
+            if (released.get()) throw new SQLException("connection has been returned to the pool");
+
+            try {
+                return method.invoke(conn, args);
+
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    private static final class IdleConnection {
+        private final Connection conn;
+        private final long idleSince;
+
+        private IdleConnection(Connection conn) {
+            this.conn = conn;
+            this.idleSince = System.currentTimeMillis();
+        }
+    }
+}
@@ -38,8 +38,10 @@ import java.io.Serializable;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
-import java.util.*;
-import java.util.List;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Created by mstorer on 7/23/13.
@@ -51,6 +53,11 @@ public class DataSource extends AbstractCredentialedObject implements Serializab
     private static final String PASSWORD = "password";
     private static final String DOMAIN = "domain";
 
+    private static final int DEFAULT_POOL_SIZE = 32;
+    private static final long DEFAULT_POOL_MAX_WAIT_MS = 600000;
+    private static final long DEFAULT_POOL_MAX_IDLE_MS = 300000;
+    private static final long POOL_MAINTENANCE_PERIOD_MS = 30000;
+
 
     public static DataSource buildFromXml(Element xmlDataSource) throws ConfigurationException {
         return buildFromXml(null, xmlDataSource);
@@ -83,7 +90,8 @@ public class DataSource extends AbstractCredentialedObject implements Serializab
     }
 
     private static boolean shutdown = false;
-    private static final transient Map<String, Map<Long, Connection>> connMap = new HashMap<String, Map<Long, Connection>>();
+    private static final transient Set<ConnectionPool> pools =
+            Collections.newSetFromMap(new ConcurrentHashMap<ConnectionPool, Boolean>());
     private static Thread maint = null;
 
     public static synchronized boolean startMaintenanceThread(final int countdownMax, final int periodInSeconds) {
@@ -126,85 +134,24 @@ public class DataSource extends AbstractCredentialedObject implements Serializab
                 }
             }
 
+            /**
+             * Reclaims connections leased by terminated threads
+             * @return the number of connections still leased
+             */
             private int closeAbandonedConnections() {
-                synchronized(connMap) {
-                    int count = 0;
-
-                    List<Long> threadIds = new ArrayList<Long>();
-                    for (Thread thread : Thread.getAllStackTraces().keySet()) {
-                        threadIds.add(thread.getId());
-                    }
-
-                    for (Map.Entry<String, Map<Long, Connection>> e1 : connMap.entrySet()) {
-                        String name = e1.getKey();
-
-                        Iterator<Map.Entry<Long, Connection>> iter = e1.getValue().entrySet().iterator();
-                        while (iter.hasNext()) {
-                            Map.Entry<Long, Connection> e2 = iter.next();
-                            Long threadId = e2.getKey();
-
-                            if ( ! threadIds.contains(threadId) ) {
-                                log.debug("killing connection for '" + name + "' on expired thread(" + threadId + ")");
-
-                                try {
-                                    Connection conn = e2.getValue();
-                                    if ( ! conn.isClosed() ) {
-                                        conn.close();
-                                    }
-
-                                } catch (Exception e) {
-                                    // handle silently
-
-                                } finally {
-                                    iter.remove();
-                                }
-
-                            } else {
-                                // this is an active thread - update active connections count
-                                try {
-                                    Connection conn = e2.getValue();
-                                    if ( ! conn.isClosed() ) {
-                                        count ++;
-                                    }
-
-                                } catch (Exception e) {
-                                    // handle silently
-                                }
-                            }
-                        }
-                    }
-
-                    return count;
+                int count = 0;
+                for (ConnectionPool pool : pools) {
+                    pool.maintain();
+                    count += pool.getActiveCount();
                 }
+                return count;
             }
 
             private void closeAllConnections() {
-                synchronized(connMap) {
-                    for (Map.Entry<String, Map<Long, Connection>> e1 : connMap.entrySet()) {
-                        String name = e1.getKey();
-
-                        Iterator<Map.Entry<Long, Connection>> iter = e1.getValue().entrySet().iterator();
-                        while (iter.hasNext()) {
-                            Map.Entry<Long, Connection> e2 = iter.next();
-                            Long threadId = e2.getKey();
-                            Connection conn = e2.getValue();
-
-                            try {
-                                if (conn != null && ! conn.isClosed()) {
-                                    log.info("closing connection '" + name + "' on thread(" + threadId + ")");
-                                    conn.close();
-                                }
-
-                            } catch (SQLException e) {
-                                log.error("caught " + e.getClass().getName() + " closing connection for '" + name + "' on thread(" + threadId + ") - " +
-                                        e.getMessage(), e);
-
-                            } finally {
-                                iter.remove();
-                            }
-                        }
-                    }
+                for (ConnectionPool pool : pools) {
+                    pool.close();
                 }
+                pools.clear();
 
                 log.info("all data source connections have been closed.");
             }
@@ -241,6 +188,12 @@ public class DataSource extends AbstractCredentialedObject implements Serializab
     private String url;
     private Properties info;
 
+    private int poolSize = DEFAULT_POOL_SIZE;
+    private long poolMaxWaitMs = DEFAULT_POOL_MAX_WAIT_MS;
+    private long poolMaxIdleMs = DEFAULT_POOL_MAX_IDLE_MS;
+    private long poolLeakThresholdMs = 0;
+    private transient volatile ConnectionPool pool = null;
+
     public DataSource(String name, String driver, String url, Properties info) throws ConfigurationException {
         this(name, driver, url, null, info);
     }
@@ -295,52 +248,84 @@ public class DataSource extends AbstractCredentialedObject implements Serializab
         return info;
     }
 
+    /**
+     * Sizes the connection pool.  Must be called before the first connection is requested.
+     * @param size the maximum number of connections open at once
+     * @param maxWaitMs how long to wait for a connection when all are leased
+     * @param maxIdleMs how long a connection may sit idle before it is closed, or {@code 0} to keep idle connections
+     * @param leakThresholdMs how long a thread may hold a connection before it is reported as a possible leak, or
+     *                        {@code 0} to not report
+     */
+    public synchronized void configurePool(int size, long maxWaitMs, long maxIdleMs, long leakThresholdMs) {
+        if (pool != null) throw new IllegalStateException("pool for '" + name + "' is already in use");
+
+        this.poolSize = size;
+        this.poolMaxWaitMs = maxWaitMs;
+        this.poolMaxIdleMs = maxIdleMs;
+        this.poolLeakThresholdMs = leakThresholdMs;
+    }
+
+    /**
+     * @return the connection leased to the calling thread, which is the same connection on every call until the
+     * thread calls {@code close} (or closes the connection)
+     * @throws SQLException
+     */
     public Connection getConnection() throws SQLException {
-        Connection conn;
-
-        Long threadId = Thread.currentThread().getId();
-        synchronized(connMap) {
-            Map<Long, Connection> map = connMap.get(name);
-            if (map == null) {
-                map = new HashMap<Long, Connection>();
-                connMap.put(name, map);
-            }
+        return getPool().getConnection();
+    }
 
-            conn = map.get(threadId);
-            if (conn == null || conn.isClosed()) {
-                log.info("establishing connection to '" + name + "' on thread(" + threadId + ")");
-                conn = DriverManager.getConnection(url, info);
-                map.put(threadId, conn);
-            }
-        }
+    /**
+     * Returns the calling thread's connection to the pool
+     */
+    public void close() {
+        ConnectionPool p = pool;
+        if (p != null) p.release();
+    }
 
-        return conn;
+    /**
+     * @return a connection leased for the caller's exclusive use, separate from the connection leased to the calling
+     * thread by {@code getConnection}.  It must be returned with {@code release}.
+     * @throws SQLException
+     */
+    public Connection checkout() throws SQLException {
+        return getPool().checkout();
     }
 
-    public void close() {
-        Long threadId = Thread.currentThread().getId();
-        synchronized(connMap) {
-            Map<Long, Connection> map = connMap.get(name);
-            if (map != null) {
-                try {
-                    Connection conn = map.get(threadId);
+    /**
+     * Returns a connection leased with {@code checkout} to the pool
+     * @param conn the connection to return
+     */
+    public void release(Connection conn) {
+        if (conn == null) return;
 
-                    if (conn != null && ! conn.isClosed()) {
-                        log.info("closing connection '" + name + "' on thread(" + threadId + ")");
-                        conn.close();
-                    }
+        ConnectionPool p = pool;
+        if (p != null) {
+            p.release(conn);
 
-                } catch (SQLException e) {
-                    log.error("caught " + e.getClass().getName() + " closing connection for '" + name + "' on thread(" + threadId + ") - " +
-                            e.getMessage(), e);
+        } else {
+            try { conn.close(); } catch (Exception e) {}    // the pool has been closed; closing the lease destroys it
+        }
+    }
 
-                } finally {
-                    map.remove(threadId);
-                }
-            }
+    /**
+     * Closes every idle connection, and every leased connection as it is returned
+     */
+    public synchronized void closePool() {
+        if (pool != null) {
+            pool.close();
+            pools.remove(pool);
+            pool = null;
         }
     }
 
+    /**
+     * @return a one-line summary of the connection pool's state and activity
+     */
+    public String getPoolStatistics() {
+        ConnectionPool p = pool;
+        return p != null ? p.getStatistics() : "no connections";
+    }
+
     // used in [mlm-engine] ManagementImpl to ensure the driver is loaded prior to use
     public void loadDriver() throws ConfigurationException {
         loadDriver(driver);
@@ -398,6 +383,25 @@ public class DataSource extends AbstractCredentialedObject implements Serializab
         testCredentials(info);
     }
 
+    private ConnectionPool getPool() {
+        ConnectionPool p = pool;
+        if (p == null) {
+            synchronized(this) {
+                if (pool == null) {
+                    pool = new ConnectionPool(name, new ConnectionPool.ConnectionFactory() {
+                        @Override
+                        public Connection create() throws SQLException {
+                            return DriverManager.getConnection(url, info);
+                        }
+                    }, poolSize, poolMaxWaitMs, poolMaxIdleMs, poolLeakThresholdMs, POOL_MAINTENANCE_PERIOD_MS);
+                    pools.add(pool);
+                }
+                p = pool;
+            }
+        }
+        return p;
+    }
+
     private void testCredentials(Properties props) throws BadCredentialsException, ConfigurationException {
         Connection c = null;
         try {
@@ -27,10 +27,17 @@ import edu.uvm.ccts.common.db.DataSource;
 import edu.uvm.ccts.common.ftp.FTPClient;
 import edu.uvm.ccts.common.model.FileMetadata;
 import edu.uvm.ccts.common.util.FileUtil;
+import edu.uvm.ccts.genbank.ftp.FTPSession;
+import edu.uvm.ccts.genbank.ftp.FTPSessionPool;
+import org.apache.commons.io.input.TeeInputStream;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.sql.SQLException;
 import java.util.List;
 import java.util.concurrent.Callable;
@@ -43,6 +50,8 @@ public abstract class AbstractFTPLoader extends AbstractLoader {
 
     private String outputDir;
     private String localMetadataFile;
+    private FTPSessionPool sessionPool = null;
+    private DownloadCache cache = null;
 
     protected AbstractFTPLoader(String outputDir) {
         this.outputDir = outputDir;
@@ -54,6 +63,55 @@ public abstract class AbstractFTPLoader extends AbstractLoader {
     protected abstract String getFTPPass();
     protected abstract List<String> getFilenameFilters();
 
+    /**
+     * @return {@code true} if remote files should be parsed directly from the FTP data connection as they are
+     * downloaded, rather than being downloaded to the temporary directory first.  The default is {@code false}.
+     */
+    protected boolean isStreamingEnabled() {
+        return false;
+    }
+
+    protected int getFTPPort() {
+        return 21;
+    }
+
+    /**
+     * @return the maximum number of FTP sessions that may be open at once for transferring files, or {@code 0} to
+     * allow one per worker thread (the default)
+     */
+    protected int getMaxFTPSessions() {
+        return 0;
+    }
+
+    /**
+     * @return how often, in seconds, idle FTP sessions are sent a keep-alive {@code NOOP}
+     */
+    protected int getFTPKeepAliveSeconds() {
+        return 60;
+    }
+
+    /**
+     * @return how long, in seconds, an FTP session may sit idle before it is closed
+     */
+    protected int getFTPMaxIdleSeconds() {
+        return 600;
+    }
+
+    /**
+     * @return the number of times a failed transfer is retried before the file is given up on for this run
+     */
+    protected int getMaxRetries() {
+        return 5;
+    }
+
+    /**
+     * @return the delay, in milliseconds, before the first retry of a failed transfer.  The delay doubles with each
+     * subsequent retry.
+     */
+    protected long getRetryBackoffMs() {
+        return 5000;
+    }
+
 
     /**
      * This function implements the second level of execution.  A list of files to download is generated,
@@ -73,7 +131,27 @@ public abstract class AbstractFTPLoader extends AbstractLoader {
             try { if (ftp != null) ftp.disconnect(); } catch (Exception e) {}
         }
 
-        invoke();
+        cache = buildDownloadCache();
+
+        sessionPool = new FTPSessionPool(new FTPSessionPool.SessionFactory() {
+            @Override
+            public FTPSession create() {
+                return new FTPSession(getFTPHost(), getFTPPort(), getFTPUser(), getFTPPass());
+            }
+        }, getMaxFTPSessions(), getFTPKeepAliveSeconds() * 1000L, getFTPMaxIdleSeconds() * 1000L);
+
+        try {
+            invoke();
+
+        } finally {
+            sessionPool.close();
+            sessionPool = null;
+        }
+    }
+
+    @Override
+    protected String getOutputDir() {
+        return outputDir;
     }
 
     public void populateDatabase(DataSource dataSource) throws IOException, SQLException {
@@ -94,14 +172,15 @@ public abstract class AbstractFTPLoader extends AbstractLoader {
      * @throws IOException
      */
     private void populateDownloadQueue(FTPClient ftp) throws IOException {
+        OutputMigrator.rollBack(outputDir, localMetadataFile);
+
         Metadata metadata = new Metadata(localMetadataFile);
 
         for (String filenameFilter : getFilenameFilters()) {
             for (FileMetadata remote : ftp.listFilesWithMetadata(filenameFilter)) {
                 FileMetadata local = metadata.get(remote);
-                if (local != null && local.equals(remote)) {
-                    log.info("skipping file " + remote.getFilename() + " - no changes detected");
-                    writeMetadata(localMetadataFile, remote);
+                if (isUnchanged(local, remote)) {
+                    skip(remote);
 
                 } else {
                     addQueueItem(remote);
@@ -117,53 +196,164 @@ public abstract class AbstractFTPLoader extends AbstractLoader {
         return new Callable<Object>() {
             @Override
             public Object call() throws Exception {
-                FTPClient ftp = null;
+                log.info("[" + threadId + "]  start");
+
+                AbstractFileParser parser = buildParser(threadId, tempDir);
+
+                QueueItem item;
+                while ((item = popNextQueueItem()) != null) {
+                    FileMetadata remote = item.getItem();
+                    int i = item.getNumber();
+
+                    try {
+                        int pct = (int) (((float) i / getQueueSize()) * 100);
+                        String pctCompletedStr = i + "/" + getQueueSize() + ", " + pct + "%";
+
+                        String filename = FileUtil.getFilenamePart(remote.getFilename());
+
+                        log.info("[" + threadId + "]  (" + pctCompletedStr + ")  processing '" + filename + "'");
+
+                        parser.setSource(remote);
+                        process(threadId, parser, remote, tempDir);
+
+                        commit(threadId, remote);
 
+                    } catch (Exception e) {
+                        log.error("[" + threadId + "]  caught " + e.getClass().getName() + " processing " +
+                                remote.getFilename() + " - " + e.getMessage(), e);
+                    }
+                }
+
+                log.info("[" + threadId + "]  done.");
+
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Transfers and parses an individual remote file.  Transfers that fail with an {@link IOException} are retried
+     * with exponential backoff: downloads resume from the end of the partial local copy, while streamed files are
+     * re-read from the start (with the parser skipping any records committed at its last checkpoint).  Parse errors
+     * are not retried.  If a download cache is configured, cached files are parsed without being transferred at all,
+     * and newly-transferred files are added to the cache, provided their length matches the remote file's size.
+     */
+    private void process(int threadId, AbstractFileParser parser, FileMetadata remote, String tempDir) throws Exception {
+        String filename = FileUtil.getFilenamePart(remote.getFilename());
+        String tmpFilename = tempDir + "/" + filename;
+
+        if (cache != null) {
+            File cached = cache.get(remote);
+            if (cached != null) {
+                ScratchBudget.Reservation reservation = reserveScratch(threadId, filename, 0, cached.length());
                 try {
-                    log.info("[" + threadId + "]  start");
+                    log.info("[" + threadId + "]  parsing '" + filename + "' from download cache");
+                    parser.parse(remote.getFilename(), new FileInputStream(cached));
+                    return;
 
-                    ftp = new FTPClient(getFTPHost(), getFTPUser(), getFTPPass());
-                    ftp.connect();
+                } finally {
+                    reservation.release();
+                }
+            }
+        }
 
-                    AbstractFileParser parser = buildParser(threadId, tempDir);
+        long size = isScratchBudgeted() || cache != null ? getRemoteSize(remote.getFilename()) : -1;
+        long downloadSize = isStreamingEnabled() && cache == null ? 0 : size;
+        ScratchBudget.Reservation reservation = reserveScratch(threadId, filename, downloadSize, size);
 
-                    QueueItem item;
-                    while ((item = popNextQueueItem()) != null) {
-                        FileMetadata remote = item.getItem();
-                        int i = item.getNumber();
+        try {
+            FTPSessionPool.Transfer transfer = isStreamingEnabled() ?
+                    buildStreamTransfer(parser, remote.getFilename(), tmpFilename) :
+                    buildDownloadTransfer(remote.getFilename(), tmpFilename);
 
-                        String tmpFilename = null;
+            sessionPool.transfer(filename, transfer, getMaxRetries(), getRetryBackoffMs());
 
-                        try {
-                            int pct = (int) (((float) i / getQueueSize()) * 100);
-                            String pctCompletedStr = i + "/" + getQueueSize() + ", " + pct + "%";
+            if (cache != null && isComplete(tmpFilename, size)) {
+                File cached = cache.put(remote, new File(tmpFilename));
+                reservation.release(STAGE_DOWNLOAD);                    // now accounted for by the cache's budget
 
-                            String filename = FileUtil.getFilenamePart(remote.getFilename());
-                            tmpFilename = tempDir + "/" + filename;
+                if ( ! isStreamingEnabled() ) {
+                    parser.parse(remote.getFilename(), new FileInputStream(cached));
+                }
+
+            } else if ( ! isStreamingEnabled() ) {
+                parser.parse(tmpFilename);
+            }
+
+        } finally {
+            if (new File(tmpFilename).exists()) FileUtil.delete(tmpFilename);
+            reservation.release();
+        }
+    }
 
-                            log.info("[" + threadId + "]  (" + pctCompletedStr + ")  processing '" + filename + "'");
-                            ftp.download(remote.getFilename(), tmpFilename);
+    /**
+     * @return {@code true} if a transferred copy has the remote file's size, and so can be added to the download
+     * cache.  A copy whose remote size is unknown is never cached.  (The parser may stop reading a streamed file
+     * before its end, leaving a truncated copy.)
+     */
+    private boolean isComplete(String tmpFilename, long size) {
+        long length = new File(tmpFilename).length();
+        if (size >= 0 && length == size) return true;
 
-                            parser.parse(tmpFilename);
+        log.warn("not caching '" + tmpFilename + "' - transferred " + length + " bytes, expected " +
+                (size >= 0 ? size + " bytes" : "an unknown size"));
+        return false;
+    }
 
-                            writeMetadata(localMetadataFile, remote);
+    /**
+     * @return the size of a remote file in bytes, or {@code -1} if it could not be determined
+     */
+    private long getRemoteSize(String remoteFilename) throws InterruptedException {
+        FTPSession session = null;
+        try {
+            session = sessionPool.borrow();
+            long size = session.size(remoteFilename);
+            sessionPool.release(session);
+            return size;
+
+        } catch (IOException e) {
+            log.warn("caught " + e.getClass().getName() + " getting size of '" + remoteFilename + "' - " +
+                    e.getMessage());
+            if (session != null) sessionPool.invalidate(session);
+            return -1;
+        }
+    }
 
-                        } catch (Exception e) {
-                            log.error("[" + threadId + "]  caught " + e.getClass().getName() + " processing " +
-                                    remote.getFilename() + " - " + e.getMessage(), e);
+    /**
+     * @return a transfer that downloads a remote file to {@code tmpFilename}, resuming from the end of any partial
+     * copy left by an earlier attempt
+     */
+    private FTPSessionPool.Transfer buildDownloadTransfer(final String remoteFilename, final String tmpFilename) {
+        return new FTPSessionPool.Transfer() {
+            @Override
+            public void run(FTPSession session) throws Exception {
+                session.download(remoteFilename, tmpFilename);
+            }
+        };
+    }
 
-                        } finally {
-                            if (tmpFilename != null) FileUtil.delete(tmpFilename);
-                        }
+    /**
+     * @return a transfer that parses a remote file directly off the FTP data connection.  If a download cache is
+     * configured, the file is also written to {@code tmpFilename} as it is read, so that it can be added to the cache
+     * once it has been parsed.
+     */
+    private FTPSessionPool.Transfer buildStreamTransfer(final AbstractFileParser parser, final String remoteFilename,
+                                                        final String tmpFilename) {
+        return new FTPSessionPool.Transfer() {
+            @Override
+            public void run(FTPSession session) throws Exception {
+                try {
+                    InputStream input = session.retrieve(remoteFilename);
+                    if (cache != null) {
+                        input = new TeeInputStream(input, new FileOutputStream(tmpFilename), true);
                     }
 
-                    log.info("[" + threadId + "]  done.");
+                    parser.parse(remoteFilename, input);
 
-                } finally {
-                    try { if (ftp != null) ftp.disconnect(); } catch (Exception e) {}
+                } catch (Exception e) {
+                    if (new File(tmpFilename).exists()) FileUtil.delete(tmpFilename);  // never keep partial copies
+                    throw e;
                 }
-
-                return null;
             }
         };
     }
@@ -34,6 +34,7 @@ import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.List;
 import java.util.concurrent.Callable;
 
 /**
@@ -42,21 +43,51 @@ import java.util.concurrent.Callable;
 public abstract class AbstractFileLoader extends AbstractLoader {
     private static final Log log = LogFactory.getLog(AbstractFileLoader.class);
 
+    private static final int MB = 1024 * 1024;
+
     private String outputDir;
     private String localMetadataFile;
+    private DeviceReadScheduler scheduler = null;
 
-    protected abstract String getFilenameFilter();
+    /**
+     * @return the filename masks of the files to process.  A mask may be prefixed with a path relative to the directory
+     * being prepared (e.g. {@code /genbank/gb*.seq.gz}, as with FTP); if that sub-directory doesn't exist, the mask is
+     * applied to the directory itself.
+     */
+    protected abstract List<String> getFilenameFilters();
 
     protected AbstractFileLoader(String outputDir) {
         this.outputDir = outputDir;
         localMetadataFile = outputDir + "/.metadata";
     }
 
+    /**
+     * @return the maximum number of worker threads that may read from the same device at once, or {@code 0} for no
+     * limit
+     */
+    protected int getMaxReadersPerDevice() {
+        return 2;
+    }
+
+    /**
+     * @return the size, in megabytes, of the chunks in which source files are read ahead
+     */
+    protected int getReadAheadMB() {
+        return 8;
+    }
+
     public void prepare(String path) throws InterruptedException, IOException {
         populateFileQueue(path);
+
+        scheduler = new DeviceReadScheduler(getMaxReadersPerDevice(), getReadAheadMB() * MB);
         invoke();
     }
 
+    @Override
+    protected String getOutputDir() {
+        return outputDir;
+    }
+
     public void populateDatabase(DataSource dataSource) throws IOException, SQLException {
         super.populateDatabase(dataSource, outputDir);
     }
@@ -67,13 +98,21 @@ public abstract class AbstractFileLoader extends AbstractLoader {
 //
 
     private void populateFileQueue(String path) throws IOException {
+        OutputMigrator.rollBack(outputDir, localMetadataFile);
+
         Metadata metadata = new Metadata(localMetadataFile);
 
         File f = new File(path);
         if (f.isDirectory()) {
-            FileFilter filter = new WildcardFileFilter(getFilenameFilter());
-            for (File current : FileUtil.listFiles(path, filter)) {
-                processFileToQueue(metadata, current);
+            for (String filenameFilter : getFilenameFilters()) {
+                int idx = filenameFilter.lastIndexOf('/');
+                File dir = new File(f, filenameFilter.substring(0, idx + 1));
+                if ( ! dir.isDirectory() ) dir = f;
+
+                FileFilter filter = new WildcardFileFilter(filenameFilter.substring(idx + 1));
+                for (File current : FileUtil.listFiles(dir.getPath(), filter)) {
+                    processFileToQueue(metadata, current);
+                }
             }
 
         } else if (f.isFile()) {
@@ -84,9 +123,8 @@ public abstract class AbstractFileLoader extends AbstractLoader {
     private void processFileToQueue(Metadata metadata, File f) throws IOException {
         FileMetadata current = new FileMetadata(f);
         FileMetadata existing = metadata.get(current);
-        if (existing != null && existing.equals(current)) {
-            log.info("skipping file " + current.getFilename() + " - no changes detected");
-            writeMetadata(localMetadataFile, current);
+        if (isUnchanged(existing, current)) {
+            skip(current);
 
         } else {
             addQueueItem(current);
@@ -113,9 +151,17 @@ public abstract class AbstractFileLoader extends AbstractLoader {
 
                         log.info("[" + threadId + "]  (" + pctCompletedStr + ")  processing '" + filename + "'");
 
-                        parser.parse(meta.getFilename());
+                        File f = new File(meta.getFilename());
+                        ScratchBudget.Reservation reservation = reserveScratch(threadId, filename, 0, f.length());
+                        try {
+                            parser.setSource(meta);
+                            parser.parse(meta.getFilename(), scheduler.open(f));
+
+                        } finally {
+                            reservation.release();
+                        }
 
-                        writeMetadata(localMetadataFile, meta);
+                        commit(threadId, meta);
 
                     } catch (Exception e) {
                         log.error("[" + threadId + "]  caught " + e.getClass().getName() + " processing " +
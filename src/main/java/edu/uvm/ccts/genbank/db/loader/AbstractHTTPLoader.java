@@ -0,0 +1,239 @@
+/*
+ * Copyright 2015 The University of Vermont and State
+ * Agricultural College.  All rights reserved.
+ *
+ * Written by Matthew B. Storer <matthewbstorer@gmail.com>
+ *
+ * This file is part of CCTS Common.
+ *
+ * CCTS Common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CCTS Common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CCTS Common.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.uvm.ccts.genbank.db.loader;
+
+import edu.uvm.ccts.common.db.DataSource;
+import edu.uvm.ccts.common.db.parser.AbstractFileParser;
+import edu.uvm.ccts.common.model.FileMetadata;
+import edu.uvm.ccts.common.util.FileUtil;
+import edu.uvm.ccts.genbank.http.HTTPSource;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * The HTTP(S) counterpart of {@link AbstractFTPLoader}.  Remote files are selected with the same filename filters and
+ * checked for changes against the same local metadata file, but are downloaded as concurrent byte-range segments.
+ */
+public abstract class AbstractHTTPLoader extends AbstractLoader {
+    private static final Log log = LogFactory.getLog(AbstractHTTPLoader.class);
+
+    private static final long MB = 1024 * 1024;
+
+    private String outputDir;
+    private String localMetadataFile;
+    private HTTPSource source = null;
+    private DownloadCache cache = null;
+
+    protected AbstractHTTPLoader(String outputDir) {
+        this.outputDir = outputDir;
+        localMetadataFile = outputDir + "/.metadata";
+    }
+
+    /**
+     * @return the root URL of the HTTP(S) server, e.g. {@code https://ftp.ncbi.nlm.nih.gov}
+     */
+    protected abstract String getBaseURL();
+    protected abstract List<String> getFilenameFilters();
+
+    /**
+     * @return the maximum number of byte-range segments in which each file is transferred concurrently
+     */
+    protected int getDownloadSegments() {
+        return 4;
+    }
+
+    /**
+     * @return the minimum size, in megabytes, of a byte-range segment.  Files smaller than twice this size are
+     * transferred as a single stream.
+     */
+    protected int getMinSegmentSizeMB() {
+        return 16;
+    }
+
+    protected int getConnectTimeoutSeconds() {
+        return 30;
+    }
+
+    protected int getReadTimeoutSeconds() {
+        return 120;
+    }
+
+    /**
+     * @return the number of times a failed request or segment is retried before the file is given up on for this run
+     */
+    protected int getMaxRetries() {
+        return 5;
+    }
+
+    /**
+     * @return the delay, in milliseconds, before the first retry of a failed request.  The delay doubles with each
+     * subsequent retry.
+     */
+    protected long getRetryBackoffMs() {
+        return 5000;
+    }
+
+    /**
+     * @return the {@link HTTPSource} used to list and download remote files
+     */
+    protected HTTPSource getSource() {
+        if (source == null) {
+            source = new HTTPSource(getBaseURL(), getConnectTimeoutSeconds() * 1000, getReadTimeoutSeconds() * 1000,
+                    getMaxRetries(), getRetryBackoffMs());
+        }
+        return source;
+    }
+
+
+    /**
+     * This function implements the second level of execution.  A list of files to download is generated,
+     * those files are processed, and the database is subsequently populated.
+     * @throws Exception
+     */
+    public void prepare() throws Exception {
+        populateDownloadQueue();
+
+        cache = buildDownloadCache();
+        invoke();
+    }
+
+    @Override
+    protected String getOutputDir() {
+        return outputDir;
+    }
+
+    public void populateDatabase(DataSource dataSource) throws IOException, SQLException {
+        super.populateDatabase(dataSource, outputDir);
+    }
+
+
+//////////////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    /**
+     * Identifies which files need to be downloaded by listing the remote files matching each filename filter and
+     * comparing their metadata to that of locally-processed copies.  Files are flagged for download if their local
+     * metadata is missing or different.
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void populateDownloadQueue() throws IOException, InterruptedException {
+        OutputMigrator.rollBack(outputDir, localMetadataFile);
+
+        Metadata metadata = new Metadata(localMetadataFile);
+
+        for (String filenameFilter : getFilenameFilters()) {
+            for (FileMetadata remote : getSource().listFilesWithMetadata(filenameFilter)) {
+                FileMetadata local = metadata.get(remote);
+                if (isUnchanged(local, remote)) {
+                    skip(remote);
+
+                } else {
+                    addQueueItem(remote);
+                }
+            }
+        }
+    }
+
+    @Override
+    protected Callable<Object> buildWorkerThreadLogic(final int threadId, final String tempDir) {
+        return new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                log.info("[" + threadId + "]  start");
+
+                AbstractFileParser parser = buildParser(threadId, tempDir);
+
+                QueueItem item;
+                while ((item = popNextQueueItem()) != null) {
+                    FileMetadata remote = item.getItem();
+                    int i = item.getNumber();
+
+                    String filename = FileUtil.getFilenamePart(remote.getFilename());
+                    String tmpFilename = tempDir + "/" + filename;
+
+                    try {
+                        int pct = (int) (((float) i / getQueueSize()) * 100);
+                        String pctCompletedStr = i + "/" + getQueueSize() + ", " + pct + "%";
+
+                        log.info("[" + threadId + "]  (" + pctCompletedStr + ")  processing '" + filename + "'");
+
+                        parser.setSource(remote);
+
+                        File cached = cache != null ? cache.get(remote) : null;
+                        if (cached != null) {
+                            ScratchBudget.Reservation reservation = reserveScratch(threadId, filename, 0,
+                                    cached.length());
+                            try {
+                                log.info("[" + threadId + "]  parsing '" + filename + "' from download cache");
+                                parser.parse(remote.getFilename(), new FileInputStream(cached));
+
+                            } finally {
+                                reservation.release();
+                            }
+
+                        } else {
+                            long size = isScratchBudgeted() ? getSource().stat(remote.getFilename()).length() : -1;
+                            ScratchBudget.Reservation reservation = reserveScratch(threadId, filename, size, size);
+                            try {
+                                getSource().download(remote.getFilename(), tmpFilename, getDownloadSegments(),
+                                        getMinSegmentSizeMB() * MB);
+
+                                if (cache != null) {
+                                    cached = cache.put(remote, new File(tmpFilename));
+                                    reservation.release(STAGE_DOWNLOAD);
+                                    parser.parse(remote.getFilename(), new FileInputStream(cached));
+
+                                } else {
+                                    parser.parse(tmpFilename);
+                                }
+
+                            } finally {
+                                if (new File(tmpFilename).exists()) FileUtil.delete(tmpFilename);
+                                reservation.release();
+                            }
+                        }
+
+                        commit(threadId, remote);
+
+                    } catch (Exception e) {
+                        log.error("[" + threadId + "]  caught " + e.getClass().getName() + " processing " +
+                                remote.getFilename() + " - " + e.getMessage(), e);
+                    }
+                }
+
+                log.info("[" + threadId + "]  done.");
+
+                return null;
+            }
+        };
+    }
+}
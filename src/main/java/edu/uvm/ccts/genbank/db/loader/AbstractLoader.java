@@ -28,6 +28,7 @@ import edu.uvm.ccts.common.model.FileMetadata;
 import edu.uvm.ccts.common.util.DBUtil;
 import edu.uvm.ccts.common.util.FileUtil;
 import edu.uvm.ccts.common.util.TimeUtil;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -36,15 +37,25 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by mstorer on 5/16/14.
@@ -54,21 +65,183 @@ public abstract class AbstractLoader {
 
     private static final int MB = (int) Math.pow(2, 20);
 
+    protected static final String STAGE_DOWNLOAD = "download";
+    protected static final String STAGE_PARSE = "parse";
+
+    protected static final String SEGMENT_DIR = ".segments";
+
+    private static final String STAGING_SUFFIX = "_staging";
+    private static final String KEYS_SUFFIX = "_keys";
+    private static final int LOAD_ATTEMPTS = 2;
+
     protected abstract String getName();
     protected abstract int getRequiredMemPerThreadMB();
     protected abstract AbstractFileParser buildParser(int threadId, String tempDir) throws IOException;
     protected abstract Map<String, String> getTableFileMap();
     protected abstract Callable<Object> buildWorkerThreadLogic(final int threadId, final String tempDir);
+    protected abstract String getOutputDir();
 
     private final List<FileMetadata> queue = new ArrayList<FileMetadata>();
     private int currentQueueIndex = 0;
+    private ScratchBudget scratchBudget = new ScratchBudget(0);
+    private final AtomicLong largestFileSize = new AtomicLong(0);
+    private final AtomicInteger committedCount = new AtomicInteger(0);
+    private OutputMigrator migrator = null;
+    private final List<FileMetadata> sourceFiles = new ArrayList<FileMetadata>();
+    private SegmentStore segments = null;
+    private List<String> segmentDirs = null;
+    private Properties sourceConfig = new Properties();
+
+
+    /**
+     * Configures the settings shared by every kind of source from properties, rather than by overriding their getters.
+     * The recognized properties are {@code scratch.dir}, {@code scratch.budget.mb}, {@code scratch.parse.ratio},
+     * {@code scratch.unknown.size.mb}, {@code segments}, {@code download.cache.dir}, {@code download.cache.max.mb} and
+     * {@code output.settings}; each setting whose property is missing or empty takes its getter's default.
+     * @param properties the settings
+     */
+    protected void configureSource(Properties properties) {
+        sourceConfig = properties;
+    }
+
+    /**
+     * @return the directory in which downloaded source files are cached between runs, or {@code null} if downloaded
+     * files should be deleted once they have been parsed (the default)
+     */
+    protected String getDownloadCacheDir() {
+        return getSourceSetting("download.cache.dir");
+    }
+
+    /**
+     * @return the maximum total size, in megabytes, of the download cache, or {@code 0} for no limit
+     */
+    protected long getDownloadCacheMaxMB() {
+        String s = getSourceSetting("download.cache.max.mb");
+        return s != null ? Long.parseLong(s) : 0;
+    }
+
+    /**
+     * @return a directory on fast, node-local storage (e.g. {@code $TMPDIR}) to use for worker threads' temporary
+     * files and in-progress output, or {@code null} to use the system temporary directory and write output directly
+     * to the output directory (the default).  When set, finalized output is staged here and moved to the output
+     * directory in the background.
+     */
+    protected String getScratchDir() {
+        return getSourceSetting("scratch.dir");
+    }
+
+    /**
+     * @return the maximum total size, in megabytes, of the temporary data that worker threads may have on disk at
+     * once, or {@code 0} for no limit (the default).  Workers wait to start on a file while its estimated scratch space
+     * would exceed this budget.
+     */
+    protected long getScratchBudgetMB() {
+        String s = getSourceSetting("scratch.budget.mb");
+        return s != null ? Long.parseLong(s) : 0;
+    }
+
+    /**
+     * @return the estimated scratch space needed to parse a source file, as a multiple of its (compressed) size.  This
+     * covers the pared-down copy of the file and the table data generated from it.
+     */
+    protected double getParseScratchRatio() {
+        String s = getSourceSetting("scratch.parse.ratio");
+        return s != null ? Double.parseDouble(s) : 2.0;
+    }
+
+    /**
+     * @return the size, in megabytes, to assume for a source file whose size could not be determined when reserving
+     * scratch space, or {@code 0} to assume the size of the largest file seen so far (the default)
+     */
+    protected long getUnknownFileSizeMB() {
+        String s = getSourceSetting("scratch.unknown.size.mb");
+        return s != null ? Long.parseLong(s) : 0;
+    }
+
+    /**
+     * @return {@code true} if each source file's output is to be kept as a separate segment, so that it may be reused
+     * when the output directory is otherwise prepared again from scratch, or {@code false} to append all output
+     * directly to the output files (the default).  Segments are kept in {@link #SEGMENT_DIR} under the output
+     * directory, and the output files are assembled from them once all source files have been processed.
+     */
+    protected boolean isSegmentRetentionEnabled() {
+        String s = getSourceSetting("segments");
+        return s != null && Boolean.parseBoolean(s);
+    }
+
+    /**
+     * @return a description of the settings that affect the output written for a source file (e.g. record filters),
+     * which is included in each segment's key so that segments written under other settings aren't reused.  Empty by
+     * default.
+     */
+    protected String getOutputSettings() {
+        String s = sourceConfig.getProperty("output.settings");
+        return s != null ? s : "";
+    }
+
+    /**
+     * Called once the source files to be processed have been selected, before any are processed
+     * @throws IOException
+     */
+    protected void beforeProcessing() throws IOException {
+    }
+
+    /**
+     * @return the directories of the existing segments being reused for this run (valid from {@code beforeProcessing}
+     * on), or {@code null} if segment retention is disabled
+     */
+    protected List<String> getSegmentDirs() {
+        return segmentDirs;
+    }
+
+    /**
+     * @return the metadata of every source file selected for this run, whether queued or skipped, in the order in
+     * which they were listed
+     */
+    protected List<FileMetadata> getSourceFiles() {
+        return sourceFiles;
+    }
+
+    /**
+     * @param local the metadata recorded for a source file when it was last processed, or {@code null}
+     * @param remote the metadata of the source file as it is now
+     * @return {@code true} if the source file's output from an earlier run is still current, either in the output
+     * files or as a retained segment
+     * @throws IOException
+     */
+    protected boolean isUnchanged(FileMetadata local, FileMetadata remote) throws IOException {
+        if (local != null && local.equals(remote)) return true;
+
+        return isSegmentRetentionEnabled() && getSegmentStore().contains(remote);
+    }
+
+    /**
+     * Records that a source file is to be skipped because its output from an earlier run is still current
+     * @param fileMetadata the metadata of the skipped file
+     * @throws IOException
+     */
+    protected void skip(FileMetadata fileMetadata) throws IOException {
+        log.info("skipping file " + fileMetadata.getFilename() + " - no changes detected");
+        writeMetadata(getOutputDir() + "/.metadata", fileMetadata);
+        sourceFiles.add(fileMetadata);
+    }
+
+    /**
+     * @return a {@link DownloadCache} over the configured cache directory, or {@code null} if caching is disabled
+     * @throws IOException
+     */
+    protected DownloadCache buildDownloadCache() throws IOException {
+        return getDownloadCacheDir() != null ?
+                new DownloadCache(getDownloadCacheDir(), getDownloadCacheMaxMB() * MB) :
+                null;
+    }
 
 
     /**
      * Main process for bulk-loading data from generated files into the database
      * @throws java.sql.SQLException
      */
-    public void populateDatabase(DataSource dataSource, String dir) throws SQLException, IOException {
+    public void populateDatabase(final DataSource dataSource, String dir) throws SQLException, IOException {
         log.info("populating database from '" + dir + "' -");
         long start = System.currentTimeMillis();
 
@@ -77,12 +250,36 @@ public abstract class AbstractLoader {
             throw new FileNotFoundException("directory '" + f.getCanonicalPath() + "' does not exist");
         }
 
-        Map<String, String> tableFileMap = getTableFileMap();
-        for (Map.Entry<String, String> entry : tableFileMap.entrySet()) {
-            dbLoad(dataSource, entry.getKey(), dir + "/" + entry.getValue());
+        List<Callable<Object>> loads = new ArrayList<Callable<Object>>();
+
+        for (final Map.Entry<String, String> entry : getTableFileMap().entrySet()) {
+            final String filename = dir + "/" + entry.getValue();
+            loads.add(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    dbLoad(dataSource, entry.getKey(), filename);
+                    return null;
+                }
+            });
         }
 
+        for (final Map.Entry<String, String> entry : getDictionaryTableFileMap().entrySet()) {
+            final String filename = dir + "/" + entry.getValue();
+            loads.add(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    dictionaryLoad(dataSource, entry.getKey(), filename, true);
+                    return null;
+                }
+            });
+        }
+
+        runLoads(dataSource, loads);
+
+        loadSummaryTables(dataSource, dir);
+
         log.info("finished populating database.  took " + TimeUtil.formatMsToHMS(System.currentTimeMillis() - start));
+        log.info("connection pool: " + dataSource.getPoolStatistics());
     }
 
     /**
@@ -91,19 +288,513 @@ public abstract class AbstractLoader {
      * @param filename the name of the file from which data will be loaded into the specified table
      * @throws SQLException
      */
-    private void dbLoad(DataSource dataSource, String table, String filename) throws SQLException {
+    private void dbLoad(DataSource dataSource, String table, String filename) throws SQLException, IOException {
         log.info(" loading '" + filename + "' into table '" + table + "'");
         //DBUtil.executeUpdate("alter table " + table + " disable keys", dataSource);
-        DBUtil.executeUpdate("set session sql_log_bin = OFF", dataSource);
-        DBUtil.executeUpdate("delete from " + table, dataSource);
-        DBUtil.executeUpdate("load data local infile '" + filename + "' into table " + table, dataSource);
-        DBUtil.executeUpdate("set session sql_log_bin = ON", dataSource);
+        LoadTarget target = getLoadTarget();
+        target.beginLoad(dataSource);
+        try {
+            loadTable(dataSource, table, filename, null, false, true);
+
+        } finally {
+            target.endLoad(dataSource);
+        }
         log.info(" building indexes for table '" + table + "'");
         //DBUtil.executeUpdate("alter table " + table + " enable keys", dataSource);
     }
 
+    /**
+     * @return a map of summary tables to the files from which they are populated.  A summary table holds statistics
+     * over the whole of the prepared data, and so is replaced in full by {@code populateDatabase} (and not touched by
+     * {@code applyUpdates}).  Empty by default.
+     */
+    protected Map<String, String> getSummaryTableFileMap() {
+        return Collections.emptyMap();
+    }
+
+    /**
+     * Replaces the contents of each summary table whose file exists in the specified directory
+     * @param dataSource the target database
+     * @param dir the directory holding the generated files
+     * @throws SQLException
+     */
+    protected void loadSummaryTables(DataSource dataSource, String dir) throws SQLException, IOException {
+        for (Map.Entry<String, String> entry : getSummaryTableFileMap().entrySet()) {
+            String filename = dir + "/" + entry.getValue();
+            if (FileUtil.exists(filename)) {
+                log.info(" loading '" + filename + "' into summary table '" + entry.getKey() + "'");
+                loadTable(dataSource, entry.getKey(), filename, null, false, true);
+            }
+        }
+    }
+
+    /**
+     * @return the number of tables loaded concurrently, each over its own connection.  Defaults to {@code 1}.
+     */
+    protected int getLoadThreadCount() {
+        return 1;
+    }
+
+    /**
+     * @return the database into which files are loaded.  Defaults to MySQL, loading with
+     * {@code LOAD DATA LOCAL INFILE}.
+     */
+    protected LoadTarget getLoadTarget() {
+        return new MySQLTarget();
+    }
+
+    /**
+     * Runs a set of table loads across {@code getLoadThreadCount()} threads, waiting for all of them to finish.  Each
+     * load returns its thread's connection to the pool when it is done.
+     * @throws SQLException if any load failed
+     * @throws IOException
+     */
+    private void runLoads(final DataSource dataSource, List<Callable<Object>> loads) throws SQLException, IOException {
+        ExecutorService svc = Executors.newFixedThreadPool(Math.max(1, Math.min(getLoadThreadCount(), loads.size())));
+
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (final Callable<Object> load : loads) {
+            tasks.add(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    try {
+                        return load.call();
+
+                    } finally {
+                        dataSource.close();
+                    }
+                }
+            });
+        }
+
+        try {
+            Exception failure = null;
+            for (Future<Object> future : svc.invokeAll(tasks)) {
+                try {
+                    future.get();
+
+                } catch (ExecutionException e) {
+                    log.error("table load failed - " + e.getCause().getMessage(), e.getCause());
+                    if (failure == null && e.getCause() instanceof Exception) failure = (Exception) e.getCause();
+                }
+            }
+
+            if (failure instanceof SQLException)    throw (SQLException) failure;
+            else if (failure instanceof IOException) throw (IOException) failure;
+            else if (failure != null)               throw new SQLException("table load failed", failure);
+
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted while loading tables", e);
+
+        } finally {
+            svc.shutdownNow();
+        }
+    }
+
+    /**
+     * Bulk-loads an individual file into a dictionary table, skipping rows whose keys the table already holds
+     * @param replace {@code true} to delete the table's rows first
+     */
+    private void dictionaryLoad(DataSource dataSource, String table, String filename, boolean replace)
+            throws SQLException, IOException {
+
+        if ( ! FileUtil.exists(filename) ) {
+            if (replace) DBUtil.executeUpdate("delete from " + table, dataSource);
+            return;
+        }
+
+        log.info(" loading '" + filename + "' into dictionary table '" + table + "'");
+        loadTable(dataSource, table, filename, null, true, replace);
+    }
+
+    /**
+     * Bulk-loads an individual file into a table.  Loads are not atomic (see {@link LoadTarget#loadFile}), so a load
+     * that fails is attempted again from scratch: if the table's contents are being replaced, its rows are deleted
+     * before every attempt, and again if the last attempt fails, so that the table is never left partly loaded.  A
+     * load that skips duplicate keys is simply repeated, as the rows it already committed are skipped.
+     * @param replace {@code true} to delete the table's rows before loading the file
+     * @return the number of rows loaded
+     */
+    private long loadTable(DataSource dataSource, String table, String filename, String[] columns, boolean ignore,
+                           boolean replace) throws SQLException, IOException {
+
+        LoadTarget target = getLoadTarget();
+
+        for (int attempt = 1; ; attempt ++) {
+            Exception failure;
+            try {
+                if (replace) DBUtil.executeUpdate("delete from " + table, dataSource);
+                return target.loadFile(dataSource, table, filename, columns, ignore);
+
+            } catch (SQLException e) {
+                failure = e;
+
+            } catch (IOException e) {
+                failure = e;
+            }
+
+            if (attempt >= LOAD_ATTEMPTS) {
+                if (replace) {
+                    try {
+                        DBUtil.executeUpdate("delete from " + table, dataSource);
+
+                    } catch (Exception e) {
+                        log.error("could not delete the partially loaded rows of table '" + table + "' - " +
+                                e.getMessage(), e);
+                    }
+                }
+
+                if (failure instanceof SQLException) throw (SQLException) failure;
+                else                                 throw (IOException) failure;
+            }
+
+            log.warn("caught " + failure.getClass().getName() + " loading '" + filename + "' into table '" + table +
+                    "' - " + failure.getMessage() + ".  loading it again (attempt " + (attempt + 1) + " of " +
+                    LOAD_ATTEMPTS + ")");
+        }
+    }
+
+    /**
+     * @return a map of dictionary tables to the files from which they are populated.  A dictionary table holds rows
+     * keyed by their own content, which may be shared by any number of entities; it must have a primary key, against
+     * which rows written more than once are discarded.  Its rows are never deleted by {@code applyUpdates}, only
+     * added to.  Empty by default.
+     */
+    protected Map<String, String> getDictionaryTableFileMap() {
+        return Collections.emptyMap();
+    }
+
+    /**
+     * @return the columns identifying the entity to which each row of every table belongs, by which
+     * {@code applyUpdates} replaces rows, or {@code null} if updates are not supported (the default).  The first table
+     * in the table-file map must hold exactly one row per key.
+     */
+    protected String[] getUpdateKeyColumns() {
+        return null;
+    }
+
+    /**
+     * @return the number of keys whose rows are replaced per transaction by {@code applyUpdates}
+     */
+    protected int getUpdateBatchSize() {
+        return 1000;
+    }
+
+    /**
+     * Applies generated files holding new and changed entities to a database that has already been populated.  Each
+     * file is loaded into a staging table indexed by the update key, and then, in batches of keys each committed as
+     * one transaction, every row belonging to a staged (or removed) key is deleted from each table and replaced with
+     * the staged rows.  Rows of entities not present in the files are left untouched.  Since every batch replaces all
+     * of its keys' rows, an interrupted update may simply be applied again.
+     * @param dataSource the target database
+     * @param dir the directory holding the generated files
+     * @throws SQLException
+     * @throws IOException
+     */
+    public void applyUpdates(DataSource dataSource, String dir) throws SQLException, IOException {
+        applyUpdates(dataSource, dir, null);
+    }
+
+    /**
+     * Applies generated files holding new and changed entities, and removes entities that no longer exist
+     * @param dataSource the target database
+     * @param dir the directory holding the generated files
+     * @param removedKeysFilename a tab-delimited file holding the keys of entities whose rows are to be deleted, or
+     *                            {@code null}
+     * @throws SQLException
+     * @throws IOException
+     */
+    public void applyUpdates(final DataSource dataSource, String dir, String removedKeysFilename)
+            throws SQLException, IOException {
+        final String[] keyColumns = getUpdateKeyColumns();
+        if (keyColumns == null) throw new UnsupportedOperationException("'" + getName() + "' does not support updates");
+
+        log.info("applying updates from '" + dir + "' -");
+        long start = System.currentTimeMillis();
+
+        File f = new File(dir);
+        if ( ! f.isDirectory() ) {
+            throw new FileNotFoundException("directory '" + f.getCanonicalPath() + "' does not exist");
+        }
+
+        List<Callable<Object>> loads = new ArrayList<Callable<Object>>();
+
+        Map<String, String> tableFileMap = getTableFileMap();
+        for (final Map.Entry<String, String> entry : tableFileMap.entrySet()) {
+            final String filename = dir + "/" + entry.getValue();
+            loads.add(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    stageLoad(dataSource, entry.getKey(), filename, keyColumns);
+                    return null;
+                }
+            });
+        }
+
+        for (final Map.Entry<String, String> entry : getDictionaryTableFileMap().entrySet()) {
+            final String filename = dir + "/" + entry.getValue();
+            loads.add(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    dictionaryLoad(dataSource, entry.getKey(), filename, false);
+                    return null;
+                }
+            });
+        }
+
+        runLoads(dataSource, loads);
+
+        String keyList = StringUtils.join(keyColumns, ", ");
+        String firstTable = tableFileMap.keySet().iterator().next();
+        String keyTable = firstTable + KEYS_SUFFIX;
+        LoadTarget target = getLoadTarget();
+
+        DBUtil.executeUpdate("drop table if exists " + keyTable, dataSource);
+        DBUtil.executeUpdate("create table " + keyTable + " as select " + keyList + " from " +
+                firstTable + STAGING_SUFFIX + " where 1 = 0", dataSource);
+        DBUtil.executeUpdate("alter table " + keyTable + " add primary key (" + keyList + ")", dataSource);
+        DBUtil.executeUpdate(target.insertIgnore(keyTable, "select " + keyList + " from " + firstTable +
+                STAGING_SUFFIX), dataSource);
+
+        if (removedKeysFilename != null && FileUtil.exists(removedKeysFilename)) {
+            loadTable(dataSource, keyTable, removedKeysFilename, keyColumns, true, false);
+        }
+
+        String keyParams = "(" + StringUtils.repeat("?", ", ", keyColumns.length) + ")";
+
+        Connection conn = dataSource.getConnection();
+        conn.setAutoCommit(false);
+
+        long keyCount = 0;
+        int batchCount = 0;
+
+        try {
+            Object[] lower = null;
+            while (true) {
+                Object[] upper = null;
+                int count = 0;
+
+                PreparedStatement stmt = conn.prepareStatement("select " + keyList + " from " + keyTable +
+                        (lower != null ? " where (" + keyList + ") > " + keyParams : "") +
+                        " order by " + keyList + " limit " + getUpdateBatchSize());
+                try {
+                    if (lower != null) setParameters(stmt, 1, lower);
+
+                    ResultSet rs = stmt.executeQuery();
+                    while (rs.next()) {
+                        upper = new Object[keyColumns.length];
+                        for (int i = 0; i < upper.length; i ++) {
+                            upper[i] = rs.getObject(i + 1);
+                        }
+                        count ++;
+                    }
+
+                } finally {
+                    try { stmt.close(); } catch (Exception e) {}
+                }
+
+                if (upper == null) break;
+
+                for (String table : tableFileMap.keySet()) {
+                    replaceRows(conn, table, keyTable, keyColumns, lower, upper);
+                }
+                conn.commit();
+
+                keyCount += count;
+                batchCount ++;
+                if (batchCount % 100 == 0) log.info(" replaced rows for " + keyCount + " keys");
+
+                lower = upper;
+            }
+
+        } catch (SQLException e) {
+            try { conn.rollback(); } catch (Exception e2) {}
+            throw e;
+
+        } finally {
+            try { conn.setAutoCommit(true); } catch (Exception e) {}
+            dataSource.close();
+        }
+
+        for (String table : tableFileMap.keySet()) {
+            DBUtil.executeUpdate("drop table if exists " + table + STAGING_SUFFIX, dataSource);
+        }
+        DBUtil.executeUpdate("drop table if exists " + keyTable, dataSource);
+
+        log.info("finished applying updates for " + keyCount + " keys in " + batchCount + " batches.  took " +
+                TimeUtil.formatMsToHMS(System.currentTimeMillis() - start));
+        log.info("connection pool: " + dataSource.getPoolStatistics());
+    }
+
+    /**
+     * Loads an individual file into a fresh staging table shaped like the target table, indexed by the update key
+     */
+    private void stageLoad(DataSource dataSource, String table, String filename, String[] keyColumns)
+            throws SQLException, IOException {
+
+        String staging = table + STAGING_SUFFIX;
+
+        log.info(" staging '" + filename + "' into table '" + staging + "'");
+        DBUtil.executeUpdate("drop table if exists " + staging, dataSource);
+        LoadTarget target = getLoadTarget();
+        DBUtil.executeUpdate(target.createTableLike(staging, table), dataSource);
+        DBUtil.executeUpdate(target.createIndex(staging, "updateKey", keyColumns), dataSource);
+
+        if (FileUtil.exists(filename)) {
+            loadTable(dataSource, staging, filename, null, false, true);
+        }
+    }
+
+    /**
+     * Replaces the rows of a table belonging to the keys in the range ({@code lower}, {@code upper}] with the staged
+     * rows for those keys, if any
+     */
+    private void replaceRows(Connection conn, String table, String keyTable, String[] keyColumns, Object[] lower,
+                             Object[] upper) throws SQLException {
+
+        StringBuilder join = new StringBuilder();
+        for (String column : keyColumns) {
+            if (join.length() > 0) join.append(" and ");
+            join.append("t.").append(column).append(" = s.").append(column);
+        }
+
+        PreparedStatement stmt = conn.prepareStatement(getLoadTarget().deleteJoin(table, keyTable, join.toString(),
+                buildRange("s.", keyColumns, lower != null)));
+        try {
+            setRange(stmt, lower, upper);
+            stmt.executeUpdate();
+
+        } finally {
+            try { stmt.close(); } catch (Exception e) {}
+        }
+
+        stmt = conn.prepareStatement("insert into " + table + " select * from " + table + STAGING_SUFFIX + " where " +
+                buildRange("", keyColumns, lower != null));
+        try {
+            setRange(stmt, lower, upper);
+            stmt.executeUpdate();
+
+        } finally {
+            try { stmt.close(); } catch (Exception e) {}
+        }
+    }
+
+    private String buildRange(String prefix, String[] keyColumns, boolean hasLower) {
+        String key = "(" + prefix + StringUtils.join(keyColumns, ", " + prefix) + ")";
+        String params = "(" + StringUtils.repeat("?", ", ", keyColumns.length) + ")";
+
+        return (hasLower ? key + " > " + params + " and " : "") + key + " <= " + params;
+    }
+
+    private void setRange(PreparedStatement stmt, Object[] lower, Object[] upper) throws SQLException {
+        int index = 1;
+        if (lower != null) index = setParameters(stmt, index, lower);
+        setParameters(stmt, index, upper);
+    }
+
+    private int setParameters(PreparedStatement stmt, int index, Object[] values) throws SQLException {
+        for (Object value : values) {
+            stmt.setObject(index ++, value);
+        }
+        return index;
+    }
+
+    /**
+     * @return {@code true} if a scratch budget is configured, in which case file sizes are needed to reserve space
+     */
+    protected boolean isScratchBudgeted() {
+        return getScratchBudgetMB() > 0;
+    }
+
+    /**
+     * Reserves scratch space for processing a file, waiting while the scratch budget is exhausted
+     * @param threadId the id of the calling worker thread
+     * @param filename the name of the file being processed
+     * @param downloadBytes the number of bytes that will be downloaded into scratch space, {@code 0} if none, or
+     *                      {@code -1} if unknown
+     * @param sourceBytes the (compressed) size of the file to be parsed, or {@code -1} if unknown
+     * @return a {@link ScratchBudget.Reservation} that must be released once processing of the file is complete
+     * @throws InterruptedException
+     */
+    protected ScratchBudget.Reservation reserveScratch(int threadId, String filename, long downloadBytes,
+                                                       long sourceBytes) throws InterruptedException {
+
+        Map<String, Long> stageBytes = new LinkedHashMap<String, Long>();
+        stageBytes.put(STAGE_DOWNLOAD, estimateFileSize(downloadBytes));
+        stageBytes.put(STAGE_PARSE, (long) (estimateFileSize(sourceBytes) * getParseScratchRatio()));
+
+        if (scratchBudget.isFull(stageBytes.get(STAGE_DOWNLOAD) + stageBytes.get(STAGE_PARSE))) {
+            log.info("[" + threadId + "]  waiting for scratch space to process '" + filename + "' - " +
+                    scratchBudget.getStatus());
+        }
+
+        return scratchBudget.reserve(stageBytes);
+    }
+
+    /**
+     * @return {@code size} if it is known, or otherwise the configured size for unknown files, falling back to the
+     * largest size seen so far, so that a file of unknown size is never admitted without any reservation
+     */
+    private long estimateFileSize(long size) {
+        if (size >= 0) {
+            long max = largestFileSize.get();
+            while (size > max && ! largestFileSize.compareAndSet(max, size)) {
+                max = largestFileSize.get();
+            }
+            return size;
+        }
+
+        long configured = getUnknownFileSizeMB() * MB;
+        return configured > 0 ?
+                configured :
+                largestFileSize.get();
+    }
+
+    /**
+     * @param threadId the id of a worker thread
+     * @return the directory into which the specified worker's parser should write finalized output
+     */
+    protected String getWorkerOutputDir(int threadId) {
+        if (segments != null)       return segments.getWorkerDir(threadId);
+        else if (migrator != null)  return migrator.getWorkerDir(threadId);
+        else                        return getOutputDir();
+    }
+
+    /**
+     * Records that a source file has been processed successfully.  If segments are being retained, the file's output
+     * is committed as its segment; if output is being staged, it is handed off for migration and the file's metadata
+     * is written once that has completed; otherwise, its metadata is written immediately.
+     * @param threadId the id of the worker thread that processed the file
+     * @param fileMetadata the metadata of the processed file
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    protected void commit(int threadId, FileMetadata fileMetadata) throws IOException, InterruptedException {
+        if (segments != null) {
+            segments.commit(threadId, fileMetadata);
+            writeMetadata(getOutputDir() + "/.metadata", fileMetadata);
+
+        } else if (migrator != null) {
+            migrator.submit(threadId, fileMetadata);
+
+        } else {
+            writeMetadata(getOutputDir() + "/.metadata", fileMetadata);
+        }
+
+        committedCount.incrementAndGet();
+    }
+
+    /**
+     * @return the number of queued files that were not committed, because processing them failed or was never
+     * finished.  Their metadata isn't written, so they are queued again the next time the loader is prepared.
+     */
+    public int getFailedFileCount() {
+        return queue.size() - committedCount.get();
+    }
+
     protected void addQueueItem(FileMetadata fileMetadata) {
         queue.add(fileMetadata);
+        sourceFiles.add(fileMetadata);
     }
 
     protected int getQueueSize() {
@@ -133,8 +824,7 @@ public abstract class AbstractLoader {
      * Handles invocation, error handling, and shutdown of worker threads
      * @throws InterruptedException
      */
-    @SuppressWarnings("unchecked")
-    protected void invoke() throws InterruptedException {
+    protected void invoke() throws InterruptedException, IOException {
         if (getAllocatedMemMB() < getRequiredMemPerThreadMB()) {
             double mult = 2.5;
             int suggestedAlloc = (int) (getRequiredMemPerThreadMB() * mult);
@@ -154,10 +844,51 @@ public abstract class AbstractLoader {
             threads.add(new WorkerThread(i));
         }
 
-        if (threads.isEmpty()) return;
+        scratchBudget = new ScratchBudget(getScratchBudgetMB() * MB);
+
+        List<FileMetadata> current = new ArrayList<FileMetadata>(sourceFiles);
+
+        if (isSegmentRetentionEnabled()) {
+            segmentDirs = getSegmentStore().retain(current);
+        }
+
+        beforeProcessing();
 
         long start = System.currentTimeMillis();
 
+        if ( ! threads.isEmpty() ) {                // nothing to process, but retained segments must still be
+            runWorkers(threads);                    // assembled, as the set of current files may have changed
+        }
+
+        if (segments != null) {
+            segments.assemble(current, getOutputDir());
+        }
+
+        log.info("processing " + queue.size() + " files across " + threads.size() + " threads took " +
+                TimeUtil.formatMsToHMS(System.currentTimeMillis() - start));
+
+        if (getFailedFileCount() > 0) {
+            log.warn(getFailedFileCount() + " of " + queue.size() + " files failed and must be prepared again");
+        }
+    }
+
+    /**
+     * Updates the current local metadata file of successfully-processed remote files
+     * @param fileMetadata The file metadata to append to the local metadata file
+     * @throws IOException
+     */
+    protected void writeMetadata(String file, FileMetadata fileMetadata) throws IOException {
+        FileUtil.write(file, fileMetadata.serialize() + "\n", true);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void runWorkers(List<Callable<Object>> threads) throws InterruptedException, IOException {
+        if (segments == null && getScratchDir() != null) {
+            migrator = new OutputMigrator(getScratchDir() + "/" + getName() + "-staging", getOutputDir(),
+                    getOutputDir() + "/.metadata", threads.size() * 2);
+            migrator.start();
+        }
+
         ExecutorService svc = Executors.newFixedThreadPool(threads.size());
 
         try {
@@ -175,26 +906,39 @@ public abstract class AbstractLoader {
 
         } finally {
             svc.shutdownNow();
-        }
 
-        log.info("processing " + queue.size() + " files across " + threads.size() + " threads took " +
-                TimeUtil.formatMsToHMS(System.currentTimeMillis() - start));
+            if (migrator != null) {
+                migrator.finish();
+                migrator = null;
+            }
+        }
     }
 
     /**
-     * Updates the current local metadata file of successfully-processed remote files
-     * @param fileMetadata The file metadata to append to the local metadata file
-     * @throws IOException
+     * @return the named property given to {@code configureSource}, trimmed, or {@code null} if it is missing or empty
      */
-    protected void writeMetadata(String file, FileMetadata fileMetadata) throws IOException {
-        FileUtil.write(file, fileMetadata.serialize() + "\n", true);
+    private String getSourceSetting(String name) {
+        String s = sourceConfig.getProperty(name);
+        return s != null && ! s.trim().isEmpty() ?
+                s.trim() :
+                null;
+    }
+
+    private SegmentStore getSegmentStore() throws IOException {
+        if (segments == null) {
+            segments = new SegmentStore(getOutputDir() + "/" + SEGMENT_DIR,
+                    getScratchDir() != null ? getScratchDir() + "/" + getName() + "-segments" : null,
+                    getOutputSettings());
+        }
+        return segments;
     }
 
     private int getThreadCount() {
         int coreCount = Runtime.getRuntime().availableProcessors();
 
-        if (coreCount <= 2) return 1;           // if system is single or dual-core, regardless of any memory
-                                                // constraints, we want only one thread.
+        if (coreCount <= 2) {                   // if system is single or dual-core, regardless of any memory
+            return Math.min(1, getQueueSize()); // constraints, we want only one thread.
+        }
 
         int avail = getAllocatedMemMB();
         int reqPerThread = getRequiredMemPerThreadMB();
@@ -283,7 +1027,9 @@ public abstract class AbstractLoader {
 
         @Override
         public Object call() throws Exception {
-            Path tempPath = Files.createTempDirectory(getName());
+            Path tempPath = getScratchDir() != null ?
+                    Files.createTempDirectory(Files.createDirectories(Paths.get(getScratchDir())), getName()) :
+                    Files.createTempDirectory(getName());
 
             try {
                 Callable<Object> logic = buildWorkerThreadLogic(threadId, tempPath.toString());
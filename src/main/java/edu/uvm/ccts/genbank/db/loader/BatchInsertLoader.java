@@ -0,0 +1,279 @@
+/*
+ * Copyright 2015 The University of Vermont and State
+ * Agricultural College.  All rights reserved.
+ *
+ * Written by Matthew B. Storer <matthewbstorer@gmail.com>
+ *
+ * This file is part of CCTS Common.
+ *
+ * CCTS Common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CCTS Common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CCTS Common.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package edu.uvm.ccts.genbank.db.loader;
+
+import edu.uvm.ccts.common.db.DataSource;
+import edu.uvm.ccts.common.util.TimeUtil;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.*;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads generated files into tables with batched, multi-row {@code INSERT}s, for servers on which
+ * {@code LOAD DATA LOCAL INFILE} is disabled.  A single reader parses the file into batches of rows, which are
+ * inserted by several writers, each over its own connection and committing after every batch.  For the driver to
+ * send each batch as a single multi-row statement, the connection must be opened with
+ * {@code rewriteBatchedStatements=true}.  A load is therefore not atomic: if it fails, the batches already committed
+ * remain in the table.
+ */
+public class BatchInsertLoader {
+    private static final Log log = LogFactory.getLog(BatchInsertLoader.class);
+
+    private static final long OFFER_TIMEOUT_MS = 1000;
+    private static final List<Object[]> END = new ArrayList<Object[]>();
+
+    private final DataSource dataSource;
+    private final int batchSize;
+    private final int connections;
+
+    /**
+     * @param dataSource the target database
+     * @param batchSize the number of rows inserted (and committed) per batch
+     * @param connections the number of connections over which batches are inserted concurrently
+     */
+    public BatchInsertLoader(DataSource dataSource, int batchSize, int connections) {
+        this.dataSource = dataSource;
+        this.batchSize = Math.max(1, batchSize);
+        this.connections = Math.max(1, connections);
+    }
+
+    /**
+     * Inserts the rows of a file written in {@code LOAD DATA}'s default format (tab-delimited, with {@code \N} for
+     * null and backslash escapes) into a table
+     * @param table the name of the table to populate
+     * @param filename the name of the file holding the rows
+     * @param columns the columns into which each row's fields are inserted, or {@code null} for all of the table's
+     *                columns, in order
+     * @param ignore {@code true} to skip rows whose keys the table already holds
+     * @return the number of rows inserted, which excludes rows skipped as duplicates
+     * @throws SQLException
+     * @throws IOException
+     */
+    public long load(String table, String filename, String[] columns, boolean ignore) throws SQLException, IOException {
+        long start = System.currentTimeMillis();
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(filename), "UTF-8"),
+                1024 * 1024);
+
+        ExecutorService svc = null;
+        final AtomicLong rowCount = new AtomicLong(0);
+
+        try {
+            String line = reader.readLine();
+            if (line == null) return 0;
+
+            int columnCount = columns != null ? columns.length : split(line).length;
+
+            final String sql = "insert " + (ignore ? "ignore " : "") + "into " + table +
+                    (columns != null ? " (" + StringUtils.join(columns, ", ") + ")" : "") +
+                    " values (" + StringUtils.repeat("?", ", ", columnCount) + ")";
+
+            final BlockingQueue<List<Object[]>> queue = new ArrayBlockingQueue<List<Object[]>>(connections * 2);
+
+            svc = Executors.newFixedThreadPool(connections);
+            List<Future<Object>> futures = new ArrayList<Future<Object>>();
+            for (int i = 0; i < connections; i ++) {
+                futures.add(svc.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        insertBatches(sql, queue, rowCount);
+                        return null;
+                    }
+                }));
+            }
+
+            List<Object[]> batch = new ArrayList<Object[]>(batchSize);
+            while (line != null) {
+                batch.add(split(line));
+
+                if (batch.size() >= batchSize) {
+                    put(queue, batch, futures);
+                    batch = new ArrayList<Object[]>(batchSize);
+                }
+
+                line = reader.readLine();
+            }
+
+            if ( ! batch.isEmpty() ) put(queue, batch, futures);
+            for (int i = 0; i < connections; i ++) {
+                put(queue, END, futures);
+            }
+
+            for (Future<Object> future : futures) {
+                get(future);
+            }
+
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted while loading '" + filename + "'", e);
+
+        } finally {
+            try { reader.close(); } catch (Exception e) {}
+            if (svc != null) svc.shutdownNow();
+        }
+
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        log.info(" inserted " + rowCount.get() + " rows into table '" + table + "' in " +
+                TimeUtil.formatMsToHMS(elapsed) + " (" + (rowCount.get() * 1000 / elapsed) + " rows/sec)");
+
+        return rowCount.get();
+    }
+
+
+//////////////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    /**
+     * Inserts batches from the queue until the end marker is reached, committing after each batch
+     */
+    private void insertBatches(String sql, BlockingQueue<List<Object[]>> queue, AtomicLong rowCount)
+            throws SQLException, InterruptedException {
+
+        Connection conn = dataSource.checkout();
+        PreparedStatement stmt = null;
+
+        try {
+            conn.setAutoCommit(false);
+            stmt = conn.prepareStatement(sql);
+
+            while (true) {
+                List<Object[]> batch = queue.take();
+                if (batch == END) break;
+
+                for (Object[] row : batch) {
+                    for (int i = 0; i < row.length; i ++) {
+                        if (row[i] == null) stmt.setNull(i + 1, Types.VARCHAR);
+                        else                stmt.setString(i + 1, (String) row[i]);
+                    }
+                    stmt.addBatch();
+                }
+
+                int[] counts = stmt.executeBatch();
+                conn.commit();
+
+                rowCount.addAndGet(countInserted(counts));
+            }
+
+        } catch (SQLException e) {
+            try { conn.rollback(); } catch (Exception e2) {}
+            throw e;
+
+        } finally {
+            try { if (stmt != null) stmt.close(); } catch (Exception e) {}
+            dataSource.release(conn);
+        }
+    }
+
+    /**
+     * @return the number of rows a batch inserted, as MySQL reports affected rows: rows skipped by
+     * {@code insert ignore} have an update count of {@code 0}.  A statement whose count the driver doesn't report is
+     * taken to have inserted its row.
+     */
+    static long countInserted(int[] counts) {
+        long inserted = 0;
+        for (int count : counts) {
+            if (count > 0)                                  inserted += count;
+            else if (count == Statement.SUCCESS_NO_INFO)    inserted ++;
+        }
+        return inserted;
+    }
+
+    /**
+     * Queues a batch, giving up if any writer has failed (and so may no longer be draining the queue)
+     */
+    private void put(BlockingQueue<List<Object[]>> queue, List<Object[]> batch, List<Future<Object>> futures)
+            throws InterruptedException, SQLException, IOException {
+
+        while ( ! queue.offer(batch, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS) ) {
+            for (Future<Object> future : futures) {
+                if (future.isDone()) {
+                    get(future);
+                    throw new SQLException("insert writer finished before the end of the file");
+                }
+            }
+        }
+    }
+
+    private void get(Future<Object> future) throws InterruptedException, SQLException, IOException {
+        try {
+            future.get();
+
+        } catch (ExecutionException e) {
+            Throwable t = e.getCause();
+            if (t instanceof SQLException)  throw (SQLException) t;
+            else if (t instanceof IOException) throw (IOException) t;
+            else                            throw new SQLException("insert failed - " + t.getMessage(), t);
+        }
+    }
+
+    /**
+     * Splits a line into fields, undoing {@code LOAD DATA}'s escaping
+     */
+    static Object[] split(String line) {
+        String[] parts = line.split("\t", -1);
+        Object[] row = new Object[parts.length];
+
+        for (int i = 0; i < parts.length; i ++) {
+            row[i] = parts[i].equals("\\N") ? null : unescape(parts[i]);
+        }
+
+        return row;
+    }
+
+    static String unescape(String s) {
+        if (s.indexOf('\\') < 0) return s;
+
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i ++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                char next = s.charAt(++ i);
+                switch (next) {
+                    case '0': sb.append('\0'); break;
+                    case 'b': sb.append('\b'); break;
+                    case 'n': sb.append('\n'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'Z': sb.append('\032'); break;
+                    default:  sb.append(next);
+                }
+
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
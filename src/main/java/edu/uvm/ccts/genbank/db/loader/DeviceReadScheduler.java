@@ -0,0 +1,154 @@
+/*
+ * Copyright 2015 The University of Vermont and State
+ * Agricultural College.  All rights reserved.
+ *
+ * Written by Matthew B. Storer <matthewbstorer@gmail.com>
+ *
+ * This file is part of CCTS Common.
+ *
+ * CCTS Common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CCTS Common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CCTS Common.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.uvm.ccts.genbank.db.loader;
+
+import java.io.*;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Schedules reads of local files so that many worker threads don't thrash a disk with small, interleaved reads.
+ * Files are read in large read-ahead chunks, and only a limited number of threads may be filling a chunk from any
+ * one device (file store) at a time.  Parsing proceeds from the buffered chunk without holding the device, so CPU
+ * work is not serialized along with the I/O.
+ */
+public class DeviceReadScheduler {
+    private final int maxReadersPerDevice;
+    private final int readAheadBytes;
+    private final Map<FileStore, Semaphore> semaphores = new HashMap<FileStore, Semaphore>();
+
+    /**
+     * @param maxReadersPerDevice the maximum number of concurrent chunk reads per device, or {@code 0} for no limit
+     * @param readAheadBytes the size of each read-ahead chunk
+     */
+    public DeviceReadScheduler(int maxReadersPerDevice, int readAheadBytes) {
+        this.maxReadersPerDevice = maxReadersPerDevice;
+        this.readAheadBytes = readAheadBytes;
+    }
+
+    /**
+     * Opens a local file for scheduled reading
+     * @param f the file to open
+     * @return an {@link InputStream} over the file's contents
+     * @throws IOException
+     */
+    public InputStream open(File f) throws IOException {
+        Semaphore semaphore = maxReadersPerDevice > 0 ?
+                getSemaphore(Files.getFileStore(f.toPath())) :
+                null;
+
+        return new ReadAheadInputStream(new FileInputStream(f), semaphore, readAheadBytes);
+    }
+
+
+//////////////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    private synchronized Semaphore getSemaphore(FileStore store) {
+        Semaphore semaphore = semaphores.get(store);
+        if (semaphore == null) {
+            semaphore = new Semaphore(maxReadersPerDevice, true);
+            semaphores.put(store, semaphore);
+        }
+        return semaphore;
+    }
+
+    private static final class ReadAheadInputStream extends InputStream {
+        private final InputStream input;
+        private final Semaphore semaphore;
+        private final byte[] buf;
+        private int pos = 0;
+        private int count = 0;
+        private boolean eof = false;
+
+        private ReadAheadInputStream(InputStream input, Semaphore semaphore, int size) {
+            this.input = input;
+            this.semaphore = semaphore;
+            this.buf = new byte[size];
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (pos >= count && ! fill()) return -1;
+            return buf[pos ++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (pos >= count && ! fill()) return -1;
+
+            int n = Math.min(len, count - pos);
+            System.arraycopy(buf, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return count - pos;
+        }
+
+        @Override
+        public void close() throws IOException {
+            input.close();
+        }
+
+        /**
+         * Refills the buffer with the next chunk of the file, while holding a read permit for the file's device
+         * @return {@code true} if any data was read; {@code false} at end of file
+         */
+        private boolean fill() throws IOException {
+            if (eof) return false;
+
+            if (semaphore != null) {
+                try {
+                    semaphore.acquire();
+
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("interrupted waiting to read");
+                }
+            }
+
+            try {
+                pos = 0;
+                count = 0;
+
+                int n;
+                while (count < buf.length && (n = input.read(buf, count, buf.length - count)) != -1) {
+                    count += n;
+                }
+
+                if (count < buf.length) eof = true;
+                return count > 0;
+
+            } finally {
+                if (semaphore != null) semaphore.release();
+            }
+        }
+    }
+}
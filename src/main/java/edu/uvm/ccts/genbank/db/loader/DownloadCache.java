@@ -0,0 +1,175 @@
+/*
+ * Copyright 2015 The University of Vermont and State
+ * Agricultural College.  All rights reserved.
+ *
+ * Written by Matthew B. Storer <matthewbstorer@gmail.com>
+ *
+ * This file is part of CCTS Common.
+ *
+ * CCTS Common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CCTS Common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CCTS Common.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.uvm.ccts.genbank.db.loader;
+
+import edu.uvm.ccts.common.model.FileMetadata;
+import edu.uvm.ccts.common.util.FileUtil;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * A local cache of downloaded source files, so that re-running {@code prepare} (for a schema change, to retry failed
+ * files, etc.) doesn't have to fetch unchanged files again.  Entries are content-addressed by a hash of the remote
+ * file's serialized {@link FileMetadata} (path, size and timestamp), so a changed remote file never hits a stale
+ * entry.  The cache is held to a disk budget by evicting the least-recently-used entries.
+ */
+public class DownloadCache {
+    private static final Log log = LogFactory.getLog(DownloadCache.class);
+
+    private final File dir;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private long totalBytes = 0;
+
+    /**
+     * @param dir the directory in which cached files are kept
+     * @param maxBytes the maximum total size of the cached files, or {@code 0} for no limit
+     * @throws IOException
+     */
+    public DownloadCache(String dir, long maxBytes) throws IOException {
+        this.dir = new File(dir);
+        this.maxBytes = maxBytes;
+
+        FileUtil.createDirectory(dir);
+
+        File[] files = this.dir.listFiles();
+        if (files != null) {
+            Arrays.sort(files, new Comparator<File>() {                 // oldest first, to restore LRU order
+                @Override
+                public int compare(File f1, File f2) {
+                    return Long.compare(f1.lastModified(), f2.lastModified());
+                }
+            });
+
+            for (File f : files) {
+                if (f.isFile()) {
+                    entries.put(f.getName(), f.length());
+                    totalBytes += f.length();
+                }
+            }
+        }
+
+        log.info("download cache '" + dir + "' holds " + entries.size() + " files (" + (totalBytes >> 20) + " MB)");
+
+        evict(null);
+    }
+
+    /**
+     * Looks up a remote file in the cache
+     * @param remote the metadata of the remote file
+     * @return the cached copy of the file, or {@code null} if it isn't cached
+     */
+    public synchronized File get(FileMetadata remote) {
+        String key = getKey(remote);
+        if ( ! entries.containsKey(key) ) return null;
+
+        File f = new File(dir, key);
+        if ( ! f.isFile() ) {
+            totalBytes -= entries.remove(key);
+            return null;
+        }
+
+        f.setLastModified(System.currentTimeMillis());          // persists LRU order across runs
+        return f;
+    }
+
+    /**
+     * Moves a downloaded file into the cache, evicting least-recently-used entries as needed to stay within budget.
+     * A file larger than the entire budget is not cached.
+     * @param remote the metadata of the remote file
+     * @param downloaded the complete local copy of the remote file
+     * @return the cached file, or {@code downloaded} if the file was not cached
+     * @throws IOException
+     */
+    public synchronized File put(FileMetadata remote, File downloaded) throws IOException {
+        long length = downloaded.length();
+        if (maxBytes > 0 && length > maxBytes) return downloaded;
+
+        String key = getKey(remote);
+        File f = new File(dir, key);
+
+        Files.move(downloaded.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        Long previous = entries.put(key, length);
+        if (previous != null) totalBytes -= previous;
+        totalBytes += length;
+
+        evict(key);
+
+        return f;
+    }
+
+
+//////////////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    private String getKey(FileMetadata remote) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(remote.serialize().getBytes(Charset.forName("UTF-8")));
+
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);         // every JVM is required to support SHA-1
+        }
+    }
+
+    /**
+     * Removes least-recently-used entries until the cache is within budget.  Evicting an entry that is still being
+     * parsed is safe, as an open file remains readable after it is deleted.
+     * @param keep the key of an entry that must not be evicted, or {@code null}
+     */
+    private synchronized void evict(String keep) {
+        if (maxBytes <= 0) return;
+
+        Iterator<Map.Entry<String, Long>> iter = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && iter.hasNext()) {
+            Map.Entry<String, Long> entry = iter.next();
+            if (entry.getKey().equals(keep)) continue;
+
+            File f = new File(dir, entry.getKey());
+            if (f.exists() && ! f.delete()) {
+                log.warn("could not evict '" + f.getPath() + "' from download cache");
+                continue;
+            }
+
+            log.debug("evicted '" + entry.getKey() + "' from download cache");
+            totalBytes -= entry.getValue();
+            iter.remove();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2015 The University of Vermont and State
+ * Agricultural College.  All rights reserved.
+ *
+ * Written by Matthew B. Storer <matthewbstorer@gmail.com>
+ *
+ * This file is part of CCTS Common.
+ *
+ * CCTS Common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CCTS Common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CCTS Common.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package edu.uvm.ccts.genbank.db.loader;
+
+import edu.uvm.ccts.common.db.DataSource;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+
+/**
+ * Loads into an embedded, file-based H2 database, for exercising the load path end to end without a database server
+ * and for ad-hoc work on a subset of the data.  The database runs in MySQL compatibility mode, so that the statements
+ * shared with {@link MySQLTarget} need no translation, and is kept open for the life of the process.  H2 has no
+ * equivalent of {@code LOAD DATA}, and its {@code CSVREAD} can't undo the backslash escaping of the prepared files,
+ * so files are loaded with batched {@code INSERT}s (see {@link BatchInsertLoader}), which an embedded database
+ * executes in-process.
+ */
+public class H2Target implements LoadTarget {
+    public static final String NAME = "h2";
+
+    private final String dir;
+    private final int insertBatchSize;
+    private final int insertConnections;
+
+    /**
+     * @param dir the directory holding the database files
+     * @param insertBatchSize the number of rows inserted and committed per batch
+     * @param insertConnections the number of connections over which each file's batches are inserted
+     */
+    public H2Target(String dir, int insertBatchSize, int insertConnections) {
+        this.dir = dir;
+        this.insertBatchSize = insertBatchSize;
+        this.insertConnections = insertConnections;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public String getDriverClassName() {
+        return "org.h2.Driver";
+    }
+
+    /**
+     * @param host ignored
+     * @param database the name of the database, which names its files within the configured directory
+     */
+    @Override
+    public String buildURL(String host, String database) {
+        return "jdbc:h2:file:" + new File(dir, database).getAbsolutePath() + ";MODE=MySQL;DB_CLOSE_DELAY=-1";
+    }
+
+    @Override
+    public void beginLoad(DataSource dataSource) throws SQLException {
+        // nothing to configure
+    }
+
+    @Override
+    public void endLoad(DataSource dataSource) throws SQLException {
+        // nothing to restore
+    }
+
+    @Override
+    public long loadFile(DataSource dataSource, String table, String filename, String[] columns, boolean ignore)
+            throws SQLException, IOException {
+
+        return new BatchInsertLoader(dataSource, insertBatchSize, insertConnections)
+                .load(table, filename, columns, ignore);
+    }
+
+    @Override
+    public String createTableLike(String table, String likeTable) {
+        return "create table " + table + " as select * from " + likeTable + " where 1 = 0";
+    }
+
+    @Override
+    public String createIndex(String table, String indexName, String[] columns) {
+        return "create index " + table + "_" + indexName + " on " + table + " (" + StringUtils.join(columns, ", ") +
+                ")";
+    }
+
+    @Override
+    public String insertIgnore(String table, String select) {
+        return "insert ignore into " + table + " " + select;
+    }
+
+    @Override
+    public String deleteJoin(String table, String joinTable, String joinCondition, String where) {
+        return "delete from " + table + " t where exists (select 1 from " + joinTable + " s where " + joinCondition +
+                " and " + where + ")";
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2015 The University of Vermont and State
+ * Agricultural College.  All rights reserved.
+ *
+ * Written by Matthew B. Storer <matthewbstorer@gmail.com>
+ *
+ * This file is part of CCTS Common.
+ *
+ * CCTS Common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CCTS Common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CCTS Common.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package edu.uvm.ccts.genbank.db.loader;
+
+import edu.uvm.ccts.common.db.DataSource;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Periodically logs InnoDB metrics while tables are being loaded, so that a slow load can be attributed to the
+ * server (a buffer pool full of dirty pages, a long purge backlog, redo log space running out) or to the client.
+ * Every load running against the same data source shares one monitor, which runs for as long as any of them does.
+ * Each metric that can't be read (e.g. for lack of the {@code PROCESS} privilege) is simply left out.
+ */
+public class InnoDBMonitor implements Runnable {
+    private static final Log log = LogFactory.getLog(InnoDBMonitor.class);
+
+    private static final double MB = 1024 * 1024;
+
+    private static final String STATUS_SQL = "show global status where Variable_name in (" +
+            "'Innodb_buffer_pool_pages_dirty', 'Innodb_buffer_pool_pages_total', 'Innodb_os_log_written', " +
+            "'Innodb_log_waits', 'Innodb_rows_inserted')";
+    private static final String HISTORY_SQL = "select count from information_schema.innodb_metrics " +
+            "where name = 'trx_rseg_history_len'";
+
+    private static final Pattern LSN_PATTERN = Pattern.compile("Log sequence number\\s+(\\d+)");
+    private static final Pattern CHECKPOINT_PATTERN = Pattern.compile("Last checkpoint at\\s+(\\d+)");
+
+    private static final Map<DataSource, InnoDBMonitor> monitors = new HashMap<DataSource, InnoDBMonitor>();
+
+    /**
+     * Starts monitoring the specified data source, unless it is already being monitored
+     * @param periodMs how often metrics are sampled
+     */
+    public static synchronized void acquire(DataSource dataSource, long periodMs) {
+        InnoDBMonitor monitor = monitors.get(dataSource);
+        if (monitor == null) {
+            monitor = new InnoDBMonitor(dataSource, periodMs);
+            monitors.put(dataSource, monitor);
+
+            monitor.thread = new Thread(monitor, "innodb-monitor");
+            monitor.thread.setDaemon(true);
+            monitor.thread.start();
+        }
+        monitor.refs ++;
+    }
+
+    /**
+     * Stops monitoring the specified data source once every load that acquired a monitor for it has released it
+     */
+    public static synchronized void release(DataSource dataSource) {
+        InnoDBMonitor monitor = monitors.get(dataSource);
+        if (monitor != null && -- monitor.refs <= 0) {
+            monitors.remove(dataSource);
+            monitor.thread.interrupt();
+        }
+    }
+
+    private final DataSource dataSource;
+    private final long periodMs;
+    private int refs = 0;
+    private Thread thread = null;
+
+    private Map<String, Long> previous = null;
+    private long previousTime = 0;
+    private Long redoCapacity = null;
+    private boolean showStatus = true;
+    private boolean history = true;
+
+    private InnoDBMonitor(DataSource dataSource, long periodMs) {
+        this.dataSource = dataSource;
+        this.periodMs = periodMs;
+    }
+
+    @Override
+    public void run() {
+        try {
+            redoCapacity = queryLong("select @@innodb_redo_log_capacity");
+            if (redoCapacity == null) {
+                redoCapacity = queryLong("select @@innodb_log_file_size * @@innodb_log_files_in_group");
+            }
+
+            while ( ! Thread.currentThread().isInterrupted() ) {
+                Thread.sleep(periodMs);
+                sample();
+            }
+
+        } catch (InterruptedException e) {
+            // handle silently
+
+        } catch (SQLException e) {
+            log.warn("stopped sampling InnoDB metrics - " + e.getMessage());
+
+        } finally {
+            dataSource.close();
+        }
+    }
+
+
+//////////////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    private void sample() throws SQLException {
+        long now = System.currentTimeMillis();
+
+        Map<String, Long> status = new HashMap<String, Long>();
+        Statement stmt = dataSource.getConnection().createStatement();
+        try {
+            ResultSet rs = stmt.executeQuery(STATUS_SQL);
+            while (rs.next()) {
+                status.put(rs.getString(1), Long.parseLong(rs.getString(2)));
+            }
+
+        } finally {
+            try { stmt.close(); } catch (Exception e) {}
+        }
+
+        StringBuilder sb = new StringBuilder("innodb:");
+
+        Long dirty = status.get("Innodb_buffer_pool_pages_dirty");
+        Long total = status.get("Innodb_buffer_pool_pages_total");
+        if (dirty != null && total != null && total > 0) {
+            sb.append(String.format(" buffer pool %.1f%% dirty (%d of %d pages),", dirty * 100.0 / total, dirty,
+                    total));
+        }
+
+        if (history) {
+            Long length = queryLong(HISTORY_SQL);
+            if (length != null) sb.append(" history list length ").append(length).append(",");
+            else                history = false;
+        }
+
+        if (showStatus) {
+            Long checkpointAge = queryCheckpointAge();
+            if (checkpointAge != null) {
+                sb.append(String.format(" checkpoint age %.1f MB", checkpointAge / MB));
+                if (redoCapacity != null && redoCapacity > 0) {
+                    sb.append(String.format(" (%.1f%% of redo log)", checkpointAge * 100.0 / redoCapacity));
+                }
+                sb.append(",");
+
+            } else {
+                showStatus = false;
+            }
+        }
+
+        if (previous != null) {
+            double seconds = Math.max(1, now - previousTime) / 1000.0;
+
+            sb.append(String.format(" redo written %.1f MB/s,", delta(status, "Innodb_os_log_written") / MB / seconds));
+            sb.append(" log waits +").append(delta(status, "Innodb_log_waits")).append(",");
+            sb.append(" rows inserted ").append((long) (delta(status, "Innodb_rows_inserted") / seconds))
+                    .append("/s");
+        }
+
+        log.info(sb.toString().replaceAll(",$", ""));
+
+        previous = status;
+        previousTime = now;
+    }
+
+    private long delta(Map<String, Long> status, String name) {
+        Long current = status.get(name);
+        Long last = previous.get(name);
+        return current != null && last != null ? current - last : 0;
+    }
+
+    /**
+     * @return the first column of the first row returned by a query, or {@code null} if the query failed
+     */
+    private Long queryLong(String sql) {
+        try {
+            Statement stmt = dataSource.getConnection().createStatement();
+            try {
+                ResultSet rs = stmt.executeQuery(sql);
+                return rs.next() ? rs.getLong(1) : null;
+
+            } finally {
+                try { stmt.close(); } catch (Exception e) {}
+            }
+
+        } catch (SQLException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the distance between the current log sequence number and the last checkpoint, as reported by
+     * {@code show engine innodb status}, or {@code null} if it could not be read
+     */
+    private Long queryCheckpointAge() {
+        try {
+            Connection conn = dataSource.getConnection();
+            Statement stmt = conn.createStatement();
+            try {
+                ResultSet rs = stmt.executeQuery("show engine innodb status");
+                if ( ! rs.next() ) return null;
+
+                String text = rs.getString("Status");
+                Matcher lsn = LSN_PATTERN.matcher(text);
+                Matcher checkpoint = CHECKPOINT_PATTERN.matcher(text);
+
+                return lsn.find() && checkpoint.find() ?
+                        Long.parseLong(lsn.group(1)) - Long.parseLong(checkpoint.group(1)) :
+                        null;
+
+            } finally {
+                try { stmt.close(); } catch (Exception e) {}
+            }
+
+        } catch (SQLException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2015 The University of Vermont and State
+ * Agricultural College.  All rights reserved.
+ *
+ * Written by Matthew B. Storer <matthewbstorer@gmail.com>
+ *
+ * This file is part of CCTS Common.
+ *
+ * CCTS Common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CCTS Common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CCTS Common.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package edu.uvm.ccts.genbank.db.loader;
+
+import edu.uvm.ccts.common.db.DataSource;
+
+import java.io.IOException;
+import java.sql.SQLException;
+
+/**
+ * The database into which prepared files are loaded.  A target supplies the driver and connection URL for its
+ * database, bulk-loads prepared files (which are written in the tab-delimited, backslash-escaped format read by both
+ * MySQL's {@code LOAD DATA} and PostgreSQL's {@code COPY}), and renders the few statements used by
+ * {@link AbstractLoader} whose syntax differs between databases.
+ */
+public interface LoadTarget {
+
+    /**
+     * @return the name by which this target is selected, e.g. {@code mysql}
+     */
+    String getName();
+
+    String getDriverClassName();
+
+    /**
+     * @param host the database host, optionally followed by {@code :port}
+     * @param database the name of the database
+     * @return the JDBC URL of the specified database
+     */
+    String buildURL(String host, String database);
+
+    /**
+     * Prepares the calling thread's connection for loading a table
+     */
+    void beginLoad(DataSource dataSource) throws SQLException;
+
+    /**
+     * Restores the calling thread's connection after loading a table
+     */
+    void endLoad(DataSource dataSource) throws SQLException;
+
+    /**
+     * Bulk-loads an individual file into a table.  A load is not necessarily atomic: a target may commit part of the
+     * file before the rest has been loaded, so a load that fails may leave some of the file's rows in the table.
+     * Callers must delete them (or, for a load that skips duplicate keys, simply load the file again).
+     * @param table the name of the table to populate
+     * @param filename the name of the file from which data will be loaded
+     * @param columns the columns into which each row's fields are loaded, or {@code null} for all columns, in order
+     * @param ignore {@code true} to skip rows whose keys the table already holds
+     * @return the number of rows loaded, which excludes rows skipped as duplicates
+     * @throws SQLException
+     * @throws IOException
+     */
+    long loadFile(DataSource dataSource, String table, String filename, String[] columns, boolean ignore)
+            throws SQLException, IOException;
+
+    /**
+     * @return a statement creating an empty table with the same columns as another
+     */
+    String createTableLike(String table, String likeTable);
+
+    /**
+     * @return a statement adding an index to a table
+     */
+    String createIndex(String table, String indexName, String[] columns);
+
+    /**
+     * @return a statement inserting the rows selected by a query into a table, skipping rows whose keys the table
+     * already holds
+     */
+    String insertIgnore(String table, String select);
+
+    /**
+     * @return a statement deleting the rows of {@code table} (aliased {@code t}) that join with rows of
+     * {@code joinTable} (aliased {@code s}) on the specified condition, and that satisfy the specified filter
+     */
+    String deleteJoin(String table, String joinTable, String joinCondition, String where);
+}
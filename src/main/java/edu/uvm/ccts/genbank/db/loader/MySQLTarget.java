@@ -0,0 +1,185 @@
+/*
+ * Copyright 2015 The University of Vermont and State
+ * Agricultural College.  All rights reserved.
+ *
+ * Written by Matthew B. Storer <matthewbstorer@gmail.com>
+ *
+ * This file is part of CCTS Common.
+ *
+ * CCTS Common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CCTS Common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CCTS Common.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package edu.uvm.ccts.genbank.db.loader;
+
+import com.mysql.cj.jdbc.JdbcStatement;
+import edu.uvm.ccts.common.db.DataSource;
+import edu.uvm.ccts.common.util.DBUtil;
+import edu.uvm.ccts.common.util.TimeUtil;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.*;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Loads into MySQL with {@code LOAD DATA LOCAL INFILE} or, for servers on which that is disabled, with batched
+ * multi-row {@code INSERT}s (see {@link BatchInsertLoader}).  {@code LOAD DATA} is fed through a
+ * {@link ProgressInputStream} rather than left to read the file itself, so that its progress may be reported while it
+ * runs, and InnoDB metrics may be sampled alongside (see {@link InnoDBMonitor}).
+ */
+public class MySQLTarget implements LoadTarget {
+    private static final Log log = LogFactory.getLog(MySQLTarget.class);
+
+    public static final String NAME = "mysql";
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private final boolean batchInsert;
+    private final int insertBatchSize;
+    private final int insertConnections;
+    private final long progressMs;
+    private final long innoDBSampleMs;
+
+    /**
+     * Creates a target that loads with {@code LOAD DATA LOCAL INFILE}, reporting progress every minute
+     */
+    public MySQLTarget() {
+        this(false, 0, 0, 60000, 0);
+    }
+
+    /**
+     * @param batchInsert {@code true} to load with batched {@code INSERT}s rather than {@code LOAD DATA}
+     * @param insertBatchSize the number of rows inserted and committed per batch
+     * @param insertConnections the number of connections over which each file's batches are inserted
+     * @param progressMs how often the progress of each {@code LOAD DATA} is logged, or {@code 0} to not log it
+     * @param innoDBSampleMs how often InnoDB metrics are logged while loading, or {@code 0} to not log them
+     */
+    public MySQLTarget(boolean batchInsert, int insertBatchSize, int insertConnections, long progressMs,
+                       long innoDBSampleMs) {
+        this.batchInsert = batchInsert;
+        this.insertBatchSize = insertBatchSize;
+        this.insertConnections = insertConnections;
+        this.progressMs = progressMs;
+        this.innoDBSampleMs = innoDBSampleMs;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public String getDriverClassName() {
+        return "com.mysql.cj.jdbc.Driver";
+    }
+
+    @Override
+    public String buildURL(String host, String database) {
+        return "jdbc:mysql://" + host + "/" + database + "?serverTimezone=UTC&useSSL=false&allowLoadLocalInfile=true" +
+                "&rewriteBatchedStatements=true";
+    }
+
+    /**
+     * Suspends binary logging, unless loading with {@code INSERT}s (which are issued over other connections)
+     */
+    @Override
+    public void beginLoad(DataSource dataSource) throws SQLException {
+        if ( ! batchInsert ) DBUtil.executeUpdate("set session sql_log_bin = OFF", dataSource);
+    }
+
+    @Override
+    public void endLoad(DataSource dataSource) throws SQLException {
+        if ( ! batchInsert ) DBUtil.executeUpdate("set session sql_log_bin = ON", dataSource);
+    }
+
+    @Override
+    public long loadFile(DataSource dataSource, String table, String filename, String[] columns, boolean ignore)
+            throws SQLException, IOException {
+
+        if (innoDBSampleMs > 0) InnoDBMonitor.acquire(dataSource, innoDBSampleMs);
+
+        try {
+            if (batchInsert) {
+                return new BatchInsertLoader(dataSource, insertBatchSize, insertConnections)
+                        .load(table, filename, columns, ignore);
+
+            } else {
+                return loadData(dataSource, table, filename, columns, ignore);
+            }
+
+        } finally {
+            if (innoDBSampleMs > 0) InnoDBMonitor.release(dataSource);
+        }
+    }
+
+    @Override
+    public String createTableLike(String table, String likeTable) {
+        return "create table " + table + " like " + likeTable;
+    }
+
+    @Override
+    public String createIndex(String table, String indexName, String[] columns) {
+        return "alter table " + table + " add index " + indexName + "(" + StringUtils.join(columns, ", ") + ")";
+    }
+
+    @Override
+    public String insertIgnore(String table, String select) {
+        return "insert ignore into " + table + " " + select;
+    }
+
+    @Override
+    public String deleteJoin(String table, String joinTable, String joinCondition, String where) {
+        return "delete t from " + table + " t join " + joinTable + " s on " + joinCondition + " where " + where;
+    }
+
+
+//////////////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    /**
+     * Loads a file with {@code LOAD DATA LOCAL INFILE}, streaming it to the server through a
+     * {@link ProgressInputStream}
+     */
+    private long loadData(DataSource dataSource, String table, String filename, String[] columns, boolean ignore)
+            throws SQLException, IOException {
+
+        long start = System.currentTimeMillis();
+
+        InputStream input = new ProgressInputStream(new BufferedInputStream(new FileInputStream(filename),
+                BUFFER_SIZE), "'" + table + "'", new File(filename).length(), progressMs);
+
+        Statement stmt = dataSource.getConnection().createStatement();
+        int rows;
+
+        try {
+            stmt.unwrap(JdbcStatement.class).setLocalInfileInputStream(input);
+            rows = stmt.executeUpdate("load data local infile '" + filename + "' " + (ignore ? "ignore " : "") +
+                    "into table " + table + (columns != null ? " (" + StringUtils.join(columns, ", ") + ")" : ""));
+
+        } finally {
+            try { stmt.close(); } catch (Exception e) {}
+            try { input.close(); } catch (Exception e) {}
+        }
+
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        log.info(" loaded " + rows + " rows into table '" + table + "' in " + TimeUtil.formatMsToHMS(elapsed) +
+                " (" + (rows * 1000L / elapsed) + " rows/sec)");
+
+        return rows;
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright 2015 The University of Vermont and State
+ * Agricultural College.  All rights reserved.
+ *
+ * Written by Matthew B. Storer <matthewbstorer@gmail.com>
+ *
+ * This file is part of CCTS Common.
+ *
+ * CCTS Common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CCTS Common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CCTS Common.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.uvm.ccts.genbank.db.loader;
+
+import edu.uvm.ccts.common.model.FileMetadata;
+import edu.uvm.ccts.common.util.FileUtil;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moves finalized output from a fast, node-local staging area (the "hot" tier) to the output directory (the "cold"
+ * tier, typically a shared network filesystem) in the background.  Worker threads finalize each source file's table
+ * data into their own staging directory, then hand it off as a batch; a single migrator thread appends queued batches
+ * onto the output files with large sequential copies, so the many small appends made while parsing never touch the
+ * shared filesystem.
+ * <p>
+ * A source file's metadata is only written once its data has been migrated, so a file whose data is lost from the
+ * staging area is simply processed again on the next run.  Before each migration, the lengths of the output files and
+ * of the metadata file are journaled, and the journal is only deleted once both have been written; a migration
+ * interrupted part-way through, including one whose metadata was already appended, is rolled back when the next run
+ * starts.
+ */
+public class OutputMigrator {
+    private static final Log log = LogFactory.getLog(OutputMigrator.class);
+
+    private static final String JOURNAL_FILE = ".migration";
+    private static final String METADATA_KEY = ".metadata";
+    private static final long POLL_MS = 1000;
+
+    private final String stagingDir;
+    private final String outputDir;
+    private final String metadataFile;
+    private final LinkedBlockingQueue<Batch> queue;
+    private final AtomicLong batchSeq = new AtomicLong(0);
+    private Thread thread = null;
+    private volatile boolean finishing = false;
+    private volatile Exception failure = null;
+
+    /**
+     * @param stagingDir the staging directory on the hot tier.  Anything left in it by a previous run is discarded.
+     * @param outputDir the output directory on the cold tier
+     * @param metadataFile the file to which the metadata of migrated source files is appended
+     * @param maxPendingBatches the number of batches that may be waiting to be migrated before workers are held back
+     * @throws IOException
+     */
+    public OutputMigrator(String stagingDir, String outputDir, String metadataFile, int maxPendingBatches)
+            throws IOException {
+
+        this.stagingDir = stagingDir;
+        this.outputDir = outputDir;
+        this.metadataFile = metadataFile;
+        this.queue = new LinkedBlockingQueue<Batch>(maxPendingBatches);
+
+        FileUtil.createDirectory(outputDir);
+        rollBack(outputDir, metadataFile);
+
+        if (new File(stagingDir).exists()) FileUtil.removeDirectory(stagingDir);
+        FileUtil.createDirectory(stagingDir);
+    }
+
+    /**
+     * Truncates the output files and the metadata file in an output directory back to the lengths recorded before a
+     * migration that never completed.  This must be done before the metadata file is read to decide which source
+     * files need processing.
+     * @param outputDir the output directory on the cold tier
+     * @param metadataFile the file to which the metadata of migrated source files is appended
+     * @throws IOException
+     */
+    public static void rollBack(String outputDir, String metadataFile) throws IOException {
+        File f = new File(outputDir, JOURNAL_FILE);
+        if ( ! f.exists() ) return;
+
+        Properties journal = new Properties();
+        InputStream input = new FileInputStream(f);
+        try {
+            journal.load(input);
+
+        } finally {
+            try { input.close(); } catch (Exception e) {}
+        }
+
+        for (String name : journal.stringPropertyNames()) {
+            File output = METADATA_KEY.equals(name) ?
+                    new File(metadataFile) :
+                    new File(outputDir, name);
+
+            truncate(output, Long.parseLong(journal.getProperty(name)));
+        }
+
+        FileUtil.delete(f.getPath());
+    }
+
+    public void start() {
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    migrateQueuedBatches();
+
+                } catch (Exception e) {
+                    log.error("caught " + e.getClass().getName() + " migrating output to '" + outputDir + "' - " +
+                            e.getMessage(), e);
+                    failure = e;
+                }
+            }
+        }, "output-migrator");
+        thread.start();
+    }
+
+    /**
+     * @param threadId the id of a worker thread
+     * @return the staging directory into which the specified worker should finalize its output
+     */
+    public String getWorkerDir(int threadId) {
+        return stagingDir + "/worker-" + threadId;
+    }
+
+    /**
+     * Hands off everything a worker has finalized into its staging directory, together with the metadata of the
+     * source file it came from.  Waits if too many batches are already waiting to be migrated.
+     * @param threadId the id of the worker thread
+     * @param fileMetadata the metadata of the source file whose output is being handed off
+     * @throws IOException if the migrator has failed
+     * @throws InterruptedException
+     */
+    public void submit(int threadId, FileMetadata fileMetadata) throws IOException, InterruptedException {
+        checkFailure();
+
+        File workerDir = new File(getWorkerDir(threadId));
+        File batchDir = new File(stagingDir, "batch-" + batchSeq.incrementAndGet());
+        FileUtil.createDirectory(batchDir.getPath());
+
+        File[] files = workerDir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (f.isFile()) {
+                    Files.move(f.toPath(), new File(batchDir, f.getName()).toPath(), StandardCopyOption.ATOMIC_MOVE);
+                }
+            }
+        }
+
+        Batch batch = new Batch(batchDir, fileMetadata);
+        while ( ! queue.offer(batch, POLL_MS, TimeUnit.MILLISECONDS) ) {
+            checkFailure();
+        }
+    }
+
+    /**
+     * Waits for all submitted batches to be migrated, and stops the migrator thread
+     * @throws IOException if the migrator failed
+     * @throws InterruptedException
+     */
+    public void finish() throws IOException, InterruptedException {
+        finishing = true;
+        if (thread != null) thread.join();
+        checkFailure();
+
+        FileUtil.removeDirectory(stagingDir);
+    }
+
+
+//////////////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("output migration failed - " + failure.getMessage(), failure);
+        }
+    }
+
+    private void migrateQueuedBatches() throws IOException, InterruptedException {
+        while (true) {
+            Batch first = queue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+            if (first == null) {
+                if (finishing) return;
+                continue;
+            }
+
+            List<Batch> batches = new ArrayList<Batch>();
+            batches.add(first);
+            queue.drainTo(batches);
+
+            migrate(batches);
+        }
+    }
+
+    /**
+     * Appends the data in a list of batches onto the output files, then records their source files' metadata
+     */
+    private void migrate(List<Batch> batches) throws IOException {
+        long start = System.currentTimeMillis();
+
+        Set<String> names = new TreeSet<String>();
+        for (Batch batch : batches) {
+            String[] list = batch.dir.list();
+            if (list != null) names.addAll(Arrays.asList(list));
+        }
+
+        Properties journal = new Properties();
+        for (String name : names) {
+            journal.setProperty(name, String.valueOf(new File(outputDir, name).length()));
+        }
+        journal.setProperty(METADATA_KEY, String.valueOf(new File(metadataFile).length()));
+        writeJournal(journal);
+
+        long bytes = 0;
+        for (String name : names) {
+            FileChannel output = new FileOutputStream(new File(outputDir, name), true).getChannel();
+            try {
+                for (Batch batch : batches) {
+                    File f = new File(batch.dir, name);
+                    if (f.exists()) bytes += transfer(f, output);
+                }
+                output.force(false);
+
+            } finally {
+                try { output.close(); } catch (Exception e) {}
+            }
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (Batch batch : batches) {
+            sb.append(batch.fileMetadata.serialize()).append("\n");
+        }
+        FileUtil.write(metadataFile, sb.toString(), true);
+
+        // deleting the journal commits both the data and the metadata
+        FileUtil.delete(outputDir + "/" + JOURNAL_FILE);
+
+        for (Batch batch : batches) {
+            FileUtil.removeDirectory(batch.dir.getPath());
+        }
+
+        log.debug("migrated " + batches.size() + " files (" + (bytes >> 20) + " MB) to '" + outputDir + "' in " +
+                (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private long transfer(File f, FileChannel output) throws IOException {
+        FileChannel input = new FileInputStream(f).getChannel();
+        try {
+            long size = input.size();
+            long pos = 0;
+            while (pos < size) {
+                pos += input.transferTo(pos, size - pos, output);
+            }
+            return size;
+
+        } finally {
+            try { input.close(); } catch (Exception e) {}
+        }
+    }
+
+    private void writeJournal(Properties journal) throws IOException {
+        String filename = outputDir + "/" + JOURNAL_FILE;
+        String workingFilename = filename + ".tmp";
+
+        OutputStream output = new FileOutputStream(workingFilename);
+        try {
+            journal.store(output, null);
+
+        } finally {
+            try { output.close(); } catch (Exception e) {}
+        }
+
+        Files.move(Paths.get(workingFilename), Paths.get(filename), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void truncate(File output, long length) throws IOException {
+        if (output.exists() && output.length() > length) {
+            log.info("rolling back interrupted migration of '" + output.getPath() + "' to " + length + " bytes");
+
+            RandomAccessFile raf = new RandomAccessFile(output, "rw");
+            try {
+                raf.setLength(length);
+
+            } finally {
+                try { raf.close(); } catch (Exception e) {}
+            }
+        }
+    }
+
+    private static final class Batch {
+        private final File dir;
+        private final FileMetadata fileMetadata;
+
+        private Batch(File dir, FileMetadata fileMetadata) {
+            this.dir = dir;
+            this.fileMetadata = fileMetadata;
+        }
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2015 The University of Vermont and State
+ * Agricultural College.  All rights reserved.
+ *
+ * Written by Matthew B. Storer <matthewbstorer@gmail.com>
+ *
+ * This file is part of CCTS Common.
+ *
+ * CCTS Common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CCTS Common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CCTS Common.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package edu.uvm.ccts.genbank.db.loader;
+
+import edu.uvm.ccts.common.db.DataSource;
+import edu.uvm.ccts.common.util.TimeUtil;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.postgresql.PGConnection;
+
+import java.io.*;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Loads into PostgreSQL with {@code COPY ... FROM STDIN}.  Prepared files are already in {@code COPY}'s text format,
+ * and so are streamed to the server as they are.  Each file is split at line boundaries into chunks which are copied
+ * concurrently, each over its own connection and in its own transaction; rows copied into a hash-partitioned table
+ * are routed to their partitions by the server, so that all partitions fill at once.  Since {@code COPY} can't skip
+ * rows with duplicate keys, a load that must do so copies into a temporary table first, and inserts from there.  A
+ * load is not atomic: if one chunk fails, the chunks already committed remain in the table.
+ */
+public class PostgreSQLTarget implements LoadTarget {
+    private static final Log log = LogFactory.getLog(PostgreSQLTarget.class);
+
+    public static final String NAME = "postgresql";
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final long MIN_CHUNK_BYTES = 16 * 1024 * 1024;
+
+    private final int connections;
+    private final long progressMs;
+
+    /**
+     * @param connections the number of connections over which each file is copied
+     * @param progressMs how often the progress of each chunk is logged, or {@code 0} to not log it
+     */
+    public PostgreSQLTarget(int connections, long progressMs) {
+        this.connections = Math.max(1, connections);
+        this.progressMs = progressMs;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public String getDriverClassName() {
+        return "org.postgresql.Driver";
+    }
+
+    @Override
+    public String buildURL(String host, String database) {
+        return "jdbc:postgresql://" + host + "/" + database;
+    }
+
+    @Override
+    public void beginLoad(DataSource dataSource) throws SQLException {
+        // each chunk's transaction is configured as it is copied
+    }
+
+    @Override
+    public void endLoad(DataSource dataSource) throws SQLException {
+        // nothing to restore
+    }
+
+    @Override
+    public long loadFile(final DataSource dataSource, final String table, final String filename,
+                         final String[] columns, final boolean ignore) throws SQLException, IOException {
+
+        long start = System.currentTimeMillis();
+
+        List<long[]> chunks = split(filename, connections, MIN_CHUNK_BYTES);
+
+        ExecutorService svc = Executors.newFixedThreadPool(chunks.size());
+        long rows = 0;
+
+        try {
+            List<Future<Long>> futures = new ArrayList<Future<Long>>();
+            for (int i = 0; i < chunks.size(); i ++) {
+                final long[] chunk = chunks.get(i);
+                final String label = "'" + table + "'" + (chunks.size() > 1 ?
+                        " chunk " + (i + 1) + " of " + chunks.size() :
+                        "");
+
+                futures.add(svc.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+                        return copyChunk(dataSource, table, filename, chunk[0], chunk[1], columns, ignore, label);
+                    }
+                }));
+            }
+
+            Exception failure = null;
+            for (Future<Long> future : futures) {
+                try {
+                    rows += future.get();
+
+                } catch (ExecutionException e) {
+                    log.error("copy into '" + table + "' failed - " + e.getCause().getMessage(), e.getCause());
+                    if (failure == null && e.getCause() instanceof Exception) failure = (Exception) e.getCause();
+                }
+            }
+
+            if (failure instanceof SQLException)    throw (SQLException) failure;
+            else if (failure instanceof IOException) throw (IOException) failure;
+            else if (failure != null)               throw new SQLException("copy into '" + table + "' failed", failure);
+
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted while copying '" + filename + "'", e);
+
+        } finally {
+            svc.shutdownNow();
+        }
+
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        log.info(" copied " + rows + " rows into table '" + table + "' in " + TimeUtil.formatMsToHMS(elapsed) +
+                " over " + chunks.size() + " connection(s) (" + (rows * 1000 / elapsed) + " rows/sec)");
+
+        return rows;
+    }
+
+    @Override
+    public String createTableLike(String table, String likeTable) {
+        return "create table " + table + " (like " + likeTable + " including defaults)";
+    }
+
+    @Override
+    public String createIndex(String table, String indexName, String[] columns) {
+        return "create index " + table + "_" + indexName + " on " + table + " (" + StringUtils.join(columns, ", ") +
+                ")";
+    }
+
+    @Override
+    public String insertIgnore(String table, String select) {
+        return "insert into " + table + " " + select + " on conflict do nothing";
+    }
+
+    @Override
+    public String deleteJoin(String table, String joinTable, String joinCondition, String where) {
+        return "delete from " + table + " t using " + joinTable + " s where " + joinCondition + " and " + where;
+    }
+
+
+//////////////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    /**
+     * Splits a file into (up to) one chunk per connection, each ending at the end of a line
+     * @param maxChunks the maximum number of chunks
+     * @param minChunkBytes the size below which a chunk isn't split further
+     * @return the start and end offsets of each chunk
+     */
+    static List<long[]> split(String filename, int maxChunks, long minChunkBytes) throws IOException {
+        List<long[]> chunks = new ArrayList<long[]>();
+
+        RandomAccessFile raf = new RandomAccessFile(filename, "r");
+        try {
+            long length = raf.length();
+            int count = (int) Math.max(1, Math.min(maxChunks, length / minChunkBytes));
+
+            long start = 0;
+            for (int i = 1; i <= count && start < length; i ++) {
+                long end = i == count ? length : Math.max(start, length * i / count);
+
+                if (end < length) {
+                    raf.seek(end);
+                    int b;
+                    while ((b = raf.read()) != -1 && b != '\n') {
+                        // advance to the end of the line
+                    }
+                    end = raf.getFilePointer();
+                }
+
+                chunks.add(new long[] { start, end });
+                start = end;
+            }
+
+        } finally {
+            try { raf.close(); } catch (Exception e) {}
+        }
+
+        if (chunks.isEmpty()) chunks.add(new long[] { 0, 0 });
+
+        return chunks;
+    }
+
+    /**
+     * Copies the lines of a file between two offsets into a table, over a connection of its own
+     * @return the number of rows loaded
+     */
+    private long copyChunk(DataSource dataSource, String table, String filename, long start, long end,
+                           String[] columns, boolean ignore, String label) throws SQLException, IOException {
+
+        String columnList = columns != null ? " (" + StringUtils.join(columns, ", ") + ")" : "";
+        String copyTable = ignore ? "copy_" + table : table;
+
+        Connection conn = dataSource.checkout();
+        InputStream input = null;
+
+        try {
+            conn.setAutoCommit(false);
+            execute(conn, "set local synchronous_commit = off");
+
+            if (ignore) {
+                execute(conn, "create temporary table " + copyTable + " (like " + table + " including defaults) " +
+                        "on commit drop");
+            }
+
+            FileInputStream fis = new FileInputStream(filename);
+            fis.getChannel().position(start);
+            input = new ProgressInputStream(new BoundedInputStream(fis, end - start), label, end - start, progressMs);
+
+            long rows = conn.unwrap(PGConnection.class).getCopyAPI().copyIn("copy " + copyTable + columnList +
+                    " from stdin with (format text, encoding 'UTF8')", input, BUFFER_SIZE);
+
+            if (ignore) {
+                String select = columns != null ? StringUtils.join(columns, ", ") : "*";
+                rows = execute(conn, insertIgnore(table + columnList, "select " + select + " from " + copyTable));
+            }
+
+            conn.commit();
+
+            return rows;
+
+        } catch (SQLException e) {
+            try { conn.rollback(); } catch (Exception e2) {}
+            throw e;
+
+        } catch (IOException e) {
+            try { conn.rollback(); } catch (Exception e2) {}
+            throw e;
+
+        } finally {
+            try { if (input != null) input.close(); } catch (Exception e) {}
+            try { conn.setAutoCommit(true); } catch (Exception e) {}
+            dataSource.release(conn);
+        }
+    }
+
+    private int execute(Connection conn, String sql) throws SQLException {
+        Statement stmt = conn.createStatement();
+        try {
+            return stmt.executeUpdate(sql);
+
+        } finally {
+            try { stmt.close(); } catch (Exception e) {}
+        }
+    }
+}
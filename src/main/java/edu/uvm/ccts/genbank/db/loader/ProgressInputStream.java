@@ -0,0 +1,153 @@
+/*
+ * Copyright 2015 The University of Vermont and State
+ * Agricultural College.  All rights reserved.
+ *
+ * Written by Matthew B. Storer <matthewbstorer@gmail.com>
+ *
+ * This file is part of CCTS Common.
+ *
+ * CCTS Common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CCTS Common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CCTS Common.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package edu.uvm.ccts.genbank.db.loader;
+
+import edu.uvm.ccts.common.util.TimeUtil;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counts the bytes and lines read through it, and periodically logs the progress of the load it feeds: how much of
+ * the input has been read, the rates at which bytes and rows have been read since the last report, and an estimate of
+ * the time remaining.  Since a database client reads its input only as fast as the server accepts it, these rates are
+ * the throughput of the load as a whole.
+ */
+public class ProgressInputStream extends FilterInputStream {
+    private static final Log log = LogFactory.getLog(ProgressInputStream.class);
+
+    private static final double MB = 1024 * 1024;
+
+    private final String label;
+    private final long totalBytes;
+    private final long reportIntervalMs;
+    private final long start;
+
+    private long bytes = 0;
+    private long lines = 0;
+    private long lastReport;
+    private long lastBytes = 0;
+    private long lastLines = 0;
+
+    /**
+     * @param in the stream being loaded
+     * @param label what is being loaded, e.g. the name of the target table
+     * @param totalBytes the length of the stream, or {@code 0} if unknown
+     * @param reportIntervalMs how often progress is logged, or {@code 0} to not log progress
+     */
+    public ProgressInputStream(InputStream in, String label, long totalBytes, long reportIntervalMs) {
+        super(in);
+        this.label = label;
+        this.totalBytes = totalBytes;
+        this.reportIntervalMs = reportIntervalMs;
+        this.start = System.currentTimeMillis();
+        this.lastReport = start;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b != -1) {
+            bytes ++;
+            if (b == '\n') lines ++;
+            checkReport();
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        if (n > 0) {
+            bytes += n;
+            for (int i = off; i < off + n; i ++) {
+                if (b[i] == '\n') lines ++;
+            }
+            checkReport();
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        bytes += skipped;
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    public long getBytesRead() {
+        return bytes;
+    }
+
+    public long getLinesRead() {
+        return lines;
+    }
+
+
+//////////////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    private void checkReport() {
+        if (reportIntervalMs <= 0) return;
+
+        long now = System.currentTimeMillis();
+        if (now - lastReport < reportIntervalMs) return;
+
+        double seconds = (now - lastReport) / 1000.0;
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(" ").append(label).append(": ");
+
+        if (totalBytes > 0) {
+            sb.append(String.format("%.1f of %.1f MB (%.1f%%)", bytes / MB, totalBytes / MB,
+                    bytes * 100.0 / totalBytes));
+        } else {
+            sb.append(String.format("%.1f MB", bytes / MB));
+        }
+
+        sb.append(", ").append(lines).append(" rows; ");
+        sb.append(String.format("%.1f MB/s, %d rows/s", (bytes - lastBytes) / MB / seconds,
+                (long) ((lines - lastLines) / seconds)));
+
+        if (totalBytes > 0 && bytes > 0 && bytes < totalBytes) {
+            long eta = (long) ((double) (now - start) * (totalBytes - bytes) / bytes);
+            sb.append("; ETA ").append(TimeUtil.formatMsToHMS(eta));
+        }
+
+        log.info(sb.toString());
+
+        lastReport = now;
+        lastBytes = bytes;
+        lastLines = lines;
+    }
+}
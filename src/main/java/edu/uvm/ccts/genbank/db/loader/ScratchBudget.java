@@ -0,0 +1,144 @@
+/*
+ * Copyright 2015 The University of Vermont and State
+ * Agricultural College.  All rights reserved.
+ *
+ * Written by Matthew B. Storer <matthewbstorer@gmail.com>
+ *
+ * This file is part of CCTS Common.
+ *
+ * CCTS Common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CCTS Common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CCTS Common.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.uvm.ccts.genbank.db.loader;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Limits the total scratch (temporary) disk space that worker threads may have in use at once.  Before a worker
+ * downloads or parses a file it reserves an estimate of the space that stage will need, waiting while the reservation
+ * would put the total over budget.  Bytes in flight are tracked per stage for reporting.
+ * <p>
+ * Each worker holds at most one {@link Reservation} at a time, covering every stage of the file it is working on, so
+ * workers can never deadlock waiting on each other's space.  A reservation larger than the entire budget is admitted
+ * once nothing else is in flight.
+ */
+public class ScratchBudget {
+    private final long maxBytes;
+    private final Map<String, Long> inFlight = new LinkedHashMap<String, Long>();
+    private long totalInFlight = 0;
+
+    /**
+     * @param maxBytes the scratch budget, in bytes, or {@code 0} for no limit
+     */
+    public ScratchBudget(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Reserves scratch space, waiting until it is available
+     * @param stageBytes the number of bytes to reserve for each stage, keyed by stage name
+     * @return a {@link Reservation} that must be released once the space is no longer in use
+     * @throws InterruptedException
+     */
+    public synchronized Reservation reserve(Map<String, Long> stageBytes) throws InterruptedException {
+        long bytes = 0;
+        for (Long b : stageBytes.values()) {
+            bytes += b;
+        }
+
+        while (maxBytes > 0 && totalInFlight > 0 && totalInFlight + bytes > maxBytes) {
+            wait();
+        }
+
+        for (Map.Entry<String, Long> entry : stageBytes.entrySet()) {
+            adjust(entry.getKey(), entry.getValue());
+        }
+
+        return new Reservation(stageBytes);
+    }
+
+    /**
+     * @return {@code true} if a reservation of the specified size would currently have to wait
+     */
+    public synchronized boolean isFull(long bytes) {
+        return maxBytes > 0 && totalInFlight > 0 && totalInFlight + bytes > maxBytes;
+    }
+
+    /**
+     * @return a description of the bytes currently in flight in each stage
+     */
+    public synchronized String getStatus() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Long> entry : inFlight.entrySet()) {
+            if (sb.length() > 0) sb.append(", ");
+            sb.append(entry.getKey()).append(": ").append(entry.getValue() >> 20).append(" MB");
+        }
+        sb.append(" (").append(totalInFlight >> 20).append(" of ").append(maxBytes >> 20).append(" MB in use)");
+        return sb.toString();
+    }
+
+
+//////////////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    private synchronized void release(String stage, long bytes) {
+        adjust(stage, -bytes);
+        notifyAll();
+    }
+
+    private void adjust(String stage, long bytes) {
+        Long current = inFlight.get(stage);
+        inFlight.put(stage, (current != null ? current : 0) + bytes);
+        totalInFlight += bytes;
+    }
+
+    /**
+     * Scratch space reserved by a single worker.  Each stage's share may be released as soon as that stage's files are
+     * deleted, allowing other workers to proceed sooner.
+     */
+    public final class Reservation {
+        private final Map<String, Long> stageBytes;
+
+        private Reservation(Map<String, Long> stageBytes) {
+            this.stageBytes = new LinkedHashMap<String, Long>(stageBytes);
+        }
+
+        /**
+         * Releases the space reserved for one stage.  Has no effect if that stage has already been released.
+         */
+        public void release(String stage) {
+            Long bytes;
+            synchronized(this) {
+                bytes = stageBytes.remove(stage);
+            }
+            if (bytes != null) ScratchBudget.this.release(stage, bytes);
+        }
+
+        /**
+         * Releases all space still held by this reservation
+         */
+        public void release() {
+            Map<String, Long> remaining;
+            synchronized(this) {
+                remaining = new LinkedHashMap<String, Long>(stageBytes);
+                stageBytes.clear();
+            }
+            for (Map.Entry<String, Long> entry : remaining.entrySet()) {
+                ScratchBudget.this.release(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+}
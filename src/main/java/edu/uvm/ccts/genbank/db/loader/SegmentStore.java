@@ -0,0 +1,242 @@
+/*
+ * Copyright 2015 The University of Vermont and State
+ * Agricultural College.  All rights reserved.
+ *
+ * Written by Matthew B. Storer <matthewbstorer@gmail.com>
+ *
+ * This file is part of CCTS Common.
+ *
+ * CCTS Common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CCTS Common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CCTS Common.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package edu.uvm.ccts.genbank.db.loader;
+
+import edu.uvm.ccts.common.model.FileMetadata;
+import edu.uvm.ccts.common.util.FileUtil;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Keeps each source file's output as a separate segment, keyed by the file's metadata, so that the output of files
+ * that haven't changed can be reused when everything else is prepared again (e.g. for a new release).  The output
+ * files are assembled from the segments of the current source files once they have all been processed.
+ * <p>
+ * Worker threads finalize each source file's output into their own working directory, which is committed as a
+ * segment by moving it into place under the segment's key.  A segment therefore exists only once it is complete.
+ * The key also covers the settings that affect what is written for a source file, so that changing them causes files
+ * to be processed again rather than their old output reused.
+ */
+public class SegmentStore {
+    private static final Log log = LogFactory.getLog(SegmentStore.class);
+
+    private static final String WORKER_PREFIX = "worker-";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private final File dir;
+    private final File workerRoot;
+    private final String settings;
+
+    /**
+     * @param dir the directory holding the segments
+     * @param workerRoot the directory under which workers' working directories are created, or {@code null} to
+     *                   create them in {@code dir}.  Anything left in them by a previous run is discarded.
+     * @param settings a description of the settings that affect the output written for a source file.  Segments
+     *                 written under different settings are not reused.
+     * @throws IOException
+     */
+    public SegmentStore(String dir, String workerRoot, String settings) throws IOException {
+        this.dir = new File(dir);
+        this.workerRoot = workerRoot != null ? new File(workerRoot) : this.dir;
+        this.settings = settings;
+
+        FileUtil.createDirectory(dir);
+
+        File[] files = this.dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (f.getName().startsWith(WORKER_PREFIX) || f.getName().endsWith(TMP_SUFFIX)) {
+                    FileUtil.removeDirectory(f.getPath());
+                }
+            }
+        }
+
+        if (workerRoot != null) {
+            FileUtil.removeDirectory(workerRoot);
+            FileUtil.createDirectory(workerRoot);
+        }
+    }
+
+    /**
+     * @return the directory into which the specified worker thread finalizes its output
+     */
+    public String getWorkerDir(int threadId) {
+        return new File(workerRoot, WORKER_PREFIX + threadId).getPath();
+    }
+
+    /**
+     * @return {@code true} if a segment exists for a source file with the specified metadata
+     */
+    public boolean contains(FileMetadata fileMetadata) {
+        return getSegmentDir(fileMetadata).isDirectory();
+    }
+
+    /**
+     * Commits the output a worker has finalized for a source file as that file's segment
+     * @param threadId the id of the worker thread that processed the file
+     * @param fileMetadata the metadata of the processed file
+     * @throws IOException
+     */
+    public void commit(int threadId, FileMetadata fileMetadata) throws IOException {
+        File segmentDir = getSegmentDir(fileMetadata);
+        File tmpDir = new File(segmentDir.getPath() + TMP_SUFFIX);
+
+        FileUtil.removeDirectory(tmpDir.getPath());
+        FileUtil.createDirectory(tmpDir.getPath());
+
+        File[] files = new File(getWorkerDir(threadId)).listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (f.isFile()) {
+                    Files.move(f.toPath(), new File(tmpDir, f.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        }
+
+        if (segmentDir.exists()) FileUtil.removeDirectory(segmentDir.getPath());
+        Files.move(tmpDir.toPath(), segmentDir.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Discards the segments of all source files other than those specified
+     * @param current the metadata of the current source files
+     * @return the directories of the current files' existing segments
+     * @throws IOException
+     */
+    public List<String> retain(Collection<FileMetadata> current) throws IOException {
+        Set<String> keep = new HashSet<String>();
+        List<String> retained = new ArrayList<String>();
+        for (FileMetadata fileMetadata : current) {
+            File segmentDir = getSegmentDir(fileMetadata);
+            keep.add(segmentDir.getName());
+            if (segmentDir.isDirectory()) retained.add(segmentDir.getPath());
+        }
+
+        int discarded = 0;
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (f.isDirectory() && ! keep.contains(f.getName()) && ! f.getName().startsWith(WORKER_PREFIX) ) {
+                    FileUtil.removeDirectory(f.getPath());
+                    discarded ++;
+                }
+            }
+        }
+
+        log.info("reusing " + retained.size() + " segments, discarded " + discarded + " stale segments");
+
+        return retained;
+    }
+
+    /**
+     * Assembles the output files from the segments of the specified source files, in the order given.  Each output
+     * file is written to a working file which then replaces it.
+     * @param current the metadata of the current source files
+     * @param outputDir the directory into which the output files are assembled
+     * @throws IOException
+     */
+    public void assemble(List<FileMetadata> current, String outputDir) throws IOException {
+        long start = System.currentTimeMillis();
+
+        List<File> segmentDirs = new ArrayList<File>();
+        Set<String> names = new TreeSet<String>();
+        for (FileMetadata fileMetadata : current) {
+            File segmentDir = getSegmentDir(fileMetadata);
+            String[] list = segmentDir.list();
+            if (list != null) {
+                segmentDirs.add(segmentDir);
+                names.addAll(Arrays.asList(list));
+            }
+        }
+
+        for (String name : names) {
+            String filename = outputDir + "/" + name;
+            String workingFilename = filename + ".assembling";
+
+            FileChannel out = new FileOutputStream(workingFilename).getChannel();
+            try {
+                for (File segmentDir : segmentDirs) {
+                    File f = new File(segmentDir, name);
+                    if ( ! f.isFile() ) continue;
+
+                    FileChannel in = new FileInputStream(f).getChannel();
+                    try {
+                        long pos = 0;
+                        long size = in.size();
+                        while (pos < size) {
+                            pos += in.transferTo(pos, size - pos, out);
+                        }
+
+                    } finally {
+                        try { in.close(); } catch (Exception e) {}
+                    }
+                }
+
+                out.force(false);
+
+            } finally {
+                try { out.close(); } catch (Exception e) {}
+            }
+
+            Files.move(Paths.get(workingFilename), Paths.get(filename), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        log.info("assembled " + names.size() + " output files from " + segmentDirs.size() + " segments in " +
+                (System.currentTimeMillis() - start) + " ms");
+    }
+
+
+//////////////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    private File getSegmentDir(FileMetadata fileMetadata) {
+        String key = settings != null && ! settings.isEmpty() ?
+                fileMetadata.serialize() + "\n" + settings :
+                fileMetadata.serialize();
+
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(Charset.forName("UTF-8")));
+
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest) {
+                sb.append(String.format("%02x", b));
+            }
+            return new File(dir, sb.toString());
+
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);         // every JVM is required to support SHA-1
+        }
+    }
+}
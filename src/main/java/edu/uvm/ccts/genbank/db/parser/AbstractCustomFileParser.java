@@ -42,14 +42,52 @@ public abstract class AbstractCustomFileParser extends AbstractFileParser {
         super(threadId);
     }
 
+    /**
+     * Allows subclasses to drop lines from the input before they are framed into records.  The default implementation
+     * accepts every line.
+     * @param line a line of input
+     * @return {@code true} if the line should be kept; {@code false} otherwise
+     */
+    protected boolean acceptLine(String line) {
+        return true;
+    }
+
+    /**
+     * @return a {@link RecordFilter} used to discard unwanted records while they are being framed, or {@code null} if
+     * every record should be processed (the default)
+     */
+    protected RecordFilter getRecordFilter() {
+        return null;
+    }
+
     public void parse(String filename) throws Exception {
-        InputStream input = null;
+        parseInput(filename, getInputStream(filename));
+    }
+
+    @Override
+    public void parse(String name, InputStream input) throws Exception {
+        parseInput(name, getInputStream(input));
+    }
+
+
+//////////////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    private void parseInput(String filename, InputStream input) throws Exception {
         BufferedReader reader = null;
         long lineNo = 0;
         long byteCount = 0;
 
         try {
-            input = getInputStream(filename);
+            Checkpoint checkpoint = resume(filename);
+            long skipCount = checkpoint != null ? checkpoint.getRecordCount() : 0;
+            long recordNo = 0;
+            int checkpointInterval = getCheckpointInterval();
+
+            RecordFilter filter = getRecordFilter();
+            RecordFilter.Decision decision = RecordFilter.Decision.ACCEPT;
+
             reader = new BufferedReader(new InputStreamReader(input));
 
             String line;
@@ -58,19 +96,47 @@ public abstract class AbstractCustomFileParser extends AbstractFileParser {
             while ((line = reader.readLine()) != null) {
                 lineNo++;
 
-                if (line.startsWith(getRecordStartText()) && sb.length() > 0) {
-                    processRecord(sb);
-                    byteCount = 0;
-                }
+                if ( ! acceptLine(line) ) continue;
+
+                if (line.startsWith(getRecordStartText())) {
+                    if (sb.length() > 0) {
+                        processRecord(sb);
+                        byteCount = 0;
+                    }
 
-                sb.append(line).append("\n");
+                    if (checkpointInterval > 0 && recordNo > skipCount && recordNo % checkpointInterval == 0) {
+                        checkpoint(filename, recordNo);
+                    }
 
-                byteCount += line.length() + 1;
+                    recordNo ++;
+
+                    if (filter != null) {
+                        filter.reset();
+                        decision = RecordFilter.Decision.UNDECIDED;
+                    }
+                }
+
+                if (recordNo > skipCount || skipCount == 0) {       // records already committed by a previous run
+                                                                    // are framed, but not processed
+                    if (decision == RecordFilter.Decision.UNDECIDED) {
+                        decision = filter.test(line);
+                        if (decision == RecordFilter.Decision.REJECT) {
+                            sb.setLength(0);                        // the rest of the record is not buffered
+                            byteCount = 0;
+                        }
+                    }
+
+                    if (decision != RecordFilter.Decision.REJECT) {
+                        sb.append(line).append("\n");
+                        byteCount += line.length() + 1;
+                    }
+                }
             }
 
-            processRecord(sb);
+            if (sb.length() > 0) processRecord(sb);
             flushBuffers();
             finalizeUpdates();
+            clearCheckpoint(filename);
 
         } catch (Error e) {
             log.error("[" + threadId + "]  encountered " + e.getClass().getName() + " processing file '" + filename +
@@ -22,6 +22,12 @@
 
 package edu.uvm.ccts.common.db.parser;
 
+import edu.uvm.ccts.common.model.FileMetadata;
+import edu.uvm.ccts.common.util.FileUtil;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.List;
@@ -30,10 +36,24 @@ import java.util.List;
  * Created by mstorer on 5/19/14.
  */
 public abstract class AbstractFileParser {
+    private static final Log log = LogFactory.getLog(AbstractFileParser.class);
+
+    private static final String CHECKPOINT_FILE = "checkpoint";
+
     protected final int threadId;
 
+    private FileMetadata source = null;
+
     public abstract void parse(String filename) throws Exception;
 
+    /**
+     * Parses the contents of a file as they are read from a stream, rather than from a local copy of the file
+     * @param name the name of the file whose contents are being read
+     * @param input the raw (undecoded) contents of the file, as would be read from disk
+     * @throws Exception
+     */
+    public abstract void parse(String name, InputStream input) throws Exception;
+
     protected abstract List<TableData> getTableDataList();
     protected abstract InputStream getInputStream(String filename) throws IOException;
 
@@ -42,6 +62,131 @@ public abstract class AbstractFileParser {
         this.threadId = threadId;
     }
 
+    /**
+     * Describes the next file to be parsed as reported by the server it came from.  Checkpoints record this metadata,
+     * and are only resumed against a file with the same size and modification time; without it, only a local file's
+     * length can be compared, which is unknown when the file is streamed.
+     * @param source the metadata of the file about to be parsed, or {@code null} if unknown
+     */
+    public void setSource(FileMetadata source) {
+        this.source = source;
+    }
+
+    /**
+     * Decodes raw file contents (e.g. decompresses them) into the stream from which records will be read.  The default
+     * implementation returns the stream unchanged.
+     * @param input the raw file contents
+     * @return an {@link InputStream} from which records may be read
+     * @throws IOException
+     */
+    protected InputStream getInputStream(InputStream input) throws IOException {
+        return input;
+    }
+
+    /**
+     * @param name the name of the file being parsed
+     * @return the length of the named file, or {@code -1} if there is no such local file (e.g. when its contents are
+     * being streamed)
+     */
+    protected long getInputLength(String name) {
+        File f = new File(name);
+        return f.isFile() ? f.length() : -1;
+    }
+
+    /**
+     * @return the directory under which per-file checkpoints are kept, or {@code null} if checkpointing is disabled
+     * (the default)
+     */
+    protected String getCheckpointDir() {
+        return null;
+    }
+
+    /**
+     * @return the number of records to process between checkpoints, or {@code 0} if checkpointing is disabled
+     */
+    protected int getCheckpointInterval() {
+        return 0;
+    }
+
+    /**
+     * @return the number of raw (compressed) bytes consumed from the current input so far, or {@code -1} if unknown
+     */
+    protected long getInputOffset() {
+        return -1;
+    }
+
+    /**
+     * Prepares table-data buffers for parsing the specified file.  If a valid checkpoint exists for the file, each
+     * table is restored to its checkpointed state; otherwise, any stale checkpoint data is discarded.
+     * @param filename the name of the file about to be parsed
+     * @return the {@link Checkpoint} from which parsing should resume, or {@code null} if parsing should start from
+     * the beginning of the file
+     * @throws IOException
+     */
+    protected Checkpoint resume(String filename) throws IOException {
+        String dir = getCheckpointDir(filename);
+
+        for (TableData td : getTableDataList()) {
+            td.setCheckpointDir(dir);
+            td.reset();
+        }
+
+        if (dir == null) return null;
+
+        Checkpoint checkpoint = validate(filename, Checkpoint.load(dir + "/" + CHECKPOINT_FILE));
+
+        if (checkpoint != null) {
+            for (TableData td : getTableDataList()) {
+                td.restore(checkpoint.getSegmentLength(td.getName()));
+            }
+
+            log.info("[" + threadId + "]  resuming '" + filename + "' after record " + checkpoint.getRecordCount() +
+                    " (input offset " + checkpoint.getInputOffset() + ")");
+
+        } else {
+            if (FileUtil.exists(dir)) FileUtil.removeDirectory(dir);
+            FileUtil.createDirectory(dir);
+        }
+
+        return checkpoint;
+    }
+
+    /**
+     * Commits all data parsed so far from the specified file to the checkpoint segments, and records a checkpoint
+     * from which parsing may later be resumed
+     * @param filename the name of the file being parsed
+     * @param recordCount the number of records from the file that have been completely processed
+     * @throws IOException
+     */
+    protected void checkpoint(String filename, long recordCount) throws IOException {
+        String dir = getCheckpointDir(filename);
+        if (dir == null) return;
+
+        Checkpoint checkpoint = new Checkpoint(recordCount, getInputLength(filename), getInputOffset(),
+                getSource(filename));
+        for (TableData td : getTableDataList()) {
+            checkpoint.setSegmentLength(td.getName(), td.checkpoint());
+        }
+
+        checkpoint.save(dir + "/" + CHECKPOINT_FILE);
+    }
+
+    /**
+     * Removes the checkpoint for the specified file.  This should be called once the file's data has been finalized.
+     * @param filename the name of the file that was parsed
+     * @throws IOException
+     */
+    protected void clearCheckpoint(String filename) throws IOException {
+        String dir = getCheckpointDir(filename);
+        if (dir != null && FileUtil.exists(dir)) {
+            FileUtil.removeDirectory(dir);
+        }
+
+        for (TableData td : getTableDataList()) {
+            td.setCheckpointDir(null);
+        }
+    }
+
     /**
      * Flushes table-data buffers to disk (to the working, temporary file)
      * @throws IOException
@@ -64,4 +209,53 @@ public abstract class AbstractFileParser {
         }
     }
 
+
+//////////////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    private String getCheckpointDir(String filename) {
+        return getCheckpointDir() != null && getCheckpointInterval() > 0 ?
+                getCheckpointDir() + "/" + new File(filename).getName() :
+                null;
+    }
+
+    /**
+     * @return the metadata set with {@code setSource}, provided it describes the named file
+     */
+    private FileMetadata getSource(String filename) {
+        return source != null && new File(source.getFilename()).getName().equals(new File(filename).getName()) ?
+                source :
+                null;
+    }
+
+    /**
+     * A checkpoint may only be used if it was taken against an identical input file, and if every table's segment
+     * still holds at least as much data as was committed at the time the checkpoint was taken.  The input file is
+     * compared by its source metadata if either the checkpoint or the current parse has it, and otherwise by its local
+     * length, which must be known.
+     */
+    private Checkpoint validate(String filename, Checkpoint checkpoint) {
+        if (checkpoint == null) return null;
+
+        FileMetadata source = getSource(filename);
+        if (source != null || checkpoint.getSource() != null) {
+            if (source == null || ! source.equals(checkpoint.getSource())) {
+                log.info("[" + threadId + "]  discarding checkpoint for '" + filename + "' - the file has changed");
+                return null;
+            }
+
+        } else {
+            long length = getInputLength(filename);
+            if (length < 0 || checkpoint.getInputLength() != length) return null;
+        }
+
+        for (TableData td : getTableDataList()) {
+            Long length = checkpoint.getSegmentLength(td.getName());
+            if (length == null || td.getSegmentLength() < length) return null;
+        }
+
+        return checkpoint;
+    }
+
 }
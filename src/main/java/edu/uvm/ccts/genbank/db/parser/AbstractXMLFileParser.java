@@ -46,16 +46,29 @@ public abstract class AbstractXMLFileParser extends AbstractFileParser {
         super(threadId);
     }
 
-    @Override
     public void parse(String filename) throws Exception {
-        InputStream input = null;
+        parseInput(filename, getInputStream(filename));
+    }
+
+    @Override
+    public void parse(String name, InputStream input) throws Exception {
+        parseInput(name, getInputStream(input));
+    }
+
+
+//////////////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    private void parseInput(String filename, InputStream input) throws Exception {
         BufferedReader reader = null;
         long lineNo = 0;
         long byteCount = 0;
         boolean recording = false;
 
         try {
-            input = getInputStream(filename);
+            resume(filename);
+
             reader = new BufferedReader(new InputStreamReader(input));
 
             String line;
@@ -96,6 +109,7 @@ public abstract class AbstractXMLFileParser extends AbstractFileParser {
 
             flushBuffers();
             finalizeUpdates();
+            clearCheckpoint(filename);
 
         } catch (Error e) {
             log.error("[" + threadId + "]  encountered " + e.getClass().getName() + " processing file '" + filename +
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2015 The University of Vermont and State
+ * Agricultural College.  All rights reserved.
+ *
+ * Written by Matthew B. Storer <matthewbstorer@gmail.com>
+ *
+ * This file is part of CCTS Common.
+ *
+ * CCTS Common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CCTS Common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CCTS Common.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.uvm.ccts.common.db.parser;
+
+import edu.uvm.ccts.common.model.FileMetadata;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Records how far the parsing of an individual source file has progressed, such that an interrupted parse may be
+ * resumed from the most recent checkpoint rather than from the beginning of the file.  A checkpoint consists of the
+ * number of records that have been fully processed, the length of the input file and the number of (compressed)
+ * input bytes consumed at that point, the length of each table's committed data segment, and (when known) the size
+ * and modification time of the source file as reported by the server it came from.
+ */
+public class Checkpoint {
+    private static final String RECORD_COUNT = "recordCount";
+    private static final String INPUT_LENGTH = "inputLength";
+    private static final String INPUT_OFFSET = "inputOffset";
+    private static final String SOURCE = "source";
+    private static final String SEGMENT_PREFIX = "segment.";
+
+    private long recordCount;
+    private long inputLength;
+    private long inputOffset;
+    private FileMetadata source;
+    private Map<String, Long> segmentLengths = new LinkedHashMap<String, Long>();
+
+    public Checkpoint(long recordCount, long inputLength, long inputOffset) {
+        this(recordCount, inputLength, inputOffset, null);
+    }
+
+    public Checkpoint(long recordCount, long inputLength, long inputOffset, FileMetadata source) {
+        this.recordCount = recordCount;
+        this.inputLength = inputLength;
+        this.inputOffset = inputOffset;
+        this.source = source;
+    }
+
+    /**
+     * Loads a previously-saved checkpoint
+     * @param filename the name of the checkpoint file
+     * @return the {@link Checkpoint} stored in the specified file, or {@code null} if the file does not exist
+     * @throws IOException
+     */
+    public static Checkpoint load(String filename) throws IOException {
+        File f = new File(filename);
+        if ( ! f.isFile() ) return null;
+
+        Properties p = new Properties();
+        InputStream input = new FileInputStream(f);
+        try {
+            p.load(input);
+
+        } finally {
+            try { input.close(); } catch (Exception e) {}
+        }
+
+        try {
+            String source = p.getProperty(SOURCE);
+
+            Checkpoint checkpoint = new Checkpoint(Long.parseLong(p.getProperty(RECORD_COUNT)),
+                    Long.parseLong(p.getProperty(INPUT_LENGTH)),
+                    Long.parseLong(p.getProperty(INPUT_OFFSET)),
+                    source != null ? FileMetadata.deserialize(source) : null);
+
+            for (String key : p.stringPropertyNames()) {
+                if (key.startsWith(SEGMENT_PREFIX)) {
+                    checkpoint.setSegmentLength(key.substring(SEGMENT_PREFIX.length()), Long.parseLong(p.getProperty(key)));
+                }
+            }
+
+            return checkpoint;
+
+        } catch (RuntimeException e) {
+            throw new IOException("invalid checkpoint file '" + filename + "' - " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Writes this checkpoint to disk.  The checkpoint is first written to a working file which then replaces the
+     * target file, so that an interruption while saving never leaves a partially-written checkpoint behind.
+     * @param filename the name of the checkpoint file
+     * @throws IOException
+     */
+    public void save(String filename) throws IOException {
+        Properties p = new Properties();
+        p.setProperty(RECORD_COUNT, String.valueOf(recordCount));
+        p.setProperty(INPUT_LENGTH, String.valueOf(inputLength));
+        p.setProperty(INPUT_OFFSET, String.valueOf(inputOffset));
+        if (source != null) p.setProperty(SOURCE, source.serialize());
+        for (Map.Entry<String, Long> entry : segmentLengths.entrySet()) {
+            p.setProperty(SEGMENT_PREFIX + entry.getKey(), String.valueOf(entry.getValue()));
+        }
+
+        String workingFilename = filename + ".tmp";
+        OutputStream output = new FileOutputStream(workingFilename);
+        try {
+            p.store(output, null);
+
+        } finally {
+            try { output.close(); } catch (Exception e) {}
+        }
+
+        Files.move(Paths.get(workingFilename), Paths.get(filename), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    public long getInputLength() {
+        return inputLength;
+    }
+
+    public long getInputOffset() {
+        return inputOffset;
+    }
+
+    /**
+     * @return the metadata of the source file the checkpoint was taken against, or {@code null} if it wasn't known
+     */
+    public FileMetadata getSource() {
+        return source;
+    }
+
+    public Long getSegmentLength(String name) {
+        return segmentLengths.get(name);
+    }
+
+    public void setSegmentLength(String name, long length) {
+        segmentLengths.put(name, length);
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2015 The University of Vermont and State
+ * Agricultural College.  All rights reserved.
+ *
+ * Written by Matthew B. Storer <matthewbstorer@gmail.com>
+ *
+ * This file is part of CCTS Common.
+ *
+ * CCTS Common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CCTS Common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CCTS Common.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.uvm.ccts.common.db.parser;
+
+/**
+ * Decides whether a record should be processed by looking at its leading lines as they are framed, so that records
+ * which are not wanted can be discarded before the rest of them is buffered or parsed.  A filter is stateful, and is
+ * used by a single parser.
+ */
+public interface RecordFilter {
+    enum Decision { ACCEPT, REJECT, UNDECIDED }
+
+    /**
+     * Prepares this filter to evaluate a new record
+     */
+    void reset();
+
+    /**
+     * Evaluates the next line of the current record.  Lines are passed in order, starting with the line that begins
+     * the record, until a decision other than {@code UNDECIDED} is returned.  A record that is still undecided when it
+     * ends is processed.
+     * @param line a line of the current record
+     * @return the {@link Decision} reached so far
+     */
+    Decision test(String line);
+}
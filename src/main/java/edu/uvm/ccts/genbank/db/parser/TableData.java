@@ -44,8 +44,10 @@ public class TableData {
 
     private List<String> list = new ArrayList<String>();
     private int byteCount = 0;
+    private String name;
     private String tempFilename;
     private String filename;
+    private String segmentFilename = null;
 
     /**
      * Creates a new TableData buffer.
@@ -55,6 +57,7 @@ public class TableData {
      * @throws IOException
      */
     public TableData(String tempDir, String outputDir, String filename) throws IOException {
+        this.name = filename;
         this.tempFilename = tempDir + "/" + filename;
         this.filename = outputDir + "/" + filename;
 
@@ -62,10 +65,25 @@ public class TableData {
         FileUtil.createDirectory(outputDir);
     }
 
+    public String getName() {
+        return name;
+    }
+
     public String getFilename() {
         return filename;
     }
 
+    /**
+     * Enables or disables checkpointing for this table.  When enabled, each call to {@code checkpoint} moves the data
+     * flushed so far into a segment file in the specified directory, where it survives an interruption of the process.
+     * @param checkpointDir the directory in which the segment file is kept, or {@code null} to disable checkpointing
+     */
+    public void setCheckpointDir(String checkpointDir) {
+        segmentFilename = checkpointDir != null ?
+                checkpointDir + "/" + name :
+                null;
+    }
+
     /**
      * Adds a new record to this table.  Records may consist of one or more Objects, each of which will be serialized
      * to string before being written to disk.  Serialization occurs simply by calling {@code toString()} on any Object
@@ -127,7 +145,15 @@ public class TableData {
      */
     public void finalizeUpdates() throws IOException {
         try {
-            FileUtil.append(tempFilename, filename);
+            if (segmentFilename != null && new File(segmentFilename).exists()) {
+                if (new File(tempFilename).exists()) {
+                    FileUtil.append(tempFilename, segmentFilename);
+                }
+                FileUtil.append(segmentFilename, filename);
+
+            } else {
+                FileUtil.append(tempFilename, filename);
+            }
 
         } catch (IOException e) {
             log.error("caught " + e.getClass().getName() + " finalizing updates to file '" + filename +
@@ -141,9 +167,70 @@ public class TableData {
 
         } finally {
             FileUtil.delete(tempFilename);
+            if (segmentFilename != null) FileUtil.delete(segmentFilename);
         }
     }
 
+    /**
+     * Flushes the internal buffer and moves everything written to the temporary / working file so far onto the end of
+     * the checkpoint segment file.  Has no effect beyond flushing if checkpointing is disabled.
+     * @return the length of the segment file after the move, which is the offset up to which this table's data for the
+     * current source file is committed.
+     * @throws IOException
+     */
+    public long checkpoint() throws IOException {
+        flush();
+
+        if (segmentFilename == null) return 0;
+
+        FileUtil.append(tempFilename, segmentFilename);
+        FileUtil.delete(tempFilename);
+
+        return new File(segmentFilename).length();
+    }
+
+    /**
+     * Restores this table to the state it was in when a checkpoint was taken, discarding any data that was written
+     * after that checkpoint.
+     * @param segmentLength the segment length recorded by the checkpoint
+     * @throws IOException
+     */
+    public void restore(long segmentLength) throws IOException {
+        reset();
+
+        if (segmentFilename != null) {
+            RandomAccessFile raf = new RandomAccessFile(segmentFilename, "rw");
+            try {
+                raf.setLength(segmentLength);
+
+            } finally {
+                try { raf.close(); } catch (Exception e) {}
+            }
+        }
+    }
+
+    /**
+     * @return the number of bytes currently committed to the checkpoint segment file, or {@code -1} if checkpointing
+     * is disabled or no segment exists
+     */
+    public long getSegmentLength() {
+        if (segmentFilename == null) return -1;
+        File f = new File(segmentFilename);
+        return f.exists() ? f.length() : -1;
+    }
+
+    /**
+     * Discards all data that has been buffered or written to the temporary / working file, but not yet finalized.
+     * This is called before a source file is parsed, so that data left behind by a failed parse of some other file
+     * never makes its way into the master file.
+     * @throws IOException
+     */
+    public void reset() throws IOException {
+        list.clear();
+        byteCount = 0;
+        if (new File(tempFilename).exists()) FileUtil.delete(tempFilename);
+    }
+
 //////////////////////////////////////////////////////////////////////////////////////////
 // private methods
 //
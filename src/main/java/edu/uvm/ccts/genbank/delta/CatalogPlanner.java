@@ -0,0 +1,225 @@
+/*
+ * Copyright 2015 The University of Vermont and State Agricultural
+ * College, Vermont Oxford Network.  All rights reserved.
+ *
+ * Written by Matthew B. Storer <matthewbstorer@gmail.com>
+ *
+ * This file is part of GenBank Loader.
+ *
+ * GenBank Loader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenBank Loader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenBank Loader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package edu.uvm.ccts.genbank.delta;
+
+import edu.uvm.ccts.common.util.FileUtil;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.*;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Compares two RefSeq release catalogs ({@code RefSeq-release*.catalog.gz}) to determine which accessions were added,
+ * removed or re-versioned between the releases, without downloading any data files.  Each catalog is reduced to
+ * its accession, version and release directories, sorted, and the two are then merge-joined.
+ */
+public class CatalogPlanner {
+    private static final Log log = LogFactory.getLog(CatalogPlanner.class);
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final int ACCESSION_COLUMN = 2;
+    private static final int DIRECTORY_COLUMN = 4;
+
+    public static final String ADDED_FILE = "added.txt";
+    public static final String REMOVED_FILE = "removed.txt";
+    public static final String REVERSIONED_FILE = "reversioned.txt";
+
+    private ExternalSorter sorter;
+
+    private long added = 0;
+    private long removed = 0;
+    private long reversioned = 0;
+    private long unchanged = 0;
+    private Map<String, Long> changesByDirectory = new TreeMap<String, Long>();
+
+    /**
+     * @param sorter the {@link ExternalSorter} used to sort reduced catalogs
+     */
+    public CatalogPlanner(ExternalSorter sorter) {
+        this.sorter = sorter;
+    }
+
+    /**
+     * Reduces a downloaded catalog to sorted {@code accession <tab> version <tab> directories} lines
+     * @param catalogFilename the gzip-compressed catalog
+     * @param reducedFilename the file to which the reduced, sorted catalog is written
+     * @throws IOException
+     */
+    public void reduce(String catalogFilename, String reducedFilename) throws IOException {
+        long count = 0;
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(new FileInputStream(catalogFilename), BUFFER_SIZE)), BUFFER_SIZE);
+        BufferedWriter writer = new BufferedWriter(new FileWriter(reducedFilename), BUFFER_SIZE);
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\t");
+                if (parts.length <= DIRECTORY_COLUMN) continue;
+
+                String accVer = parts[ACCESSION_COLUMN];
+                int idx = accVer.lastIndexOf('.');
+
+                writer.write(idx > 0 ? accVer.substring(0, idx) : accVer);
+                writer.write('\t');
+                writer.write(idx > 0 ? accVer.substring(idx + 1) : "");
+                writer.write('\t');
+                writer.write(parts[DIRECTORY_COLUMN]);
+                writer.newLine();
+                count ++;
+            }
+
+        } finally {
+            try { reader.close(); } catch (Exception e) {}
+            try { writer.close(); } catch (Exception e) {}
+        }
+
+        sorter.sort(reducedFilename, reducedFilename);
+
+        log.info("reduced " + count + " catalog entries from '" + catalogFilename + "'");
+    }
+
+    /**
+     * Merge-joins two reduced catalogs, writing the accessions added, removed and re-versioned to the plan directory
+     * @param previousFilename the reduced catalog of the previous release
+     * @param currentFilename the reduced catalog of the current release
+     * @param planDir the directory into which the plan is written
+     * @throws IOException
+     */
+    public void plan(String previousFilename, String currentFilename, String planDir) throws IOException {
+        long start = System.currentTimeMillis();
+
+        FileUtil.createDirectory(planDir);
+
+        BufferedReader prev = new BufferedReader(new FileReader(previousFilename), BUFFER_SIZE);
+        BufferedReader curr = new BufferedReader(new FileReader(currentFilename), BUFFER_SIZE);
+        BufferedWriter addedWriter = new BufferedWriter(new FileWriter(planDir + "/" + ADDED_FILE), BUFFER_SIZE);
+        BufferedWriter removedWriter = new BufferedWriter(new FileWriter(planDir + "/" + REMOVED_FILE), BUFFER_SIZE);
+        BufferedWriter reversionedWriter = new BufferedWriter(new FileWriter(planDir + "/" + REVERSIONED_FILE),
+                BUFFER_SIZE);
+
+        try {
+            String p = prev.readLine();
+            String c = curr.readLine();
+
+            while (p != null || c != null) {
+                int cmp = p == null ? 1 :
+                        c == null ? -1 :
+                        column(p, 0).compareTo(column(c, 0));
+
+                if (cmp < 0) {
+                    write(removedWriter, p);
+                    removed ++;
+                    count(p);
+                    p = prev.readLine();
+
+                } else if (cmp > 0) {
+                    write(addedWriter, c);
+                    added ++;
+                    count(c);
+                    c = curr.readLine();
+
+                } else {
+                    if (column(p, 1).equals(column(c, 1))) {
+                        unchanged ++;
+
+                    } else {
+                        write(reversionedWriter, c);
+                        reversioned ++;
+                        count(c);
+                    }
+                    p = prev.readLine();
+                    c = curr.readLine();
+                }
+            }
+
+        } finally {
+            try { prev.close(); } catch (Exception e) {}
+            try { curr.close(); } catch (Exception e) {}
+            try { addedWriter.close(); } catch (Exception e) {}
+            try { removedWriter.close(); } catch (Exception e) {}
+            try { reversionedWriter.close(); } catch (Exception e) {}
+        }
+
+        log.info("planned catalog changes in " + (System.currentTimeMillis() - start) + " ms - " + getSummary());
+    }
+
+    public long getAddedCount() {
+        return added;
+    }
+
+    public long getRemovedCount() {
+        return removed;
+    }
+
+    public long getReversionedCount() {
+        return reversioned;
+    }
+
+    /**
+     * @return the number of changed accessions in each release directory (e.g. {@code vertebrate_mammalian})
+     */
+    public Map<String, Long> getChangesByDirectory() {
+        return changesByDirectory;
+    }
+
+    public String getSummary() {
+        return added + " accessions added, " + removed + " removed, " + reversioned + " re-versioned, " + unchanged +
+                " unchanged";
+    }
+
+
+//////////////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    private void write(BufferedWriter writer, String line) throws IOException {
+        String version = column(line, 1);
+        writer.write(column(line, 0));
+        if ( ! version.isEmpty() ) writer.write("." + version);
+        writer.newLine();
+    }
+
+    private void count(String line) {
+        for (String directory : column(line, 2).split("\\|")) {
+            if (directory.isEmpty()) continue;
+            Long n = changesByDirectory.get(directory);
+            changesByDirectory.put(directory, n != null ? n + 1 : 1);
+        }
+    }
+
+    private static String column(String line, int index) {
+        int start = 0;
+        for (int i = 0; i < index; i ++) {
+            start = line.indexOf('\t', start) + 1;
+            if (start == 0) return "";
+        }
+
+        int end = line.indexOf('\t', start);
+        return end >= 0 ? line.substring(start, end) : line.substring(start);
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2015 The University of Vermont and State Agricultural
+ * College, Vermont Oxford Network.  All rights reserved.
+ *
+ * Written by Matthew B. Storer <matthewbstorer@gmail.com>
+ *
+ * This file is part of GenBank Loader.
+ *
+ * GenBank Loader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenBank Loader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenBank Loader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package edu.uvm.ccts.genbank.delta;
+
+import edu.uvm.ccts.common.util.FileUtil;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts text files too large to sort in memory.  Runs of lines are sorted in memory and spilled to temporary files,
+ * which are then merged in a single pass.
+ */
+public class ExternalSorter {
+    private static final Log log = LogFactory.getLog(ExternalSorter.class);
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private String tempDir;
+    private int maxLinesPerRun;
+
+    /**
+     * @param tempDir the directory in which sorted runs are spilled
+     * @param maxLinesPerRun the number of lines sorted in memory at a time
+     */
+    public ExternalSorter(String tempDir, int maxLinesPerRun) {
+        this.tempDir = tempDir;
+        this.maxLinesPerRun = maxLinesPerRun;
+    }
+
+    /**
+     * Sorts the lines of a file lexicographically.  The sorted output is written to a working file which then
+     * replaces the target file.
+     * @param inFilename the file to sort
+     * @param outFilename the file to which the sorted lines are written (may be the same as {@code inFilename})
+     * @throws IOException
+     */
+    public void sort(String inFilename, String outFilename) throws IOException {
+        long start = System.currentTimeMillis();
+
+        FileUtil.createDirectory(tempDir);
+        List<File> runs = new ArrayList<File>();
+
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(inFilename), BUFFER_SIZE);
+            try {
+                List<String> lines = new ArrayList<String>();
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    lines.add(line);
+                    if (lines.size() >= maxLinesPerRun) {
+                        runs.add(writeRun(lines));
+                        lines.clear();
+                    }
+                }
+                if ( ! lines.isEmpty() || runs.isEmpty() ) runs.add(writeRun(lines));
+
+            } finally {
+                try { reader.close(); } catch (Exception e) {}
+            }
+
+            String workingFilename = outFilename + ".sorting";
+            merge(runs, workingFilename);
+            Files.move(Paths.get(workingFilename), Paths.get(outFilename), StandardCopyOption.REPLACE_EXISTING);
+
+        } finally {
+            for (File run : runs) {
+                if (run.exists()) run.delete();
+            }
+        }
+
+        log.info("sorted '" + inFilename + "' in " + runs.size() + " runs in " +
+                (System.currentTimeMillis() - start) + " ms");
+    }
+
+
+//////////////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    private File writeRun(List<String> lines) throws IOException {
+        Collections.sort(lines);
+
+        File f = File.createTempFile("run-", ".txt", new File(tempDir));
+        BufferedWriter writer = new BufferedWriter(new FileWriter(f), BUFFER_SIZE);
+        try {
+            for (String line : lines) {
+                writer.write(line);
+                writer.newLine();
+            }
+
+        } finally {
+            try { writer.close(); } catch (Exception e) {}
+        }
+
+        return f;
+    }
+
+    private void merge(List<File> runs, String outFilename) throws IOException {
+        PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(Math.max(1, runs.size()));
+        List<RunReader> readers = new ArrayList<RunReader>();
+
+        BufferedWriter writer = new BufferedWriter(new FileWriter(outFilename), BUFFER_SIZE);
+        try {
+            for (File run : runs) {
+                RunReader rr = new RunReader(run);
+                readers.add(rr);
+                if (rr.advance()) queue.add(rr);
+            }
+
+            while ( ! queue.isEmpty() ) {
+                RunReader rr = queue.poll();
+                writer.write(rr.line);
+                writer.newLine();
+
+                if (rr.advance()) queue.add(rr);
+            }
+
+        } finally {
+            for (RunReader rr : readers) {
+                try { rr.reader.close(); } catch (Exception e) {}
+            }
+            try { writer.close(); } catch (Exception e) {}
+        }
+    }
+
+    private static final class RunReader implements Comparable<RunReader> {
+        private final BufferedReader reader;
+        private String line = null;
+
+        private RunReader(File f) throws IOException {
+            reader = new BufferedReader(new FileReader(f), BUFFER_SIZE / 16);
+        }
+
+        private boolean advance() throws IOException {
+            line = reader.readLine();
+            return line != null;
+        }
+
+        @Override
+        public int compareTo(RunReader o) {
+            return line.compareTo(o.line);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2015 The University of Vermont and State Agricultural
+ * College, Vermont Oxford Network.  All rights reserved.
+ *
+ * Written by Matthew B. Storer <matthewbstorer@gmail.com>
+ *
+ * This file is part of GenBank Loader.
+ *
+ * GenBank Loader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenBank Loader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenBank Loader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package edu.uvm.ccts.genbank.delta;
+
+import edu.uvm.ccts.common.util.FileUtil;
+import edu.uvm.ccts.genbank.filter.LocusVersionMap;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.*;
+import java.util.Collection;
+
+/**
+ * Compares the sorted locus manifests of two releases.  Each manifest line holds a record's partition key, locus and
+ * content hash, so a single merge-join over both manifests identifies the loci added, removed and changed between
+ * the releases.  The rows of added and changed loci can then be extracted from the newer release's tables, and
+ * applied to a database holding the older release along with the removed loci.
+ */
+public class ManifestDiff {
+    private static final Log log = LogFactory.getLog(ManifestDiff.class);
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private String previousFilename;
+    private String currentFilename;
+    private LocusVersionMap upserted;
+
+    private long added = 0;
+    private long removed = 0;
+    private long changed = 0;
+    private long unchanged = 0;
+
+    /**
+     * @param previousFilename the sorted manifest of the release currently in the database
+     * @param currentFilename the sorted manifest of the newly-prepared release
+     * @param expectedChanges the number of loci expected to be added or changed, used to size the set that holds them
+     */
+    public ManifestDiff(String previousFilename, String currentFilename, long expectedChanges) {
+        this.previousFilename = previousFilename;
+        this.currentFilename = currentFilename;
+        upserted = new LocusVersionMap(expectedChanges);
+    }
+
+    /**
+     * Merge-joins the two manifests, collecting the added and changed loci and writing the keys of removed loci
+     * @param removedKeysFilename the file to which the partition key and locus of each removed locus are written
+     * @throws IOException
+     */
+    public void diff(String removedKeysFilename) throws IOException {
+        long start = System.currentTimeMillis();
+
+        BufferedReader prev = new BufferedReader(new FileReader(previousFilename), BUFFER_SIZE);
+        BufferedReader curr = new BufferedReader(new FileReader(currentFilename), BUFFER_SIZE);
+        BufferedWriter writer = new BufferedWriter(new FileWriter(removedKeysFilename), BUFFER_SIZE);
+
+        try {
+            String p = prev.readLine();
+            String c = curr.readLine();
+
+            while (p != null || c != null) {
+                int cmp = p == null ? 1 :
+                        c == null ? -1 :
+                        key(p).compareTo(key(c));
+
+                if (cmp < 0) {                                  // only in the previous release
+                    writer.write(key(p));
+                    writer.newLine();
+                    removed ++;
+                    p = prev.readLine();
+
+                } else if (cmp > 0) {                           // only in the current release
+                    upserted.claim(locus(c), 0);
+                    added ++;
+                    c = curr.readLine();
+
+                } else {
+                    if (p.equals(c)) {
+                        unchanged ++;
+
+                    } else {
+                        upserted.claim(locus(c), 0);
+                        changed ++;
+                    }
+                    p = prev.readLine();
+                    c = curr.readLine();
+                }
+            }
+
+        } finally {
+            try { prev.close(); } catch (Exception e) {}
+            try { curr.close(); } catch (Exception e) {}
+            try { writer.close(); } catch (Exception e) {}
+        }
+
+        log.info("compared manifests in " + (System.currentTimeMillis() - start) + " ms - " + getSummary());
+    }
+
+    /**
+     * Copies the rows of added and changed loci from a release's tables.  Must be called after {@code diff}.
+     * @param sourceDir the directory holding the newly-prepared tables
+     * @param tableFilenames the names of the table files, each of which holds the locus in its second column
+     * @param deltaDir the directory to which the extracted tables are written
+     * @throws IOException
+     */
+    public void extract(String sourceDir, Collection<String> tableFilenames, String deltaDir) throws IOException {
+        FileUtil.createDirectory(deltaDir);
+
+        for (String tableFilename : tableFilenames) {
+            String filename = sourceDir + "/" + tableFilename;
+            if ( ! FileUtil.exists(filename) ) continue;
+
+            long count = 0;
+            BufferedReader reader = new BufferedReader(new FileReader(filename), BUFFER_SIZE);
+            BufferedWriter writer = new BufferedWriter(new FileWriter(deltaDir + "/" + tableFilename), BUFFER_SIZE);
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (upserted.getRank(locus(line)) >= 0) {
+                        writer.write(line);
+                        writer.newLine();
+                        count ++;
+                    }
+                }
+
+            } finally {
+                try { reader.close(); } catch (Exception e) {}
+                try { writer.close(); } catch (Exception e) {}
+            }
+
+            log.info("extracted " + count + " changed rows from '" + filename + "'");
+        }
+    }
+
+    public long getAddedCount() {
+        return added;
+    }
+
+    public long getRemovedCount() {
+        return removed;
+    }
+
+    public long getChangedCount() {
+        return changed;
+    }
+
+    public String getSummary() {
+        return added + " loci added, " + removed + " removed, " + changed + " changed, " + unchanged + " unchanged";
+    }
+
+
+//////////////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    /**
+     * @return the partition key and locus of a manifest line
+     */
+    private static String key(String line) {
+        int idx = line.indexOf('\t', line.indexOf('\t') + 1);
+        return idx >= 0 ? line.substring(0, idx) : line;
+    }
+
+    /**
+     * @return the locus (the second column) of a manifest or table line
+     */
+    private static String locus(String line) {
+        int start = line.indexOf('\t') + 1;
+        int end = line.indexOf('\t', start);
+        return end >= 0 ? line.substring(start, end) : line.substring(start);
+    }
+}
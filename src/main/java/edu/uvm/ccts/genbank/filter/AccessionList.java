@@ -0,0 +1,120 @@
+/*
+ * Copyright 2015 The University of Vermont and State Agricultural
+ * College, Vermont Oxford Network.  All rights reserved.
+ *
+ * Written by Matthew B. Storer <matthewbstorer@gmail.com>
+ *
+ * This file is part of GenBank Loader.
+ *
+ * GenBank Loader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenBank Loader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenBank Loader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.uvm.ccts.genbank.filter;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.*;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A list of accessions to select, loaded from a file with one accession per line (blank lines and lines starting
+ * with {@code #} are ignored; version suffixes such as {@code .1} are dropped).  Lists up to a configured size are held
+ * exactly; larger lists are held in a {@link BloomFilter}, which uses a small fraction of the memory but lets through a
+ * small proportion of records that aren't on the list.
+ */
+public class AccessionList {
+    private static final Log log = LogFactory.getLog(AccessionList.class);
+
+    private Set<String> exact = null;
+    private BloomFilter bloom = null;
+
+    /**
+     * @param filename the name of the file listing the accessions
+     * @param maxExactSize the largest list that is held exactly
+     * @param falsePositiveRate the false-positive probability of the {@link BloomFilter} used for larger lists
+     * @throws IOException
+     */
+    public AccessionList(String filename, int maxExactSize, double falsePositiveRate) throws IOException {
+        long count = countAccessions(filename);
+
+        if (count <= maxExactSize) {
+            exact = new HashSet<String>((int) (count / 0.75) + 1);
+            log.info("loading " + count + " accessions from '" + filename + "'");
+
+        } else {
+            bloom = new BloomFilter(count, falsePositiveRate);
+            log.info("loading " + count + " accessions from '" + filename + "' into a " + (bloom.getSizeBytes() >> 20) +
+                    " MB bloom filter (false-positive rate " + falsePositiveRate + ")");
+        }
+
+        BufferedReader reader = new BufferedReader(new FileReader(filename));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String accession = normalize(line);
+                if (accession != null) {
+                    if (exact != null) exact.add(accession);
+                    else               bloom.add(accession);
+                }
+            }
+
+        } finally {
+            try { reader.close(); } catch (Exception e) {}
+        }
+    }
+
+    /**
+     * @param accession an accession, without version
+     * @return {@code true} if the accession is (or, for large lists, is probably) on this list
+     */
+    public boolean contains(String accession) {
+        return exact != null ?
+                exact.contains(accession) :
+                bloom.mightContain(accession);
+    }
+
+
+//////////////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    private long countAccessions(String filename) throws IOException {
+        long count = 0;
+
+        BufferedReader reader = new BufferedReader(new FileReader(filename));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (normalize(line) != null) count ++;
+            }
+
+        } finally {
+            try { reader.close(); } catch (Exception e) {}
+        }
+
+        return count;
+    }
+
+    private String normalize(String line) {
+        String s = line.trim();
+        if (s.isEmpty() || s.startsWith("#")) return null;
+
+        int idx = s.indexOf('.');
+        return idx > 0 ?
+                s.substring(0, idx) :
+                s;
+    }
+}
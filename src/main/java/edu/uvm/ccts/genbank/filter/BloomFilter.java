@@ -0,0 +1,109 @@
+/*
+ * Copyright 2015 The University of Vermont and State Agricultural
+ * College, Vermont Oxford Network.  All rights reserved.
+ *
+ * Written by Matthew B. Storer <matthewbstorer@gmail.com>
+ *
+ * This file is part of GenBank Loader.
+ *
+ * GenBank Loader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenBank Loader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenBank Loader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.uvm.ccts.genbank.filter;
+
+import java.nio.charset.Charset;
+
+/**
+ * A compact, probabilistic set of strings.  {@code mightContain} never returns {@code false} for a string that was
+ * added, but may return {@code true} for one that wasn't, at a rate close to the false-positive probability the filter
+ * was sized for.  Safe for concurrent reads once populated.
+ */
+public class BloomFilter {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final long[] bits;
+    private final long bitCount;
+    private final int hashCount;
+
+    /**
+     * @param expectedSize the number of strings that will be added
+     * @param falsePositiveRate the desired false-positive probability, e.g. {@code 0.001}
+     */
+    public BloomFilter(long expectedSize, double falsePositiveRate) {
+        long n = Math.max(1, expectedSize);
+        long m = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        m = Math.max(64, m);
+
+        bits = new long[(int) Math.min(Integer.MAX_VALUE - 8, (m + 63) / 64)];
+        bitCount = (long) bits.length * 64;
+        hashCount = Math.max(1, (int) Math.round((double) bitCount / n * Math.log(2)));
+    }
+
+    public void add(String s) {
+        long h1 = hash(s);
+        long h2 = (h1 >>> 32) | 1;
+
+        for (int i = 1; i <= hashCount; i ++) {
+            long bit = index(h1 + i * h2);
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    public boolean mightContain(String s) {
+        long h1 = hash(s);
+        long h2 = (h1 >>> 32) | 1;
+
+        for (int i = 1; i <= hashCount; i ++) {
+            long bit = index(h1 + i * h2);
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * @return the size of this filter in bytes
+     */
+    public long getSizeBytes() {
+        return (long) bits.length * 8;
+    }
+
+
+//////////////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    private long index(long combinedHash) {
+        return (combinedHash & Long.MAX_VALUE) % bitCount;
+    }
+
+    /**
+     * 64-bit FNV-1a over the string's UTF-8 bytes, finished with a MurmurHash3 mix so that the hash is well distributed
+     * for double hashing
+     */
+    static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : s.getBytes(UTF8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2015 The University of Vermont and State Agricultural
+ * College, Vermont Oxford Network.  All rights reserved.
+ *
+ * Written by Matthew B. Storer <matthewbstorer@gmail.com>
+ *
+ * This file is part of GenBank Loader.
+ *
+ * GenBank Loader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenBank Loader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenBank Loader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.uvm.ccts.genbank.filter;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks the latest version of every locus emitted during prepare, so that records for a locus that has already been
+ * emitted at the same or a newer version (from an overlapping or reissued source file) can be dropped before any of
+ * their rows are written.  Loci are keyed by a 64-bit hash in an {@link OffHeapLongIntMap}; with a few hundred
+ * million loci the chance of any two colliding is well under one in a hundred.  Each locus is claimed at a rank,
+ * which orders claims by version and then by the sequence of the source file in which the record was found (see
+ * {@code setFileOrder}).
+ */
+public class LocusVersionMap {
+    private static final Log log = LogFactory.getLog(LocusVersionMap.class);
+
+    private static final int SEQUENCE_BITS = 12;
+    private static final int MAX_SEQUENCE = (1 << SEQUENCE_BITS) - 1;
+    private static final int MAX_VERSION = Integer.MAX_VALUE >> SEQUENCE_BITS;
+
+    private final OffHeapLongIntMap map;
+    private volatile Map<String, Integer> fileSequences = Collections.emptyMap();
+    private final AtomicLong dropped = new AtomicLong(0);
+    private final AtomicLong superseding = new AtomicLong(0);
+
+    /**
+     * @param expectedLoci the number of loci expected, used to size the map initially
+     */
+    public LocusVersionMap(long expectedLoci) {
+        map = new OffHeapLongIntMap(expectedLoci, 256);
+    }
+
+    /**
+     * Orders the source files, so that of two records of a locus at the same version, the one from the later file is
+     * kept (e.g. for daily files, in which a locus may be reissued at the same version with revised annotations).
+     * Without an order, every file has sequence {@code 0} and the record claimed first is kept.  Loci seeded from
+     * earlier output also have sequence {@code 0}, so they lose a tie to a record from any ordered file.
+     * @param filenames the names of the source files, from earliest to latest.  Only the last path element is used.
+     */
+    public void setFileOrder(List<String> filenames) {
+        Map<String, Integer> sequences = new HashMap<String, Integer>();
+        for (int i = 0; i < filenames.size(); i ++) {
+            sequences.put(new File(filenames.get(i)).getName(), Math.min(i + 1, MAX_SEQUENCE));
+        }
+        fileSequences = sequences;
+    }
+
+    /**
+     * @param filename the name of a source file
+     * @return the file's sequence in the order set by {@code setFileOrder}, or {@code 0} if it isn't ordered
+     */
+    public int getSequence(String filename) {
+        Integer sequence = fileSequences.get(new File(filename).getName());
+        return sequence != null ? sequence : 0;
+    }
+
+    /**
+     * Records the loci and versions in a previously-prepared table file (e.g. from an earlier, interrupted run)
+     * @param filename the name of a tab-delimited table file
+     * @param locusColumn the index of the column holding the locus
+     * @param versionColumn the index of the column holding the version
+     * @throws IOException
+     */
+    public void seed(String filename, int locusColumn, int versionColumn) throws IOException {
+        seed(filename, locusColumn, versionColumn, false);
+    }
+
+    /**
+     * Records the loci and ranks in a previously-prepared side table file, whose rows are prefixed with their rank
+     * @param filename the name of a tab-delimited table file
+     * @param locusColumn the index of the column holding the locus
+     * @param rankColumn the index of the column holding the rank
+     * @throws IOException
+     */
+    public void seedRanks(String filename, int locusColumn, int rankColumn) throws IOException {
+        seed(filename, locusColumn, rankColumn, true);
+    }
+
+    /**
+     * Claims a locus at a particular rank
+     * @param locus the locus
+     * @param rank the record's rank, as returned by {@code rank}
+     * @return the rank previously claimed for the locus, or {@code -1} if it hadn't been claimed.  The claim succeeds
+     * only if this is less than {@code rank}.
+     */
+    public int claim(String locus, int rank) {
+        int previous = map.putIfGreater(BloomFilter.hash(locus), rank);
+
+        if (previous >= rank)   dropped.incrementAndGet();
+        else if (previous >= 0) superseding.incrementAndGet();
+
+        return previous;
+    }
+
+    /**
+     * Withdraws a claim whose records were discarded (e.g. by a failed parse), restoring the rank claimed before it.
+     * Nothing is changed if the locus has since been claimed at a higher rank.
+     * @param locus the locus
+     * @param rank the rank that was claimed
+     * @param previous the rank previously claimed, as returned by {@code claim}
+     */
+    public void withdraw(String locus, int rank, int previous) {
+        map.replace(BloomFilter.hash(locus), rank, previous);
+    }
+
+    /**
+     * @return the highest rank claimed for a locus, or {@code -1} if it hasn't been claimed
+     */
+    public int getRank(String locus) {
+        return map.get(BloomFilter.hash(locus));
+    }
+
+    /**
+     * @return a summary of the map's size and of the records it has resolved
+     */
+    public String getStatus() {
+        return map.size() + " loci (" + (map.getAllocatedBytes() >> 20) + " MB off-heap), " + dropped.get() +
+                " duplicate records dropped, " + superseding.get() + " records superseding earlier versions";
+    }
+
+    /**
+     * @param version a record's version, as returned by {@code parseVersion}
+     * @param sequence the sequence of the record's source file, as returned by {@code getSequence}
+     * @return the rank at which the record claims its locus
+     */
+    public static int rank(int version, int sequence) {
+        return (Math.min(version, MAX_VERSION) << SEQUENCE_BITS) | sequence;
+    }
+
+    /**
+     * @param s a version string
+     * @return the version as a non-negative integer, or {@code 0} if it is missing or not numeric
+     */
+    public static int parseVersion(String s) {
+        if (s == null) return 0;
+
+        try {
+            return Math.max(0, Integer.parseInt(s.trim()));
+
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+
+//////////////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    private void seed(String filename, int locusColumn, int valueColumn, boolean ranked) throws IOException {
+        if ( ! new File(filename).isFile() ) return;
+
+        long start = System.currentTimeMillis();
+        long count = 0;
+
+        BufferedReader reader = new BufferedReader(new FileReader(filename), 1024 * 1024);
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\t", Math.max(locusColumn, valueColumn) + 2);
+                if (parts.length > Math.max(locusColumn, valueColumn)) {
+                    int value = parseVersion(parts[valueColumn]);
+                    map.putIfGreater(BloomFilter.hash(parts[locusColumn]), ranked ? value : rank(value, 0));
+                    count ++;
+                }
+            }
+
+        } finally {
+            try { reader.close(); } catch (Exception e) {}
+        }
+
+        log.info("seeded locus map with " + count + " loci from '" + filename + "' in " +
+                (System.currentTimeMillis() - start) + " ms");
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2015 The University of Vermont and State Agricultural
+ * College, Vermont Oxford Network.  All rights reserved.
+ *
+ * Written by Matthew B. Storer <matthewbstorer@gmail.com>
+ *
+ * This file is part of GenBank Loader.
+ *
+ * GenBank Loader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenBank Loader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenBank Loader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package edu.uvm.ccts.genbank.filter;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A concurrent, memory-bounded set of 128-bit hashes, stored outside the Java heap.  Like {@link OffHeapLongIntMap},
+ * the set is split into independently-locked, open-addressed stripes, but the stripes never grow: a stripe that
+ * reaches its load limit is cleared and starts over.  The set therefore remembers most, but not necessarily all, of
+ * the hashes added to it, and suits callers for which a forgotten hash costs only some redundant work.
+ */
+public class OffHeapHashSet {
+    private static final int SLOT_BYTES = 16;
+    private static final int MAX_STRIPE_CAPACITY = 1 << 26;     // keeps each buffer under 2 GB
+    private static final double LOAD_FACTOR = 0.75;
+
+    private final Stripe[] stripes;
+    private final AtomicLong clears = new AtomicLong(0);
+
+    /**
+     * @param maxBytes the maximum amount of direct memory the set may use
+     * @param stripeCount the number of independently-locked stripes; rounded down to a power of two
+     */
+    public OffHeapHashSet(long maxBytes, int stripeCount) {
+        int n = Integer.highestOneBit(Math.max(1, stripeCount));
+
+        long perStripe = Math.max(16, maxBytes / SLOT_BYTES / n);
+        int capacity = (int) Math.min(MAX_STRIPE_CAPACITY, Long.highestOneBit(perStripe));
+
+        stripes = new Stripe[n];
+        for (int i = 0; i < n; i ++) {
+            stripes[i] = new Stripe(capacity);
+        }
+    }
+
+    /**
+     * Adds a hash to the set
+     * @param hi the high 64 bits of the hash
+     * @param lo the low 64 bits of the hash
+     * @return {@code true} if the hash was not already in the set
+     */
+    public boolean add(long hi, long lo) {
+        if (hi == 0 && lo == 0) lo = 1;                     // (0, 0) marks an empty slot
+
+        return stripes[(int) (hi >>> 32) & (stripes.length - 1)].add(hi, lo);
+    }
+
+    /**
+     * @return {@code true} if the set (still) holds the specified hash
+     */
+    public boolean contains(long hi, long lo) {
+        if (hi == 0 && lo == 0) lo = 1;
+
+        return stripes[(int) (hi >>> 32) & (stripes.length - 1)].contains(hi, lo);
+    }
+
+    /**
+     * Adds every hash in another set to this one
+     * @param other the set whose hashes are to be added
+     */
+    public void addAll(OffHeapHashSet other) {
+        for (Stripe stripe : other.stripes) {
+            stripe.copyTo(this);
+        }
+    }
+
+    /**
+     * Forgets every hash in the set
+     */
+    public void clear() {
+        for (Stripe stripe : stripes) {
+            stripe.clear();
+        }
+    }
+
+    /**
+     * @return the number of times a full stripe has been cleared
+     */
+    public long getClearCount() {
+        return clears.get();
+    }
+
+    public long size() {
+        long size = 0;
+        for (Stripe stripe : stripes) {
+            size += stripe.getSize();
+        }
+        return size;
+    }
+
+
+//////////////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    private final class Stripe {
+        private final ByteBuffer buf;
+        private final int capacity;
+        private int size = 0;
+
+        private Stripe(int capacity) {
+            this.capacity = capacity;
+            this.buf = ByteBuffer.allocateDirect(capacity * SLOT_BYTES);
+        }
+
+        private synchronized int getSize() {
+            return size;
+        }
+
+        private synchronized boolean contains(long hi, long lo) {
+            int mask = capacity - 1;
+            int slot = (int) (lo ^ (lo >>> 32)) & mask;
+
+            while (true) {
+                int offset = slot * SLOT_BYTES;
+                long h = buf.getLong(offset);
+                long l = buf.getLong(offset + 8);
+
+                if (h == hi && l == lo) return true;
+                if (h == 0 && l == 0)   return false;
+
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        private synchronized void copyTo(OffHeapHashSet target) {
+            if (size == 0) return;
+
+            for (int offset = 0; offset < capacity * SLOT_BYTES; offset += SLOT_BYTES) {
+                long h = buf.getLong(offset);
+                long l = buf.getLong(offset + 8);
+                if (h != 0 || l != 0) target.add(h, l);
+            }
+        }
+
+        private synchronized boolean add(long hi, long lo) {
+            int mask = capacity - 1;
+            int slot = (int) (lo ^ (lo >>> 32)) & mask;
+
+            while (true) {
+                int offset = slot * SLOT_BYTES;
+                long h = buf.getLong(offset);
+                long l = buf.getLong(offset + 8);
+
+                if (h == hi && l == lo) return false;
+
+                if (h == 0 && l == 0) {
+                    if (size + 1 > capacity * LOAD_FACTOR) {
+                        clear();
+                        clears.incrementAndGet();
+                        return add(hi, lo);
+                    }
+
+                    buf.putLong(offset, hi);
+                    buf.putLong(offset + 8, lo);
+                    size ++;
+                    return true;
+                }
+
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        private synchronized void clear() {
+            if (size == 0) return;
+
+            for (int offset = 0; offset < capacity * SLOT_BYTES; offset += 8) {
+                buf.putLong(offset, 0);
+            }
+            size = 0;
+        }
+    }
+}
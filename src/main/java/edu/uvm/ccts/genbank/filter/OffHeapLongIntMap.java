@@ -0,0 +1,218 @@
+/*
+ * Copyright 2015 The University of Vermont and State Agricultural
+ * College, Vermont Oxford Network.  All rights reserved.
+ *
+ * Written by Matthew B. Storer <matthewbstorer@gmail.com>
+ *
+ * This file is part of GenBank Loader.
+ *
+ * GenBank Loader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenBank Loader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenBank Loader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.uvm.ccts.genbank.filter;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A concurrent hash map from {@code long} keys to non-negative {@code int} values, stored outside the Java heap so
+ * that hundreds of millions of entries neither bloat the heap nor burden the garbage collector.  The table is split
+ * into independently-locked stripes, each an open-addressed (linear probing) table in a direct {@link ByteBuffer}
+ * that doubles in size as it fills.  Entries cannot be removed.
+ * <p>
+ * Direct memory is limited by {@code -XX:MaxDirectMemorySize}, which defaults to the maximum heap size.
+ */
+public class OffHeapLongIntMap {
+    private static final int SLOT_BYTES = 12;                   // 8-byte key + 4-byte value
+    private static final int MAX_STRIPE_CAPACITY = 1 << 27;     // keeps each buffer under 2 GB
+    private static final double LOAD_FACTOR = 0.8;
+    private static final long EMPTY_KEY = 0;
+    private static final long ZERO_KEY_ALIAS = 0x9e3779b97f4a7c15L;
+
+    private final Stripe[] stripes;
+    private final int stripeShift;
+
+    /**
+     * @param expectedSize the number of entries expected, used to size the initial tables
+     * @param stripeCount the number of independently-locked stripes; rounded up to a power of two
+     */
+    public OffHeapLongIntMap(long expectedSize, int stripeCount) {
+        int n = Integer.highestOneBit(Math.max(1, stripeCount - 1)) << 1;
+        if (stripeCount <= 1) n = 1;
+
+        stripeShift = 64 - Integer.numberOfTrailingZeros(n);
+
+        long perStripe = (long) (Math.max(1, expectedSize) / n / LOAD_FACTOR) + 1;
+        int capacity = (int) Math.min(MAX_STRIPE_CAPACITY, Long.highestOneBit(Math.max(16, perStripe - 1)) << 1);
+
+        stripes = new Stripe[n];
+        for (int i = 0; i < n; i ++) {
+            stripes[i] = new Stripe(capacity);
+        }
+    }
+
+    /**
+     * @return the value for the specified key, or {@code -1} if there is none
+     */
+    public int get(long key) {
+        key = normalize(key);
+        return stripeFor(key).get(key);
+    }
+
+    /**
+     * Stores a value unless the key already has a value that is greater than or equal to it
+     * @param key the key
+     * @param value the value, which must not be negative
+     * @return the key's previous value, or {@code -1} if it had none
+     */
+    public int putIfGreater(long key, int value) {
+        key = normalize(key);
+        return stripeFor(key).putIfGreater(key, value);
+    }
+
+    /**
+     * Replaces a key's value, but only if it still has the expected value
+     * @param key the key
+     * @param expected the value the key is expected to have
+     * @param value the new value, or {@code -1} to mark the key as having no value
+     * @return {@code true} if the value was replaced
+     */
+    public boolean replace(long key, int expected, int value) {
+        key = normalize(key);
+        return stripeFor(key).replace(key, expected, value);
+    }
+
+    public long size() {
+        long size = 0;
+        for (Stripe stripe : stripes) {
+            size += stripe.getSize();
+        }
+        return size;
+    }
+
+    /**
+     * @return the number of bytes of direct memory currently held by this map
+     */
+    public long getAllocatedBytes() {
+        long bytes = 0;
+        for (Stripe stripe : stripes) {
+            bytes += stripe.getAllocatedBytes();
+        }
+        return bytes;
+    }
+
+
+//////////////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    private static long normalize(long key) {
+        return key == EMPTY_KEY ? ZERO_KEY_ALIAS : key;
+    }
+
+    private Stripe stripeFor(long key) {
+        return stripeShift == 64 ?
+                stripes[0] :
+                stripes[(int) (key >>> stripeShift)];
+    }
+
+    private static final class Stripe {
+        private ByteBuffer buf;
+        private int capacity;
+        private int size = 0;
+
+        private Stripe(int capacity) {
+            this.capacity = capacity;
+            this.buf = ByteBuffer.allocateDirect(capacity * SLOT_BYTES);
+        }
+
+        private synchronized int getSize() {
+            return size;
+        }
+
+        private synchronized long getAllocatedBytes() {
+            return (long) capacity * SLOT_BYTES;
+        }
+
+        private synchronized int get(long key) {
+            int slot = find(buf, capacity, key);
+            return buf.getLong(slot * SLOT_BYTES) == key ?
+                    buf.getInt(slot * SLOT_BYTES + 8) :
+                    -1;
+        }
+
+        private synchronized int putIfGreater(long key, int value) {
+            int slot = find(buf, capacity, key);
+            int offset = slot * SLOT_BYTES;
+
+            if (buf.getLong(offset) == key) {
+                int previous = buf.getInt(offset + 8);
+                if (value > previous) buf.putInt(offset + 8, value);
+                return previous;
+            }
+
+            if (size + 1 > capacity * LOAD_FACTOR) {
+                grow();
+                offset = find(buf, capacity, key) * SLOT_BYTES;
+            }
+
+            buf.putLong(offset, key);
+            buf.putInt(offset + 8, value);
+            size ++;
+            return -1;
+        }
+
+        private synchronized boolean replace(long key, int expected, int value) {
+            int offset = find(buf, capacity, key) * SLOT_BYTES;
+            if (buf.getLong(offset) != key || buf.getInt(offset + 8) != expected) return false;
+
+            buf.putInt(offset + 8, value);
+            return true;
+        }
+
+        /**
+         * @return the slot holding the key, or the empty slot at which it would be inserted
+         */
+        private static int find(ByteBuffer buf, int capacity, long key) {
+            int mask = capacity - 1;
+            int slot = (int) (key ^ (key >>> 32)) & mask;
+
+            while (true) {
+                long k = buf.getLong(slot * SLOT_BYTES);
+                if (k == key || k == EMPTY_KEY) return slot;
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        private void grow() {
+            if (capacity >= MAX_STRIPE_CAPACITY) {
+                throw new IllegalStateException("off-heap map stripe is full (" + size + " entries)");
+            }
+
+            int newCapacity = capacity << 1;
+            ByteBuffer newBuf = ByteBuffer.allocateDirect(newCapacity * SLOT_BYTES);
+
+            for (int slot = 0; slot < capacity; slot ++) {
+                long k = buf.getLong(slot * SLOT_BYTES);
+                if (k != EMPTY_KEY) {
+                    int offset = find(newBuf, newCapacity, k) * SLOT_BYTES;
+                    newBuf.putLong(offset, k);
+                    newBuf.putInt(offset + 8, buf.getInt(slot * SLOT_BYTES + 8));
+                }
+            }
+
+            buf = newBuf;
+            capacity = newCapacity;
+        }
+    }
+}
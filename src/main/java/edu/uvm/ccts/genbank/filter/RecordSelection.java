@@ -0,0 +1,176 @@
+/*
+ * Copyright 2015 The University of Vermont and State Agricultural
+ * College, Vermont Oxford Network.  All rights reserved.
+ *
+ * Written by Matthew B. Storer <matthewbstorer@gmail.com>
+ *
+ * This file is part of GenBank Loader.
+ *
+ * GenBank Loader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenBank Loader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenBank Loader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.uvm.ccts.genbank.filter;
+
+import edu.uvm.ccts.common.db.parser.RecordFilter;
+
+import java.util.*;
+
+/**
+ * Record-level selection criteria for GenBank flat files: an accession list, a range of {@code LOCUS} dates, molecule
+ * types and organisms.  Criteria are evaluated on the {@code LOCUS} and {@code ORGANISM} lines as records are framed,
+ * so rejected records are never fully buffered or parsed.  A selection is immutable and may be shared; each parser
+ * obtains its own {@link RecordFilter} from {@code newFilter}.
+ */
+public class RecordSelection {
+    private static final String[] MONTHS = { "JAN", "FEB", "MAR", "APR", "MAY", "JUN",
+                                             "JUL", "AUG", "SEP", "OCT", "NOV", "DEC" };
+
+    private AccessionList accessions;
+    private int dateFrom;
+    private int dateTo;
+    private Set<String> moleculeTypes;
+    private List<String> organisms;
+
+    /**
+     * @param accessions the accessions to select, or {@code null} for any
+     * @param dateFrom the earliest {@code LOCUS} date to select, as {@code yyyy-MM-dd}, or {@code null}
+     * @param dateTo the latest {@code LOCUS} date to select, as {@code yyyy-MM-dd}, or {@code null}
+     * @param moleculeTypes the molecule types to select (e.g. {@code DNA}, {@code mRNA}), or an empty collection for any.
+     *                      Strandedness prefixes such as {@code ss-} are ignored.
+     * @param organisms the organisms to select, or an empty collection for any.  A record is selected if its organism
+     *                  name starts with any of these names (ignoring case), so that a species also selects its strains.
+     */
+    public RecordSelection(AccessionList accessions, String dateFrom, String dateTo, Collection<String> moleculeTypes,
+                           Collection<String> organisms) {
+
+        this.accessions = accessions;
+        this.dateFrom = dateFrom != null ? Integer.parseInt(dateFrom.replace("-", "")) : 0;
+        this.dateTo = dateTo != null ? Integer.parseInt(dateTo.replace("-", "")) : 0;
+
+        this.moleculeTypes = new HashSet<String>();
+        for (String s : moleculeTypes) {
+            this.moleculeTypes.add(normalizeMoleculeType(s));
+        }
+
+        this.organisms = new ArrayList<String>();
+        for (String s : organisms) {
+            this.organisms.add(s.trim().toLowerCase());
+        }
+    }
+
+    /**
+     * @return {@code true} if this selection places no restrictions on records
+     */
+    public boolean isEmpty() {
+        return accessions == null && dateFrom == 0 && dateTo == 0 && moleculeTypes.isEmpty() && organisms.isEmpty();
+    }
+
+    public RecordFilter newFilter() {
+        return new Filter();
+    }
+
+
+//////////////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    private static String normalizeMoleculeType(String s) {
+        String type = s.trim().toLowerCase();
+        return type.length() > 3 && type.charAt(2) == '-' ?
+                type.substring(3) :
+                type;
+    }
+
+    /**
+     * @param s a {@code LOCUS} date, e.g. {@code 21-JUN-1999}
+     * @return the date as {@code yyyyMMdd}, or {@code -1} if it could not be parsed
+     */
+    private static int parseLocusDate(String s) {
+        String[] parts = s.split("-");
+        if (parts.length != 3) return -1;
+
+        for (int i = 0; i < MONTHS.length; i ++) {
+            if (MONTHS[i].equalsIgnoreCase(parts[1])) {
+                try {
+                    return Integer.parseInt(parts[2]) * 10000 + (i + 1) * 100 + Integer.parseInt(parts[0]);
+
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+
+        return -1;
+    }
+
+    private boolean acceptLocus(String line) {
+        String[] tokens = line.trim().split("\\s+");
+        if (tokens.length < 2) return false;
+
+        if (accessions != null && ! accessions.contains(tokens[1])) return false;
+
+        if ( ! moleculeTypes.isEmpty() ) {
+            String type = null;
+            for (int i = 2; i < tokens.length - 1; i ++) {
+                if (tokens[i].equals("bp") || tokens[i].equals("aa")) {
+                    type = normalizeMoleculeType(tokens[i + 1]);
+                    break;
+                }
+            }
+            if (type == null || ! moleculeTypes.contains(type)) return false;
+        }
+
+        if (dateFrom > 0 || dateTo > 0) {
+            int date = parseLocusDate(tokens[tokens.length - 1]);
+            if (date < 0) return false;
+            if (dateFrom > 0 && date < dateFrom) return false;
+            if (dateTo > 0 && date > dateTo) return false;
+        }
+
+        return true;
+    }
+
+    private boolean acceptOrganism(String name) {
+        String s = name.toLowerCase();
+        for (String organism : organisms) {
+            if (s.startsWith(organism)) return true;
+        }
+        return false;
+    }
+
+    private final class Filter implements RecordFilter {
+        @Override
+        public void reset() {
+            // nothing is carried between records
+        }
+
+        @Override
+        public Decision test(String line) {
+            if (line.startsWith("LOCUS")) {
+                if ( ! acceptLocus(line) ) return Decision.REJECT;
+                return organisms.isEmpty() ? Decision.ACCEPT : Decision.UNDECIDED;
+
+            } else if (line.startsWith("  ORGANISM")) {
+                return acceptOrganism(line.substring("  ORGANISM".length()).trim()) ?
+                        Decision.ACCEPT :
+                        Decision.REJECT;
+
+            } else if (line.startsWith("FEATURES") || line.startsWith("ORIGIN") || line.startsWith("//")) {
+                return Decision.REJECT;                 // no ORGANISM line
+            }
+
+            return Decision.UNDECIDED;
+        }
+    }
+}
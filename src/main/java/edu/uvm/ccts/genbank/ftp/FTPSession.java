@@ -0,0 +1,220 @@
+/*
+ * Copyright 2015 The University of Vermont and State Agricultural
+ * College, Vermont Oxford Network.  All rights reserved.
+ *
+ * Written by Matthew B. Storer <matthewbstorer@gmail.com>
+ *
+ * This file is part of GenBank Loader.
+ *
+ * GenBank Loader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenBank Loader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenBank Loader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.uvm.ccts.genbank.ftp;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.net.ftp.FTP;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPReply;
+
+import java.io.*;
+
+/**
+ * A single FTP control connection that hands out remote files as input streams read directly off the data
+ * connection, so that downloaded data may be consumed as it arrives rather than after it has landed on disk.
+ * Downloads to local files resume from the end of any partial copy already on disk using the FTP {@code REST}
+ * command.
+ */
+public class FTPSession {
+    private static final Log log = LogFactory.getLog(FTPSession.class);
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private String host;
+    private int port;
+    private String user;
+    private String pass;
+    private FTPClient client = null;
+
+    public FTPSession(String host, String user, String pass) {
+        this(host, FTP.DEFAULT_PORT, user, pass);
+    }
+
+    public FTPSession(String host, int port, String user, String pass) {
+        this.host = host;
+        this.port = port;
+        this.user = user;
+        this.pass = pass;
+    }
+
+    public void connect() throws IOException {
+        client = new FTPClient();
+        client.setBufferSize(BUFFER_SIZE);
+        client.connect(host, port);
+
+        if ( ! FTPReply.isPositiveCompletion(client.getReplyCode()) ) {
+            String reply = client.getReplyString();
+            disconnect();
+            throw new IOException("'" + host + "' refused connection - " + reply);
+        }
+
+        if ( ! client.login(user, pass != null ? pass : "") ) {
+            String reply = client.getReplyString();
+            disconnect();
+            throw new IOException("could not log in to '" + host + "' as '" + user + "' - " + reply);
+        }
+
+        client.enterLocalPassiveMode();
+        client.setFileType(FTP.BINARY_FILE_TYPE);
+
+        log.info("connected to '" + host + "'");
+    }
+
+    public boolean isConnected() {
+        return client != null && client.isConnected();
+    }
+
+    /**
+     * Sends a {@code NOOP} to the server, both to keep an idle control connection from being dropped and to verify
+     * that it is still usable
+     * @return {@code true} if the server acknowledged the command; {@code false} otherwise
+     */
+    public boolean noop() {
+        try {
+            return isConnected() && client.sendNoOp();
+
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public void disconnect() {
+        if (client == null) return;
+
+        try {
+            if (client.isConnected()) {
+                try { client.logout(); } catch (Exception e) {}
+                client.disconnect();
+                log.info("disconnected from '" + host + "'");
+            }
+
+        } catch (IOException e) {
+            log.warn("caught " + e.getClass().getName() + " disconnecting from '" + host + "' - " + e.getMessage());
+
+        } finally {
+            client = null;
+        }
+    }
+
+    /**
+     * @param remoteFilename the path of the file on the FTP server
+     * @return the size of the remote file in bytes, or {@code -1} if the server could not report it
+     * @throws IOException
+     */
+    public long size(String remoteFilename) throws IOException {
+        if ( ! isConnected() ) throw new IOException("not connected to '" + host + "'");
+
+        if (client.sendCommand("SIZE", remoteFilename) != 213) return -1;      // 213 = file status
+
+        try {
+            return Long.parseLong(client.getReplyString().substring(4).trim());
+
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Opens a remote file for reading.  The returned stream reads straight from the FTP data connection; closing it
+     * completes the transfer, after which this session may be used to retrieve another file.
+     * @param remoteFilename the path of the file on the FTP server
+     * @return an {@link InputStream} over the remote file's contents
+     * @throws IOException if the transfer could not be started
+     */
+    public InputStream retrieve(final String remoteFilename) throws IOException {
+        return retrieve(remoteFilename, 0);
+    }
+
+    /**
+     * Opens a remote file for reading, starting at the specified byte offset
+     * @param remoteFilename the path of the file on the FTP server
+     * @param offset the number of leading bytes of the file to skip
+     * @return an {@link InputStream} over the remote file's contents, starting at {@code offset}
+     * @throws IOException if the transfer could not be started
+     */
+    public InputStream retrieve(final String remoteFilename, long offset) throws IOException {
+        if ( ! isConnected() ) throw new IOException("not connected to '" + host + "'");
+
+        final FTPClient c = client;
+        c.setRestartOffset(offset);
+
+        InputStream input = c.retrieveFileStream(remoteFilename);
+        if (input == null) {
+            throw new IOException("could not retrieve '" + remoteFilename + "' - " + c.getReplyString());
+        }
+
+        return new FilterInputStream(input) {
+            private boolean closed = false;
+
+            @Override
+            public void close() throws IOException {
+                if (closed) return;
+                closed = true;
+
+                try {
+                    super.close();
+
+                } finally {
+                    if ( ! c.completePendingCommand() ) {
+                        throw new IOException("transfer of '" + remoteFilename + "' did not complete - " +
+                                c.getReplyString());
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Downloads a remote file.  If the local file already exists, it is taken to be a partial copy left behind by an
+     * interrupted transfer, and the download resumes from its end rather than starting over.
+     * @param remoteFilename the path of the file on the FTP server
+     * @param localFilename the name of the local file into which the remote file is downloaded
+     * @return the number of bytes transferred
+     * @throws IOException if the transfer failed or did not complete
+     */
+    public long download(String remoteFilename, String localFilename) throws IOException {
+        if ( ! isConnected() ) throw new IOException("not connected to '" + host + "'");
+
+        File f = new File(localFilename);
+        long offset = f.exists() ? f.length() : 0;
+        if (offset > 0) {
+            log.info("resuming download of '" + remoteFilename + "' at offset " + offset);
+        }
+
+        client.setRestartOffset(offset);
+
+        OutputStream output = new BufferedOutputStream(new FileOutputStream(f, offset > 0), BUFFER_SIZE);
+        try {
+            if ( ! client.retrieveFile(remoteFilename, output) ) {
+                throw new IOException("could not download '" + remoteFilename + "' - " + client.getReplyString());
+            }
+            output.flush();
+
+        } finally {
+            try { output.close(); } catch (Exception e) {}
+        }
+
+        return f.length() - offset;
+    }
+}
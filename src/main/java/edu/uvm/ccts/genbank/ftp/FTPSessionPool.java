@@ -0,0 +1,321 @@
+/*
+ * Copyright 2015 The University of Vermont and State Agricultural
+ * College, Vermont Oxford Network.  All rights reserved.
+ *
+ * Written by Matthew B. Storer <matthewbstorer@gmail.com>
+ *
+ * This file is part of GenBank Loader.
+ *
+ * GenBank Loader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenBank Loader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenBank Loader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.uvm.ccts.genbank.ftp;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A bounded pool of {@link FTPSession}s.  Sessions are borrowed only for the duration of a transfer and returned
+ * afterwards, so that workers don't hold a connection while they parse.  Idle sessions are kept alive with periodic
+ * {@code NOOP}s, are health-checked before being handed out again, and are closed once they have been idle for too
+ * long.
+ */
+public class FTPSessionPool {
+    private static final Log log = LogFactory.getLog(FTPSessionPool.class);
+
+    private static final long DEFAULT_VALIDATE_AFTER_IDLE_MS = 10000;
+
+    /**
+     * Creates new (unconnected) sessions for the pool.  Supplying a factory that points at a local, in-process FTP
+     * server allows the pool to be exercised without a connection to NCBI.
+     */
+    public interface SessionFactory {
+        FTPSession create();
+    }
+
+    /**
+     * An operation performed over a borrowed session, such as the transfer of a single file
+     */
+    public interface Transfer {
+        void run(FTPSession session) throws Exception;
+    }
+
+    private final SessionFactory factory;
+    private final int maxSessions;
+    private final long keepAliveMs;
+    private final long maxIdleMs;
+    private long validateAfterIdleMs = DEFAULT_VALIDATE_AFTER_IDLE_MS;
+
+    private final LinkedList<IdleSession> idle = new LinkedList<IdleSession>();
+    private int openCount = 0;
+    private boolean closed = false;
+    private Thread maint = null;
+
+    /**
+     * @param factory creates the sessions managed by this pool
+     * @param maxSessions the maximum number of sessions that may be open at once, or {@code 0} for no limit
+     * @param keepAliveMs how often idle sessions are sent a {@code NOOP}
+     * @param maxIdleMs how long a session may sit idle before it is closed
+     */
+    public FTPSessionPool(SessionFactory factory, int maxSessions, long keepAliveMs, long maxIdleMs) {
+        this.factory = factory;
+        this.maxSessions = maxSessions;
+        this.keepAliveMs = keepAliveMs;
+        this.maxIdleMs = maxIdleMs;
+
+        if (keepAliveMs > 0) {
+            maint = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while ( ! isClosed() ) {
+                            Thread.sleep(FTPSessionPool.this.keepAliveMs);
+                            maintainIdleSessions();
+                        }
+
+                    } catch (InterruptedException e) {
+                        // handle silently
+                    }
+                }
+            }, "ftp-keep-alive");
+            maint.setDaemon(true);
+            maint.start();
+        }
+    }
+
+    /**
+     * @param validateAfterIdleMs how long a session may sit idle before it is sent a {@code NOOP} to verify that it is
+     *                            still usable, when it is next borrowed
+     */
+    public void setValidateAfterIdleMs(long validateAfterIdleMs) {
+        this.validateAfterIdleMs = validateAfterIdleMs;
+    }
+
+    /**
+     * Acquires a connected session, waiting for one to be returned if the pool is at capacity.  Idle sessions are
+     * preferred over opening new connections, most-recently-used first, and are health-checked before being returned.
+     * @return a connected {@link FTPSession}
+     * @throws IOException if a new session was needed but could not be connected
+     * @throws InterruptedException
+     */
+    public FTPSession borrow() throws IOException, InterruptedException {
+        while (true) {
+            IdleSession candidate = null;
+
+            synchronized(this) {
+                while ( ! closed && idle.isEmpty() && maxSessions > 0 && openCount >= maxSessions ) {
+                    wait();
+                }
+
+                if (closed) throw new IOException("FTP session pool has been closed");
+
+                if ( ! idle.isEmpty() ) candidate = idle.removeFirst();
+                else                    openCount ++;
+            }
+
+            if (candidate != null) {
+                if (isHealthy(candidate)) return candidate.session;
+
+                log.info("discarding stale FTP session");
+                invalidate(candidate.session);
+                continue;
+            }
+
+            FTPSession session = factory.create();
+            try {
+                session.connect();
+                return session;
+
+            } catch (IOException e) {
+                invalidate(session);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Returns a session to the pool after a successful transfer
+     * @param session a session previously acquired through {@code borrow}
+     */
+    public void release(FTPSession session) {
+        synchronized(this) {
+            if (session != null && ! closed && session.isConnected()) {
+                idle.addFirst(new IdleSession(session));
+
+            } else {
+                openCount --;
+                if (session != null) session.disconnect();
+            }
+
+            notifyAll();
+        }
+    }
+
+    /**
+     * Closes a session that can no longer be trusted (e.g. one whose transfer failed part-way through), and frees its
+     * slot in the pool
+     * @param session a session previously acquired through {@code borrow}
+     */
+    public void invalidate(FTPSession session) {
+        session.disconnect();
+
+        synchronized(this) {
+            openCount --;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Performs a transfer over a borrowed session, retrying it with exponential backoff if it fails with an
+     * {@link IOException}.  The session is returned to the pool if the transfer succeeds, and is invalidated otherwise,
+     * as its control connection may have been left mid-transfer; each retry borrows a session anew.
+     * @param name the name of the file being transferred, for logging
+     * @param transfer the transfer
+     * @param maxRetries the number of times a failed transfer is retried
+     * @param retryBackoffMs the delay, in milliseconds, before the first retry.  The delay doubles with each
+     *                       subsequent retry.
+     * @throws IOException if the transfer failed on its last retry
+     * @throws Exception if the transfer failed with any other exception, which is not retried
+     */
+    public void transfer(String name, Transfer transfer, int maxRetries, long retryBackoffMs) throws Exception {
+        for (int attempt = 1; ; attempt ++) {
+            try {
+                FTPSession session = borrow();
+                boolean ok = false;
+
+                try {
+                    transfer.run(session);
+                    ok = true;
+
+                } finally {
+                    if (ok) release(session);
+                    else    invalidate(session);
+                }
+
+                return;
+
+            } catch (IOException e) {
+                if (attempt > maxRetries) throw e;
+
+                long delay = retryBackoffMs << Math.min(attempt - 1, 16);
+                log.warn("caught " + e.getClass().getName() + " transferring '" + name + "' - " + e.getMessage() +
+                        ".  retrying in " + (delay / 1000) + " seconds (retry " + attempt + " of " + maxRetries + ")");
+
+                Thread.sleep(delay);
+            }
+        }
+    }
+
+    /**
+     * Closes all idle sessions and stops the keep-alive thread.  Sessions currently borrowed are closed as they are
+     * returned.
+     */
+    public void close() {
+        List<IdleSession> list;
+
+        synchronized(this) {
+            closed = true;
+            list = new ArrayList<IdleSession>(idle);
+            idle.clear();
+            openCount -= list.size();
+            notifyAll();
+        }
+
+        if (maint != null) maint.interrupt();
+
+        for (IdleSession is : list) {
+            is.session.disconnect();
+        }
+    }
+
+
+//////////////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    private synchronized boolean isClosed() {
+        return closed;
+    }
+
+    private boolean isHealthy(IdleSession is) {
+        if ( ! is.session.isConnected() ) return false;
+
+        return System.currentTimeMillis() - is.lastActive < validateAfterIdleMs || is.session.noop();
+    }
+
+    /**
+     * Sends a {@code NOOP} to each idle session that hasn't seen any activity within the keep-alive period, and closes
+     * sessions that have been idle for too long or that fail to respond.  Sessions are removed from the idle list
+     * while they are being checked, so they can't be borrowed in the meantime.
+     */
+    private void maintainIdleSessions() {
+        List<IdleSession> list;
+        synchronized(this) {
+            list = new ArrayList<IdleSession>(idle);
+            idle.clear();
+        }
+
+        long now = System.currentTimeMillis();
+        Iterator<IdleSession> iter = list.iterator();
+        while (iter.hasNext()) {
+            IdleSession is = iter.next();
+
+            if (maxIdleMs > 0 && now - is.idleSince >= maxIdleMs) {
+                log.debug("closing FTP session idle for " + ((now - is.idleSince) / 1000) + " seconds");
+                invalidate(is.session);
+                iter.remove();
+
+            } else if (now - is.lastActive >= keepAliveMs) {
+                if (is.session.noop()) {
+                    is.lastActive = now;
+
+                } else {
+                    log.info("FTP session failed keep-alive - closing");
+                    invalidate(is.session);
+                    iter.remove();
+                }
+            }
+        }
+
+        synchronized(this) {
+            if (closed) {
+                for (IdleSession is : list) is.session.disconnect();
+                openCount -= list.size();
+
+            } else {
+                idle.addAll(list);
+            }
+
+            notifyAll();
+        }
+    }
+
+    private static final class IdleSession {
+        private final FTPSession session;
+        private final long idleSince;
+        private long lastActive;
+
+        private IdleSession(FTPSession session) {
+            this.session = session;
+            this.idleSince = System.currentTimeMillis();
+            this.lastActive = idleSince;
+        }
+    }
+}
@@ -0,0 +1,516 @@
+/*
+ * Copyright 2015 The University of Vermont and State Agricultural
+ * College, Vermont Oxford Network.  All rights reserved.
+ *
+ * Written by Matthew B. Storer <matthewbstorer@gmail.com>
+ *
+ * This file is part of GenBank Loader.
+ *
+ * GenBank Loader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenBank Loader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenBank Loader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.uvm.ccts.genbank.http;
+
+import edu.uvm.ccts.common.model.FileMetadata;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Lists and downloads files from an HTTP(S) mirror of the NCBI FTP site (e.g. {@code https://ftp.ncbi.nlm.nih.gov}).
+ * Directories are listed by scraping links from the server's HTML index pages, and each listed file's size and
+ * modification time are then retrieved with (concurrent) {@code HEAD} requests.  Large files are downloaded as several
+ * byte-range segments transferred in parallel, which keeps a high-latency link busy in a way a single TCP stream can't.
+ * Each segment is retried independently, resuming from the last byte it received.  Every range request carries an
+ * {@code If-Range} validator taken from the initial {@code HEAD} request, so that a file replaced on the server
+ * part-way through a download restarts the download from scratch rather than being stitched together from two
+ * versions.  A server that advertises range support but answers range requests with the whole file is downloaded as a
+ * single stream instead.
+ */
+public class HTTPSource {
+    private static final Log log = LogFactory.getLog(HTTPSource.class);
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int LIST_THREADS = 8;
+    private static final Pattern HREF_PATTERN = Pattern.compile("href\\s*=\\s*\"([^\"?#]+)\"", Pattern.CASE_INSENSITIVE);
+
+    private String baseUrl;
+    private int connectTimeoutMs;
+    private int readTimeoutMs;
+    private int maxRetries;
+    private long retryBackoffMs;
+
+    /**
+     * @param baseUrl the root URL of the mirror, e.g. {@code https://ftp.ncbi.nlm.nih.gov}
+     * @param connectTimeoutMs the connect timeout for each request, in milliseconds
+     * @param readTimeoutMs the read timeout for each request, in milliseconds
+     * @param maxRetries the number of times a failed request (or segment) is retried before giving up
+     * @param retryBackoffMs the delay before the first retry.  The delay doubles with each subsequent retry.
+     */
+    public HTTPSource(String baseUrl, int connectTimeoutMs, int readTimeoutMs, int maxRetries, long retryBackoffMs) {
+        this.baseUrl = baseUrl.endsWith("/") ?
+                baseUrl.substring(0, baseUrl.length() - 1) :
+                baseUrl;
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.readTimeoutMs = readTimeoutMs;
+        this.maxRetries = maxRetries;
+        this.retryBackoffMs = retryBackoffMs;
+    }
+
+    /**
+     * Lists the files matching a filename filter, in the same form as used with FTP (e.g.
+     * {@code /genbank/gb*.seq.gz}).  Wildcards are only supported in the filename part of the filter.
+     * @param filenameFilter the path and filename mask of the files to list
+     * @return a {@link List} of {@link FileMetadata} describing each matching file
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public List<FileMetadata> listFilesWithMetadata(String filenameFilter) throws IOException, InterruptedException {
+        int idx = filenameFilter.lastIndexOf('/');
+        String dir = filenameFilter.substring(0, idx + 1);
+        String mask = filenameFilter.substring(idx + 1);
+
+        List<String> paths = new ArrayList<String>();
+        for (String name : listDirectory(dir)) {
+            if (FilenameUtils.wildcardMatch(name, mask)) {
+                paths.add(dir + name);
+            }
+        }
+
+        ExecutorService svc = Executors.newFixedThreadPool(LIST_THREADS);
+        try {
+            List<Future<RemoteFile>> futures = new ArrayList<Future<RemoteFile>>();
+            for (final String path : paths) {
+                futures.add(svc.submit(new Callable<RemoteFile>() {
+                    @Override
+                    public RemoteFile call() throws Exception {
+                        return stat(path);
+                    }
+                }));
+            }
+
+            List<FileMetadata> list = new ArrayList<FileMetadata>();
+            for (Future<RemoteFile> future : futures) {
+                list.add(new FileMetadata(get(future)));
+            }
+
+            return list;
+
+        } finally {
+            svc.shutdownNow();
+        }
+    }
+
+    /**
+     * Retrieves the size and modification time of a remote file
+     * @param remoteFilename the path of the file on the server
+     * @return a {@link RemoteFile} describing the file
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public RemoteFile stat(String remoteFilename) throws IOException, InterruptedException {
+        Head head = head(remoteFilename);
+        return new RemoteFile(remoteFilename, head.length, head.lastModified);
+    }
+
+    /**
+     * Opens a remote file for reading
+     * @param remoteFilename the path of the file on the server
+     * @return an {@link InputStream} over the remote file's contents
+     * @throws IOException
+     */
+    public InputStream retrieve(String remoteFilename) throws IOException {
+        HttpURLConnection conn = open(remoteFilename, "GET");
+        checkResponse(conn, remoteFilename, HttpURLConnection.HTTP_OK);
+        return conn.getInputStream();
+    }
+
+    /**
+     * Downloads a remote file.  If the server supports range requests and the file is at least twice
+     * {@code minSegmentSize} bytes long, it is split into up to {@code segments} byte ranges which are transferred
+     * concurrently and written into place in the (preallocated) local file.  Otherwise, the file is transferred as a
+     * single stream, resuming from the end of any partial local copy.  If the file changes on the server during the
+     * transfer, the local copy is discarded and the download starts over (at most {@code maxRetries} times).
+     * @param remoteFilename the path of the file on the server
+     * @param localFilename the name of the local file into which the remote file is downloaded
+     * @param segments the maximum number of segments to transfer concurrently
+     * @param minSegmentSize the minimum size of a segment, in bytes
+     * @return the number of bytes transferred
+     * @throws IOException if the transfer failed after all retries were exhausted
+     * @throws InterruptedException
+     */
+    public long download(String remoteFilename, String localFilename, int segments, long minSegmentSize)
+            throws IOException, InterruptedException {
+
+        Head head = head(remoteFilename);
+        boolean rangesIgnored = false;
+
+        for (int restart = 1; ; restart ++) {
+            int n = head.length > 0 && minSegmentSize > 0 ?
+                    (int) Math.min(segments, head.length / minSegmentSize) :
+                    1;
+
+            try {
+                if (head.acceptsRanges && n > 1) {
+                    return downloadSegmented(remoteFilename, localFilename, head, n);
+
+                } else {
+                    return downloadSingle(remoteFilename, localFilename, head);
+                }
+
+            } catch (RangeRejectedException e) {
+                if (restart > maxRetries) throw e;
+
+                log.warn(e.getMessage() + " - restarting download (restart " + restart + " of " + maxRetries + ")");
+                new File(localFilename).delete();       // the local copy may belong to the old version
+
+                if (e.rangesIgnored) rangesIgnored = true;
+
+                head = head(remoteFilename);
+                if (rangesIgnored) head.acceptsRanges = false;
+            }
+        }
+    }
+
+
+//////////////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    private Set<String> listDirectory(String dir) throws IOException, InterruptedException {
+        for (int attempt = 1; ; attempt ++) {
+            try {
+                HttpURLConnection conn = open(dir, "GET");
+                checkResponse(conn, dir, HttpURLConnection.HTTP_OK);
+
+                String html;
+                InputStream input = conn.getInputStream();
+                try {
+                    html = IOUtils.toString(input, "UTF-8");
+
+                } finally {
+                    try { input.close(); } catch (Exception e) {}
+                }
+
+                Set<String> names = new LinkedHashSet<String>();
+                Matcher m = HREF_PATTERN.matcher(html);
+                while (m.find()) {
+                    String href = m.group(1);
+                    if ( ! href.contains("/") && ! href.contains(":") ) {       // skip sub-directories, parent links
+                        names.add(href);                                            // and absolute URLs
+                    }
+                }
+
+                return names;
+
+            } catch (IOException e) {
+                retryOrThrow("listing '" + dir + "'", e, attempt);
+            }
+        }
+    }
+
+    private Head head(String remoteFilename) throws IOException, InterruptedException {
+        for (int attempt = 1; ; attempt ++) {
+            HttpURLConnection conn = null;
+            try {
+                conn = open(remoteFilename, "HEAD");
+                checkResponse(conn, remoteFilename, HttpURLConnection.HTTP_OK);
+
+                Head head = new Head();
+                head.length = conn.getContentLengthLong();
+                head.lastModified = conn.getLastModified();
+                head.acceptsRanges = "bytes".equalsIgnoreCase(conn.getHeaderField("Accept-Ranges"));
+                head.etag = conn.getHeaderField("ETag");
+                head.validator = getValidator(conn);
+                return head;
+
+            } catch (IOException e) {
+                if (conn != null) conn.disconnect();
+                retryOrThrow("retrieving metadata for '" + remoteFilename + "'", e, attempt);
+            }
+        }
+    }
+
+    private long downloadSegmented(final String remoteFilename, String localFilename, final Head head, int segments)
+            throws IOException, InterruptedException {
+
+        long length = head.length;
+        log.debug("downloading '" + remoteFilename + "' (" + length + " bytes) in " + segments + " segments");
+
+        File f = new File(localFilename);
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        boolean ok = false;
+
+        try {
+            raf.setLength(length);
+            final FileChannel channel = raf.getChannel();
+
+            long segmentSize = (length + segments - 1) / segments;
+
+            ExecutorService svc = Executors.newFixedThreadPool(segments);
+            try {
+                List<Future<Long>> futures = new ArrayList<Future<Long>>();
+                for (int i = 0; i < segments; i ++) {
+                    final long start = i * segmentSize;
+                    final long end = Math.min(length, start + segmentSize) - 1;
+                    futures.add(svc.submit(new Callable<Long>() {
+                        @Override
+                        public Long call() throws Exception {
+                            return transferSegment(remoteFilename, head, channel, start, end);
+                        }
+                    }));
+                }
+
+                long total = 0;
+                for (Future<Long> future : futures) {
+                    total += get(future);
+                }
+
+                ok = true;
+                return total;
+
+            } finally {
+                svc.shutdownNow();
+            }
+
+        } finally {
+            try { raf.close(); } catch (Exception e) {}
+            if ( ! ok ) f.delete();                     // a preallocated file can't be resumed by its length
+        }
+    }
+
+    /**
+     * Transfers the byte range {@code [start, end]} of a remote file into place in a local file.  If the transfer is
+     * interrupted it is resumed from the last byte received; the retry count is reset whenever progress was made.
+     * If the file has changed on the server since it was first examined, or if the server ignores the range, the
+     * transfer fails without retrying so that the whole download can be restarted.
+     */
+    private long transferSegment(String remoteFilename, Head head, FileChannel channel, long start, long end)
+            throws IOException, InterruptedException {
+
+        byte[] buf = new byte[BUFFER_SIZE];
+        long pos = start;
+        int failures = 0;
+
+        while (true) {
+            long attemptStart = pos;
+            HttpURLConnection conn = null;
+
+            try {
+                conn = open(remoteFilename, "GET");
+                conn.setRequestProperty("Range", "bytes=" + pos + "-" + end);
+                checkRange(conn, remoteFilename, head);
+
+                InputStream input = conn.getInputStream();
+                try {
+                    int n;
+                    while (pos <= end && (n = input.read(buf, 0, (int) Math.min(buf.length, end - pos + 1))) != -1) {
+                        ByteBuffer bb = ByteBuffer.wrap(buf, 0, n);
+                        while (bb.hasRemaining()) {
+                            pos += channel.write(bb, pos);
+                        }
+                    }
+
+                } finally {
+                    try { input.close(); } catch (Exception e) {}
+                }
+
+                if (pos <= end) {
+                    throw new EOFException("segment ended at byte " + pos + ", expected " + (end + 1));
+                }
+
+                return end - start + 1;
+
+            } catch (RangeRejectedException e) {
+                throw e;
+
+            } catch (IOException e) {
+                if (conn != null) conn.disconnect();
+                if (pos > attemptStart) failures = 0;
+
+                retryOrThrow("transferring bytes " + pos + "-" + end + " of '" + remoteFilename + "'", e, ++ failures);
+            }
+        }
+    }
+
+    private long downloadSingle(String remoteFilename, String localFilename, Head head)
+            throws IOException, InterruptedException {
+
+        File f = new File(localFilename);
+
+        for (int attempt = 1; ; attempt ++) {
+            HttpURLConnection conn = null;
+
+            try {
+                long offset = head.acceptsRanges && f.exists() ? f.length() : 0;
+                if (head.length >= 0 && offset == head.length) return 0;
+
+                conn = open(remoteFilename, "GET");
+                if (offset > 0) {
+                    log.info("resuming download of '" + remoteFilename + "' at offset " + offset);
+                    conn.setRequestProperty("Range", "bytes=" + offset + "-");
+                    checkRange(conn, remoteFilename, head);
+
+                } else {
+                    checkResponse(conn, remoteFilename, HttpURLConnection.HTTP_OK);
+                }
+
+                InputStream input = conn.getInputStream();
+                OutputStream output = new BufferedOutputStream(new FileOutputStream(f, offset > 0), BUFFER_SIZE);
+                try {
+                    IOUtils.copyLarge(input, output);
+                    output.flush();
+
+                } finally {
+                    try { output.close(); } catch (Exception e) {}
+                    try { input.close(); } catch (Exception e) {}
+                }
+
+                if (head.length >= 0 && f.length() != head.length) {
+                    throw new EOFException("expected " + head.length + " bytes but received " + f.length());
+                }
+
+                return f.length() - offset;
+
+            } catch (RangeRejectedException e) {
+                throw e;
+
+            } catch (IOException e) {
+                if (conn != null) conn.disconnect();
+                retryOrThrow("downloading '" + remoteFilename + "'", e, attempt);
+            }
+        }
+    }
+
+    private HttpURLConnection open(String remotePath, String method) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(baseUrl + remotePath).openConnection();
+        conn.setRequestMethod(method);
+        conn.setConnectTimeout(connectTimeoutMs);
+        conn.setReadTimeout(readTimeoutMs);
+        conn.setRequestProperty("User-Agent", "GenBank Loader");
+        conn.setRequestProperty("Accept-Encoding", "identity");     // lengths and ranges must refer to the raw file
+        return conn;
+    }
+
+    /**
+     * Sends the {@code If-Range} validator with a range request, and checks that the server answered with the requested
+     * range of the same version of the file.  A server answers {@code If-Range} with the whole file ({@code 200}) when
+     * the validator no longer matches; a whole-file answer carrying the same validator means the server ignores
+     * ranges altogether.
+     */
+    private void checkRange(HttpURLConnection conn, String remotePath, Head head) throws IOException {
+        if (head.validator != null) conn.setRequestProperty("If-Range", head.validator);
+
+        if (conn.getResponseCode() == HttpURLConnection.HTTP_OK) {
+            String validator = getValidator(conn);
+            conn.disconnect();
+
+            if (head.validator == null || head.validator.equals(validator)) {
+                throw new RangeRejectedException("'" + remotePath + "' was sent whole in answer to a range request",
+                        true);
+
+            } else {
+                throw new RangeRejectedException("'" + remotePath + "' changed on the server during the download",
+                        false);
+            }
+        }
+
+        checkResponse(conn, remotePath, HttpURLConnection.HTTP_PARTIAL);
+
+        String etag = conn.getHeaderField("ETag");
+        if (head.etag != null && etag != null && ! head.etag.equals(etag)) {
+            conn.disconnect();
+            throw new RangeRejectedException("'" + remotePath + "' changed on the server during the download" +
+                    " (ETag " + head.etag + " became " + etag + ")", false);
+        }
+    }
+
+    /**
+     * @return the validator to send with {@code If-Range} for the version of the file described by a response: its
+     * {@code ETag} if it is strong (as {@code If-Range} requires), or else its {@code Last-Modified} date
+     */
+    private static String getValidator(HttpURLConnection conn) {
+        String etag = conn.getHeaderField("ETag");
+        return etag != null && ! etag.startsWith("W/") ?
+                etag :
+                conn.getHeaderField("Last-Modified");
+    }
+
+    private void checkResponse(HttpURLConnection conn, String remotePath, int expected) throws IOException {
+        int code = conn.getResponseCode();
+        if (code != expected) {
+            String message = conn.getResponseMessage();
+            conn.disconnect();
+            throw new IOException("unexpected response for '" + remotePath + "' - " + code + " " + message +
+                    " (expected " + expected + ")");
+        }
+    }
+
+    private void retryOrThrow(String action, IOException e, int attempt) throws IOException, InterruptedException {
+        if (attempt > maxRetries) throw e;
+
+        long delay = retryBackoffMs << Math.min(attempt - 1, 16);
+        log.warn("caught " + e.getClass().getName() + " " + action + " - " + e.getMessage() + ".  retrying in " +
+                (delay / 1000) + " seconds (retry " + attempt + " of " + maxRetries + ")");
+
+        Thread.sleep(delay);
+    }
+
+    private static <T> T get(Future<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)          throw (IOException) cause;
+            else if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            else                                        throw new IOException(cause.getMessage(), cause);
+        }
+    }
+
+    private static final class Head {
+        private long length;
+        private long lastModified;
+        private boolean acceptsRanges;
+        private String etag;
+        private String validator;
+    }
+
+    /**
+     * Thrown when a range request is answered with something other than the requested range of the version of the
+     * file being downloaded, so that the download has to start over
+     */
+    private static final class RangeRejectedException extends IOException {
+        private final boolean rangesIgnored;
+
+        private RangeRejectedException(String message, boolean rangesIgnored) {
+            super(message);
+            this.rangesIgnored = rangesIgnored;
+        }
+    }
+}
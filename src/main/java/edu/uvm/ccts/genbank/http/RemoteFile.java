@@ -0,0 +1,76 @@
+/*
+ * Copyright 2015 The University of Vermont and State Agricultural
+ * College, Vermont Oxford Network.  All rights reserved.
+ *
+ * Written by Matthew B. Storer <matthewbstorer@gmail.com>
+ *
+ * This file is part of GenBank Loader.
+ *
+ * GenBank Loader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenBank Loader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenBank Loader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.uvm.ccts.genbank.http;
+
+import java.io.File;
+
+/**
+ * A {@link File} view of a file on a remote server, reporting the size and modification time given by the server
+ * rather than those of a local file.  This allows {@link edu.uvm.ccts.common.model.FileMetadata} to be built for
+ * remote files so that they can be checked for changes the same way local and FTP files are.
+ */
+public class RemoteFile extends File {
+    private long length;
+    private long lastModified;
+
+    public RemoteFile(String path, long length, long lastModified) {
+        super(path);
+        this.length = length;
+        this.lastModified = lastModified;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public long lastModified() {
+        return lastModified;
+    }
+
+    @Override
+    public boolean exists() {
+        return true;
+    }
+
+    @Override
+    public boolean isFile() {
+        return true;
+    }
+
+    @Override
+    public boolean isDirectory() {
+        return false;
+    }
+
+    @Override
+    public String getAbsolutePath() {
+        return getPath();
+    }
+
+    @Override
+    public String getCanonicalPath() {
+        return getPath();
+    }
+}
@@ -78,6 +78,7 @@ public class Record {
 
     private int partitionKey;
     private String locus;
+    private String division;
     private int month;
     private int year;
     private String definition;
@@ -124,6 +125,10 @@ public class Record {
         return locus;
     }
 
+    public String getDivision() {
+        return division;
+    }
+
     public int getPartitionKey() {
         return partitionKey;
     }
@@ -157,17 +162,13 @@ public class Record {
     }
 
     public List<String> getAuthors() {
-        List<String> list = new ArrayList<String>();
+        Set<String> set = new LinkedHashSet<String>();
 
         for (Journal j : journals) {
-            for (String author : j.getAuthors()) {
-                if ( ! list.contains(author) ) {
-                    list.add(author);
-                }
-            }
+            set.addAll(j.getAuthors());
         }
 
-        return list;
+        return new ArrayList<String>(set);
     }
 
     public Map<String, Set<String>> getFeatures() {
@@ -185,7 +186,9 @@ public class Record {
 
     private void populateLocus(Map<String, List<String>> map) throws TagNotFoundException {
         if ( ! map.containsKey(TAG_LOCUS) ) throw new TagNotFoundException(TAG_LOCUS);
-        locus = map.get(TAG_LOCUS).get(0).split("\\s+")[0];
+        String[] parts = map.get(TAG_LOCUS).get(0).split("\\s+");
+        locus = parts[0];
+        division = parts.length > 2 ? parts[parts.length - 2] : null;     // immediately precedes the date
     }
 
     private void populatePartitionKey() throws NoSuchAlgorithmException {
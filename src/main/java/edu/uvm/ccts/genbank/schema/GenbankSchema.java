@@ -0,0 +1,155 @@
+/*
+ * Copyright 2015 The University of Vermont and State Agricultural
+ * College, Vermont Oxford Network.  All rights reserved.
+ *
+ * Written by Matthew B. Storer <matthewbstorer@gmail.com>
+ *
+ * This file is part of GenBank Loader.
+ *
+ * GenBank Loader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenBank Loader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenBank Loader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package edu.uvm.ccts.genbank.schema;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The schema of the GenBank tables, matching the rows written by {@code FeatureTableParser} under a given
+ * configuration
+ */
+public class GenbankSchema {
+    private static final String VALUE_ID_TYPE = "char(32) character set ascii";
+    private static final String LOCUS_TYPE = "varchar(20)";
+    private static final long MAX_LONGTEXT = 4294967295L;
+
+    /**
+     * @param valueDictionary {@code true} if annotation values are written to {@code annotation_values}
+     * @param authorDimension {@code true} if author names are written to {@code author_names}
+     * @param hotQualifiers the qualifiers whose annotations are written to tables of their own
+     * @param summary {@code true} if summary statistics are gathered
+     * @return the tables, in the order in which they should be created
+     */
+    public static List<TableSchema> build(boolean valueDictionary, boolean authorDimension,
+                                          List<String> hotQualifiers, boolean summary) {
+        List<TableSchema> list = new ArrayList<TableSchema>();
+
+        list.add(newLocusTable("basic")
+                .column("year", "int", false)
+                .column("month", "int", false)
+                .column("version", "int", true)
+                .column("giNumber", "int", true)
+                .stringColumn("definition", 65535, false)
+                .primaryKey("partitionKey", "locus")
+                .index("year", "year")
+                .index("month", "month")
+                .index("giNumber", "giNumber"));
+
+        list.add(newLocusTable("keywords")
+                .stringColumn("keyword", 100, false)
+                .index("locus", "locus")
+                .index("keyword", "keyword"));
+
+        list.add(newLocusTable("dbxrefs")
+                .stringColumn("databaseName", 100, false)
+                .stringColumn("databaseId", 100, true)
+                .index("locus", "locus")
+                .index("databaseName", "databaseName")
+                .index("databaseId", "databaseId"));
+
+        list.add(newLocusTable("journals")
+                .stringColumn("journal", 500, false)
+                .stringColumn("citation", 65535, false)
+                .column("pmid", "int", true)
+                .index("locus", "locus")
+                .index("journal", "journal")
+                .index("pmid", "pmid"));
+
+        if (authorDimension) {
+            list.add(newLocusTable("authors")
+                    .column("authorId", "bigint", false)
+                    .index("locus", "locus")
+                    .index("authorId", "authorId"));
+
+            list.add(new TableSchema("author_names", false)
+                    .column("authorId", "bigint", false)
+                    .stringColumn("author", 100, false)
+                    .primaryKey("authorId")
+                    .index("author", "author"));
+
+        } else {
+            list.add(newLocusTable("authors")
+                    .stringColumn("author", 100, false)
+                    .index("locus", "locus")
+                    .index("author", "author"));
+        }
+
+        list.add(addValueColumns(newLocusTable("annotations")
+                .stringColumn("name", 100, false), valueDictionary)
+                .index("locus", "locus")
+                .index("annotationName", "name"));
+
+        for (String qualifier : hotQualifiers) {
+            list.add(addValueColumns(newLocusTable("annotations_" + qualifier), valueDictionary)
+                    .index("locus", "locus"));
+        }
+
+        if (valueDictionary) {
+            list.add(new TableSchema("annotation_values", false)
+                    .column("valueId", VALUE_ID_TYPE, false)
+                    .stringColumn("indexedValue", 100, true)
+                    .stringColumn("value", MAX_LONGTEXT, false)
+                    .primaryKey("valueId")
+                    .index("indexedValue", "indexedValue"));
+        }
+
+        if (summary) {
+            list.add(new TableSchema("summary_counts", false)
+                    .stringColumn("dimension", 50, false)
+                    .stringColumn("name", 255, false)
+                    .column("count", "bigint", false)
+                    .index("dimensionName", "dimension", "name"));
+        }
+
+        return list;
+    }
+
+
+//////////////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    private static TableSchema newLocusTable(String name) {
+        return new TableSchema(name, true)
+                .column("partitionKey", "tinyint unsigned", false)
+                .column("locus", LOCUS_TYPE, false);             // a key, whose type must agree across tables
+    }
+
+    /**
+     * Adds the columns holding an annotation's value: its key, if values are kept in {@code annotation_values}, or
+     * the value itself along with its indexed prefix
+     */
+    private static TableSchema addValueColumns(TableSchema table, boolean valueDictionary) {
+        if (valueDictionary) {
+            return table.column("valueId", VALUE_ID_TYPE, false)
+                    .index("valueId", "valueId");
+
+        } else {
+            return table.stringColumn("indexedValue", 100, true)
+                    .stringColumn("value", MAX_LONGTEXT, false)
+                    .index("indexedValue", "indexedValue");
+        }
+    }
+}
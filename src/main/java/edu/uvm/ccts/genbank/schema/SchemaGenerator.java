@@ -0,0 +1,180 @@
+/*
+ * Copyright 2015 The University of Vermont and State Agricultural
+ * College, Vermont Oxford Network.  All rights reserved.
+ *
+ * Written by Matthew B. Storer <matthewbstorer@gmail.com>
+ *
+ * This file is part of GenBank Loader.
+ *
+ * GenBank Loader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenBank Loader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenBank Loader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package edu.uvm.ccts.genbank.schema;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Generates the DDL for a set of tables, sized from the statistics gathered while preparing them (see
+ * {@code FeatureTableParser.enableSummary}).  Partitioned tables are split into enough partitions to keep each
+ * within a target size.  Partition counts are always powers of two up to 256, so that the 256 values of
+ * {@code partitionKey} (the low bits of the MD5 of a record's locus) spread evenly across them.  String columns are
+ * sized to fit the widest values observed.  Tables with text columns and wide rows are compressed.  DDL may be
+ * generated for MySQL, for PostgreSQL (where partitioned tables use declarative hash partitioning, and compression is
+ * left to TOAST) or for H2 (which has neither partitioning nor compression).
+ */
+public class SchemaGenerator {
+    public enum Dialect { MYSQL, POSTGRESQL, H2 }
+
+    private static final int MAX_PARTITIONS = 256;
+
+    private final String database;
+    private final String charset;
+    private final long partitionBytes;
+    private final long compressRowBytes;
+    private final Dialect dialect;
+
+    private final Map<String, Long> rows = new HashMap<String, Long>();
+    private final Map<String, Long> bytes = new HashMap<String, Long>();
+    private final Map<String, Map<Integer, Long>> widths = new HashMap<String, Map<Integer, Long>>();
+
+    /**
+     * @param database the name of the database holding the tables
+     * @param charset the tables' default character set
+     * @param partitionBytes the target size of each partition
+     * @param compressRowBytes the average row size above which a table with text columns is compressed
+     */
+    public SchemaGenerator(String database, String charset, long partitionBytes, long compressRowBytes) {
+        this(database, charset, partitionBytes, compressRowBytes, Dialect.MYSQL);
+    }
+
+    /**
+     * @param database the name of the database (or, for PostgreSQL, the schema) holding the tables; ignored for H2,
+     *                 where the database is the file to which the DDL is applied
+     * @param charset the tables' default character set; MySQL only
+     * @param partitionBytes the target size of each partition
+     * @param compressRowBytes the average row size above which a table with text columns is compressed
+     * @param dialect the database for which DDL is generated
+     */
+    public SchemaGenerator(String database, String charset, long partitionBytes, long compressRowBytes,
+                           Dialect dialect) {
+        this.database = database;
+        this.charset = charset;
+        this.partitionBytes = partitionBytes;
+        this.compressRowBytes = compressRowBytes;
+        this.dialect = dialect;
+    }
+
+    /**
+     * Reads the table statistics from a summary file
+     * @param filename a summary file written by {@code SummaryCounts.write}
+     * @throws IOException
+     */
+    public void readStatistics(String filename) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(filename), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\t", -1);
+                if (parts.length < 3) continue;
+
+                if (parts[0].equals("table_rows")) {
+                    rows.put(parts[1], Long.parseLong(parts[2]));
+
+                } else if (parts[0].equals("table_bytes")) {
+                    bytes.put(parts[1], Long.parseLong(parts[2]));
+
+                } else if (parts[0].equals("column_width")) {
+                    int idx = parts[1].lastIndexOf('.');
+                    String table = parts[1].substring(0, idx);
+
+                    Map<Integer, Long> map = widths.get(table);
+                    if (map == null) {
+                        map = new HashMap<Integer, Long>();
+                        widths.put(table, map);
+                    }
+                    map.put(Integer.parseInt(parts[1].substring(idx + 1)), Long.parseLong(parts[2]));
+                }
+            }
+
+        } finally {
+            try { reader.close(); } catch (Exception e) {}
+        }
+    }
+
+    /**
+     * @param tables the tables for which to generate DDL
+     * @return the DDL for every table, each preceded by a comment giving the statistics on which it is based
+     */
+    public String generate(List<TableSchema> tables) {
+        StringBuilder sb = new StringBuilder();
+
+        for (TableSchema table : tables) {
+            Long rowCount = rows.get(table.getName());
+            Long byteCount = bytes.get(table.getName());
+            Map<Integer, Long> tableWidths = widths.get(table.getName());
+
+            sb.append("\n-- ").append(table.getName()).append(": ");
+            if (rowCount != null && byteCount != null) {
+                sb.append(rowCount).append(" rows, ").append(byteCount).append(" bytes prepared\n");
+            } else {
+                sb.append("no statistics - default sizes\n");
+            }
+
+            if (dialect == Dialect.POSTGRESQL) {
+                sb.append(table.toPostgreSQLDDL(database, tableWidths, getPartitionCount(byteCount)));
+                continue;
+
+            } else if (dialect == Dialect.H2) {
+                sb.append(table.toH2DDL(tableWidths));
+                continue;
+            }
+
+            boolean compressed = table.hasTextColumns(tableWidths) && rowCount != null && rowCount > 0 &&
+                    byteCount / rowCount >= compressRowBytes;
+
+            sb.append(table.toDDL(database, charset, tableWidths, getPartitionCount(byteCount),
+                    compressed ? "COMPRESSED" : "DYNAMIC"));
+        }
+
+        return sb.toString();
+    }
+
+
+//////////////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    /**
+     * @return the smallest power of two (up to 256) partitions that keeps each partition within the target size
+     */
+    private int getPartitionCount(Long byteCount) {
+        if (byteCount == null || partitionBytes <= 0) return 1;
+
+        long needed = (byteCount + partitionBytes - 1) / partitionBytes;
+
+        int partitions = 1;
+        while (partitions < needed && partitions < MAX_PARTITIONS) {
+            partitions *= 2;
+        }
+
+        return partitions;
+    }
+}
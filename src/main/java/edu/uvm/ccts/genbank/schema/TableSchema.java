@@ -0,0 +1,399 @@
+/*
+ * Copyright 2015 The University of Vermont and State Agricultural
+ * College, Vermont Oxford Network.  All rights reserved.
+ *
+ * Written by Matthew B. Storer <matthewbstorer@gmail.com>
+ *
+ * This file is part of GenBank Loader.
+ *
+ * GenBank Loader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenBank Loader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenBank Loader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package edu.uvm.ccts.genbank.schema;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Describes a table populated by the loader: its columns, in the order in which they appear in the table's prepared
+ * file, and its keys.  The types of string columns are left open, to be sized from the widest values observed: each
+ * is given twice the observed width, rounded up to a power of two, as headroom for wider values in later data, but is
+ * never made narrower than its default width.
+ */
+public class TableSchema {
+    private static final int MAX_VARCHAR = 2048;
+    private static final long MAX_TEXT = 65535;
+    private static final long MAX_MEDIUMTEXT = 16777215;
+    private static final int INDEX_PREFIX = 255;
+    private static final int MAX_KEY_BYTES = 3072;                  // InnoDB, with the DYNAMIC or COMPRESSED row format
+    private static final String ASCII_CHARSET = " character set ascii";
+    private static final String CHARSET_CLAUSE = " character set ";
+
+    private final String name;
+    private final boolean partitioned;
+    private final List<Column> columns = new ArrayList<Column>();
+    private List<String> primaryKey = null;
+    private final Map<String, List<String>> indexes = new LinkedHashMap<String, List<String>>();
+
+    /**
+     * @param name the name of the table
+     * @param partitioned {@code true} if the table's rows carry a {@code partitionKey} by which it is partitioned
+     */
+    public TableSchema(String name, boolean partitioned) {
+        this.name = name;
+        this.partitioned = partitioned;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isPartitioned() {
+        return partitioned;
+    }
+
+    /**
+     * Adds a column of a fixed type
+     * @param type the column's SQL type, e.g. {@code int} or {@code char(32) character set ascii}
+     */
+    public TableSchema column(String name, String type, boolean nullable) {
+        columns.add(new Column(name, type, 0, nullable));
+        return this;
+    }
+
+    /**
+     * Adds a string column, sized from the widest value observed
+     * @param defaultWidth the width assumed if no values have been observed, and the minimum width otherwise; a width
+     *                     greater than that of a {@code varchar} selects a text type
+     */
+    public TableSchema stringColumn(String name, long defaultWidth, boolean nullable) {
+        columns.add(new Column(name, null, defaultWidth, nullable));
+        return this;
+    }
+
+    public TableSchema primaryKey(String ... columnNames) {
+        primaryKey = Arrays.asList(columnNames);
+        return this;
+    }
+
+    public TableSchema index(String indexName, String ... columnNames) {
+        indexes.put(indexName, Arrays.asList(columnNames));
+        return this;
+    }
+
+    /**
+     * @return {@code true} if any of this table's columns would be stored as text, given the observed widths
+     */
+    public boolean hasTextColumns(Map<Integer, Long> widths) {
+        for (int i = 0; i < columns.size(); i ++) {
+            if (isText(getType(i, widths))) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Generates the {@code create table} statement for this table
+     * @param database the name of the database holding the table
+     * @param charset the table's default character set
+     * @param widths the width of the widest value observed in each column, by column position; columns not present
+     *               take their default widths
+     * @param partitions the number of partitions, for a partitioned table
+     * @param rowFormat the InnoDB row format, e.g. {@code DYNAMIC}
+     * @return the DDL
+     */
+    public String toDDL(String database, String charset, Map<Integer, Long> widths, int partitions,
+                        String rowFormat) {
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("create table if not exists ").append(database).append(".").append(name).append(" (\n");
+
+        List<String> lines = new ArrayList<String>();
+        Map<String, String> types = new LinkedHashMap<String, String>();
+
+        for (int i = 0; i < columns.size(); i ++) {
+            Column c = columns.get(i);
+            String type = getType(i, widths);
+            types.put(c.name, type);
+            lines.add("  " + c.name + " " + type + (c.nullable ? "" : " not null"));
+        }
+
+        if (primaryKey != null) {
+            lines.add("  primary key (" + buildKeyParts(primaryKey, types, charset) + ")");
+        }
+
+        for (Map.Entry<String, List<String>> entry : indexes.entrySet()) {
+            lines.add("  index " + entry.getKey() + "(" + buildKeyParts(entry.getValue(), types, charset) + ")");
+        }
+
+        for (int i = 0; i < lines.size(); i ++) {
+            sb.append(lines.get(i)).append(i < lines.size() - 1 ? ",\n" : "\n");
+        }
+
+        sb.append(") engine InnoDB,\n");
+        sb.append("  character set ").append(charset).append(",\n");
+        sb.append("  row_format = ").append(rowFormat);
+
+        if (partitioned) {
+            sb.append("\n  partition by hash(partitionKey)\n");
+            sb.append("  partitions ").append(partitions);
+        }
+
+        sb.append(";\n");
+
+        return sb.toString();
+    }
+
+
+    /**
+     * Generates the PostgreSQL DDL for this table: a {@code create table} statement, followed (for a partitioned
+     * table) by one statement per hash partition, and one {@code create index} statement per index.  MySQL types are
+     * mapped to their PostgreSQL equivalents, and text columns are indexed by a prefix expression.
+     * @param schema the name of the schema holding the table
+     * @param widths the width of the widest value observed in each column, by column position; columns not present
+     *               take their default widths
+     * @param partitions the number of hash partitions, for a partitioned table
+     * @return the DDL
+     */
+    public String toPostgreSQLDDL(String schema, Map<Integer, Long> widths, int partitions) {
+        return buildPortableDDL(schema + "." + name, widths, partitions, false);
+    }
+
+    /**
+     * Generates the H2 DDL for this table: a {@code create table} statement followed by one {@code create index}
+     * statement per index.  H2 has no partitioning, so partitioned tables are created whole (with
+     * {@code partitionKey} still leading their primary keys), and text columns are stored as unbounded
+     * {@code varchar}s, which may be indexed in full.
+     * @param widths the width of the widest value observed in each column, by column position; columns not present
+     *               take their default widths
+     * @return the DDL
+     */
+    public String toH2DDL(Map<Integer, Long> widths) {
+        return buildPortableDDL(name, widths, 0, true);
+    }
+
+
+//////////////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    /**
+     * Generates DDL of the form shared by PostgreSQL and H2, in which indexes are created by separate statements
+     */
+    private String buildPortableDDL(String table, Map<Integer, Long> widths, int partitions, boolean h2) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("create table if not exists ").append(table).append(" (\n");
+
+        List<String> lines = new ArrayList<String>();
+        Map<String, String> types = new LinkedHashMap<String, String>();
+
+        for (int i = 0; i < columns.size(); i ++) {
+            Column c = columns.get(i);
+            String type = toPortableType(getType(i, widths), h2);
+            types.put(c.name, type);
+            lines.add("  " + c.name + " " + type + (c.nullable ? "" : " not null"));
+        }
+
+        if (primaryKey != null) {
+            lines.add("  primary key (" + StringUtils.join(primaryKey, ", ") + ")");
+        }
+
+        for (int i = 0; i < lines.size(); i ++) {
+            sb.append(lines.get(i)).append(i < lines.size() - 1 ? ",\n" : "\n");
+        }
+
+        sb.append(")");
+        if (partitioned && ! h2) sb.append(" partition by hash (partitionKey)");
+        sb.append(";\n");
+
+        if (partitioned && ! h2) {
+            for (int i = 0; i < partitions; i ++) {
+                sb.append("create table if not exists ").append(table).append("_p").append(i)
+                        .append(" partition of ").append(table)
+                        .append(" for values with (modulus ").append(partitions).append(", remainder ").append(i)
+                        .append(");\n");
+            }
+        }
+
+        for (Map.Entry<String, List<String>> entry : indexes.entrySet()) {
+            StringBuilder keyParts = new StringBuilder();
+            for (String columnName : entry.getValue()) {
+                if (keyParts.length() > 0) keyParts.append(", ");
+                if (types.get(columnName).equals("text")) {
+                    keyParts.append("(left(").append(columnName).append(", ").append(INDEX_PREFIX).append("))");
+                } else {
+                    keyParts.append(columnName);
+                }
+            }
+
+            sb.append("create index if not exists ").append(name).append("_").append(entry.getKey())
+                    .append(" on ").append(table).append(" (").append(keyParts).append(");\n");
+        }
+
+        return sb.toString();
+    }
+
+    private String getType(int position, Map<Integer, Long> widths) {
+        Column c = columns.get(position);
+        if (c.type != null) return c.type;
+
+        Long observed = widths != null ? widths.get(position) : null;
+        long width = observed != null ?
+                Math.max(c.defaultWidth, withHeadroom(observed)) :
+                c.defaultWidth;
+
+        if (width <= MAX_VARCHAR) {
+            return "varchar(" + width + ")";
+
+        } else if (width <= MAX_TEXT) {
+            return "text";
+
+        } else if (width <= MAX_MEDIUMTEXT) {
+            return "mediumtext";
+
+        } else {
+            return "longtext";
+        }
+    }
+
+    /**
+     * @return twice the specified width, rounded up to a power of two
+     */
+    private static long withHeadroom(long width) {
+        long doubled = Math.max(2, width * 2);
+        return Long.highestOneBit(doubled - 1) << 1;
+    }
+
+    private static String toPortableType(String type, boolean h2) {
+        if (isText(type))                   return h2 ? "varchar" : "text";
+        else if (type.endsWith(ASCII_CHARSET)) return type.substring(0, type.length() - ASCII_CHARSET.length());
+        else if (type.startsWith("tinyint"))  return "smallint";
+        else                                return type;
+    }
+
+    private static boolean isText(String type) {
+        return type.endsWith("text");
+    }
+
+    /**
+     * Text columns may only be indexed by a prefix.  String columns are also indexed by a prefix when the key would
+     * otherwise exceed InnoDB's limit of {@code MAX_KEY_BYTES}, which is measured in bytes: a {@code varchar(2048)}
+     * takes 2048 bytes of key in {@code latin1}, but 8192 in {@code utf8mb4}.  The bytes left over by the key's
+     * fixed-width parts are shared between its string parts, narrowest first, so that a part narrower than its share
+     * leaves the remainder to the wider parts.
+     */
+    private static String buildKeyParts(List<String> columnNames, Map<String, String> types, String charset) {
+        int n = columnNames.size();
+        final long[] bytes = new long[n];
+        int[] bytesPerChar = new int[n];
+        long[] prefixes = new long[n];
+
+        long budget = MAX_KEY_BYTES;
+        List<Integer> stringParts = new ArrayList<Integer>();
+
+        for (int i = 0; i < n; i ++) {
+            String type = types.get(columnNames.get(i));
+            long chars = isText(type) ? INDEX_PREFIX : getStringWidth(type);
+
+            if (chars > 0) {
+                bytesPerChar[i] = getMaxBytesPerChar(type.contains(CHARSET_CLAUSE) ?
+                        type.substring(type.indexOf(CHARSET_CLAUSE) + CHARSET_CLAUSE.length()) :
+                        charset);
+                bytes[i] = chars * bytesPerChar[i];
+                prefixes[i] = isText(type) ? INDEX_PREFIX : 0;
+                stringParts.add(i);
+
+            } else {
+                budget -= getFixedWidth(type);
+            }
+        }
+
+        Collections.sort(stringParts, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(bytes[a], bytes[b]);
+            }
+        });
+
+        int remaining = stringParts.size();
+        for (int i : stringParts) {
+            long share = budget / remaining --;
+            if (bytes[i] > share) {
+                prefixes[i] = Math.max(1, share / bytesPerChar[i]);
+                bytes[i] = prefixes[i] * bytesPerChar[i];
+            }
+            budget -= bytes[i];
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < n; i ++) {
+            if (sb.length() > 0) sb.append(", ");
+            sb.append(columnNames.get(i));
+            if (prefixes[i] > 0) sb.append("(").append(prefixes[i]).append(")");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the declared width of a {@code char} or {@code varchar} type, or {@code 0} for any other type
+     */
+    private static long getStringWidth(String type) {
+        if ( ! type.startsWith("char(") && ! type.startsWith("varchar(") ) return 0;
+        return Long.parseLong(type.substring(type.indexOf('(') + 1, type.indexOf(')')));
+    }
+
+    /**
+     * @return the number of bytes a fixed-width type takes in a key
+     */
+    private static int getFixedWidth(String type) {
+        if (type.startsWith("tinyint"))         return 1;
+        else if (type.startsWith("smallint"))   return 2;
+        else if (type.startsWith("int"))        return 4;
+        else                                    return 8;
+    }
+
+    /**
+     * @return the largest number of bytes a character takes in the named MySQL character set.  Unrecognized character
+     * sets are assumed to be as wide as {@code utf8mb4}.
+     */
+    private static int getMaxBytesPerChar(String charset) {
+        String name = charset.trim().split("\\s+")[0].toLowerCase();
+
+        if (name.equals("latin1") || name.equals("ascii") || name.equals("binary"))  return 1;
+        else if (name.equals("ucs2"))                                               return 2;
+        else if (name.equals("utf8") || name.equals("utf8mb3"))                     return 3;
+        else                                                                        return 4;
+    }
+
+    private static final class Column {
+        private final String name;
+        private final String type;
+        private final long defaultWidth;
+        private final boolean nullable;
+
+        private Column(String name, String type, long defaultWidth, boolean nullable) {
+            this.name = name;
+            this.type = type;
+            this.defaultWidth = defaultWidth;
+            this.nullable = nullable;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2015 The University of Vermont and State Agricultural
+ * College, Vermont Oxford Network.  All rights reserved.
+ *
+ * Written by Matthew B. Storer <matthewbstorer@gmail.com>
+ *
+ * This file is part of GenBank Loader.
+ *
+ * GenBank Loader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenBank Loader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenBank Loader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package edu.uvm.ccts.genbank.summary;
+
+/**
+ * A HyperLogLog sketch, which estimates the number of distinct values offered to it within a fixed amount of memory
+ * (2<sup>precision</sup> bytes), to within about {@code 1.04 / sqrt(2^precision)}.  Sketches built over separate
+ * portions of the data may be merged, giving the sketch of the whole.
+ */
+public class HyperLogLog {
+    private final int precision;
+    private final byte[] registers;
+
+    /**
+     * @param precision the number of hash bits used to select a register, between 4 and 16
+     */
+    public HyperLogLog(int precision) {
+        if (precision < 4 || precision > 16) throw new IllegalArgumentException("precision must be between 4 and 16");
+
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    /**
+     * Restores a sketch previously written by {@code toString}
+     * @param s the hex-encoded registers of the sketch
+     * @return the {@link HyperLogLog}
+     */
+    public static HyperLogLog parse(String s) {
+        int precision = Integer.numberOfTrailingZeros(s.length() / 2);
+        if (s.length() / 2 != 1 << precision) throw new IllegalArgumentException("invalid sketch length " + s.length());
+
+        HyperLogLog hll = new HyperLogLog(precision);
+        for (int i = 0; i < hll.registers.length; i ++) {
+            hll.registers[i] = (byte) Integer.parseInt(s.substring(i * 2, i * 2 + 2), 16);
+        }
+
+        return hll;
+    }
+
+    public void offer(String value) {
+        offerHash(hash(value));
+    }
+
+    public void offerHash(long hash) {
+        int idx = (int) (hash >>> (64 - precision));
+        int rank = Math.min(64 - precision, Long.numberOfLeadingZeros(hash << precision)) + 1;
+
+        if (rank > registers[idx]) registers[idx] = (byte) rank;
+    }
+
+    /**
+     * Merges another sketch of the same precision into this one
+     */
+    public void merge(HyperLogLog other) {
+        if (other.precision != precision) {
+            throw new IllegalArgumentException("cannot merge sketches of differing precision");
+        }
+
+        for (int i = 0; i < registers.length; i ++) {
+            if (other.registers[i] > registers[i]) registers[i] = other.registers[i];
+        }
+    }
+
+    /**
+     * @return the estimated number of distinct values offered to this sketch
+     */
+    public long estimate() {
+        int m = registers.length;
+
+        double sum = 0;
+        int zeros = 0;
+        for (byte r : registers) {
+            sum += 1.0 / (1L << r);
+            if (r == 0) zeros ++;
+        }
+
+        double alpha = m >= 128 ? 0.7213 / (1 + 1.079 / m) : m == 64 ? 0.709 : m == 32 ? 0.697 : 0.673;
+        double estimate = alpha * m * m / sum;
+
+        if (estimate <= 2.5 * m && zeros > 0) {
+            estimate = m * Math.log((double) m / zeros);            // linear counting, for small cardinalities
+        }
+
+        return Math.round(estimate);
+    }
+
+    public boolean isEmpty() {
+        for (byte r : registers) {
+            if (r != 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the registers of this sketch, hex-encoded
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(registers.length * 2);
+        for (byte b : registers) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+
+//////////////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    /**
+     * A 64-bit FNV-1a hash of the string's characters, finished with MurmurHash3's avalanche step so that every bit
+     * of the result depends on every character
+     */
+    private static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i ++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2015 The University of Vermont and State Agricultural
+ * College, Vermont Oxford Network.  All rights reserved.
+ *
+ * Written by Matthew B. Storer <matthewbstorer@gmail.com>
+ *
+ * This file is part of GenBank Loader.
+ *
+ * GenBank Loader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenBank Loader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenBank Loader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package edu.uvm.ccts.genbank.summary;
+
+import edu.uvm.ccts.common.db.parser.TableData;
+
+import java.io.*;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Mergeable summary statistics: exact counts and maxima per (dimension, name), and HyperLogLog estimates of the
+ * number of distinct values per dimension.  Each parser accumulates its own instance, which is written out as partial
+ * rows whenever its output is committed; the partial rows of every parser are merged into the final summary at the
+ * end of a prepare.
+ */
+public class SummaryCounts {
+    private static final int SKETCH_PRECISION = 12;
+    private static final String SEP = "\t";
+    private static final String MAX = "max";
+
+    private Map<String, Long> counts = new TreeMap<String, Long>();
+    private Map<String, Long> maxima = new TreeMap<String, Long>();
+    private Map<String, HyperLogLog> sketches = new TreeMap<String, HyperLogLog>();
+
+    /**
+     * Reads and merges the partial rows written by {@code emit}
+     * @param filename the file holding the partial rows
+     * @return the merged {@link SummaryCounts}
+     * @throws IOException
+     */
+    public static SummaryCounts read(String filename) throws IOException {
+        SummaryCounts summary = new SummaryCounts();
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(filename), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(SEP, -1);
+                if (parts.length < 4) continue;
+
+                if (parts[3].isEmpty()) {
+                    summary.add(parts[0] + SEP + parts[1], Long.parseLong(parts[2]));
+
+                } else if (parts[3].equals(MAX)) {
+                    summary.max(parts[0] + SEP + parts[1], Long.parseLong(parts[2]));
+
+                } else {
+                    HyperLogLog hll = summary.sketches.get(parts[0]);
+                    if (hll == null) summary.sketches.put(parts[0], HyperLogLog.parse(parts[3]));
+                    else             hll.merge(HyperLogLog.parse(parts[3]));
+                }
+            }
+
+        } finally {
+            try { reader.close(); } catch (Exception e) {}
+        }
+
+        return summary;
+    }
+
+    /**
+     * Counts one occurrence of a name within a dimension, e.g. the keyword {@code "RefSeq"}
+     */
+    public void count(String dimension, Object name) {
+        count(dimension, name, 1);
+    }
+
+    public void count(String dimension, Object name, long n) {
+        add(dimension + SEP + (name != null ? name : ""), n);
+    }
+
+    /**
+     * Records a value of which only the largest is kept, e.g. the width of a column
+     */
+    public void max(String dimension, Object name, long value) {
+        max(dimension + SEP + (name != null ? name : ""), value);
+    }
+
+    /**
+     * Offers a value to a dimension's distinct-value estimate
+     */
+    public void offer(String dimension, String value) {
+        if (value == null) return;
+
+        HyperLogLog hll = sketches.get(dimension);
+        if (hll == null) {
+            hll = new HyperLogLog(SKETCH_PRECISION);
+            sketches.put(dimension, hll);
+        }
+        hll.offer(value);
+    }
+
+    public boolean isEmpty() {
+        return counts.isEmpty() && maxima.isEmpty() && sketches.isEmpty();
+    }
+
+    public void clear() {
+        counts.clear();
+        maxima.clear();
+        sketches.clear();
+    }
+
+    /**
+     * Writes the statistics accumulated so far to a table as partial rows of the form
+     * {@code (dimension, name, count, sketch)}, and clears them.  Maxima are written with the sketch {@code max}.
+     * @param t the table to which partial rows are written
+     * @throws IOException
+     */
+    public void emit(TableData t) throws IOException {
+        for (Map.Entry<String, Long> entry : counts.entrySet()) {
+            String[] key = entry.getKey().split(SEP, 2);
+            t.addRecord(key[0], key[1], entry.getValue(), "");
+        }
+
+        for (Map.Entry<String, Long> entry : maxima.entrySet()) {
+            String[] key = entry.getKey().split(SEP, 2);
+            t.addRecord(key[0], key[1], entry.getValue(), MAX);
+        }
+
+        for (Map.Entry<String, HyperLogLog> entry : sketches.entrySet()) {
+            t.addRecord(entry.getKey(), "", 0, entry.getValue().toString());
+        }
+
+        clear();
+    }
+
+    /**
+     * Writes the final summary, one row of the form {@code (dimension, name, count)} per count or maximum, and one of
+     * the form {@code (dimension, "", estimate)} per distinct-value estimate
+     * @param filename the file to write
+     * @throws IOException
+     */
+    public void write(String filename) throws IOException {
+        PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(filename), "UTF-8")));
+        try {
+            for (Map.Entry<String, Long> entry : counts.entrySet()) {
+                writer.print(entry.getKey() + SEP + entry.getValue() + "\n");
+            }
+
+            for (Map.Entry<String, Long> entry : maxima.entrySet()) {
+                writer.print(entry.getKey() + SEP + entry.getValue() + "\n");
+            }
+
+            for (Map.Entry<String, HyperLogLog> entry : sketches.entrySet()) {
+                writer.print(entry.getKey() + SEP + SEP + entry.getValue().estimate() + "\n");
+            }
+
+        } finally {
+            try { writer.close(); } catch (Exception e) {}
+        }
+    }
+
+
+//////////////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    private void add(String key, long n) {
+        Long count = counts.get(key);
+        counts.put(key, count != null ? count + n : n);
+    }
+
+    private void max(String key, long value) {
+        Long max = maxima.get(key);
+        if (max == null || value > max) maxima.put(key, value);
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2015 The University of Vermont and State Agricultural
+ * College, Vermont Oxford Network.  All rights reserved.
+ *
+ * Written by Matthew B. Storer <matthewbstorer@gmail.com>
+ *
+ * This file is part of GenBank Loader.
+ *
+ * GenBank Loader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenBank Loader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenBank Loader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package edu.uvm.ccts.genbank;
+
+import edu.uvm.ccts.common.util.FileUtil;
+import edu.uvm.ccts.genbank.filter.LocusVersionMap;
+import edu.uvm.ccts.genbank.summary.SummaryCounts;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Parses small, hand-written feature table files through {@link FeatureTableParser}
+ */
+public class FeatureTableParserTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String outputDir;
+
+    @Before
+    public void setUp() throws Exception {
+        outputDir = folder.newFolder("output").getPath();
+    }
+
+    @Test
+    public void testLaterDailyFileWinsSameVersionWhenParsedFirst() throws Exception {
+        LocusVersionMap locusMap = buildDailyLocusMap();
+
+        FeatureTableParser parser = buildParser(locusMap);
+        parser.parse("nc1019.flat.gz", gzip(record("AB000001", 1, "Revised definition.")));
+        parser.parse("nc1018.flat.gz", gzip(record("AB000001", 1, "Original definition.")));
+        compact();
+
+        assertEquals("[AB000001|1|Revised definition.]", readBasic());
+    }
+
+    @Test
+    public void testLaterDailyFileWinsSameVersionWhenParsedLast() throws Exception {
+        LocusVersionMap locusMap = buildDailyLocusMap();
+
+        FeatureTableParser parser = buildParser(locusMap);
+        parser.parse("nc1018.flat.gz", gzip(record("AB000001", 1, "Original definition.")));
+        parser.parse("nc1019.flat.gz", gzip(record("AB000001", 1, "Revised definition.") +
+                record("AB000002", 1, "Another definition.")));
+        compact();
+
+        assertEquals("[AB000002|1|Another definition., AB000001|1|Revised definition.]", readBasic());
+    }
+
+    @Test
+    public void testNewerVersionWinsOverLaterDailyFile() throws Exception {
+        LocusVersionMap locusMap = buildDailyLocusMap();
+
+        FeatureTableParser parser = buildParser(locusMap);
+        parser.parse("nc1018.flat.gz", gzip(record("AB000001", 2, "Newer version.")));
+        parser.parse("nc1019.flat.gz", gzip(record("AB000001", 1, "Older version.")));
+        compact();
+
+        assertEquals("[AB000001|2|Newer version.]", readBasic());
+    }
+
+    @Test
+    public void testFirstClaimWinsSameVersionWithoutFileOrder() throws Exception {
+        FeatureTableParser parser = buildParser(new LocusVersionMap(1024));
+        parser.parse("nc1019.flat.gz", gzip(record("AB000001", 1, "Revised definition.")));
+        parser.parse("nc1018.flat.gz", gzip(record("AB000001", 1, "Original definition.")));
+        compact();
+
+        assertEquals("[AB000001|1|Revised definition.]", readBasic());
+    }
+
+    @Test
+    public void testSupersedingRowsAreMeasuredButNotCounted() throws Exception {
+        FeatureTableParser parser = buildParser(new LocusVersionMap(1024));
+        parser.enableSummary();
+        parser.parse("gbbct1.seq.gz", gzip(record("AB000001", 1, "Original definition.") +
+                record("AB000002", 1, "Another definition.")));
+        parser.parse("gbbct2.seq.gz", gzip(record("AB000001", 2, "A much longer revised definition.")));
+        compact();
+
+        assertEquals("[AB000002|1|Another definition., AB000001|2|A much longer revised definition.]", readBasic());
+
+        Map<String, Long> statistics = readStatistics();
+        assertEquals(Long.valueOf(2), statistics.get("table_rows\tbasic"));
+        assertEquals(Long.valueOf(2), statistics.get("records\t"));
+        assertEquals(Long.valueOf("A much longer revised definition.".length()),
+                statistics.get("column_width\tbasic.6"));
+    }
+
+
+//////////////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    private LocusVersionMap buildDailyLocusMap() {
+        LocusVersionMap locusMap = new LocusVersionMap(1024);
+        locusMap.setFileOrder(Arrays.asList("/genbank/daily-nc/nc1018.flat.gz", "/genbank/daily-nc/nc1019.flat.gz"));
+        return locusMap;
+    }
+
+    private FeatureTableParser buildParser(LocusVersionMap locusMap) throws Exception {
+        FeatureTableParser parser = new FeatureTableParser(1, folder.newFolder().getPath(), outputDir);
+        parser.setLocusVersionMap(locusMap);
+        return parser;
+    }
+
+    private void compact() throws Exception {
+        new SupersededCompactor(outputDir, Arrays.asList(FeatureTableParser.TABLE_FILE_BASIC,
+                FeatureTableParser.TABLE_FILE_KEYWORDS, FeatureTableParser.TABLE_FILE_DBXREFS,
+                FeatureTableParser.TABLE_FILE_JOURNALS, FeatureTableParser.TABLE_FILE_AUTHORS,
+                FeatureTableParser.TABLE_FILE_ANNOTATIONS)).compact();
+    }
+
+    /**
+     * @return the locus, version and definition of each row of the basic table, in file order
+     */
+    private String readBasic() throws Exception {
+        List<String> rows = new ArrayList<String>();
+        for (String line : FileUtil.readLines(outputDir + "/" + FeatureTableParser.TABLE_FILE_BASIC)) {
+            String[] parts = line.split("\t");
+            rows.add(parts[1] + "|" + parts[4] + "|" + parts[6]);
+        }
+        return rows.toString();
+    }
+
+    /**
+     * @return the merged summary statistics, keyed by dimension and name
+     */
+    private Map<String, Long> readStatistics() throws Exception {
+        String filename = outputDir + "/summary.txt";
+        SummaryCounts.read(outputDir + "/" + FeatureTableParser.TABLE_FILE_SUMMARY_PARTIALS).write(filename);
+
+        Map<String, Long> statistics = new HashMap<String, Long>();
+        for (String line : FileUtil.readLines(filename)) {
+            int idx = line.lastIndexOf('\t');
+            statistics.put(line.substring(0, idx), Long.parseLong(line.substring(idx + 1)));
+        }
+        return statistics;
+    }
+
+    private static String record(String locus, int version, String definition) {
+        return "LOCUS       " + locus + "                 100 bp    DNA     linear   PRI 19-OCT-2026\n" +
+                "DEFINITION  " + definition + "\n" +
+                "VERSION     " + locus + "." + version + "\n" +
+                "KEYWORDS    .\n" +
+                "ORIGIN      \n" +
+                "        1 acgtacgtac gtacgtacgt\n" +
+                "//\n";
+    }
+
+    private static InputStream gzip(String contents) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream output = new GZIPOutputStream(bytes);
+        try {
+            output.write(contents.getBytes("UTF-8"));
+
+        } finally {
+            output.close();
+        }
+        return new ByteArrayInputStream(bytes.toByteArray());
+    }
+}
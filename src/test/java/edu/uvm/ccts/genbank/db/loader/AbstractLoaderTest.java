@@ -0,0 +1,148 @@
+/*
+ * Copyright 2015 The University of Vermont and State
+ * Agricultural College.  All rights reserved.
+ *
+ * Written by Matthew B. Storer <matthewbstorer@gmail.com>
+ *
+ * This file is part of CCTS Common.
+ *
+ * CCTS Common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CCTS Common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CCTS Common.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package edu.uvm.ccts.genbank.db.loader;
+
+import edu.uvm.ccts.common.db.parser.AbstractFileParser;
+import edu.uvm.ccts.common.model.FileMetadata;
+import edu.uvm.ccts.common.util.FileUtil;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Prepares small source files through a minimal {@link AbstractLoader} that retains per-file output segments
+ */
+public class AbstractLoaderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testUnchangedFilesAreAssembledFromSegments() throws Exception {
+        File a = writeSource("a.txt", "alpha\n");
+        File b = writeSource("b.txt", "beta\n");
+        File c = writeSource("c.txt", "gamma\n");
+        String outputDir = folder.newFolder("output").getPath();
+
+        SegmentLoader loader = new SegmentLoader(outputDir);
+        loader.prepare(a, b, c);
+
+        assertEquals(0, loader.getFailedFileCount());
+        assertEquals("alpha\nbeta\ngamma\n", FileUtil.read(outputDir + "/out.txt"));
+
+        loader = new SegmentLoader(outputDir);         // every file is unchanged, and one has been dropped
+        loader.prepare(a, c);
+
+        assertEquals(0, loader.getQueueSize());
+        assertEquals("alpha\ngamma\n", FileUtil.read(outputDir + "/out.txt"));
+    }
+
+
+//////////////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    private File writeSource(String name, String contents) throws IOException {
+        File f = new File(folder.getRoot(), name);
+        FileUtil.write(f.getPath(), contents, false);
+        return f;
+    }
+
+    /**
+     * Copies each source file to its worker's output file, keeping the output of each source file as a segment
+     */
+    private static final class SegmentLoader extends AbstractLoader {
+        private final String outputDir;
+
+        private SegmentLoader(String outputDir) {
+            this.outputDir = outputDir;
+        }
+
+        private void prepare(File... files) throws IOException, InterruptedException {
+            Metadata metadata = new Metadata(outputDir + "/.metadata");
+            for (File f : files) {
+                FileMetadata current = new FileMetadata(f);
+                if (isUnchanged(metadata.get(current), current)) skip(current);
+                else addQueueItem(current);
+            }
+
+            invoke();
+        }
+
+        @Override
+        protected String getName() {
+            return "segment-test";
+        }
+
+        @Override
+        protected int getRequiredMemPerThreadMB() {
+            return 1;
+        }
+
+        @Override
+        protected AbstractFileParser buildParser(int threadId, String tempDir) {
+            return null;
+        }
+
+        @Override
+        protected Map<String, String> getTableFileMap() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        protected Callable<Object> buildWorkerThreadLogic(final int threadId, String tempDir) {
+            return new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    QueueItem item;
+                    while ((item = popNextQueueItem()) != null) {
+                        FileMetadata meta = item.getItem();
+                        FileUtil.write(getWorkerOutputDir(threadId) + "/out.txt", FileUtil.read(meta.getFilename()),
+                                false);
+                        commit(threadId, meta);
+                    }
+                    return null;
+                }
+            };
+        }
+
+        @Override
+        protected String getOutputDir() {
+            return outputDir;
+        }
+
+        @Override
+        protected boolean isSegmentRetentionEnabled() {
+            return true;
+        }
+    }
+}
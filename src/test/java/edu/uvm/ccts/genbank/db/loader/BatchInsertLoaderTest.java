@@ -0,0 +1,104 @@
+/*
+ * Copyright 2015 The University of Vermont and State
+ * Agricultural College.  All rights reserved.
+ *
+ * Written by Matthew B. Storer <matthewbstorer@gmail.com>
+ *
+ * This file is part of CCTS Common.
+ *
+ * CCTS Common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CCTS Common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CCTS Common.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.uvm.ccts.genbank.db.loader;
+
+import org.junit.Test;
+
+import java.sql.Statement;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class BatchInsertLoaderTest {
+
+    @Test
+    public void testSplitUndoesEscaping() {
+        String line = "1\tLOC1\ta\\\\b\t\\N\t\\\\N\t";
+
+        assertArrayEquals(new Object[] { "1", "LOC1", "a\\b", null, "\\N", "" }, BatchInsertLoader.split(line));
+    }
+
+    @Test
+    public void testSplitKeepsTrailingEmptyFields() {
+        assertEquals(3, BatchInsertLoader.split("a\t\t").length);
+    }
+
+    @Test
+    public void testSplitReadsNullAsOnlyWholeField() {
+        Object[] row = BatchInsertLoader.split("\\N\tx\\N");
+
+        assertNull(row[0]);
+        assertEquals("xN", row[1]);
+    }
+
+    @Test
+    public void testUnescapeRoundTripsEscapedValues() {
+        String[] values = {
+                "plain", "back\\slash", "\\\\double", "trailing\\", "\\N", "tab\there", "new\nline", "nul\0char",
+                "ctrl\032z", ""
+        };
+
+        for (String value : values) {
+            assertEquals(value, BatchInsertLoader.unescape(escape(value)));
+        }
+    }
+
+    @Test
+    public void testUnescapeSequences() {
+        assertEquals("\0\b\n\r\t\032", BatchInsertLoader.unescape("\\0\\b\\n\\r\\t\\Z"));
+        assertEquals("q", BatchInsertLoader.unescape("\\q"));
+        assertEquals("end\\", BatchInsertLoader.unescape("end\\"));
+    }
+
+    @Test
+    public void testCountInsertedExcludesIgnoredRows() {
+        assertEquals(2, BatchInsertLoader.countInserted(new int[] { 1, 0, 1 }));
+        assertEquals(2, BatchInsertLoader.countInserted(new int[] { Statement.SUCCESS_NO_INFO, 0, 1 }));
+        assertEquals(0, BatchInsertLoader.countInserted(new int[] { 0, 0 }));
+    }
+
+
+//////////////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    /**
+     * Escapes a value as {@code LOAD DATA}'s default format does
+     */
+    private static String escape(String s) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < s.length(); i ++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '\\':   sb.append("\\\\"); break;
+                case '\0':   sb.append("\\0"); break;
+                case '\n':   sb.append("\\n"); break;
+                case '\t':   sb.append("\\t"); break;
+                case '\032': sb.append("\\Z"); break;
+                default:     sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
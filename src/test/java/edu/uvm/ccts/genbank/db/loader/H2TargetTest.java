@@ -0,0 +1,153 @@
+/*
+ * Copyright 2015 The University of Vermont and State
+ * Agricultural College.  All rights reserved.
+ *
+ * Written by Matthew B. Storer <matthewbstorer@gmail.com>
+ *
+ * This file is part of CCTS Common.
+ *
+ * CCTS Common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CCTS Common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CCTS Common.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.uvm.ccts.genbank.db.loader;
+
+import edu.uvm.ccts.common.db.DataSource;
+import edu.uvm.ccts.genbank.schema.GenbankSchema;
+import edu.uvm.ccts.genbank.schema.TableSchema;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Loads small prepared files through {@link H2Target} into tables created from the generated H2 DDL
+ */
+public class H2TargetTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private H2Target target;
+    private DataSource dataSource;
+
+    @Before
+    public void setUp() throws Exception {
+        target = new H2Target(folder.getRoot().getPath(), 2, 2);
+
+        Properties info = new Properties();
+        info.setProperty("user", "sa");
+        info.setProperty("password", "");
+        dataSource = new DataSource("h2-test", target.getDriverClassName(), target.buildURL(null, "genbank"), info);
+
+        for (TableSchema table : GenbankSchema.build(false, true, Collections.<String>emptyList(), false)) {
+            if (table.getName().equals("dbxrefs") || table.getName().equals("author_names")) {
+                execute(table.toH2DDL(null));
+            }
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try {
+            execute("shutdown");
+
+        } finally {
+            dataSource.close();
+            dataSource.closePool();
+        }
+    }
+
+    @Test
+    public void testLoadFileUndoesEscaping() throws Exception {
+        long rows = target.loadFile(dataSource, "dbxrefs", getFixture("dbxrefs.txt"), null, false);
+
+        assertEquals(3, rows);
+        assertEquals("[3]", query("select count(*) from dbxrefs").toString());
+        assertEquals("[1|AB000001|BioProject|null, 1|AB000001|taxon|9606, 2|AB000002|path\\with\\backslashes|PRJNA\\1]",
+                query("select partitionKey, locus, databaseName, databaseId from dbxrefs " +
+                        "order by locus, databaseName").toString());
+    }
+
+    @Test
+    public void testLoadFileIgnoresDuplicateKeys() throws Exception {
+        long rows = target.loadFile(dataSource, "author_names", getFixture("author_names.txt"), null, true);
+
+        assertEquals(2, rows);
+        assertEquals("[2]", query("select count(*) from author_names").toString());
+        assertEquals("[101|Smith,J., 102|O\\Brien,K.]",
+                query("select authorId, author from author_names order by authorId").toString());
+
+        rows = target.loadFile(dataSource, "author_names", getFixture("author_names.txt"), null, true);
+
+        assertEquals(0, rows);
+        assertEquals("[2]", query("select count(*) from author_names").toString());
+    }
+
+
+//////////////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    private String getFixture(String name) throws Exception {
+        return new File(getClass().getResource(name).toURI()).getPath();
+    }
+
+    private void execute(String ddl) throws Exception {
+        Connection conn = dataSource.getConnection();
+        Statement stmt = conn.createStatement();
+        try {
+            for (String sql : ddl.split(";\n")) {
+                if ( ! sql.trim().isEmpty() ) stmt.execute(sql);
+            }
+
+        } finally {
+            try { stmt.close(); } catch (Exception e) {}
+        }
+    }
+
+    private List<String> query(String sql) throws Exception {
+        List<String> rows = new ArrayList<String>();
+
+        Statement stmt = dataSource.getConnection().createStatement();
+        try {
+            ResultSet rs = stmt.executeQuery(sql);
+            int columns = rs.getMetaData().getColumnCount();
+            while (rs.next()) {
+                StringBuilder sb = new StringBuilder();
+                for (int i = 1; i <= columns; i ++) {
+                    if (i > 1) sb.append("|");
+                    sb.append(rs.getString(i));
+                }
+                rows.add(sb.toString());
+            }
+
+        } finally {
+            try { stmt.close(); } catch (Exception e) {}
+        }
+
+        return rows;
+    }
+}
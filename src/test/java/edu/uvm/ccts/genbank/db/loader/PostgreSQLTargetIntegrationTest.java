@@ -0,0 +1,171 @@
+/*
+ * Copyright 2015 The University of Vermont and State
+ * Agricultural College.  All rights reserved.
+ *
+ * Written by Matthew B. Storer <matthewbstorer@gmail.com>
+ *
+ * This file is part of CCTS Common.
+ *
+ * CCTS Common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CCTS Common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CCTS Common.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package edu.uvm.ccts.genbank.db.loader;
+
+import edu.uvm.ccts.common.db.DataSource;
+import edu.uvm.ccts.genbank.schema.GenbankSchema;
+import edu.uvm.ccts.genbank.schema.TableSchema;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Loads small prepared files through {@link PostgreSQLTarget} into a live PostgreSQL server.  Runs only when
+ * {@code -Dgenbank.test.postgres.url} names a database (e.g. {@code jdbc:postgresql://localhost/genbank_test}), with
+ * credentials taken from {@code genbank.test.postgres.user} and {@code genbank.test.postgres.password}.  The tables
+ * are created in a schema of their own, which is dropped afterwards.
+ */
+public class PostgreSQLTargetIntegrationTest {
+    private static final String URL_PROPERTY = "genbank.test.postgres.url";
+
+    private PostgreSQLTarget target;
+    private DataSource dataSource;
+    private String schema;
+
+    @Before
+    public void setUp() throws Exception {
+        String url = System.getProperty(URL_PROPERTY);
+        Assume.assumeTrue(URL_PROPERTY + " is not set", url != null && ! url.isEmpty());
+
+        target = new PostgreSQLTarget(2, 0);
+        schema = "genbank_test_" + System.currentTimeMillis();
+
+        Properties info = new Properties();
+        info.setProperty("user", System.getProperty("genbank.test.postgres.user", "postgres"));
+        info.setProperty("password", System.getProperty("genbank.test.postgres.password", ""));
+        info.setProperty("currentSchema", schema);
+        dataSource = new DataSource("postgres-test", target.getDriverClassName(), url, info);
+
+        execute("create schema " + schema);
+        for (TableSchema table : GenbankSchema.build(false, true, Collections.<String>emptyList(), false)) {
+            if (table.getName().equals("dbxrefs") || table.getName().equals("author_names")) {
+                execute(table.toPostgreSQLDDL(schema, null, 4));
+            }
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (dataSource == null) return;
+
+        try {
+            execute("drop schema if exists " + schema + " cascade");
+
+        } finally {
+            dataSource.close();
+            dataSource.closePool();
+        }
+    }
+
+    @Test
+    public void testCopyUndoesEscaping() throws Exception {
+        long rows = target.loadFile(dataSource, "dbxrefs", getFixture("dbxrefs.txt"), null, false);
+
+        assertEquals(3, rows);
+        assertEquals("[3]", query("select count(*) from dbxrefs").toString());
+        assertEquals("[1|AB000001|BioProject|null, 1|AB000001|taxon|9606, 2|AB000002|path\\with\\backslashes|PRJNA\\1]",
+                query("select partitionKey, locus, databaseName, databaseId from dbxrefs " +
+                        "order by locus, databaseName").toString());
+    }
+
+    @Test
+    public void testCopyIntoNamedColumns() throws Exception {
+        long rows = target.loadFile(dataSource, "dbxrefs", getFixture("dbxrefs.txt"),
+                new String[] { "partitionKey", "locus", "databaseName", "databaseId" }, false);
+
+        assertEquals(3, rows);
+        assertEquals("[3]", query("select count(*) from dbxrefs").toString());
+    }
+
+    @Test
+    public void testIgnoreLoadSkipsDuplicateKeys() throws Exception {
+        long rows = target.loadFile(dataSource, "author_names", getFixture("author_names.txt"), null, true);
+
+        assertEquals(2, rows);
+        assertEquals("[101|Smith,J., 102|O\\Brien,K.]",
+                query("select authorId, author from author_names order by authorId").toString());
+
+        rows = target.loadFile(dataSource, "author_names", getFixture("author_names.txt"), null, true);
+
+        assertEquals(0, rows);
+        assertEquals("[2]", query("select count(*) from author_names").toString());
+    }
+
+
+//////////////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    private String getFixture(String name) throws Exception {
+        return new File(getClass().getResource(name).toURI()).getPath();
+    }
+
+    private void execute(String ddl) throws Exception {
+        Connection conn = dataSource.getConnection();
+        Statement stmt = conn.createStatement();
+        try {
+            for (String sql : ddl.split(";\n")) {
+                if ( ! sql.trim().isEmpty() ) stmt.execute(sql);
+            }
+
+        } finally {
+            try { stmt.close(); } catch (Exception e) {}
+        }
+    }
+
+    private List<String> query(String sql) throws Exception {
+        List<String> rows = new ArrayList<String>();
+
+        Statement stmt = dataSource.getConnection().createStatement();
+        try {
+            ResultSet rs = stmt.executeQuery(sql);
+            int columns = rs.getMetaData().getColumnCount();
+            while (rs.next()) {
+                StringBuilder sb = new StringBuilder();
+                for (int i = 1; i <= columns; i ++) {
+                    if (i > 1) sb.append("|");
+                    sb.append(rs.getString(i));
+                }
+                rows.add(sb.toString());
+            }
+
+        } finally {
+            try { stmt.close(); } catch (Exception e) {}
+        }
+
+        return rows;
+    }
+}
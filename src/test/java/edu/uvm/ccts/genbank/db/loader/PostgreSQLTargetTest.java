@@ -0,0 +1,149 @@
+/*
+ * Copyright 2015 The University of Vermont and State
+ * Agricultural College.  All rights reserved.
+ *
+ * Written by Matthew B. Storer <matthewbstorer@gmail.com>
+ *
+ * This file is part of CCTS Common.
+ *
+ * CCTS Common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CCTS Common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CCTS Common.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.uvm.ccts.genbank.db.loader;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PostgreSQLTargetTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testSplitEndsChunksAtLineBoundaries() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i ++) {
+            sb.append("row ").append(i).append("\t").append(repeat('x', i % 37)).append("\n");
+        }
+        File f = write(sb.toString());
+
+        List<long[]> chunks = PostgreSQLTarget.split(f.getPath(), 4, 1);
+
+        assertEquals(4, chunks.size());
+        assertContiguous(chunks, f.length());
+        for (long[] chunk : chunks) {
+            assertTrue(chunk[1] > chunk[0]);
+            assertEquals('\n', byteBefore(f, chunk[1]));
+        }
+    }
+
+    @Test
+    public void testSplitWithoutTrailingNewline() throws IOException {
+        File f = write("a\nbb\nccc\ndddd");
+
+        List<long[]> chunks = PostgreSQLTarget.split(f.getPath(), 3, 1);
+
+        assertContiguous(chunks, f.length());
+        for (int i = 0; i < chunks.size() - 1; i ++) {
+            assertEquals('\n', byteBefore(f, chunks.get(i)[1]));
+        }
+    }
+
+    @Test
+    public void testSplitKeepsSmallFileWhole() throws IOException {
+        File f = write("a\nb\nc\n");
+
+        List<long[]> chunks = PostgreSQLTarget.split(f.getPath(), 8, 1024);
+
+        assertEquals(1, chunks.size());
+        assertArrayEquals(new long[] { 0, f.length() }, chunks.get(0));
+    }
+
+    @Test
+    public void testSplitNeverDividesALine() throws IOException {
+        File f = write(repeat('x', 100) + "\n" + "y\n");
+
+        List<long[]> chunks = PostgreSQLTarget.split(f.getPath(), 4, 1);
+
+        assertContiguous(chunks, f.length());
+        assertEquals(101, chunks.get(0)[1]);
+    }
+
+    @Test
+    public void testSplitEmptyFile() throws IOException {
+        File f = write("");
+
+        List<long[]> chunks = PostgreSQLTarget.split(f.getPath(), 4, 1);
+
+        assertEquals(1, chunks.size());
+        assertArrayEquals(new long[] { 0, 0 }, chunks.get(0));
+    }
+
+
+//////////////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    private File write(String s) throws IOException {
+        File f = folder.newFile();
+        OutputStream output = new FileOutputStream(f);
+        try {
+            output.write(s.getBytes("UTF-8"));
+
+        } finally {
+            try { output.close(); } catch (Exception e) {}
+        }
+        return f;
+    }
+
+    private static void assertContiguous(List<long[]> chunks, long length) {
+        long pos = 0;
+        for (long[] chunk : chunks) {
+            assertEquals(pos, chunk[0]);
+            pos = chunk[1];
+        }
+        assertEquals(length, pos);
+    }
+
+    private static char byteBefore(File f, long pos) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            raf.seek(pos - 1);
+            return (char) raf.read();
+
+        } finally {
+            try { raf.close(); } catch (Exception e) {}
+        }
+    }
+
+    private static String repeat(char c, int n) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < n; i ++) {
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2015 The University of Vermont and State
+ * Agricultural College.  All rights reserved.
+ *
+ * Written by Matthew B. Storer <matthewbstorer@gmail.com>
+ *
+ * This file is part of CCTS Common.
+ *
+ * CCTS Common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CCTS Common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CCTS Common.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.uvm.ccts.common.db.parser;
+
+import edu.uvm.ccts.common.model.FileMetadata;
+import edu.uvm.ccts.common.util.FileUtil;
+import edu.uvm.ccts.genbank.http.RemoteFile;
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Interrupts the streamed parse of a file part-way through, and resumes it against the same or a changed file
+ */
+public class CheckpointTest {
+    private static final String NAME = "/genbank/records.txt";
+    private static final int RECORDS = 100;
+    private static final int FAIL_AT_BYTE = 15000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String tempDir;
+    private String outputDir;
+    private String checkpointDir;
+
+    @Before
+    public void setUp() throws Exception {
+        tempDir = folder.newFolder("temp").getPath();
+        outputDir = folder.newFolder("output").getPath();
+        checkpointDir = folder.newFolder("checkpoints").getPath();
+    }
+
+    @Test
+    public void testResumesUnchangedSource() throws Exception {
+        FileMetadata source = new FileMetadata(new RemoteFile(NAME, 21000, 1000));
+
+        interruptParse(source, build("a"));
+
+        RecordParser parser = new RecordParser();
+        parser.setSource(source);
+        parser.parse(NAME, new ByteArrayInputStream(build("b")));
+
+        // records committed before the interruption are not parsed again
+        List<String> rows = readRows();
+        assertEquals(RECORDS, rows.size());
+        assertEquals("a-0", rows.get(0));
+        assertEquals("b-" + (RECORDS - 1), rows.get(RECORDS - 1));
+    }
+
+    @Test
+    public void testDiscardsCheckpointOfChangedSource() throws Exception {
+        interruptParse(new FileMetadata(new RemoteFile(NAME, 21000, 1000)), build("a"));
+
+        RecordParser parser = new RecordParser();
+        parser.setSource(new FileMetadata(new RemoteFile(NAME, 21000, 2000)));      // same size, newer
+        parser.parse(NAME, new ByteArrayInputStream(build("b")));
+
+        assertEquals(buildExpectedRows("b"), readRows());
+        assertFalse(FileUtil.exists(checkpointDir + "/records.txt"));
+    }
+
+    @Test
+    public void testDiscardsCheckpointOfUnknownStreamedSource() throws Exception {
+        interruptParse(null, build("a"));
+
+        RecordParser parser = new RecordParser();
+        parser.parse(NAME, new ByteArrayInputStream(build("b")));
+
+        assertEquals(buildExpectedRows("b"), readRows());
+    }
+
+    @Test
+    public void testSaveAndLoadSource() throws Exception {
+        FileMetadata source = new FileMetadata(new RemoteFile(NAME, 21000, 1000));
+
+        Checkpoint checkpoint = new Checkpoint(10, -1, 5000, source);
+        checkpoint.setSegmentLength("records.txt", 42);
+        checkpoint.save(checkpointDir + "/checkpoint");
+
+        Checkpoint loaded = Checkpoint.load(checkpointDir + "/checkpoint");
+        assertEquals(10, loaded.getRecordCount());
+        assertEquals(5000, loaded.getInputOffset());
+        assertEquals(source, loaded.getSource());
+        assertEquals(Long.valueOf(42), loaded.getSegmentLength("records.txt"));
+    }
+
+
+//////////////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    /**
+     * Parses a stream that fails part-way through, leaving a checkpoint behind
+     */
+    private void interruptParse(FileMetadata source, byte[] data) throws Exception {
+        RecordParser parser = new RecordParser();
+        parser.setSource(source);
+
+        try {
+            parser.parse(NAME, new FailingInputStream(data, FAIL_AT_BYTE));
+            fail("expected an IOException");
+
+        } catch (IOException e) {
+            // expected
+        }
+
+        assertTrue(FileUtil.exists(checkpointDir + "/records.txt/checkpoint"));
+    }
+
+    private List<String> readRows() throws Exception {
+        return FileUtil.readLines(outputDir + "/records.txt");
+    }
+
+    private static List<String> buildExpectedRows(String prefix) {
+        List<String> rows = new ArrayList<String>();
+        for (int i = 0; i < RECORDS; i ++) {
+            rows.add(prefix + "-" + i);
+        }
+        return rows;
+    }
+
+    /**
+     * @return {@code RECORDS} records of about 200 bytes each, so that a record reader's buffer holds a few dozen
+     */
+    private static byte[] build(String prefix) throws Exception {
+        String padding = StringUtils.repeat('.', 200);
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < RECORDS; i ++) {
+            sb.append("REC ").append(prefix).append("-").append(String.format("%-4d", i)).append("\n");
+            sb.append(padding).append("\n");
+        }
+        return sb.toString().getBytes("UTF-8");
+    }
+
+    private final class RecordParser extends AbstractCustomFileParser {
+        private final TableData table;
+
+        private RecordParser() throws IOException {
+            super(1);
+            table = new TableData(tempDir, outputDir, "records.txt");
+        }
+
+        @Override
+        protected String getRecordStartText() {
+            return "REC ";
+        }
+
+        @Override
+        protected void processRecord(String record) throws Exception {
+            table.addRecord(record.substring(4, record.indexOf('\n')).trim());
+        }
+
+        @Override
+        protected List<TableData> getTableDataList() {
+            return Arrays.asList(table);
+        }
+
+        @Override
+        protected InputStream getInputStream(String filename) throws IOException {
+            return new FileInputStream(filename);
+        }
+
+        @Override
+        protected String getCheckpointDir() {
+            return checkpointDir;
+        }
+
+        @Override
+        protected int getCheckpointInterval() {
+            return 5;
+        }
+    }
+
+    /**
+     * Fails as though the connection it is read from dropped after {@code failAt} bytes
+     */
+    private static final class FailingInputStream extends FilterInputStream {
+        private int remaining;
+
+        private FailingInputStream(byte[] data, int failAt) {
+            super(new ByteArrayInputStream(data));
+            this.remaining = failAt;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) throw new IOException("connection reset");
+
+            int n = super.read(b, off, Math.min(len, remaining));
+            if (n > 0) remaining -= n;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2015 The University of Vermont and State Agricultural
+ * College, Vermont Oxford Network.  All rights reserved.
+ *
+ * Written by Matthew B. Storer <matthewbstorer@gmail.com>
+ *
+ * This file is part of GenBank Loader.
+ *
+ * GenBank Loader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenBank Loader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenBank Loader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.uvm.ccts.genbank.ftp;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.ftpserver.FtpServer;
+import org.apache.ftpserver.FtpServerFactory;
+import org.apache.ftpserver.ftplet.Authority;
+import org.apache.ftpserver.listener.Listener;
+import org.apache.ftpserver.listener.ListenerFactory;
+import org.apache.ftpserver.usermanager.impl.BaseUser;
+import org.apache.ftpserver.usermanager.impl.WritePermission;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Exercises {@link FTPSession} and {@link FTPSessionPool} against an in-process FTP server
+ */
+public class FTPSessionPoolTest {
+    private static final String USER = "genbank";
+    private static final String PASS = "genbank";
+    private static final int SERVER_IDLE_TIMEOUT_SECONDS = 1;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File home;
+    private FtpServer server;
+    private int port;
+
+    @Before
+    public void setUp() throws Exception {
+        home = folder.newFolder("home");
+
+        FtpServerFactory serverFactory = new FtpServerFactory();
+
+        ListenerFactory listenerFactory = new ListenerFactory();
+        listenerFactory.setPort(0);
+        listenerFactory.setIdleTimeout(SERVER_IDLE_TIMEOUT_SECONDS);
+        serverFactory.addListener("default", listenerFactory.createListener());
+
+        BaseUser user = new BaseUser();
+        user.setName(USER);
+        user.setPassword(PASS);
+        user.setHomeDirectory(home.getPath());
+        user.setAuthorities(Arrays.<Authority>asList(new WritePermission()));
+        serverFactory.getUserManager().save(user);
+
+        server = serverFactory.createServer();
+        server.start();
+
+        Listener listener = serverFactory.getListeners().get("default");
+        port = listener.getPort();
+    }
+
+    @After
+    public void tearDown() {
+        if (server != null) server.stop();
+    }
+
+    @Test
+    public void testDownloadResumesFromPartialFile() throws Exception {
+        byte[] data = buildData(100000);
+        FileUtils.writeByteArrayToFile(new File(home, "data.bin"), data);
+
+        File local = folder.newFile("data.bin");
+        FileUtils.writeByteArrayToFile(local, Arrays.copyOf(data, 40000));
+
+        FTPSession session = buildSession();
+        session.connect();
+        try {
+            assertEquals(60000, session.download("data.bin", local.getPath()));
+
+        } finally {
+            session.disconnect();
+        }
+
+        assertArrayEquals(data, FileUtils.readFileToByteArray(local));
+    }
+
+    @Test
+    public void testRetrieveFromOffset() throws Exception {
+        byte[] data = buildData(1000);
+        FileUtils.writeByteArrayToFile(new File(home, "data.bin"), data);
+
+        FTPSession session = buildSession();
+        session.connect();
+        try {
+            InputStream input = session.retrieve("data.bin", 250);
+            try {
+                assertArrayEquals(Arrays.copyOfRange(data, 250, 1000), IOUtils.toByteArray(input));
+
+            } finally {
+                input.close();
+            }
+
+        } finally {
+            session.disconnect();
+        }
+    }
+
+    @Test
+    public void testTransferFailsOnceRetriesRunOut() throws Exception {
+        FTPSessionPool pool = buildPool(1, 0, 0);
+        final File local = new File(folder.getRoot(), "missing.bin");
+        final AtomicInteger attempts = new AtomicInteger();
+
+        try {
+            pool.transfer("missing.bin", new FTPSessionPool.Transfer() {
+                @Override
+                public void run(FTPSession session) throws Exception {
+                    attempts.incrementAndGet();
+                    session.download("missing.bin", local.getPath());
+                }
+            }, 2, 1);
+            fail("expected an IOException");
+
+        } catch (IOException e) {
+            assertEquals(3, attempts.get());
+        }
+
+        // each failed attempt must have given up its slot, or this would block forever
+        FTPSession session = pool.borrow();
+        assertTrue(session.noop());
+        pool.release(session);
+        pool.close();
+    }
+
+    @Test
+    public void testTransferRecoversWithinRetries() throws Exception {
+        FileUtils.writeByteArrayToFile(new File(home, "data.bin"), buildData(1000));
+
+        FTPSessionPool pool = buildPool(1, 0, 0);
+        final File local = new File(folder.getRoot(), "data.bin");
+        final AtomicInteger attempts = new AtomicInteger();
+
+        pool.transfer("data.bin", new FTPSessionPool.Transfer() {
+            @Override
+            public void run(FTPSession session) throws Exception {
+                if (attempts.incrementAndGet() == 1) {
+                    session.disconnect();                   // simulates a connection dropped mid-transfer
+                }
+                session.download("data.bin", local.getPath());
+            }
+        }, 2, 1);
+
+        pool.close();
+
+        assertEquals(2, attempts.get());
+        assertEquals(1000, local.length());
+    }
+
+    @Test
+    public void testStaleIdleSessionIsReplaced() throws Exception {
+        FTPSessionPool pool = buildPool(1, 0, 0);
+        pool.setValidateAfterIdleMs(500);
+
+        FTPSession first = pool.borrow();
+        pool.release(first);
+
+        // outlive the server's idle timeout, so that it drops the pooled session's control connection
+        Thread.sleep(SERVER_IDLE_TIMEOUT_SECONDS * 1000 + 1000);
+        assertTrue(first.isConnected());                    // the client can't tell until it uses the connection
+
+        FTPSession second = pool.borrow();
+        assertNotSame(first, second);
+        assertTrue(second.noop());
+
+        pool.release(second);
+        pool.close();
+    }
+
+    @Test
+    public void testSessionIdleTooLongIsReplaced() throws Exception {
+        FTPSessionPool pool = buildPool(1, 50, 200);
+
+        FTPSession first = pool.borrow();
+        pool.release(first);
+
+        Thread.sleep(500);
+
+        assertFalse(first.isConnected());
+
+        FTPSession second = pool.borrow();
+        assertNotSame(first, second);
+        assertTrue(second.noop());
+
+        pool.release(second);
+        pool.close();
+    }
+
+
+//////////////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    private FTPSession buildSession() {
+        return new FTPSession("localhost", port, USER, PASS);
+    }
+
+    private FTPSessionPool buildPool(int maxSessions, long keepAliveMs, long maxIdleMs) {
+        return new FTPSessionPool(new FTPSessionPool.SessionFactory() {
+            @Override
+            public FTPSession create() {
+                return buildSession();
+            }
+        }, maxSessions, keepAliveMs, maxIdleMs);
+    }
+
+    private static byte[] buildData(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i ++) {
+            data[i] = (byte) (i * 31 + i / 256);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2015 The University of Vermont and State Agricultural
+ * College, Vermont Oxford Network.  All rights reserved.
+ *
+ * Written by Matthew B. Storer <matthewbstorer@gmail.com>
+ *
+ * This file is part of GenBank Loader.
+ *
+ * GenBank Loader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenBank Loader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenBank Loader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.uvm.ccts.genbank.http;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+/**
+ * Downloads files through {@link HTTPSource} from an in-process HTTP server
+ */
+public class HTTPSourceTest {
+    private static final String PATH = "/genbank/gbbct1.seq.gz";
+    private static final String LAST_MODIFIED = "Mon, 19 Oct 2015 08:00:00 GMT";
+    private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpServer server;
+    private FileHandler handler;
+    private HTTPSource source;
+
+    @Before
+    public void setUp() throws Exception {
+        handler = new FileHandler(buildData(10000, 1), "\"v1\"");
+
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext(PATH, handler);
+        server.start();
+
+        source = new HTTPSource("http://localhost:" + server.getAddress().getPort(), 5000, 5000, 2, 1);
+    }
+
+    @After
+    public void tearDown() {
+        if (server != null) server.stop(0);
+    }
+
+    @Test
+    public void testSegmentedDownloadSendsRangeAndIfRange() throws Exception {
+        File local = new File(folder.getRoot(), "gbbct1.seq.gz");
+
+        assertEquals(10000, source.download(PATH, local.getPath(), 4, 1000));
+        assertArrayEquals(handler.data, FileUtils.readFileToByteArray(local));
+
+        List<Request> gets = handler.getRequests("GET");
+        assertEquals(4, gets.size());
+        for (Request request : gets) {
+            assertNotNull(request.range);
+            assertEquals("\"v1\"", request.ifRange);
+        }
+    }
+
+    @Test
+    public void testSingleDownloadResumesPartialFileWithIfRange() throws Exception {
+        File local = new File(folder.getRoot(), "gbbct1.seq.gz");
+        FileUtils.writeByteArrayToFile(local, Arrays.copyOf(handler.data, 4000));
+
+        assertEquals(6000, source.download(PATH, local.getPath(), 1, 1000));
+        assertArrayEquals(handler.data, FileUtils.readFileToByteArray(local));
+
+        List<Request> gets = handler.getRequests("GET");
+        assertEquals(1, gets.size());
+        assertEquals("bytes=4000-", gets.get(0).range);
+        assertEquals("\"v1\"", gets.get(0).ifRange);
+    }
+
+    @Test
+    public void testServerIgnoringRangesIsDownloadedWhole() throws Exception {
+        handler.honourRanges = false;
+        File local = new File(folder.getRoot(), "gbbct1.seq.gz");
+
+        assertEquals(10000, source.download(PATH, local.getPath(), 4, 1000));
+        assertArrayEquals(handler.data, FileUtils.readFileToByteArray(local));
+
+        List<Request> gets = handler.getRequests("GET");
+        assertNull(gets.get(gets.size() - 1).range);
+    }
+
+    @Test
+    public void testTruncatedSegmentIsResumed() throws Exception {
+        handler.truncateAt = 3000;                          // inside the second of four 2500 byte segments
+        File local = new File(folder.getRoot(), "gbbct1.seq.gz");
+
+        assertEquals(10000, source.download(PATH, local.getPath(), 4, 1000));
+        assertArrayEquals(handler.data, FileUtils.readFileToByteArray(local));
+
+        List<String> ranges = new ArrayList<String>();
+        for (Request request : handler.getRequests("GET")) {
+            ranges.add(request.range);
+        }
+        assertTrue(ranges.toString(), ranges.contains("bytes=3000-4999"));
+        assertEquals(5, ranges.size());
+    }
+
+    @Test
+    public void testFileChangedDuringDownloadIsRestartedNotSpliced() throws Exception {
+        handler.replacement = buildData(12000, 7);          // replaces the file as soon as it has been examined
+        File local = new File(folder.getRoot(), "gbbct1.seq.gz");
+
+        assertEquals(12000, source.download(PATH, local.getPath(), 4, 1000));
+        assertArrayEquals(handler.replacement, FileUtils.readFileToByteArray(local));
+
+        assertEquals(2, handler.getRequests("HEAD").size());
+        for (Request request : handler.getRequests("GET")) {
+            assertNotNull(request.range);                   // the restart still uses ranges
+        }
+    }
+
+
+//////////////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    private static byte[] buildData(int size, int seed) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i ++) {
+            data[i] = (byte) (i * seed + i / 256);
+        }
+        return data;
+    }
+
+    private static final class Request {
+        private final String method;
+        private final String range;
+        private final String ifRange;
+
+        private Request(String method, String range, String ifRange) {
+            this.method = method;
+            this.range = range;
+            this.ifRange = ifRange;
+        }
+    }
+
+    /**
+     * Serves a single file, honouring {@code Range} and {@code If-Range} the way a real server would unless told
+     * otherwise
+     */
+    private static final class FileHandler implements HttpHandler {
+        private final List<Request> requests = Collections.synchronizedList(new ArrayList<Request>());
+
+        private volatile byte[] data;
+        private volatile String etag;
+        private volatile boolean honourRanges = true;
+        private volatile long truncateAt = -1;
+        private volatile byte[] replacement = null;
+
+        private FileHandler(byte[] data, String etag) {
+            this.data = data;
+            this.etag = etag;
+        }
+
+        private List<Request> getRequests(String method) {
+            List<Request> list = new ArrayList<Request>();
+            synchronized(requests) {
+                for (Request request : requests) {
+                    if (request.method.equals(method)) list.add(request);
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                String method = exchange.getRequestMethod();
+                String range = exchange.getRequestHeaders().getFirst("Range");
+                String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+                requests.add(new Request(method, range, ifRange));
+
+                byte[] body;
+                String bodyEtag;
+                synchronized(this) {
+                    body = data;
+                    bodyEtag = etag;
+                }
+
+                exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+                exchange.getResponseHeaders().set("ETag", bodyEtag);
+                exchange.getResponseHeaders().set("Last-Modified", LAST_MODIFIED);
+
+                if (method.equals("HEAD")) {
+                    exchange.getResponseHeaders().set("Content-Length", String.valueOf(body.length));
+                    exchange.sendResponseHeaders(200, -1);
+
+                    synchronized(this) {
+                        if (replacement != null && data != replacement) {
+                            data = replacement;
+                            etag = "\"v2\"";
+                        }
+                    }
+                    return;
+                }
+
+                Matcher m = range != null ? RANGE_PATTERN.matcher(range) : null;
+                boolean partial = honourRanges && m != null && m.matches() &&
+                        (ifRange == null || ifRange.equals(bodyEtag));
+
+                int start = partial ? Integer.parseInt(m.group(1)) : 0;
+                int end = partial && ! m.group(2).isEmpty() ? Integer.parseInt(m.group(2)) : body.length - 1;
+                int length = end - start + 1;
+
+                if (partial) {
+                    exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" +
+                            body.length);
+                }
+                exchange.sendResponseHeaders(partial ? 206 : 200, length);
+
+                int stop = end + 1;
+                synchronized(this) {
+                    if (truncateAt > start && truncateAt <= end) {
+                        stop = (int) truncateAt;
+                        truncateAt = -1;
+                    }
+                }
+
+                OutputStream output = exchange.getResponseBody();
+                output.write(body, start, stop - start);
+                output.flush();
+
+                if (stop <= end) return;                    // drop the connection short of the promised length
+
+                output.close();
+
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2015 The University of Vermont and State Agricultural
+ * College, Vermont Oxford Network.  All rights reserved.
+ *
+ * Written by Matthew B. Storer <matthewbstorer@gmail.com>
+ *
+ * This file is part of GenBank Loader.
+ *
+ * GenBank Loader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * GenBank Loader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GenBank Loader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.uvm.ccts.genbank.schema;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the key parts generated for MySQL tables, whose keys InnoDB limits to 3072 bytes
+ */
+public class TableSchemaTest {
+
+    @Test
+    public void testWideUtf8mb4KeyIsPrefixed() {
+        String ddl = buildJournals().toDDL("genbank", "utf8mb4", widths(2, 1000), 0, "DYNAMIC");
+
+        assertTrue(ddl, ddl.contains("  journal varchar(2048) not null,"));
+        assertTrue(ddl, ddl.contains("  index journal(journal(768))"));
+    }
+
+    @Test
+    public void testWideLatin1KeyIsNotPrefixed() {
+        String ddl = buildJournals().toDDL("genbank", "latin1", widths(2, 1000), 0, "DYNAMIC");
+
+        assertTrue(ddl, ddl.contains("  index journal(journal)"));
+    }
+
+    @Test
+    public void testWideUtf8KeyIsPrefixed() {
+        String ddl = buildJournals().toDDL("genbank", "utf8", widths(2, 1000), 0, "DYNAMIC");
+
+        assertTrue(ddl, ddl.contains("  index journal(journal(1024))"));
+    }
+
+    @Test
+    public void testCompositeKeySharesBytes() {
+        TableSchema table = new TableSchema("summary", false)
+                .stringColumn("dimension", 50, false)
+                .stringColumn("name", 255, false)
+                .index("dimensionName", "dimension", "name");
+
+        String ddl = table.toDDL("genbank", "utf8mb4", widths(1, 1000), 0, "DYNAMIC");
+
+        // the 200 bytes of dimension leave 2872 for name, or 718 four-byte characters
+        assertTrue(ddl, ddl.contains("  index dimensionName(dimension, name(718))"));
+    }
+
+    @Test
+    public void testFixedWidthPartsReduceBudget() {
+        TableSchema table = new TableSchema("basic", true)
+                .column("partitionKey", "tinyint unsigned", false)
+                .stringColumn("locus", 2048, false)
+                .primaryKey("partitionKey", "locus");
+
+        String ddl = table.toDDL("genbank", "utf8mb4", null, 4, "DYNAMIC");
+
+        assertTrue(ddl, ddl.contains("  primary key (partitionKey, locus(767))"));
+    }
+
+    @Test
+    public void testAsciiColumnInUtf8mb4Table() {
+        TableSchema table = new TableSchema("values", false)
+                .column("valueId", "char(32) character set ascii", false)
+                .stringColumn("value", 16777216, false)
+                .primaryKey("valueId")
+                .index("value", "value");
+
+        String ddl = table.toDDL("genbank", "utf8mb4", null, 0, "DYNAMIC");
+
+        assertTrue(ddl, ddl.contains("  primary key (valueId)"));
+        assertTrue(ddl, ddl.contains("  index value(value(255))"));
+    }
+
+
+//////////////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    private static TableSchema buildJournals() {
+        return new TableSchema("journals", true)
+                .column("partitionKey", "tinyint unsigned", false)
+                .column("locus", "varchar(20)", false)
+                .stringColumn("journal", 500, false)
+                .index("journal", "journal");
+    }
+
+    private static Map<Integer, Long> widths(int position, long width) {
+        Map<Integer, Long> widths = new HashMap<Integer, Long>();
+        widths.put(position, width);
+        return widths;
+    }
+}